@@ -102,14 +102,10 @@ public class ImageHelper {
 
     public static Rectangle getBounds(String sourcePath) {
 
-        ImageManager sourcemanager = null;
-
         try {
-            sourcemanager = new ImageManager(new File(sourcePath).toURI().toURL());
-            int width = sourcemanager.getMyInterpreter().getWidth();
-            int height = sourcemanager.getMyInterpreter().getHeight();
-
-            return new Rectangle(width, height);
+            // only the header of the image is read; magick.ImageInfo is imported
+            de.unigoettingen.sub.commons.contentlib.imagelib.ImageInfo info = ImageFileFormat.getImageInfo(new File(sourcePath).toURI().toURL());
+            return new Rectangle(info.getWidth(), info.getHeight());
 
         } catch (Exception e) {
             LOGGER.error(e.getMessage());
@@ -137,6 +133,81 @@ public class ImageHelper {
         }
     }
 
+    /**
+     * Writes a tiled pyramidal TIFF of an image, with the full resolution image followed by reduced resolution images down to a single tile.
+     * 
+     * @param sourcePath the source path
+     * @param destPath the path of the pyramid
+     * @param compression the compression of the TIFF
+     * @param tileSize width and height of the tiles
+     * @throws ImageInterpreterException
+     * @throws IOException
+     */
+    public static void createPyramidTIFF(String sourcePath, String destPath, int compression, int tileSize) throws ImageInterpreterException,
+            IOException {
+        // the master itself is read, not an existing pyramid of it
+        ImageInterpreter sourceInterpreter = ImageFileFormat.getInterpreter(new File(sourcePath).toURI().toURL(), null, null, null, null);
+
+        TiffInterpreter wi = new TiffInterpreter(sourceInterpreter.getRenderedImage());
+        try {
+            wi.setWriterCompressionType(compression);
+        } catch (ParameterNotSupportedException e) {
+            LOGGER.warn("Compression " + compression + " can't be used for " + sourcePath + ", writing it uncompressed");
+        }
+        wi.setXResolution(sourceInterpreter.getXResolution());
+        wi.setYResolution(sourceInterpreter.getYResolution());
+
+        // the pyramid is written to a temporary file first, so it is never read while incomplete
+        File destFile = new File(destPath);
+        File tempFile = new File(destFile.getParentFile(), destFile.getName() + ".tmp");
+        BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(tempFile));
+        try {
+            wi.writePyramid(bos, tileSize, tileSize);
+        } finally {
+            bos.close();
+            sourceInterpreter.clear();
+        }
+        if ((destFile.exists() && !destFile.delete()) || !tempFile.renameTo(destFile)) {
+            tempFile.delete();
+            throw new IOException("Can't move pyramid to " + destPath);
+        }
+    }
+
+    /**
+     * Writes pyramidal TIFFs for all images of a directory next to them, see {@link TiffInterpreter#getPyramidFile(File)}.
+     * 
+     * @param dirName the directory
+     * @param compression the compression of the TIFFs
+     * @param tileSize width and height of the tiles
+     * @param force if true, existing pyramids are written again even if they are newer than the image
+     * @return the number of pyramids written
+     */
+    public static int createPyramidsForDir(String dirName, int compression, int tileSize, boolean force) {
+        File[] files = new File(dirName).listFiles(ImageFilter);
+        if (files == null) {
+            LOGGER.error("Can't read directory " + dirName);
+            return 0;
+        }
+        int count = 0;
+        for (File file : files) {
+            if (file.getName().endsWith(TiffInterpreter.PYRAMID_SUFFIX)) {
+                continue;
+            }
+            File pyramid = TiffInterpreter.getPyramidFile(file);
+            if (!force && pyramid.isFile() && pyramid.lastModified() >= file.lastModified()) {
+                continue;
+            }
+            LOGGER.info("Writing pyramid " + pyramid.getAbsolutePath());
+            try {
+                createPyramidTIFF(file.getAbsolutePath(), pyramid.getAbsolutePath(), compression, tileSize);
+                count++;
+            } catch (Exception e) {
+                LOGGER.error("Can't write pyramid for " + file.getAbsolutePath(), e);
+            }
+        }
+        return count;
+    }
+
     public static void createImageForOCR(String sourcePath, String destPath, Rectangle selection) {
         ImageManager sourcemanager = null;
         BufferedImage sourceImage = null;
@@ -0,0 +1,64 @@
+/*
+ * This file is part of the ContentServer project.
+ * Visit the websites for more information. 
+ * 		- http://gdz.sub.uni-goettingen.de 
+ * 		- http://www.intranda.com 
+ * 		- http://www.digiverso.com
+ * 
+ * Copyright 2009, Center for Retrospective Digitization, Göttingen (GDZ),
+ * intranda software
+ *
+ * This is the extended version updated by intranda
+ * Copyright 2012, intranda GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.intranda.test_ics;
+
+import org.apache.log4j.Logger;
+
+import de.unigoettingen.sub.commons.contentlib.imagelib.TiffInterpreter;
+
+/************************************************************************************
+ * Writes tiled pyramidal TIFFs next to the images of a directory, which are used by the contentserver instead of the images to read only the
+ * resolution and tiles needed for a request. Run it offline or from a background job after new images have been added:
+ * 
+ * <pre>
+ * java de.intranda.test_ics.PyramidBuilder &lt;directory&gt; [tile size] [force]
+ * </pre>
+ * 
+ * @version 17.10.2026
+ ************************************************************************************/
+public class PyramidBuilder {
+
+    /** Logger for this class. */
+    private static final Logger LOGGER = Logger.getLogger(PyramidBuilder.class);
+
+    private static final int DEFAULT_TILE_SIZE = 256;
+
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.out.println("Usage: PyramidBuilder <directory> [tile size] [force]");
+            return;
+        }
+        int tileSize = DEFAULT_TILE_SIZE;
+        if (args.length > 1) {
+            tileSize = Integer.parseInt(args[1]);
+        }
+        boolean force = args.length > 2 && Boolean.parseBoolean(args[2]);
+
+        long start = System.currentTimeMillis();
+        int count = ImageHelper.createPyramidsForDir(args[0], TiffInterpreter.COMPRESSION_LZW, tileSize, force);
+        LOGGER.info("Wrote " + count + " pyramids in " + (System.currentTimeMillis() - start) + " ms");
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * This file is part of the ContentServer project.
+ * Visit the websites for more information. 
+ * 		- http://gdz.sub.uni-goettingen.de 
+ * 		- http://www.intranda.com 
+ * 		- http://www.digiverso.com
+ * 
+ * Copyright 2009, Center for Retrospective Digitization, Göttingen (GDZ),
+ * intranda software
+ *
+ * This is the extended version updated by intranda
+ * Copyright 2012, intranda GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.unigoettingen.sub.commons.contentlib.exceptions;
+
+/************************************************************************************
+ * RenderQueueFullException, thrown if a render queue is full or a request waited too long for a render slot; the servlet answers with status 503
+ * and a Retry-After header.
+ * 
+ * @version 17.10.2026
+ ************************************************************************************/
+public class RenderQueueFullException extends ContentLibException {
+    /** The Constant serialVersionUID. */
+    private static final long serialVersionUID = 5812247931072358719L;
+
+    /**
+     * Instantiates a new render queue full exception.
+     * 
+     * @param inMessage the in message
+     */
+    public RenderQueueFullException(String inMessage) {
+        super(inMessage);
+    }
+
+}
@@ -25,16 +25,33 @@
  */
 package de.unigoettingen.sub.commons.contentlib.imagelib;
 
+import java.awt.Rectangle;
 import java.awt.image.RenderedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.TeeOutputStream;
 import org.apache.log4j.Logger;
 
+import com.sun.media.jai.codec.ByteArraySeekableStream;
+import com.sun.media.jai.codec.FileSeekableStream;
+import com.sun.media.jai.codec.SeekableStream;
+
+import de.unigoettingen.sub.commons.contentlib.exceptions.ImageManipulatorException;
 import de.unigoettingen.sub.commons.contentlib.exceptions.ParameterNotSupportedException;
+import de.unigoettingen.sub.commons.util.stream.StreamUtils;
+
 
 /*******************************************************************************
  * abstract class for all ImageInterpreters for different image types
@@ -57,6 +74,8 @@ public abstract class AbstractImageInterpreter {
     int samplesPerPixel = 0;
 
     byte rawbytes[];
+    // the source image in the file system, if the interpreter reads from the file instead of rawbytes
+    File sourceFile;
 
     /***************************************************************************
      * Getter for xResolution
@@ -158,6 +177,57 @@ public abstract class AbstractImageInterpreter {
         }
     }
 
+    /**
+     * use the given file as source of the image; the file is read when needed instead of holding its content in memory
+     * 
+     * @param file the image file
+     */
+    public void readImageFile(File file) {
+        sourceFile = file;
+    }
+
+    /**
+     * check if there is a source to read the image from, either the raw bytes or the source file
+     * 
+     * @return true if the image can be read
+     */
+    protected boolean hasImageSource() {
+        return rawbytes != null || sourceFile != null;
+    }
+
+    /**
+     * open a seekable stream on the source of the image, the source file is accessed via random access instead of reading it completely
+     * 
+     * @return the stream or null if there is no source
+     * @throws IOException
+     */
+    protected SeekableStream openSourceStream() throws IOException {
+        if (rawbytes != null) {
+            return new ByteArraySeekableStream(rawbytes);
+        } else if (sourceFile != null) {
+            return new FileSeekableStream(sourceFile);
+        }
+        return null;
+    }
+
+    /**
+     * open an {@link ImageInputStream} on the source of the image, the source file is memory mapped or accessed via random access instead of
+     * reading it completely
+     * 
+     * @return the stream or null if there is no source
+     * @throws IOException
+     */
+    protected ImageInputStream openSourceImageInputStream() throws IOException {
+        if (rawbytes == null && sourceFile != null) {
+            return StreamUtils.openImageInputStream(sourceFile);
+        }
+        SeekableStream stream = openSourceStream();
+        if (stream == null) {
+            return null;
+        }
+        return ImageIO.createImageInputStream(stream);
+    }
+
     /**
      * Method creates an image format specific byte stream Needs to be overloaded by the specific ImageInterpreter class
      */
@@ -165,33 +235,85 @@ public abstract class AbstractImageInterpreter {
 
     /**
      * writes the rawbytes into an output stream. If they are not available they are created by calling the interpreter specific
-     * createBytestreamFromRenderedImage method
+     * createBytestreamFromRenderedImage method. Interpreters which encode directly from the rendered image override this method.
      * 
      * @param outStream
+     * @throws IOException
      */
 
-    public void writeToStream(FileOutputStream fos, OutputStream outStream) {
+    public void encode(OutputStream outStream) throws IOException {
         if (rawbytes == null) {
             // create stream
             createByteStreamFromRenderedImage();
         }
+        if (rawbytes != null) {
+            outStream.write(rawbytes);
+        }
+    }
+
+    /**
+     * encodes the image once and writes it to the output stream; if a file stream is given as well, the same encoded bytes are teed into it
+     * and the file stream is closed afterwards
+     * 
+     * @param fos optional file stream, may be null
+     * @param outStream
+     */
+
+    public void writeToStream(FileOutputStream fos, OutputStream outStream) {
+        try {
+            if (fos == null) {
+                encode(outStream);
+            } else {
+                TeeOutputStream tee = new TeeOutputStream(outStream, fos);
+                encode(tee);
+                tee.flush();
+            }
+        } catch (IOException e) {
+            LOGGER.error("IOException occured", e);
+        } finally {
+            IOUtils.closeQuietly(fos);
+        }
+    }
+
+    /**
+     * encodes the image once, writes it to the output stream and returns the encoded bytes as well
+     * 
+     * @param outStream optional stream, may be null
+     * @return the encoded image or null, if it couldn't be encoded
+     */
 
+    public byte[] writeToStreamAndByteArray(OutputStream outStream) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
         try {
-            for (byte rawbyte : rawbytes) {
-                outStream.write(rawbyte);
+            if (outStream == null) {
+                encode(baos);
+            } else {
+                TeeOutputStream tee = new TeeOutputStream(outStream, baos);
+                encode(tee);
+                tee.flush();
             }
         } catch (IOException e) {
             LOGGER.error("IOException occured", e);
+            return null;
         }
+        return baos.toByteArray();
     }
 
     /**
-     * retrieve a byte array of the data
+     * retrieve a byte array of the data; if the image is read from a file, the file is read completely now and the bytes are not kept by the
+     * interpreter
      * 
      * @return
      */
 
     public byte[] getImageByteStream() {
+        if (rawbytes == null && sourceFile != null) {
+            try {
+                return FileUtils.readFileToByteArray(sourceFile);
+            } catch (IOException e) {
+                LOGGER.error("Can't read image file " + sourceFile, e);
+            }
+        }
         return rawbytes;
     }
 
@@ -209,6 +331,46 @@ public abstract class AbstractImageInterpreter {
         return this.renderedimage;
     }
 
+    /**
+     * Default implementation for interpreters which can't decode partially: the whole image is decoded and cropped to the region, subsampling is
+     * ignored.
+     * 
+     * @param sourceRegion region of the image, null for the whole image
+     * @param subsampling ignored
+     * @return
+     */
+    public RenderedImage getRenderedImage(Rectangle sourceRegion, int subsampling) {
+        RenderedImage image = getRenderedImage();
+        if (image != null && sourceRegion != null) {
+            try {
+                image = ImageManipulator.crop(image, sourceRegion);
+            } catch (ImageManipulatorException e) {
+                LOGGER.error("Can't crop image to region " + sourceRegion, e);
+                return null;
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Creates the read parameters to decode the given region with the given subsampling
+     * 
+     * @param reader the {@link ImageReader} to create the parameters for
+     * @param sourceRegion region of the image, null for the whole image
+     * @param subsampling decode only every subsampling-th pixel
+     * @return
+     */
+    protected static ImageReadParam createReadParam(ImageReader reader, Rectangle sourceRegion, int subsampling) {
+        ImageReadParam param = reader.getDefaultReadParam();
+        if (sourceRegion != null) {
+            param.setSourceRegion(sourceRegion);
+        }
+        if (subsampling > 1) {
+            param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+        }
+        return param;
+    }
+
     /**
      * Indicates wether the image's bytestream is directly embeddable.
      * 
@@ -26,12 +26,17 @@
 package de.unigoettingen.sub.commons.contentlib.imagelib;
 
 import java.awt.image.RenderedImage;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.Locale;
 
+import javax.imageio.ImageIO;
+import javax.imageio.stream.ImageInputStream;
+
 import de.unigoettingen.sub.commons.contentlib.exceptions.ImageInterpreterException;
 import de.unigoettingen.sub.commons.util.stream.StreamUtils;
 
@@ -52,6 +57,9 @@ public enum ImageFileFormat {
     /** JP2 images */
     JP2;
 
+    /** fragment of an image url selecting a page of a multi-page TIFF, followed by the number of the page starting with 1 */
+    public static final String PAGE_FRAGMENT = "page=";
+
     /************************************************************************************
      * get MimeType for file format as String
      * 
@@ -93,7 +101,8 @@ public enum ImageFileFormat {
     }
 
     /************************************************************************************
-     * get {@link ImageInterpreter} for {@link URL} as parameter using proxy informations
+     * get {@link ImageInterpreter} for {@link URL} as parameter using proxy informations; a page of a multi-page TIFF is selected by the fragment
+     * {@link #PAGE_FRAGMENT} of the url, e.g. <code>file:/images/scan.tif#page=3</code>
      * 
      * @return requested ImageInterpreter for file format
      * @param url as URL
@@ -107,20 +116,122 @@ public enum ImageFileFormat {
     public static ImageInterpreter getInterpreter(URL url, String httpproxyhost, String httpproxyport, String httpproxyuser, String httpproxypasswd)
             throws ImageInterpreterException, IOException {
 
-        String mimetype = StreamUtils.getMimeTypeFromUrl(url, httpproxyhost, httpproxyport, httpproxyuser, httpproxypasswd);
+        int page = getPageFromUrl(url);
+        URL imageUrl = getUrlWithoutPage(url);
+        String mimetype = StreamUtils.getMimeTypeFromUrl(imageUrl, httpproxyhost, httpproxyport, httpproxyuser, httpproxypasswd);
         ImageFileFormat iff = getImageFileFormatFromMimeType(mimetype);
         if (iff == null) {
             // check extension
-            iff = getImageFileFormatFromFileExtension(url.toString());
+            iff = getImageFileFormatFromFileExtension(imageUrl.toString());
+        }
+        if (page > 0 && iff != TIFF) {
+            throw new ImageInterpreterException("Pages can only be selected in TIFF images: " + url);
+        }
+        if ("file".equals(imageUrl.getProtocol())) {
+            // read local files directly instead of buffering them in memory
+            File file = StreamUtils.getFileFromUrl(imageUrl);
+            if (file.isFile()) {
+                return page > 0 ? new TiffInterpreter(file, page) : iff.getInterpreter(file);
+            }
         }
-        InputStream myInputStream = StreamUtils.getInputStreamFromUrl(url);
-        ImageInterpreter myInterpreter = iff.getInterpreter(myInputStream);
+        InputStream myInputStream = StreamUtils.getInputStreamFromUrl(imageUrl);
+        ImageInterpreter myInterpreter = page > 0 ? new TiffInterpreter(myInputStream, page) : iff.getInterpreter(myInputStream);
         if (myInputStream != null) {
             myInputStream.close();
         }
         return myInterpreter;
     }
 
+    /************************************************************************************
+     * get the page of a multi-page TIFF selected by the fragment {@link #PAGE_FRAGMENT} of an image url
+     * 
+     * @param url the url of the image
+     * @return index of the page, 0 for the first page or if no page is selected
+     * @throws ImageInterpreterException if the page is not a positive number
+     ************************************************************************************/
+    public static int getPageFromUrl(URL url) throws ImageInterpreterException {
+        String ref = url.getRef();
+        if (ref == null || !ref.startsWith(PAGE_FRAGMENT)) {
+            return 0;
+        }
+        try {
+            int number = Integer.parseInt(ref.substring(PAGE_FRAGMENT.length()));
+            if (number >= 1) {
+                return number - 1;
+            }
+        } catch (NumberFormatException e) {
+            // handled below
+        }
+        throw new ImageInterpreterException("Invalid page in " + url);
+    }
+
+    /************************************************************************************
+     * get the url of the image file itself without the fragment selecting a page
+     * 
+     * @param url the url of the image
+     * @return the url without the fragment {@link #PAGE_FRAGMENT}
+     * @throws MalformedURLException
+     ************************************************************************************/
+    public static URL getUrlWithoutPage(URL url) throws MalformedURLException {
+        String ref = url.getRef();
+        if (ref == null || !ref.startsWith(PAGE_FRAGMENT)) {
+            return url;
+        }
+        String urlString = url.toString();
+        return new URL(urlString.substring(0, urlString.lastIndexOf('#')));
+    }
+
+    /************************************************************************************
+     * get {@link ImageInfo} with size, resolution and color depth of an image at {@link URL} reading only the header of the image; the
+     * information of local files is cached until the file changes
+     * 
+     * @param url as URL
+     * @return {@link ImageInfo} of the image
+     * @throws ImageInterpreterException if the header can't be read
+     * @throws IOException
+     ************************************************************************************/
+    public static ImageInfo getImageInfo(URL url) throws ImageInterpreterException, IOException {
+        return ImageInfoReader.getImageInfo(url, null, null, null, null);
+    }
+
+    /************************************************************************************
+     * get {@link ImageInfo} with size, resolution and color depth of an image at {@link URL} reading only the header of the image, using proxy
+     * informations; the information of local files is cached until the file changes
+     * 
+     * @param url as URL
+     * @param httpproxyhost the host for the proxy
+     * @param httpproxyport the port for the proxy
+     * @param httpproxyuser the user name for the proxy
+     * @param httpproxypasswd the password for the proxy
+     * @return {@link ImageInfo} of the image
+     * @throws ImageInterpreterException if the header can't be read
+     * @throws IOException
+     ************************************************************************************/
+    public static ImageInfo getImageInfo(URL url, String httpproxyhost, String httpproxyport, String httpproxyuser, String httpproxypasswd)
+            throws ImageInterpreterException, IOException {
+        return ImageInfoReader.getImageInfo(url, httpproxyhost, httpproxyport, httpproxyuser, httpproxypasswd);
+    }
+
+    /************************************************************************************
+     * get {@link ImageInfo} for file format reading only the header of the image from an {@link InputStream}
+     * 
+     * @param inputStream the image
+     * @return {@link ImageInfo} of the image
+     * @throws ImageInterpreterException if the header can't be read
+     * @throws IOException
+     ************************************************************************************/
+    public ImageInfo getImageInfo(InputStream inputStream) throws ImageInterpreterException, IOException {
+        ImageInputStream iis = ImageIO.createImageInputStream(inputStream);
+        if (iis == null) {
+            throw new ImageInterpreterException("Can't read the input stream");
+        }
+        try {
+            return ImageInfoReader.read(this, iis);
+        } finally {
+            iis.close();
+        }
+    }
+
     /************************************************************************************
      * get {@link ImageInterpreter} for file format by using {@link FileInputStream} as parameter
      * 
@@ -143,6 +254,31 @@ public enum ImageFileFormat {
         }
     }
 
+    /************************************************************************************
+     * get {@link ImageInterpreter} for file format by using a {@link File} as parameter; TIFF and JPEG images are read directly from the file when
+     * needed, the other formats are read completely
+     * 
+     * @return requested ImageInterpreter for file format
+     * @param file the image file
+     * @throws ImageInterpreterException
+     * @throws IOException
+     ************************************************************************************/
+    public ImageInterpreter getInterpreter(File file) throws ImageInterpreterException, IOException {
+        switch (this) {
+            case TIFF:
+                return new TiffInterpreter(file);
+            case JPG:
+                return new JpegInterpreter(file);
+            default:
+                InputStream inputFileStream = new FileInputStream(file);
+                try {
+                    return getInterpreter(inputFileStream);
+                } finally {
+                    inputFileStream.close();
+                }
+        }
+    }
+
     /************************************************************************************
      * get {@link ImageInterpreter} for file format by using {@link RenderedImage} as parameter
      * 
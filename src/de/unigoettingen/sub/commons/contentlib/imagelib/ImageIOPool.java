@@ -0,0 +1,278 @@
+/*
+ * This file is part of the ContentServer project.
+ * Visit the websites for more information. 
+ * 		- http://gdz.sub.uni-goettingen.de 
+ * 		- http://www.intranda.com 
+ * 		- http://www.digiverso.com
+ * 
+ * Copyright 2009, Center for Retrospective Digitization, Göttingen (GDZ),
+ * intranda software
+ *
+ * This is the extended version updated by intranda
+ * Copyright 2012, intranda GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.unigoettingen.sub.commons.contentlib.imagelib;
+
+import java.awt.color.ColorSpace;
+import java.awt.image.ColorModel;
+import java.awt.image.IndexColorModel;
+import java.awt.image.SampleModel;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.spi.ImageReaderSpi;
+import javax.imageio.spi.ImageWriterSpi;
+
+import org.apache.log4j.Logger;
+
+/************************************************************************************
+ * Pool of ImageIO readers and writers. The service provider of a format is looked up only once, readers and writers are kept per provider and reset
+ * before they are handed out again, so small renders don't pay for the provider lookup and the codec setup on every request.
+ * 
+ * A reader or writer taken from the pool must be used by one thread only and should be given back with {@link #returnReader(ImageReader)} or
+ * {@link #returnWriter(ImageWriter)} instead of being disposed. Readers and writers which are not given back (e.g. because a rendered image still reads
+ * from them, or because they failed) are simply left to the garbage collector.
+ * 
+ * Pooled writers also keep the default {@link IIOMetadata} per image type, see {@link #getDefaultImageMetadata(ImageWriter, ImageTypeSpecifier,
+ * ImageWriteParam)}.
+ * 
+ * @version 17.10.2026
+ ************************************************************************************/
+public final class ImageIOPool {
+    private static final Logger LOGGER = Logger.getLogger(ImageIOPool.class);
+
+    /* number of idle readers or writers kept per provider */
+    private static final int MAX_IDLE = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+
+    private static final ConcurrentMap<String, ImageReaderSpi> READER_PROVIDERS = new ConcurrentHashMap<String, ImageReaderSpi>();
+    private static final ConcurrentMap<String, ImageWriterSpi> WRITER_PROVIDERS = new ConcurrentHashMap<String, ImageWriterSpi>();
+
+    private static final ConcurrentMap<String, BlockingQueue<ImageReader>> READERS = new ConcurrentHashMap<String, BlockingQueue<ImageReader>>();
+    private static final ConcurrentMap<String, BlockingQueue<ImageWriter>> WRITERS = new ConcurrentHashMap<String, BlockingQueue<ImageWriter>>();
+
+    /*
+     * default metadata per pooled writer and image type; a writer and its metadata are only used by one thread at a time, writers which are not
+     * given back drop out of the map with the garbage collection
+     */
+    private static final Map<ImageWriter, Map<String, IIOMetadata>> METADATA_TEMPLATES =
+            Collections.synchronizedMap(new WeakHashMap<ImageWriter, Map<String, IIOMetadata>>());
+
+    private ImageIOPool() {
+    }
+
+    /************************************************************************************
+     * get a reader for the given format name
+     * 
+     * @param formatName the informal format name, e.g. "tiff"
+     * @return the reader or null if ImageIO has no reader for the format
+     ************************************************************************************/
+    public static ImageReader getReader(String formatName) {
+        ImageReaderSpi provider = READER_PROVIDERS.get(formatName);
+        if (provider == null) {
+            Iterator<ImageReader> it = ImageIO.getImageReadersByFormatName(formatName);
+            if (!it.hasNext()) {
+                return null;
+            }
+            ImageReader reader = it.next();
+            if (reader.getOriginatingProvider() != null) {
+                READER_PROVIDERS.putIfAbsent(formatName, reader.getOriginatingProvider());
+            }
+            return reader;
+        }
+        return getReader(provider);
+    }
+
+    /************************************************************************************
+     * get a reader created by the given provider
+     * 
+     * @param provider the {@link ImageReaderSpi} of the reader
+     * @return the reader
+     * @throws IllegalStateException if the provider can't create a reader
+     ************************************************************************************/
+    public static ImageReader getReader(ImageReaderSpi provider) {
+        ImageReader reader = getQueue(READERS, provider.getClass().getName()).poll();
+        if (reader != null) {
+            return reader;
+        }
+        try {
+            return provider.createReaderInstance();
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't create ImageReader of " + provider.getClass().getName(), e);
+        }
+    }
+
+    /************************************************************************************
+     * give a reader back to the pool, it is reset and kept if there is room for it, otherwise it is disposed
+     * 
+     * @param reader the reader, may be null
+     ************************************************************************************/
+    public static void returnReader(ImageReader reader) {
+        if (reader == null) {
+            return;
+        }
+        try {
+            reader.reset();
+            if (reader.getOriginatingProvider() != null
+                    && getQueue(READERS, reader.getOriginatingProvider().getClass().getName()).offer(reader)) {
+                return;
+            }
+        } catch (RuntimeException e) {
+            LOGGER.debug("Can't reset ImageReader, it is not pooled: " + e.toString());
+        }
+        reader.dispose();
+    }
+
+    /************************************************************************************
+     * get a writer for the given format name
+     * 
+     * @param formatName the informal format name, e.g. "png"
+     * @return the writer or null if ImageIO has no writer for the format
+     ************************************************************************************/
+    public static ImageWriter getWriter(String formatName) {
+        ImageWriterSpi provider = WRITER_PROVIDERS.get(formatName);
+        if (provider == null) {
+            Iterator<ImageWriter> it = ImageIO.getImageWritersByFormatName(formatName);
+            if (!it.hasNext()) {
+                return null;
+            }
+            ImageWriter writer = it.next();
+            if (writer.getOriginatingProvider() == null) {
+                return writer;
+            }
+            WRITER_PROVIDERS.putIfAbsent(formatName, writer.getOriginatingProvider());
+            METADATA_TEMPLATES.put(writer, new HashMap<String, IIOMetadata>());
+            return writer;
+        }
+        return getWriter(provider);
+    }
+
+    /************************************************************************************
+     * get a writer created by the given provider
+     * 
+     * @param provider the {@link ImageWriterSpi} of the writer
+     * @return the writer
+     * @throws IllegalStateException if the provider can't create a writer
+     ************************************************************************************/
+    public static ImageWriter getWriter(ImageWriterSpi provider) {
+        ImageWriter writer = getQueue(WRITERS, provider.getClass().getName()).poll();
+        if (writer != null) {
+            return writer;
+        }
+        try {
+            writer = provider.createWriterInstance();
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't create ImageWriter of " + provider.getClass().getName(), e);
+        }
+        METADATA_TEMPLATES.put(writer, new HashMap<String, IIOMetadata>());
+        return writer;
+    }
+
+    /************************************************************************************
+     * give a writer back to the pool, it is reset and kept if there is room for it, otherwise it is disposed
+     * 
+     * @param writer the writer, may be null
+     ************************************************************************************/
+    public static void returnWriter(ImageWriter writer) {
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.reset();
+            if (writer.getOriginatingProvider() != null
+                    && getQueue(WRITERS, writer.getOriginatingProvider().getClass().getName()).offer(writer)) {
+                return;
+            }
+        } catch (RuntimeException e) {
+            LOGGER.debug("Can't reset ImageWriter, it is not pooled: " + e.toString());
+        }
+        METADATA_TEMPLATES.remove(writer);
+        writer.dispose();
+    }
+
+    /************************************************************************************
+     * get the default image metadata of a writer. For pooled writers the metadata is created once per image type and handed out again on the next
+     * use of the same writer; callers overwrite the values they need (dimensions, resolution) on every use anyway. Images with a palette or a color
+     * space other than sRGB or gray always get new metadata, as the default metadata contains the palette or the color profile.
+     * 
+     * @param writer the writer
+     * @param its the type of the image to write
+     * @param param the write parameters; must not differ from the writer's default parameters in anything that changes the default metadata
+     * @return the default metadata
+     ************************************************************************************/
+    public static IIOMetadata getDefaultImageMetadata(ImageWriter writer, ImageTypeSpecifier its, ImageWriteParam param) {
+        Map<String, IIOMetadata> templates = METADATA_TEMPLATES.get(writer);
+        String key = getImageTypeKey(its);
+        if (templates == null || key == null) {
+            return writer.getDefaultImageMetadata(its, param);
+        }
+        IIOMetadata metadata = templates.get(key);
+        if (metadata == null) {
+            metadata = writer.getDefaultImageMetadata(its, param);
+            if (metadata != null) {
+                templates.put(key, metadata);
+            }
+        }
+        return metadata;
+    }
+
+    /************************************************************************************
+     * build a key for the parts of an image type which make up the default metadata
+     * 
+     * @param its the image type
+     * @return the key or null if the default metadata of the image type depends on more than that
+     ************************************************************************************/
+    private static String getImageTypeKey(ImageTypeSpecifier its) {
+        ColorModel cm = its.getColorModel();
+        SampleModel sm = its.getSampleModel();
+        if (cm instanceof IndexColorModel) {
+            return null;
+        }
+        if (cm.getColorSpace() != ColorSpace.getInstance(ColorSpace.CS_sRGB) && cm.getColorSpace() != ColorSpace.getInstance(ColorSpace.CS_GRAY)) {
+            return null;
+        }
+        StringBuilder key = new StringBuilder();
+        key.append(cm.getClass().getName()).append('_').append(cm.getColorSpace().getType()).append('_').append(cm.getNumComponents());
+        key.append('_').append(cm.getPixelSize()).append('_').append(cm.hasAlpha()).append('_').append(cm.isAlphaPremultiplied());
+        key.append('_').append(cm.getTransferType()).append('_').append(sm.getNumBands()).append('_').append(sm.getDataType());
+        key.append('_').append(its.getBufferedImageType());
+        return key.toString();
+    }
+
+    private static <T> BlockingQueue<T> getQueue(ConcurrentMap<String, BlockingQueue<T>> pools, String provider) {
+        BlockingQueue<T> queue = pools.get(provider);
+        if (queue == null) {
+            BlockingQueue<T> created = new LinkedBlockingQueue<T>(MAX_IDLE);
+            queue = pools.putIfAbsent(provider, created);
+            if (queue == null) {
+                queue = created;
+            }
+        }
+        return queue;
+    }
+}
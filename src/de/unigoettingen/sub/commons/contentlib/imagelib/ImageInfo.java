@@ -0,0 +1,107 @@
+/*
+ * This file is part of the ContentServer project.
+ * Visit the websites for more information. 
+ * 		- http://gdz.sub.uni-goettingen.de 
+ * 		- http://www.intranda.com 
+ * 		- http://www.digiverso.com
+ * 
+ * Copyright 2009, Center for Retrospective Digitization, Göttingen (GDZ),
+ * intranda software
+ *
+ * This is the extended version updated by intranda
+ * Copyright 2012, intranda GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.unigoettingen.sub.commons.contentlib.imagelib;
+
+/************************************************************************************
+ * basic information about an image read from its header: size, resolution, color depth and samples per pixel; the image data itself is not
+ * read, see {@link ImageFileFormat#getImageInfo(java.net.URL)}
+ * 
+ * @version 17.10.2026
+ ************************************************************************************/
+public class ImageInfo {
+    private final int width;
+    private final int height;
+    private final float xResolution;
+    private final float yResolution;
+    private final int colordepth;
+    private final int samplesperpixel;
+
+    /************************************************************************************
+     * Constructor for {@link ImageInfo}
+     * 
+     * @param width width in pixel
+     * @param height height in pixel
+     * @param xResolution horizontal resolution in dpi
+     * @param yResolution vertical resolution in dpi
+     * @param colordepth bits per sample, 1 for bitonal images
+     * @param samplesperpixel samples per pixel, 1 for bitonal and greyscale images
+     ************************************************************************************/
+    public ImageInfo(int width, int height, float xResolution, float yResolution, int colordepth, int samplesperpixel) {
+        this.width = width;
+        this.height = height;
+        this.xResolution = xResolution;
+        this.yResolution = yResolution;
+        this.colordepth = colordepth;
+        this.samplesperpixel = samplesperpixel;
+    }
+
+    /**
+     * @return width in pixel
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return height in pixel
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return horizontal resolution in dpi
+     */
+    public float getXResolution() {
+        return xResolution;
+    }
+
+    /**
+     * @return vertical resolution in dpi
+     */
+    public float getYResolution() {
+        return yResolution;
+    }
+
+    /**
+     * @return bits per sample
+     */
+    public int getColordepth() {
+        return colordepth;
+    }
+
+    /**
+     * @return samples per pixel
+     */
+    public int getSamplesperpixel() {
+        return samplesperpixel;
+    }
+
+    @Override
+    public String toString() {
+        return width + "x" + height + " pixel, " + xResolution + "x" + yResolution + " dpi, " + samplesperpixel + " x " + colordepth + " bit";
+    }
+}
@@ -0,0 +1,551 @@
+/*
+ * This file is part of the ContentServer project.
+ * Visit the websites for more information. 
+ * 		- http://gdz.sub.uni-goettingen.de 
+ * 		- http://www.intranda.com 
+ * 		- http://www.digiverso.com
+ * 
+ * Copyright 2009, Center for Retrospective Digitization, Göttingen (GDZ),
+ * intranda software
+ *
+ * This is the extended version updated by intranda
+ * Copyright 2012, intranda GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.unigoettingen.sub.commons.contentlib.imagelib;
+
+import java.awt.image.SampleModel;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.ByteOrder;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataFormatImpl;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageInputStream;
+
+import org.apache.log4j.Logger;
+import org.w3c.dom.NodeList;
+
+import de.unigoettingen.sub.commons.contentlib.exceptions.ImageInterpreterException;
+import de.unigoettingen.sub.commons.util.stream.StreamUtils;
+
+/************************************************************************************
+ * reads the {@link ImageInfo} of an image from the header of the image file: the IFD of TIFF files, the APP0 and SOF markers of JPEG files, the
+ * IHDR and pHYs chunks of PNG files and the header boxes of JPEG 2000 files; if the header can't be parsed, the ImageIO reader of the image is
+ * asked for its metadata, the image data is never decoded. The information of local files is kept in a small index and read again when the
+ * modification date of the file changes. Pages of multi-page TIFFs are read using the {@link TiffPageIndex}.
+ * 
+ * @version 17.10.2026
+ ************************************************************************************/
+final class ImageInfoReader {
+    private static final Logger LOGGER = Logger.getLogger(ImageInfoReader.class);
+
+    /** resolution used if the image doesn't contain one, same as in the interpreters */
+    private static final float DEFAULT_RESOLUTION = 100f;
+
+    /** The maximum number of images in the index. */
+    private static final int MAX_IMAGES = 10000;
+
+    private static final Map<String, CachedInfo> INDEX = new LinkedHashMap<String, CachedInfo>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedInfo> eldest) {
+            return size() > MAX_IMAGES;
+        }
+    };
+
+    private ImageInfoReader() {
+    }
+
+    /************************************************************************************
+     * get {@link ImageInfo} for an image url; local files are read directly and their information is cached; the url may select a page of a
+     * multi-page TIFF, see {@link ImageFileFormat#PAGE_FRAGMENT}
+     * 
+     * @param url the url of the image
+     * @param httpproxyhost the host for the proxy
+     * @param httpproxyport the port for the proxy
+     * @param httpproxyuser the user name for the proxy
+     * @param httpproxypasswd the password for the proxy
+     * @return {@link ImageInfo} of the image
+     * @throws ImageInterpreterException if the header can't be read
+     * @throws IOException
+     ************************************************************************************/
+    static ImageInfo getImageInfo(URL url, String httpproxyhost, String httpproxyport, String httpproxyuser, String httpproxypasswd)
+            throws ImageInterpreterException, IOException {
+        int page = ImageFileFormat.getPageFromUrl(url);
+        url = ImageFileFormat.getUrlWithoutPage(url);
+        if ("file".equals(url.getProtocol())) {
+            File file = StreamUtils.getFileFromUrl(url);
+            if (file.isFile()) {
+                return getImageInfo(file, page);
+            }
+        }
+        ImageFileFormat iff = ImageFileFormat.getImageFileFormatFromMimeType(StreamUtils.getMimeTypeFromUrl(url, httpproxyhost, httpproxyport,
+                httpproxyuser, httpproxypasswd));
+        if (iff == null) {
+            iff = ImageFileFormat.getImageFileFormatFromFileExtension(url.toString());
+        }
+        InputStream inStream = StreamUtils.getInputStreamFromUrl(url, null, httpproxyhost, httpproxyport, httpproxyuser, httpproxypasswd);
+        if (inStream == null) {
+            throw new ImageInterpreterException("Can't open " + url);
+        }
+        try {
+            ImageInputStream iis = ImageIO.createImageInputStream(inStream);
+            if (iis == null) {
+                throw new ImageInterpreterException("Can't read " + url);
+            }
+            try {
+                if (page > 0) {
+                    iis = new TiffPageInputStream(iis, TiffPageIndex.getPageOffset(TiffPageIndex.readPageOffsets(iis), page));
+                }
+                return read(iff, iis);
+            } finally {
+                iis.close();
+            }
+        } finally {
+            inStream.close();
+        }
+    }
+
+    /************************************************************************************
+     * get {@link ImageInfo} for a local image file or a page of it from the index or from the header of the file
+     * 
+     * @param file the image file
+     * @param page index of the page of a multi-page TIFF, 0 for the first page
+     * @return {@link ImageInfo} of the image
+     * @throws ImageInterpreterException if the header can't be read
+     * @throws IOException
+     ************************************************************************************/
+    static ImageInfo getImageInfo(File file, int page) throws ImageInterpreterException, IOException {
+        String key = page > 0 ? file.getAbsolutePath() + "#" + page : file.getAbsolutePath();
+        long lastModified = file.lastModified();
+        CachedInfo cached;
+        synchronized (INDEX) {
+            cached = INDEX.get(key);
+        }
+        if (cached != null && cached.lastModified == lastModified) {
+            return cached.info;
+        }
+
+        long pageOffset = page > 0 ? TiffPageIndex.getPageOffset(TiffPageIndex.getPageOffsets(file), page) : 0;
+        ImageInputStream iis = StreamUtils.openImageInputStream(file);
+        if (pageOffset > 0) {
+            iis = new TiffPageInputStream(iis, pageOffset);
+        }
+        ImageInfo info;
+        try {
+            info = read(ImageFileFormat.getImageFileFormatFromFileExtension(file.getName()), iis);
+        } finally {
+            iis.close();
+        }
+        synchronized (INDEX) {
+            INDEX.put(key, new CachedInfo(lastModified, info));
+        }
+        return info;
+    }
+
+    /************************************************************************************
+     * Removes all images from the index.
+     ************************************************************************************/
+    static void invalidateAll() {
+        synchronized (INDEX) {
+            INDEX.clear();
+        }
+    }
+
+    /************************************************************************************
+     * read the header of an image; the header is recognized by its signature, the file format is only used if the signature is unknown
+     ************************************************************************************/
+    static ImageInfo read(ImageFileFormat iff, ImageInputStream iis) throws ImageInterpreterException, IOException {
+        ImageInfo info = null;
+        try {
+            iis.setByteOrder(ByteOrder.BIG_ENDIAN);
+            int signature = iis.readInt();
+            iis.seek(0);
+            if ((signature >>> 16) == 0x4949 || (signature >>> 16) == 0x4D4D) {
+                info = readTiff(iis);
+            } else if ((signature >>> 16) == 0xFFD8) {
+                info = readJpeg(iis);
+            } else if (signature == 0x89504E47) {
+                info = readPng(iis);
+            } else if (signature == 0x0000000C || signature == 0xFF4FFF51) {
+                info = readJpegTwoThousand(iis);
+            } else {
+                LOGGER.debug("Unknown image signature " + Integer.toHexString(signature) + " for file format " + iff);
+            }
+        } catch (IOException e) {
+            // truncated or unusual header
+            LOGGER.debug("Can't parse image header", e);
+        }
+        if (info == null) {
+            iis.seek(0);
+            info = readWithImageIO(iis);
+        }
+        if (info == null) {
+            throw new ImageInterpreterException("Can't read size of the image");
+        }
+        return info;
+    }
+
+    /************************************************************************************
+     * read the first IFD of a TIFF file; returns null for BigTIFF files
+     ************************************************************************************/
+    private static ImageInfo readTiff(ImageInputStream iis) throws IOException {
+        iis.setByteOrder(iis.read() == 'I' ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+        iis.skipBytes(1);
+        if (iis.readUnsignedShort() != 42) {
+            return null;
+        }
+        iis.seek(iis.readUnsignedInt());
+        int entries = iis.readUnsignedShort();
+        int width = 0;
+        int height = 0;
+        int colordepth = 1; // default values of the TIFF specification
+        int samplesperpixel = 1;
+        float xResolution = 0;
+        float yResolution = 0;
+        int resolutionUnit = 2;
+        for (int i = 0; i < entries; i++) {
+            int tag = iis.readUnsignedShort();
+            int type = iis.readUnsignedShort();
+            long count = iis.readUnsignedInt();
+            long valuePosition = iis.getStreamPosition();
+            switch (tag) {
+                case 256:
+                    width = (int) readTiffNumber(iis, type);
+                    break;
+                case 257:
+                    height = (int) readTiffNumber(iis, type);
+                    break;
+                case 258:
+                    if (count > 2) {
+                        // the values don't fit into the entry
+                        iis.seek(iis.readUnsignedInt());
+                    }
+                    colordepth = (int) readTiffNumber(iis, type);
+                    break;
+                case 277:
+                    samplesperpixel = (int) readTiffNumber(iis, type);
+                    break;
+                case 282:
+                    xResolution = readTiffRational(iis);
+                    break;
+                case 283:
+                    yResolution = readTiffRational(iis);
+                    break;
+                case 296:
+                    resolutionUnit = (int) readTiffNumber(iis, type);
+                    break;
+                default:
+                    break;
+            }
+            iis.seek(valuePosition + 4);
+        }
+        if (resolutionUnit == 3) {
+            // centimeter
+            xResolution = xResolution * 2.54f;
+            yResolution = yResolution * 2.54f;
+        } else if (resolutionUnit == 1) {
+            // no absolute unit
+            xResolution = 0;
+            yResolution = 0;
+        }
+        return createImageInfo(width, height, xResolution, yResolution, colordepth, samplesperpixel);
+    }
+
+    private static long readTiffNumber(ImageInputStream iis, int type) throws IOException {
+        switch (type) {
+            case 1: // BYTE
+                return iis.readUnsignedByte();
+            case 3: // SHORT
+                return iis.readUnsignedShort();
+            default: // LONG
+                return iis.readUnsignedInt();
+        }
+    }
+
+    private static float readTiffRational(ImageInputStream iis) throws IOException {
+        iis.seek(iis.readUnsignedInt());
+        long numerator = iis.readUnsignedInt();
+        long denominator = iis.readUnsignedInt();
+        return denominator == 0 ? 0 : (float) numerator / denominator;
+    }
+
+    /************************************************************************************
+     * read the JFIF APP0 and the SOF marker of a JPEG file; markers behind the SOF marker are not read
+     ************************************************************************************/
+    private static ImageInfo readJpeg(ImageInputStream iis) throws IOException {
+        iis.skipBytes(2);
+        float xResolution = 0;
+        float yResolution = 0;
+        while (true) {
+            int b = iis.read();
+            if (b == -1) {
+                return null;
+            }
+            if (b != 0xFF) {
+                continue;
+            }
+            int marker = iis.read();
+            while (marker == 0xFF) {
+                marker = iis.read();
+            }
+            if (marker == -1 || marker == 0xD9 || marker == 0xDA) {
+                // end of image or start of scan without frame header
+                return null;
+            }
+            if (marker == 0x01 || marker == 0x00 || (marker >= 0xD0 && marker <= 0xD8)) {
+                // markers without segment
+                continue;
+            }
+            int length = iis.readUnsignedShort();
+            long next = iis.getStreamPosition() + length - 2;
+            if (marker == 0xE0 && length >= 14) {
+                byte[] identifier = new byte[5];
+                iis.readFully(identifier);
+                if ("JFIF\0".equals(new String(identifier, "ISO-8859-1"))) {
+                    iis.skipBytes(2); // version
+                    int units = iis.readUnsignedByte();
+                    xResolution = iis.readUnsignedShort();
+                    yResolution = iis.readUnsignedShort();
+                    if (units == 2) {
+                        // dots per centimeter
+                        xResolution = xResolution * 2.54f;
+                        yResolution = yResolution * 2.54f;
+                    } else if (units != 1) {
+                        xResolution = 0;
+                        yResolution = 0;
+                    }
+                }
+            } else if (marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC) {
+                // start of frame
+                int precision = iis.readUnsignedByte();
+                int height = iis.readUnsignedShort();
+                int width = iis.readUnsignedShort();
+                int components = iis.readUnsignedByte();
+                return createImageInfo(width, height, xResolution, yResolution, precision, components);
+            }
+            iis.seek(next);
+        }
+    }
+
+    /************************************************************************************
+     * read the IHDR and pHYs chunks of a PNG file; chunks behind the first IDAT chunk are not read
+     ************************************************************************************/
+    private static ImageInfo readPng(ImageInputStream iis) throws IOException {
+        iis.skipBytes(8);
+        int width = 0;
+        int height = 0;
+        int colordepth = 8;
+        int samplesperpixel = 1;
+        float xResolution = 0;
+        float yResolution = 0;
+        while (true) {
+            long length = iis.readUnsignedInt();
+            int type = iis.readInt();
+            long next = iis.getStreamPosition() + length + 4; // behind the CRC
+            if (type == 0x49484452) {
+                // IHDR
+                width = iis.readInt();
+                height = iis.readInt();
+                colordepth = iis.readUnsignedByte();
+                switch (iis.readUnsignedByte()) {
+                    case 2: // truecolor
+                        samplesperpixel = 3;
+                        break;
+                    case 3: // indexed colors from an RGB palette
+                        samplesperpixel = 3;
+                        colordepth = 8;
+                        break;
+                    case 4: // greyscale with alpha
+                        samplesperpixel = 2;
+                        break;
+                    case 6: // truecolor with alpha
+                        samplesperpixel = 4;
+                        break;
+                    default: // greyscale
+                        samplesperpixel = 1;
+                }
+            } else if (type == 0x70485973) {
+                // pHYs
+                long pixelsPerUnitX = iis.readUnsignedInt();
+                long pixelsPerUnitY = iis.readUnsignedInt();
+                if (iis.readUnsignedByte() == 1) {
+                    // pixels per meter
+                    xResolution = pixelsPerUnitX * 0.0254f;
+                    yResolution = pixelsPerUnitY * 0.0254f;
+                }
+            } else if (type == 0x49444154 || type == 0x49454E44) {
+                // IDAT or IEND
+                break;
+            }
+            iis.seek(next);
+        }
+        return createImageInfo(width, height, xResolution, yResolution, colordepth, samplesperpixel);
+    }
+
+    /************************************************************************************
+     * read the image header and resolution boxes of a JP2 file or the SIZ marker of a raw JPEG 2000 codestream
+     ************************************************************************************/
+    private static ImageInfo readJpegTwoThousand(ImageInputStream iis) throws IOException {
+        if (iis.readInt() == 0xFF4FFF51) {
+            return readJpegTwoThousandCodestream(iis);
+        }
+        iis.seek(0);
+        ImageInfo header = null;
+        float[] resolution = null;
+        long headerEnd = Long.MAX_VALUE;
+        while (header == null || iis.getStreamPosition() < headerEnd) {
+            long start = iis.getStreamPosition();
+            long length = iis.readUnsignedInt();
+            int type = iis.readInt();
+            if (length == 1) {
+                length = iis.readLong();
+            } else if (length == 0) {
+                // box reaches until the end of the file
+                length = Long.MAX_VALUE - start;
+            }
+            if (type == 0x6A703268) {
+                // jp2h contains the header boxes
+                headerEnd = start + length;
+                continue;
+            } else if (type == 0x72657320) {
+                // res contains the resolution boxes
+                continue;
+            } else if (type == 0x69686472) {
+                // ihdr
+                int height = iis.readInt();
+                int width = iis.readInt();
+                int components = iis.readUnsignedShort();
+                int bits = (iis.readUnsignedByte() & 0x7F) + 1;
+                header = new ImageInfo(width, height, 0, 0, bits, components);
+            } else if (type == 0x72657363 || (type == 0x72657364 && resolution == null)) {
+                // resc (capture resolution) is preferred to resd (display resolution)
+                int verticalNumerator = iis.readUnsignedShort();
+                int verticalDenominator = iis.readUnsignedShort();
+                int horizontalNumerator = iis.readUnsignedShort();
+                int horizontalDenominator = iis.readUnsignedShort();
+                int verticalExponent = iis.readByte();
+                int horizontalExponent = iis.readByte();
+                if (verticalDenominator > 0 && horizontalDenominator > 0) {
+                    // grid points per meter
+                    resolution =
+                            new float[] { (float) (horizontalNumerator * Math.pow(10, horizontalExponent) / horizontalDenominator * 0.0254),
+                                    (float) (verticalNumerator * Math.pow(10, verticalExponent) / verticalDenominator * 0.0254) };
+                }
+            } else if (type == 0x6A703263) {
+                // jp2c, the codestream follows the header
+                break;
+            }
+            iis.seek(start + length);
+        }
+        if (header == null) {
+            return null;
+        }
+        return createImageInfo(header.getWidth(), header.getHeight(), resolution != null ? resolution[0] : 0, resolution != null ? resolution[1]
+                : 0, header.getColordepth(), header.getSamplesperpixel());
+    }
+
+    private static ImageInfo readJpegTwoThousandCodestream(ImageInputStream iis) throws IOException {
+        iis.skipBytes(4); // Lsiz, Rsiz
+        long xsiz = iis.readUnsignedInt();
+        long ysiz = iis.readUnsignedInt();
+        long xosiz = iis.readUnsignedInt();
+        long yosiz = iis.readUnsignedInt();
+        iis.skipBytes(16); // tiles
+        int components = iis.readUnsignedShort();
+        int bits = (iis.readUnsignedByte() & 0x7F) + 1;
+        return createImageInfo((int) (xsiz - xosiz), (int) (ysiz - yosiz), 0, 0, bits, components);
+    }
+
+    /************************************************************************************
+     * ask the ImageIO reader of the image for size, sample model and standard metadata
+     ************************************************************************************/
+    private static ImageInfo readWithImageIO(ImageInputStream iis) throws ImageInterpreterException, IOException {
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+        if (!readers.hasNext()) {
+            throw new ImageInterpreterException("No reader found for the image");
+        }
+        ImageReader reader = readers.next();
+        try {
+            reader.setInput(iis, true, false);
+            int colordepth = 8;
+            int samplesperpixel = 1;
+            Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+            if (types.hasNext()) {
+                SampleModel sampleModel = types.next().getSampleModel();
+                colordepth = sampleModel.getSampleSize(0);
+                samplesperpixel = sampleModel.getNumBands();
+            }
+            float[] resolution = { 0, 0 };
+            IIOMetadata metadata = reader.getImageMetadata(0);
+            if ((metadata != null) && metadata.isStandardMetadataFormatSupported()) {
+                IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree(IIOMetadataFormatImpl.standardMetadataFormatName);
+                String[] names = { "HorizontalPixelSize", "VerticalPixelSize" };
+                for (int i = 0; i < names.length; i++) {
+                    NodeList nodes = root.getElementsByTagName(names[i]);
+                    if (nodes.getLength() > 0) {
+                        try {
+                            // pixel size in millimeter
+                            float pixelSize = Float.parseFloat(((IIOMetadataNode) nodes.item(0)).getAttribute("value"));
+                            resolution[i] = pixelSize > 0 ? 25.4f / pixelSize : 0;
+                        } catch (NumberFormatException e) {
+                            LOGGER.debug("Invalid pixel size in image metadata", e);
+                        }
+                    }
+                }
+            }
+            return createImageInfo(reader.getWidth(0), reader.getHeight(0), resolution[0], resolution[1], colordepth, samplesperpixel);
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    /************************************************************************************
+     * create the {@link ImageInfo}; like the interpreters the default resolution is used, if the image has no valid resolution
+     ************************************************************************************/
+    private static ImageInfo createImageInfo(int width, int height, float xResolution, float yResolution, int colordepth, int samplesperpixel) {
+        if (width <= 0 || height <= 0) {
+            return null;
+        }
+        if (xResolution <= 1.0 || yResolution <= 1.0) {
+            xResolution = DEFAULT_RESOLUTION;
+            yResolution = DEFAULT_RESOLUTION;
+        }
+        return new ImageInfo(width, height, xResolution, yResolution, colordepth, samplesperpixel);
+    }
+
+    /**
+     * The information of an image file together with the modification date of the file.
+     */
+    private static class CachedInfo {
+        private final long lastModified;
+        private final ImageInfo info;
+
+        public CachedInfo(long lastModified, ImageInfo info) {
+            this.lastModified = lastModified;
+            this.info = info;
+        }
+    }
+}
@@ -25,8 +25,10 @@
  */
 package de.unigoettingen.sub.commons.contentlib.imagelib;
 
+import java.awt.Rectangle;
 import java.awt.image.RenderedImage;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.OutputStream;
 
 import de.unigoettingen.sub.commons.contentlib.exceptions.ParameterNotSupportedException;
@@ -131,6 +133,16 @@ public interface ImageInterpreter {
      */
     public RenderedImage getRenderedImage();
 
+    /**
+     * Gets the rendered image, decoding only the given region of the image and only every n-th pixel in both directions. Interpreters which can't
+     * decode partially decode the whole image and crop it, callers have to use the size of the returned image.
+     * 
+     * @param sourceRegion region of the image in pixel coordinates of the full image, null for the whole image
+     * @param subsampling decode only every subsampling-th pixel, 1 to decode all pixels
+     * @return the rendered image
+     */
+    public RenderedImage getRenderedImage(Rectangle sourceRegion, int subsampling);
+
     /**
      * Pdf bytestream embeddable.
      * 
@@ -146,12 +158,28 @@ public interface ImageInterpreter {
     public byte[] getImageByteStream();
 
     /**
-     * write the content of the RenderedImage to a stream
+     * encode the content of the RenderedImage into a stream; the stream is not closed
      * 
      * @param outStream the out stream
+     * @throws IOException if the image couldn't be encoded or written
+     */
+    public void encode(OutputStream outStream) throws IOException;
+
+    /**
+     * write the content of the RenderedImage to a stream; the image is encoded only once, if a file stream is given the encoded bytes are
+     * teed into it
+     * 
+     * @param fos the file stream, may be null
+     * @param outStream the out stream
      */
     public void writeToStream(FileOutputStream fos, OutputStream outStream);
 
+    /**
+     * write the content of the RenderedImage to a stream and return the same encoded bytes
+     * 
+     * @param outStream the out stream, may be null
+     * @return the encoded image
+     */
     public byte[] writeToStreamAndByteArray(OutputStream outStream);
 
     /**
@@ -26,7 +26,10 @@
 package de.unigoettingen.sub.commons.contentlib.imagelib;
 
 import java.awt.Color;
+import java.awt.Rectangle;
 import java.awt.image.RenderedImage;
+import java.io.File;
+import java.io.IOException;
 import java.io.OutputStream;
 import java.net.URL;
 import java.util.HashMap;
@@ -35,9 +38,11 @@ import java.util.Map;
 
 import org.apache.log4j.Logger;
 
+import de.unigoettingen.sub.commons.contentlib.exceptions.ImageInterpreterException;
 import de.unigoettingen.sub.commons.contentlib.exceptions.ImageManagerException;
 import de.unigoettingen.sub.commons.contentlib.exceptions.ImageManipulatorException;
 import de.unigoettingen.sub.commons.contentlib.imagelib.ImageManipulator.MergingMode;
+import de.unigoettingen.sub.commons.util.stream.StreamUtils;
 
 /************************************************************************************
  * central Image Manager for all kinds of image handlings, wraps all functionalities of the {@link ImageManipulator}
@@ -123,7 +128,7 @@ public class ImageManager {
     private void init(URL url, String httpproxyhost, String httpproxyport, String httpproxyuser, String httpproxypassword)
             throws ImageManagerException {
         try {
-            this.myInterpreter = ImageFileFormat.getInterpreter(url, httpproxyhost, httpproxyport, httpproxyuser, httpproxypassword);
+            this.myInterpreter = getInterpreter(url, httpproxyhost, httpproxyport, httpproxyuser, httpproxypassword);
             LOGGER.debug("url: " + url);
         } catch (Exception e) {
             LOGGER.error("Error while getting ImageInterpreter");
@@ -173,12 +178,39 @@ public class ImageManager {
             String httpproxypassword) {
         this.parameters = inParameters;
         try {
-            this.myInterpreter = ImageFileFormat.getInterpreter(url, httpproxyhost, httpproxyport, httpproxyuser, httpproxypassword);
+            this.myInterpreter = getInterpreter(url, httpproxyhost, httpproxyport, httpproxyuser, httpproxypassword);
         } catch (Exception e) {
             LOGGER.error("Error while getting ImageInterpreter", e);
         }
     }
 
+    /**
+     * Gets the interpreter for the image at the url; for local images the pyramidal TIFF written next to them is used instead, if it is up to
+     * date.
+     * 
+     * @param url
+     * @param httpproxyhost
+     * @param httpproxyport
+     * @param httpproxyuser
+     * @param httpproxypassword
+     * @return the interpreter
+     * @throws ImageInterpreterException
+     * @throws IOException
+     */
+    private static ImageInterpreter getInterpreter(URL url, String httpproxyhost, String httpproxyport, String httpproxyuser,
+            String httpproxypassword) throws ImageInterpreterException, IOException {
+        // pyramids are only written for the first page of an image
+        if ("file".equals(url.getProtocol()) && ImageFileFormat.getPageFromUrl(url) == 0) {
+            File master = StreamUtils.getFileFromUrl(url);
+            File pyramid = TiffInterpreter.getPyramidFile(master);
+            if (!pyramid.equals(master) && pyramid.isFile() && pyramid.lastModified() >= master.lastModified()) {
+                LOGGER.debug("using pyramid " + pyramid);
+                return new TiffInterpreter(pyramid);
+            }
+        }
+        return ImageFileFormat.getInterpreter(url, httpproxyhost, httpproxyport, httpproxyuser, httpproxypassword);
+    }
+
     /*************************************************************************************
      * @return the myInterpreter
      ************************************************************************************/
@@ -285,6 +317,31 @@ public class ImageManager {
      */
     public RenderedImage scaleImageByPixel(int pixelx, int pixely, int externalscalemethod, int angle, List<String> coordinates, Color inColor,
             Watermark inWatermark, boolean watermarkscale, int watermarkposition) throws ImageManipulatorException {
+        return scaleImageByPixel(null, pixelx, pixely, externalscalemethod, angle, coordinates, inColor, inWatermark, watermarkscale,
+                watermarkposition);
+    }
+
+    /**
+     * Scales and rotates a region of an image. Works like {@link #scaleImageByPixel(int, int, int, int, List, Color, Watermark, boolean, int)}, but
+     * only the given region of the source image is decoded and all sizes refer to this region instead of the whole image. Coordinates for
+     * highlighting boxes are relative to the upper left corner of the region.
+     * 
+     * @param sourceRegion the region of the source image in pixel; null for the whole image
+     * @param pixelx horizontal size of the new image in pixel; or the scale factor in percent, depending on the scale method
+     * @param pixely vertical size of the new image in pixel; or the scale factor in percent, depending on the scale method
+     * @param externalscalemethod defines the scaling method
+     * @param angle angle for rotation; value will be betwetween 0 and 360
+     * @param coordinates a LinkedList containing String. Those strings are representing coordinates: x1,y1,x2,y2 for boxes
+     * @param inColor color for drawing those boxes
+     * @param inWatermark Watermark to be added to the scaled and rotated image
+     * @param watermarkscale method for adjusting the size of the watermark
+     * @param watermarkposition tells if watermark should be added to TOP,BOTTOM,RIGHT or LEFT of the image
+     * @return the generated {@link RenderedImage}
+     * @throws ImageManipulatorException
+     */
+    public RenderedImage scaleImageByPixel(Rectangle sourceRegion, int pixelx, int pixely, int externalscalemethod, int angle,
+            List<String> coordinates, Color inColor, Watermark inWatermark, boolean watermarkscale, int watermarkposition)
+            throws ImageManipulatorException {
         RenderedImage inImage = null;
         RenderedImage outImage = null;
         List<String> draw_coordinates = null;
@@ -301,24 +358,28 @@ public class ImageManager {
         // throw new ImageManipulatorException("Can't rotate angle, when box cordinates are used!");
         // }
 
-        // get image
-        if (this.myInterpreter != null) {
-            inImage = this.myInterpreter.getRenderedImage();
-            if (angle > 0 && angle != 180) {
-                inImage = ImageManipulator.fromRenderedToBuffered(inImage);
-            }
+        if (this.myInterpreter == null) {
+            throw new ImageManipulatorException("Can't get RenderedImage from ImageInterpreter");
         }
 
-        if (inImage == null) {
-            throw new ImageManipulatorException("Can't get RenderedImage from ImageInterpreter");
+        Rectangle region = null;
+        int sourceWidth = this.myInterpreter.getWidth();
+        int sourceHeight = this.myInterpreter.getHeight();
+        if (sourceRegion != null) {
+            region = sourceRegion.intersection(new Rectangle(0, 0, sourceWidth, sourceHeight));
+            if (region.isEmpty()) {
+                throw new ImageManipulatorException("Region " + sourceRegion + " is outside of the image");
+            }
+            sourceWidth = region.width;
+            sourceHeight = region.height;
         }
 
         // ----------------------------------------------------------------------------------------------------
         if (externalscalemethod == SCALE_TO_BOX) {
             // pixely = neue höhe
             // pixelx = neue breite
-            internalScaling_x = (float) pixelx / (float) this.myInterpreter.getWidth();
-            internalScaling_y = (float) pixely / (float) this.myInterpreter.getHeight();
+            internalScaling_x = (float) pixelx / (float) sourceWidth;
+            internalScaling_y = (float) pixely / (float) sourceHeight;
 
             LOGGER.debug("x: " + internalScaling_x + " y: " + internalScaling_y);
             if (internalScaling_x > internalScaling_y) {
@@ -327,35 +388,35 @@ public class ImageManager {
             } else {
                 internalScaling_y = internalScaling_x;
             }
-            double width = (double) this.myInterpreter.getWidth() * (double) internalScaling_x;
+            double width = (double) sourceWidth * (double) internalScaling_x;
             internalScaling_x = (float) ((double) internalScaling_x * Math.round(width) / width);
-            double height = (double) this.myInterpreter.getHeight() * (double) internalScaling_y;
+            double height = (double) sourceHeight * (double) internalScaling_y;
             internalScaling_y = (float) ((double) internalScaling_y * Math.round(height) / height);
 
             LOGGER.debug("new values: " + internalScaling_x);
-            LOGGER.debug("new x " + +this.myInterpreter.getWidth() * internalScaling_x);
-            LOGGER.debug("new y " + this.myInterpreter.getHeight() * internalScaling_y);
+            LOGGER.debug("new x " + sourceWidth * internalScaling_x);
+            LOGGER.debug("new y " + sourceHeight * internalScaling_y);
 
         }
 
         // ----------------------------------------------------------------------------------------------------
         // calculate internal scaling factor
         else if (externalscalemethod == SCALE_BY_WIDTH) {
-            internalScaling_x = (float) pixelx / (float) this.myInterpreter.getWidth();
+            internalScaling_x = (float) pixelx / (float) sourceWidth;
             if (pixely == 0) {
                 // scale proportionally
                 internalScaling_y = internalScaling_x;
             } else {
-                internalScaling_y = (float) pixely / (float) this.myInterpreter.getHeight();
+                internalScaling_y = (float) pixely / (float) sourceHeight;
             }
             // ----------------------------------------------------------------------------------------------------
         } else if (externalscalemethod == SCALE_BY_HEIGHT) {
-            internalScaling_y = (float) pixely / (float) this.myInterpreter.getHeight();
+            internalScaling_y = (float) pixely / (float) sourceHeight;
             if (pixelx == 0) {
                 // scale proportionally
                 internalScaling_x = internalScaling_y;
             } else {
-                internalScaling_x = (float) pixelx / (float) this.myInterpreter.getWidth();
+                internalScaling_x = (float) pixelx / (float) sourceWidth;
             }
             // ----------------------------------------------------------------------------------------------------
         } else if (externalscalemethod == SCALE_BY_PERCENT) {
@@ -398,6 +459,25 @@ public class ImageManager {
             // it's color
             scalemethod = this.parameters.get(COLORSCALEMETHOD);
         }
+
+        // ----------------------------------------------------------------------------------------------------
+        // get image, decode only as many pixels as needed for the scaling
+        // ----------------------------------------------------------------------------------------------------
+        int subsampling = calculateSubsampling(Math.max(internalScaling_x, internalScaling_y), scalemethod);
+        inImage = this.myInterpreter.getRenderedImage(region, subsampling);
+        if (inImage == null) {
+            throw new ImageManipulatorException("Can't get RenderedImage from ImageInterpreter");
+        }
+        if (angle > 0 && angle != 180) {
+            inImage = ImageManipulator.fromRenderedToBuffered(inImage);
+        }
+        if (inImage.getWidth() != sourceWidth || inImage.getHeight() != sourceHeight) {
+            // the decoded image is smaller than the original, scale relative to the decoded size
+            LOGGER.debug("decoded image with subsampling " + subsampling + " to " + inImage.getWidth() + " x " + inImage.getHeight());
+            internalScaling_x = (float) ((double) internalScaling_x * sourceWidth / inImage.getWidth());
+            internalScaling_y = (float) ((double) internalScaling_y * sourceHeight / inImage.getHeight());
+        }
+
         // check value of scale method and scale
         if (scalemethod == SUBSAMPLETOGREY) {
             outImage = ImageManipulator.scaleSubsampleBinaryToGrey(inImage, internalScaling_x, internalScaling_y);
@@ -482,6 +562,25 @@ public class ImageManager {
         return outImage;
     }
 
+    /**
+     * Calculates the subsampling for decoding the source image, so that the decoded image is not much larger than needed for the given scaling.
+     * Bitonal images scaled to grey need all pixels, interpolating scale methods get twice the target resolution.
+     * 
+     * @param scaling the larger of the horizontal and vertical scaling of the source image
+     * @param scalemethod the scale method used afterwards
+     * @return the subsampling, 1 to decode all pixels
+     */
+    private static int calculateSubsampling(float scaling, int scalemethod) {
+        if (scaling <= 0 || scaling >= 1 || scalemethod == SUBSAMPLETOGREY) {
+            return 1;
+        }
+        double subsampling = 1 / (double) scaling;
+        if (scalemethod == BILINEAR) {
+            subsampling = subsampling / 2;
+        }
+        return Math.max(1, (int) Math.floor(subsampling));
+    }
+
     /**
      * @return the httpproxyhost
      */
@@ -29,6 +29,7 @@ import java.awt.AlphaComposite;
 import java.awt.Color;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
+import java.awt.Rectangle;
 import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
 import java.awt.image.ColorModel;
@@ -199,6 +200,44 @@ public final class ImageManipulator {
         return targetBImage;
     }
 
+    /************************************************************************************
+     * merge many images into one image with a grid of cells of the same size, like {@link #mergeImages(RenderedImage, RenderedImage, MergingMode)}
+     * but all images are drawn in one go; every image is drawn at the upper left corner of its cell, the cells are filled row by row
+     *
+     * @param inImages the {@link RenderedImage}s to merge, null entries leave their cell empty
+     * @param columns number of cells in a row
+     * @param cellWidth width of a cell, images may not be wider
+     * @param cellHeight height of a cell, images may not be higher
+     * @param background {@link Color} of the empty parts of the cells
+     * @return the merged {@link RenderedImage}
+     * @throws ImageManipulatorException if an image doesn't fit into its cell
+     ************************************************************************************/
+    public static RenderedImage mergeImages(List<RenderedImage> inImages, int columns, int cellWidth, int cellHeight, Color background)
+            throws ImageManipulatorException {
+        int rows = (inImages.size() + columns - 1) / columns;
+        int targetimagewidth = cellWidth * Math.min(columns, inImages.size());
+        int targetimageheight = cellHeight * rows;
+
+        LOGGER.debug("Merging " + inImages.size() + " images: target image is :" + targetimagewidth + " x " + targetimageheight);
+        BufferedImage targetBImage = new BufferedImage(targetimagewidth, targetimageheight, BufferedImage.TYPE_INT_RGB);
+        Graphics g = targetBImage.createGraphics();
+        g.setColor(background);
+        g.fillRect(0, 0, targetimagewidth, targetimageheight);
+        for (int i = 0; i < inImages.size(); i++) {
+            RenderedImage image = inImages.get(i);
+            if (image == null) {
+                continue;
+            }
+            if (image.getWidth() > cellWidth || image.getHeight() > cellHeight) {
+                throw new ImageManipulatorException("image " + i + " is larger than a cell");
+            }
+            g.drawImage(fromRenderedToBuffered(image), (i % columns) * cellWidth, (i / columns) * cellHeight, null);
+        }
+        g.dispose();
+
+        return targetBImage;
+    }
+
     /************************************************************************************
      * Scale an image with the Interpolation.INTERP_NEAREST algorithm
      * 
@@ -226,6 +265,41 @@ public final class ImageManipulator {
         return outImage.createInstance();
     }
 
+    /************************************************************************************
+     * Crop an image to the given region, the cropped image starts at coordinate 0/0 again
+     * 
+     * @param inImage the source {@link RenderedImage}
+     * @param region the region to keep in pixel coordinates of the source image
+     * @return the cropped {@link RenderedImage}
+     * @throws ImageManipulatorException if the region is outside of the image
+     ************************************************************************************/
+    public static RenderedImage crop(RenderedImage inImage, Rectangle region) throws ImageManipulatorException {
+        Rectangle bounds = new Rectangle(inImage.getMinX(), inImage.getMinY(), inImage.getWidth(), inImage.getHeight());
+        Rectangle cropArea =
+                bounds.intersection(new Rectangle(region.x + inImage.getMinX(), region.y + inImage.getMinY(), region.width, region.height));
+        if (cropArea.isEmpty()) {
+            throw new ImageManipulatorException("crop region " + region + " is outside of the image");
+        }
+        if (cropArea.equals(bounds) && bounds.x == 0 && bounds.y == 0) {
+            return inImage;
+        }
+
+        ParameterBlock params = new ParameterBlock();
+        params.addSource(inImage);
+        params.add((float) cropArea.x);
+        params.add((float) cropArea.y);
+        params.add((float) cropArea.width);
+        params.add((float) cropArea.height);
+        RenderedOp cropped = JAI.create("crop", params);
+
+        // move the cropped image back to the origin
+        params = new ParameterBlock();
+        params.addSource(cropped);
+        params.add((float) -cropArea.x);
+        params.add((float) -cropArea.y);
+        return JAI.create("translate", params).createInstance();
+    }
+
     /************************************************************************************
      * draw boxes with given coordinates an color on image
      * 
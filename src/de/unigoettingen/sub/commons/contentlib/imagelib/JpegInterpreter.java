@@ -26,10 +26,11 @@
 package de.unigoettingen.sub.commons.contentlib.imagelib;
 
 import java.awt.Dimension;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.awt.image.RenderedImage;
 import java.io.ByteArrayOutputStream;
-import java.io.FileOutputStream;
+import java.io.File;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -38,7 +39,6 @@ import java.util.Iterator;
 
 import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
-import javax.imageio.ImageReadParam;
 import javax.imageio.ImageReader;
 import javax.imageio.ImageTypeSpecifier;
 import javax.imageio.ImageWriteParam;
@@ -60,9 +60,7 @@ import org.w3c.dom.NodeList;
 
 import com.sun.imageio.plugins.jpeg.JPEGImageReader;
 import com.sun.imageio.plugins.jpeg.JPEGImageReaderSpi;
-import com.sun.imageio.plugins.jpeg.JPEGImageWriter;
 import com.sun.imageio.plugins.jpeg.JPEGImageWriterSpi;
-import com.sun.media.jai.codec.ByteArraySeekableStream;
 
 import de.unigoettingen.sub.commons.contentlib.exceptions.ImageInterpreterException;
 import de.unigoettingen.sub.commons.contentlib.exceptions.ParameterNotSupportedException;
@@ -77,9 +75,14 @@ import de.unigoettingen.sub.commons.contentlib.exceptions.ParameterNotSupportedE
 public class JpegInterpreter extends AbstractImageInterpreter implements ImageInterpreter {
     private static final Logger LOGGER = Logger.getLogger(JpegInterpreter.class);
 
+    /* JPEG images are always written by the JDK's writer, whatever other JPEG plugins are installed */
+    private static final JPEGImageWriterSpi JPEG_WRITER_PROVIDER = new JPEGImageWriterSpi();
+
     int defaultXResolution = 100;
     int defaultYResolution = 100;
     int writerCompressionValue = 80;
+    // how the raw bytes need to be patched to be readable, see openImageStream
+    int streamPatchLevel = 0;
 
     /************************************************************************************
      * Constructor for {@link JpegInterpreter} to read an jpeg image from given {@link InputStream}
@@ -88,67 +91,56 @@ public class JpegInterpreter extends AbstractImageInterpreter implements ImageIn
      * @throws ImageInterpreterException
      ************************************************************************************/
     public JpegInterpreter(InputStream inStream) throws ImageInterpreterException {
-        InputStream inputStream = null;
-        byte imagebytes[] = null;
-
         // read the stream and store it in a byte array
         try {
             this.readImageStream(inStream);
-            imagebytes = this.getImageByteStream();
             if (inStream != null) {
                 inStream.close();
             }
         } catch (IOException e) {
             LOGGER.error("Failed to close input stream", e);
         }
-        //
+        readHeader();
+    }
 
-        // Read image bytes into new stream
-        try {
-            inputStream = new ByteArraySeekableStream(imagebytes);
-        } catch (IOException e1) {
-            LOGGER.error("Can't transform the image's byte array to stream");
-            ImageInterpreterException iie = new ImageInterpreterException("Can't transform the image's byte array to stream");
-            throw iie;
-        }
-        //
+    /************************************************************************************
+     * Constructor for {@link JpegInterpreter} to read an jpeg image from given {@link File}, the file is accessed when the image is decoded instead
+     * of holding its content in memory
+     * 
+     * @param file the image file
+     * @throws ImageInterpreterException
+     ************************************************************************************/
+    public JpegInterpreter(File file) throws ImageInterpreterException {
+        this.readImageFile(file);
+        readHeader();
+    }
 
-        // read the stream
+    /************************************************************************************
+     * read size, resolution and color information from the metadata of the image
+     * 
+     * @throws ImageInterpreterException
+     ************************************************************************************/
+    private void readHeader() throws ImageInterpreterException {
+        // read only the metadata, the image itself is decoded when it is needed
         Node domNode = null;
-        try {
-            IIOImage image = createImage(inputStream, 0);
-            if ((image == null) || (image.getRenderedImage() == null)) {
-                LOGGER.error("Failed to read image from input stream. Aborting!");
-                ImageInterpreterException iie = new ImageInterpreterException("Failed to read image from input stream. Aborting!");
-                throw iie;
-            }
-            this.renderedimage = image.getRenderedImage();
-            IIOMetadata metadata = image.getMetadata();
-            if (metadata != null) {
-                String formatName = metadata.getNativeMetadataFormatName();
-                domNode = metadata.getAsTree(formatName);
-                if ((domNode == null) || (domNode.getChildNodes() == null)) {
-                    metadata = null;
-                }
-            }
-            if (metadata == null) {
-                LOGGER.error("Failed to read metadata from input stream. Using default values");
-                xResolution = defaultXResolution;
-                yResolution = defaultYResolution;
-                width = this.renderedimage.getWidth();
-                height = this.renderedimage.getHeight();
-                samplesPerPixel = 1;
-                return;
-            }
-        } finally {
-            if (inputStream != null) {
-                try {
-                    inputStream.close();
-                } catch (IOException e) {
-                    LOGGER.error("Failed to close input stream");
-                }
+        IIOMetadata metadata = readMetadata(0);
+        if (metadata != null) {
+            String formatName = metadata.getNativeMetadataFormatName();
+            domNode = metadata.getAsTree(formatName);
+            if ((domNode == null) || (domNode.getChildNodes() == null)) {
+                metadata = null;
             }
         }
+        if (metadata == null) {
+            LOGGER.error("Failed to read metadata from input stream. Using default values");
+            this.renderedimage = createImage(null, 1);
+            xResolution = defaultXResolution;
+            yResolution = defaultYResolution;
+            width = this.renderedimage.getWidth();
+            height = this.renderedimage.getHeight();
+            samplesPerPixel = 1;
+            return;
+        }
         //
 
         // get new metadata - this is not very sophisticated parsing the DOM
@@ -237,6 +229,44 @@ public class JpegInterpreter extends AbstractImageInterpreter implements ImageIn
         LOGGER.debug("Number of Frames / Samples per Pixel = " + samplesPerPixel);
     }
 
+    /**
+     * Retrieves the RenderedImage, the image is decoded from the input stream used in the constructor on first access.
+     * 
+     * @return
+     */
+    @Override
+    public RenderedImage getRenderedImage() {
+        if ((this.renderedimage == null) && hasImageSource()) {
+            try {
+                this.renderedimage = createImage(null, 1);
+            } catch (ImageInterpreterException e) {
+                LOGGER.error("Failed to read image from input stream", e);
+            }
+        }
+        return this.renderedimage;
+    }
+
+    /**
+     * Decodes only the given region of the JPEG with the given subsampling, the decoded image is not kept.
+     * 
+     * @param sourceRegion region of the image, null for the whole image
+     * @param subsampling decode only every subsampling-th pixel
+     * @return
+     */
+    @Override
+    public RenderedImage getRenderedImage(Rectangle sourceRegion, int subsampling) {
+        if ((sourceRegion == null && subsampling <= 1) || this.renderedimage != null || !hasImageSource()) {
+            return super.getRenderedImage(sourceRegion, subsampling);
+        }
+        try {
+            LOGGER.debug("reading region " + sourceRegion + " of JPEG with subsampling " + subsampling);
+            return createImage(sourceRegion, subsampling);
+        } catch (ImageInterpreterException e) {
+            LOGGER.warn("Can't read region of JPEG, reading whole image instead", e);
+            return super.getRenderedImage(sourceRegion, subsampling);
+        }
+    }
+
     /************************************************************************************
      * Constructor for jpeg image from given {@link RenderedImage}
      * 
@@ -254,22 +284,23 @@ public class JpegInterpreter extends AbstractImageInterpreter implements ImageIn
      * @param outStream the {@link OutputStream} to write to
      ************************************************************************************/
     @Override
-    public void writeToStream(FileOutputStream fos, OutputStream outStream) {
-        if (this.renderedimage == null) { // no image available
+    public void encode(OutputStream outStream) throws IOException {
+        RenderedImage image = getRenderedImage();
+        if (image == null) { // no image available
             return;
         }
-        try {
-            // create a buffered Image, which has no Alpha channel
-            // as JPEG does not support Alpha Channels and the
-            // ImageIO doesn't care - but will create a corrupt JPEG
-            BufferedImage noAlphaBi = ImageManipulator.fromRenderedToBufferedNoAlpha(renderedimage);
-            ImageOutputStream imageOutStream = ImageIO.createImageOutputStream(outStream);
 
-            // Iterator<ImageWriter> writerIter = ImageIO
-            // .getImageWritersByFormatName("jpg");
-            // ImageWriter writer = writerIter.next(); // get writer from ImageIO
-            ImageWriter writer = new JPEGImageWriter(new JPEGImageWriterSpi());
+        // create a buffered Image, which has no Alpha channel
+        // as JPEG does not support Alpha Channels and the
+        // ImageIO doesn't care - but will create a corrupt JPEG
+        BufferedImage noAlphaBi = ImageManipulator.fromRenderedToBufferedNoAlpha(image);
+        ImageOutputStream imageOutStream = ImageIO.createImageOutputStream(outStream);
 
+        // Iterator<ImageWriter> writerIter = ImageIO
+        // .getImageWritersByFormatName("jpg");
+        // ImageWriter writer = writerIter.next(); // get writer from ImageIO
+        ImageWriter writer = ImageIOPool.getWriter(JPEG_WRITER_PROVIDER);
+        try {
             // create metadata by creating an XML tree
             ImageWriteParam writerParam = writer.getDefaultWriteParam();
             ImageTypeSpecifier its = new ImageTypeSpecifier(noAlphaBi);
@@ -284,7 +315,7 @@ public class JpegInterpreter extends AbstractImageInterpreter implements ImageIn
             // (Element)iomd.getAsTree("javax_imageio_jpeg_image_1.0");
             // Element tree = (Element)iomd.getAsTree("javax_imageio_1.0");
             //
-            IIOMetadata iomd = writer.getDefaultImageMetadata(its, writerParam);
+            IIOMetadata iomd = ImageIOPool.getDefaultImageMetadata(writer, its, writerParam);
 
             // create the XML tree and modify the appropriate DOM elements
             // to set the metadata
@@ -311,107 +342,13 @@ public class JpegInterpreter extends AbstractImageInterpreter implements ImageIn
             writer.endWriteSequence();
             imageOutStream.flush();
 
-            if (fos != null) {
-                ImageOutputStream imageToFile = ImageIO.createImageOutputStream(fos);
-                writer.setOutput(imageToFile);
-                writer.prepareWriteSequence(null);
-                writer.write(null, iioImage, writerParam);
-                writer.endWriteSequence();
-                imageToFile.flush();
-                imageToFile.close();
-                fos.flush();
-                fos.close();
-            }
-
             // ByteArrayOutputStream baos = new ByteArrayOutputStream();
 
             // byte [] data = wi.getImageAsByteArray();
-
-            writer.dispose();
-            imageOutStream.close();
-
-        } catch (IOException e) {
-            LOGGER.error("IOException occured", e);
-        }
-    }
-
-    @Override
-    public byte[] writeToStreamAndByteArray(OutputStream outStream) {
-        byte[] data = null;
-        if (this.renderedimage == null) { // no image available
-            return data;
-        }
-        try {
-            // create a buffered Image, which has no Alpha channel
-            // as JPEG does not support Alpha Channels and the
-            // ImageIO doesn't care - but will create a corrupt JPEG
-            BufferedImage noAlphaBi = ImageManipulator.fromRenderedToBufferedNoAlpha(renderedimage);
-            ImageOutputStream imageOutStream = ImageIO.createImageOutputStream(outStream);
-
-            // Iterator<ImageWriter> writerIter = ImageIO
-            // .getImageWritersByFormatName("jpg");
-            // ImageWriter writer = writerIter.next(); // get writer from ImageIO
-            ImageWriter writer = new JPEGImageWriter(new JPEGImageWriterSpi());
-
-            // create metadata by creating an XML tree
-            ImageWriteParam writerParam = writer.getDefaultWriteParam();
-            ImageTypeSpecifier its = new ImageTypeSpecifier(noAlphaBi);
-
-            // ImageTypeSpecifier its = new
-            // ImageTypeSpecifier(image.getColorModel(),
-            // image.getSampleModel());
-
-            // IIOMetadata iomd = writer.getDefaultImageMetadata(new
-            // ImageTypeSpecifier(image), writerParam);
-            // Element tree =
-            // (Element)iomd.getAsTree("javax_imageio_jpeg_image_1.0");
-            // Element tree = (Element)iomd.getAsTree("javax_imageio_1.0");
-            //
-            IIOMetadata iomd = writer.getDefaultImageMetadata(its, writerParam);
-
-            // create the XML tree and modify the appropriate DOM elements
-            // to set the metadata
-            setMetadata(iomd);
-
-            // set compression
-            writerParam.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
-            float comprvalue = ((float) writerCompressionValue) / 100;
-            writerParam.setCompressionQuality(comprvalue);
-
-            // set output
-            writer.setOutput(imageOutStream);
-            writer.prepareWriteSequence(null);
-
-            // create new image parameters to set the compression
-            // Locale locale = new Locale("en");
-            // JPEGImageWriteParam jpegWriteParam = new
-            // JPEGImageWriteParam(locale);
-
-            // IIOImage iioImage = new IIOImage(renderedimage, null, iomd);
-
-            IIOImage iioImage = new IIOImage(noAlphaBi, null, iomd);
-            writer.write(null, iioImage, writerParam);
-            writer.endWriteSequence();
-            imageOutStream.flush();
-
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-
-            ImageOutputStream imageToFile = ImageIO.createImageOutputStream(baos);
-            writer.setOutput(imageToFile);
-            writer.prepareWriteSequence(null);
-            writer.write(null, iioImage, writerParam);
-            writer.endWriteSequence();
-            imageToFile.flush();
-            imageToFile.close();
-            baos.flush();
-            data = baos.toByteArray();
-            baos.close();
-            writer.dispose();
+        } finally {
+            ImageIOPool.returnWriter(writer);
             imageOutStream.close();
-        } catch (IOException e) {
-            LOGGER.error("IOException occured", e);
         }
-        return data;
     }
 
     /************************************************************************************
@@ -835,69 +772,170 @@ public class JpegInterpreter extends AbstractImageInterpreter implements ImageIn
         }
     }
 
-    private IIOImage createImage(InputStream istr, int attempt) throws ImageInterpreterException {
+    /************************************************************************************
+     * open a stream on the source of the image, patched like it was needed to read the metadata
+     * 
+     * @param patchLevel 0 for the unchanged image, 1 to add a missing JFIF marker, 2 to also remove bytes in front of the JFIF marker
+     ************************************************************************************/
+    private ImageInputStream openImageStream(int patchLevel) throws IOException {
+        if (patchLevel == 0) {
+            return openSourceImageInputStream();
+        }
+        InputStream istr = new PatchInputStream(openSourceStream());
+        if (patchLevel > 1) {
+            istr = new RemoveHeaderInputStream(istr);
+        }
+        return ImageIO.createImageInputStream(istr);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Iterator<ImageReader> getImageReaders(ImageInputStream iis) {
+        Iterator<ImageReader> ri = ImageIO.getImageReaders(iis);
+        if (!ri.hasNext()) {
+            ri = IteratorUtils.getIterator(new JPEGImageReader(new JPEGImageReaderSpi()));
+        }
+        return ri;
+    }
+
+    /************************************************************************************
+     * get the readers to try for the stream: the pooled reader first, all readers ImageIO finds for the stream are only looked up if it fails
+     * 
+     * @param iis the stream to read
+     * @param pooled reader from the {@link ImageIOPool}, may be null
+     ************************************************************************************/
+    private Iterator<ImageReader> getImageReaders(final ImageInputStream iis, final ImageReader pooled) {
+        if (pooled == null) {
+            return getImageReaders(iis);
+        }
+        return new Iterator<ImageReader>() {
+            private boolean pooledReturned = false;
+            private Iterator<ImageReader> others = null;
+
+            @Override
+            public boolean hasNext() {
+                if (!pooledReturned) {
+                    return true;
+                }
+                if (others == null) {
+                    try {
+                        iis.seek(0);
+                    } catch (IOException e) {
+                        LOGGER.error("Failed to reset image stream", e);
+                    }
+                    others = getImageReaders(iis);
+                }
+                return others.hasNext();
+            }
+
+            @Override
+            public ImageReader next() {
+                if (!pooledReturned) {
+                    pooledReturned = true;
+                    return pooled;
+                }
+                hasNext();
+                return others.next();
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /************************************************************************************
+     * read the metadata of the image without decoding it. If the metadata can't be read the stream is patched and read again.
+     * 
+     * @param attempt the patch level to try
+     * @return the metadata or null if it couldn't be read at all
+     ************************************************************************************/
+    private IIOMetadata readMetadata(int attempt) throws ImageInterpreterException {
         ImageInputStream iis = null;
-        Iterator<ImageReader> ri = null;
-        ImageReadParam param = null;
         ImageReader ir = null;
-        BufferedImage bi = null;
-        // Raster raster = null;
-        // int[] bufferTypes = new int[] { DataBuffer.TYPE_BYTE, DataBuffer.TYPE_INT, DataBuffer.TYPE_FLOAT, DataBuffer.TYPE_DOUBLE,
-        // DataBuffer.TYPE_SHORT, DataBuffer.TYPE_USHORT, DataBuffer.TYPE_UNDEFINED };
-
-        // Create raster from image reader
+        ImageReader pooled = ImageIOPool.getReader("jpeg");
         try {
-            iis = ImageIO.createImageInputStream(istr);
-            ri = ImageIO.getImageReaders(iis);
-            if (!ri.hasNext()) {
-                // List<ImageReader> list = new ArrayList<ImageReader>();
-                // list.add(new JPEGImageReader(new JPEGImageReaderSpi()));
-                ri = IteratorUtils.getIterator(new JPEGImageReader(new JPEGImageReaderSpi()));
+            iis = openImageStream(attempt);
+            Iterator<ImageReader> ri = getImageReaders(iis, pooled);
+            while (ri.hasNext()) {
+                ImageReader candidate = ri.next();
+                try {
+                    iis.seek(0);
+                    candidate.setInput(iis);
+                    // reads the header only
+                    candidate.getWidth(0);
+                    ir = candidate;
+                    break;
+                } catch (Error e) {
+                    LOGGER.error("Failed to read image header with ImageReader: " + e.toString());
+                    continue;
+                } catch (Exception e) {
+                    LOGGER.error("Failed to read image header with ImageReader: " + e.toString());
+                    continue;
+                }
+            }
+            this.streamPatchLevel = attempt;
+            if (ir == null) {
+                throw new ImageInterpreterException("No ImageReader can read the image header");
             }
+            return getImageMetadata(ir);
         } catch (IOException e) {
             throw new ImageInterpreterException("Error reading input stream: " + e.toString());
-        }
-        while (ri.hasNext()) {
-            ir = ri.next();
-            try {
-                ir.setInput(iis);
-                param = ir.getDefaultReadParam();
-                bi = ir.read(0, param);
-                // raster = ir.readRaster(0, param);
-                if (bi != null) {
-                    break;
+        } catch (ImageInterpreterException e) {
+            LOGGER.error("Failed to extract metadata from image: " + e.getMessage());
+            if (attempt <= 1) {
+                return readMetadata(attempt + 1);
+            }
+            LOGGER.error("Unable to read image metadata.");
+            return null;
+        } finally {
+            ImageIOPool.returnReader(pooled);
+            if (iis != null) {
+                try {
+                    iis.close();
+                } catch (IOException e) {
+                    LOGGER.error("Failed to close image stream", e);
                 }
-            } catch (Error e) {
-                LOGGER.error("Failed to render image with ImageReader: " + e.toString());
-                continue;
-            } catch (Exception e) {
-                LOGGER.error("Failed to render image with ImageReader: " + e.toString());
-                continue;
             }
         }
+    }
 
-        // store metadata
-        IIOMetadata md = null;
+    /************************************************************************************
+     * decode the image or a part of it
+     * 
+     * @param sourceRegion region of the image, null for the whole image
+     * @param subsampling decode only every subsampling-th pixel
+     ************************************************************************************/
+    private BufferedImage createImage(Rectangle sourceRegion, int subsampling) throws ImageInterpreterException {
+        ImageInputStream iis = null;
+        BufferedImage bi = null;
+        ImageReader pooled = ImageIOPool.getReader("jpeg");
+
+        // Create raster from image reader
         try {
-            md = getImageMetadata(ir);
-        } catch (ImageInterpreterException e) {
-            LOGGER.error("Failed to extract metadata from image: " + e.getMessage());
-            InputStream patchedInputStream = null;
-            if (attempt <= 1) {
-                patchedInputStream = attempt == 0 ? new PatchInputStream(istr) : new RemoveHeaderInputStream(istr);
-                if (istr != null) {
-                    try {
-                        istr.close();
-                    } catch (IOException e1) {
-                        LOGGER.error("Failed to close input stream");
+            iis = openImageStream(this.streamPatchLevel);
+            Iterator<ImageReader> ri = getImageReaders(iis, pooled);
+            while (ri.hasNext()) {
+                ImageReader ir = ri.next();
+                try {
+                    iis.seek(0);
+                    ir.setInput(iis);
+                    bi = ir.read(0, createReadParam(ir, sourceRegion, subsampling));
+                    if (bi != null) {
+                        break;
                     }
+                } catch (Error e) {
+                    LOGGER.error("Failed to render image with ImageReader: " + e.toString());
+                    continue;
+                } catch (Exception e) {
+                    LOGGER.error("Failed to render image with ImageReader: " + e.toString());
+                    continue;
                 }
-                return createImage(patchedInputStream, attempt + 1);
-            } else {
-                LOGGER.error("Unable to read image metadata.");
-                md = null;
             }
+        } catch (IOException e) {
+            throw new ImageInterpreterException("Error reading input stream: " + e.toString());
         } finally {
+            ImageIOPool.returnReader(pooled);
             if (iis != null) {
                 try {
                     iis.close();
@@ -907,44 +945,10 @@ public class JpegInterpreter extends AbstractImageInterpreter implements ImageIn
             }
         }
 
-        // // create buffered image from raster
-        // int count = 0;
-        // while (count < bufferTypes.length) {
-        // int bufferType = bufferTypes[count++];
-        // try {
-        // SampleModel sm = RasterFactory.createPixelInterleavedSampleModel(bufferType, raster.getWidth(), raster.getHeight(),
-        // raster.getNumBands());
-        // ColorModel cm = PlanarImage.createColorModel(sm);
-        // // cm = bi.getColorModel();
-        // ColorSpace sourceColorSpace = cm.getColorSpace();
-        // ColorSpace destColorSpace = ColorSpace.getInstance(ColorSpace.CS_sRGB);
-        // ColorConvertOp op = new ColorConvertOp(sourceColorSpace, destColorSpace, null);
-        // // WritableRaster wraster = raster.createInterleavedRaster(bufferTypes[count-1], raster.getWidth(), raster.getHeight(),
-        // raster.getNumBands(), null);
-        // // WritableRaster wraster = op.createCompatibleDestRaster(raster);
-        // WritableRaster wraster = op.filter(raster, null);
-        // // Raster raster2 = bi.getRaster();
-        // // cm = new ComponentColorModel(cs, false, false, ColorModel.OPAQUE, bufferType);
-        // // sm = bi.getSampleModel();
-        // // cm = bi.getColorModel();
-        // // cm = ColorModel.getRGBdefault();
-        // bi = new BufferedImage(cm, wraster, false, null);
-        // cm.finalize();
-        // } catch (Error e) {
-        // LOGGER.debug("Failed to render image with BufferType " + bufferType);
-        // continue;
-        // } catch (Exception e) {
-        // LOGGER.debug("Failed to render image with BufferType " + bufferType);
-        // continue;
-        // }
-        // break;
-        // }
-
         if (bi == null) {
             throw new ImageInterpreterException("Failed to extract buffered image from image reader");
         }
-        IIOImage image = new IIOImage(bi, null, md);
-        return image;
+        return bi;
     }
 
     private IIOMetadata getImageMetadata(ImageReader ir) throws ImageInterpreterException {
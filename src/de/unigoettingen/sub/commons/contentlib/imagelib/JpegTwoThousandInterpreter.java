@@ -25,13 +25,12 @@
  */
 package de.unigoettingen.sub.commons.contentlib.imagelib;
 
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.awt.image.RenderedImage;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.Iterator;
 
 import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
@@ -40,18 +39,16 @@ import javax.imageio.ImageReader;
 import javax.imageio.ImageTypeSpecifier;
 import javax.imageio.ImageWriter;
 import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
 import javax.imageio.stream.ImageInputStream;
 import javax.imageio.stream.ImageOutputStream;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 
 import org.apache.log4j.Logger;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
 import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
+import com.sun.media.imageio.plugins.jpeg2000.J2KImageReadParam;
 import com.sun.media.imageio.plugins.jpeg2000.J2KImageWriteParam;
 import com.sun.media.jai.codec.ByteArraySeekableStream;
 
@@ -74,6 +71,10 @@ public class JpegTwoThousandInterpreter extends AbstractImageInterpreter impleme
     int myWriterCompressionType = 0;
     int myWriterCompressionValue = 80;
 
+    // coding style of the codestream, read from the COD marker of the main header
+    int decompositionLevels = 0;
+    int qualityLayers = 1;
+
     /************************************************************************************
      * Constructor for {@link JpegTwoThousandInterpreter} to read an jp2 image from given {@link InputStream}
      * 
@@ -85,10 +86,8 @@ public class JpegTwoThousandInterpreter extends AbstractImageInterpreter impleme
         ImageInputStream iis = null;
         InputStream inputStream = null;
 
-        Iterator<ImageReader> it = ImageIO.getImageReadersByFormatName("jpeg2000");
-        if (it.hasNext()) {
-            imagereader = it.next();
-        } else {
+        imagereader = ImageIOPool.getReader("jpeg2000");
+        if (imagereader == null) {
             // ERROR - no ImageReader was found
             LOGGER.error("Imagereader for Jpeg2000 couldn't be found");
             throw new ImageInterpreterException("Imagereader for Jpeg2000 format couldn't be found!");
@@ -109,16 +108,14 @@ public class JpegTwoThousandInterpreter extends AbstractImageInterpreter impleme
 
         try {
 
-            // read the stream
+            // read the header only, the image is decoded when it is needed, at the resolution level which is needed
             iis = ImageIO.createImageInputStream(inputStream);
 
             imagereader.setInput(iis, true); // set the ImageInputStream as
 
-            ImageReadParam readParam = imagereader.getDefaultReadParam();
-            this.renderedimage = imagereader.readAsRenderedImage(0, readParam); // get
-            // the
-            // rendered
-            // image
+            this.setWidth(imagereader.getWidth(0));
+            this.setHeight(imagereader.getHeight(0));
+            readCodingStyle(imagebytes);
 
         } catch (IOException ioe) {
             LOGGER.error("Can't read JPGS2000 image", ioe);
@@ -192,14 +189,11 @@ public class JpegTwoThousandInterpreter extends AbstractImageInterpreter impleme
                     this.setSamplesperpixel(maxint);
                 }
             }
-
-            this.setHeight(this.renderedimage.getHeight()); // set height
-            this.setWidth(this.renderedimage.getWidth()); // set width
-            //
         } catch (IOException e) {
             LOGGER.error("IOException:" + e);
             LOGGER.error(e);
         }
+        ImageIOPool.returnReader(imagereader);
     }
 
     /************************************************************************************
@@ -213,6 +207,162 @@ public class JpegTwoThousandInterpreter extends AbstractImageInterpreter impleme
         this.renderedimage = inImage;
     }
 
+    /**
+     * Retrieves the RenderedImage, the full resolution image is decoded from the source if not already done.
+     * 
+     * @return the image or null if it couldn't be decoded
+     */
+    @Override
+    public RenderedImage getRenderedImage() {
+        if (this.renderedimage == null && hasImageSource()) {
+            this.renderedimage = readImage(null, -1, -1);
+        }
+        return this.renderedimage;
+    }
+
+    /**
+     * Decodes the given region of the image at the smallest resolution level which still has enough pixels for the subsampling, the wavelet levels
+     * above it are discarded. If even the smallest resolution level is at least twice as large as needed and the codestream has several quality
+     * layers, only a part of the codestream is decoded as well.
+     * 
+     * @param sourceRegion region of the image, null for the whole image
+     * @param subsampling the image will be reduced by this factor afterwards
+     * @return the image, which may be smaller than the region
+     */
+    @Override
+    public RenderedImage getRenderedImage(Rectangle sourceRegion, int subsampling) {
+        if ((sourceRegion == null && subsampling <= 1) || this.renderedimage != null || !hasImageSource()) {
+            return super.getRenderedImage(sourceRegion, subsampling);
+        }
+        // every discarded level halves the image
+        int discardedLevels = 0;
+        while (discardedLevels < decompositionLevels && (2 << discardedLevels) <= subsampling) {
+            discardedLevels++;
+        }
+        Rectangle region = null;
+        if (sourceRegion != null) {
+            region = reduceRegion(sourceRegion, discardedLevels);
+        }
+        int resolution = discardedLevels > 0 ? decompositionLevels - discardedLevels : -1;
+        double decodingRate = getDecodingRate(subsampling >> discardedLevels);
+        LOGGER.debug("reading region " + sourceRegion + " of JPEG 2000 at resolution level " + resolution + " with decoding rate " + decodingRate);
+        RenderedImage image = readImage(region, resolution, decodingRate);
+        if (image == null) {
+            return super.getRenderedImage(sourceRegion, subsampling);
+        }
+        return image;
+    }
+
+    /**
+     * Converts a region of the full resolution image to the image with the given number of discarded levels.
+     * 
+     * @param sourceRegion the region in the full resolution image
+     * @param discardedLevels number of discarded wavelet levels
+     * @return the region in the reduced image
+     */
+    private Rectangle reduceRegion(Rectangle sourceRegion, int discardedLevels) {
+        int scale = 1 << discardedLevels;
+        int reducedWidth = (this.width + scale - 1) / scale;
+        int reducedHeight = (this.height + scale - 1) / scale;
+        int x = sourceRegion.x / scale;
+        int y = sourceRegion.y / scale;
+        int x2 = (sourceRegion.x + sourceRegion.width + scale - 1) / scale;
+        int y2 = (sourceRegion.y + sourceRegion.height + scale - 1) / scale;
+        return new Rectangle(x, y, Math.max(1, x2 - x), Math.max(1, y2 - y)).intersection(new Rectangle(0, 0, reducedWidth, reducedHeight));
+    }
+
+    /**
+     * Calculates the decoding rate for an image which is reduced further after decoding; the rate is lowered by the reduction, but never below the
+     * share of one quality layer. The JPEG 2000 decoder stops reading the codestream at that rate, so the last quality layers are skipped.
+     * 
+     * @param reduction factor by which the decoded image is reduced afterwards
+     * @return the decoding rate in bits per pixel, -1 to decode all quality layers
+     */
+    private double getDecodingRate(int reduction) {
+        if (qualityLayers <= 1 || reduction < 2 || rawbytes == null || width <= 0 || height <= 0) {
+            return -1;
+        }
+        double fullRate = rawbytes.length * 8d / ((double) width * height);
+        return fullRate * Math.max(1d / reduction, 1d / qualityLayers);
+    }
+
+    /**
+     * Decodes the image with the JPEG 2000 reader.
+     * 
+     * @param region region of the image at the given resolution level, null for the whole image
+     * @param resolution resolution level to decode, -1 for the full resolution
+     * @param decodingRate decoding rate in bits per pixel, -1 to decode all quality layers
+     * @return the image or null if it couldn't be read
+     */
+    private RenderedImage readImage(Rectangle region, int resolution, double decodingRate) {
+        ImageReader imagereader = ImageIOPool.getReader("jpeg2000");
+        if (imagereader == null) {
+            LOGGER.error("Imagereader for Jpeg2000 couldn't be found");
+            return null;
+        }
+        ImageInputStream iis = null;
+        try {
+            iis = openSourceImageInputStream();
+            imagereader.setInput(iis, true);
+            ImageReadParam param = imagereader.getDefaultReadParam();
+            if (param instanceof J2KImageReadParam) {
+                J2KImageReadParam j2kParam = (J2KImageReadParam) param;
+                j2kParam.setResolution(resolution);
+                if (decodingRate > 0) {
+                    j2kParam.setDecodingRate(decodingRate);
+                }
+            }
+            if (region != null) {
+                param.setSourceRegion(region);
+            }
+            return imagereader.read(0, param);
+        } catch (Exception e) {
+            LOGGER.error("Can't read JPEG 2000 image", e);
+            return null;
+        } finally {
+            ImageIOPool.returnReader(imagereader);
+            if (iis != null) {
+                try {
+                    iis.close();
+                } catch (IOException e) {
+                    LOGGER.error("Error closing input stream: " + e.toString());
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the number of wavelet decomposition levels and quality layers from the COD marker in the main header of the codestream. The
+     * codestream starts with the SOC marker directly followed by the SIZ marker, in a JP2 file it is preceded by the JP2 boxes.
+     * 
+     * @param bytes the JPEG 2000 file
+     */
+    private void readCodingStyle(byte[] bytes) {
+        int pos = -1;
+        for (int i = 0; i + 3 < bytes.length; i++) {
+            if ((bytes[i] & 0xff) == 0xff && (bytes[i + 1] & 0xff) == 0x4f && (bytes[i + 2] & 0xff) == 0xff && (bytes[i + 3] & 0xff) == 0x51) {
+                pos = i + 2;
+                break;
+            }
+        }
+        // walk through the marker segments of the main header up to the first tile
+        while (pos >= 0 && pos + 9 < bytes.length) {
+            int marker = ((bytes[pos] & 0xff) << 8) | (bytes[pos + 1] & 0xff);
+            if (marker == 0xff52) {
+                // marker (2), Lcod (2), Scod (1), progression order (1), number of layers (2), multiple component transformation (1), decomposition levels (1)
+                qualityLayers = ((bytes[pos + 6] & 0xff) << 8) | (bytes[pos + 7] & 0xff);
+                decompositionLevels = bytes[pos + 9] & 0xff;
+                LOGGER.debug("JPEG 2000 codestream has " + decompositionLevels + " decomposition levels and " + qualityLayers + " quality layers");
+                return;
+            }
+            if (marker == 0xff90 || (marker & 0xff00) != 0xff00) {
+                break;
+            }
+            pos += 2 + (((bytes[pos + 2] & 0xff) << 8) | (bytes[pos + 3] & 0xff));
+        }
+        LOGGER.debug("No coding style found in JPEG 2000 codestream, it is always decoded at full resolution");
+    }
+
     /**
      * Bytestream from JPEG 2000 file can be embedded into PDF directly without recompression
      */
@@ -227,20 +377,19 @@ public class JpegTwoThousandInterpreter extends AbstractImageInterpreter impleme
      * @param outStream the {@link OutputStream} to write to
      ************************************************************************************/
     @Override
-    public void writeToStream(FileOutputStream fos, OutputStream outStream) {
-
-        if (this.renderedimage == null) { // no image available
+    public void encode(OutputStream outStream) throws IOException {
+        RenderedImage source = getRenderedImage();
+        if (source == null) { // no image available
             return;
         }
-        try {
-            ImageOutputStream imageOutStream = ImageIO.createImageOutputStream(outStream);
 
-            Iterator<ImageWriter> writerIter = ImageIO.getImageWritersByFormatName("jpeg2000");
-            ImageWriter writer = writerIter.next(); // get writer from ImageIO
+        ImageOutputStream imageOutStream = ImageIO.createImageOutputStream(outStream);
 
+        ImageWriter writer = ImageIOPool.getWriter("jpeg2000"); // get writer from ImageIO
+        try {
             // create metadata by creating an XML tree
             //
-            BufferedImage image = ImageManipulator.fromRenderedToBuffered(renderedimage);
+            BufferedImage image = ImageManipulator.fromRenderedToBuffered(source);
             J2KImageWriteParam writerParam = (J2KImageWriteParam) writer.getDefaultWriteParam();
             // check compression type
             if (myWriterCompressionType == LOSSLESS) {
@@ -267,21 +416,9 @@ public class JpegTwoThousandInterpreter extends AbstractImageInterpreter impleme
 
             // writer.endWriteSequence();
             imageOutStream.flush();
-            if (fos != null) {
-                ImageOutputStream imageToFile = ImageIO.createImageOutputStream(fos);
-                writer.setOutput(imageToFile);
-                writer.write(null, iioImage, writerParam);
-                imageToFile.flush();
-                imageToFile.close();
-                fos.flush();
-                fos.close();
-            }
-
-            writer.dispose();
+        } finally {
+            ImageIOPool.returnWriter(writer);
             imageOutStream.close();
-
-        } catch (IOException e) {
-            LOGGER.error("IOException occured", e);
         }
     }
 
@@ -326,14 +463,11 @@ public class JpegTwoThousandInterpreter extends AbstractImageInterpreter impleme
 
         // create new tree and merge it with the old one
         try {
-            DocumentBuilderFactory f = DocumentBuilderFactory.newInstance();
-            DocumentBuilder db = f.newDocumentBuilder();
-            Document xmlDocument = db.newDocument();
-
-            Element topElement = xmlDocument.createElement("javax_imageio_1.0");
-            Element dimElement = xmlDocument.createElement("Dimension");
-            Element hpsElement = xmlDocument.createElement("HorizontalPixelSize");
-            Element vpsElement = xmlDocument.createElement("VerticalPixelSize");
+            // IIOMetadataNodes don't need a DOM document, so no parser factory is looked up for every image
+            IIOMetadataNode topElement = new IIOMetadataNode("javax_imageio_1.0");
+            IIOMetadataNode dimElement = new IIOMetadataNode("Dimension");
+            IIOMetadataNode hpsElement = new IIOMetadataNode("HorizontalPixelSize");
+            IIOMetadataNode vpsElement = new IIOMetadataNode("VerticalPixelSize");
 
             // the size of the pixel is in mm, we have to convert the
             // dpi in pixel sizes
@@ -515,11 +649,6 @@ public class JpegTwoThousandInterpreter extends AbstractImageInterpreter impleme
         return result;
     }
 
-    @Override
-    public byte[] writeToStreamAndByteArray(OutputStream outStream) {
-        return new byte[0];
-    }
-
     @Override
     public void createByteStreamFromRenderedImage() {
         // TODO Auto-generated method stub
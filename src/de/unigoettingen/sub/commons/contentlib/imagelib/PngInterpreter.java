@@ -27,12 +27,9 @@ package de.unigoettingen.sub.commons.contentlib.imagelib;
 
 import java.awt.image.BufferedImage;
 import java.awt.image.RenderedImage;
-import java.io.ByteArrayOutputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.Iterator;
 
 import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
@@ -42,14 +39,11 @@ import javax.imageio.ImageTypeSpecifier;
 import javax.imageio.ImageWriteParam;
 import javax.imageio.ImageWriter;
 import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
 import javax.imageio.stream.ImageInputStream;
 import javax.imageio.stream.ImageOutputStream;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 
 import org.apache.log4j.Logger;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
 import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
@@ -80,9 +74,9 @@ public class PngInterpreter extends AbstractImageInterpreter implements ImageInt
         ImageInputStream iis = null;
         InputStream inputStream = null;
 
-        Iterator<ImageReader> it = ImageIO.getImageReadersByFormatName("png");
-        if (it.hasNext()) {
-            imagereader = (PNGImageReader) it.next();
+        ImageReader pooled = ImageIOPool.getReader("png");
+        if (pooled != null) {
+            imagereader = (PNGImageReader) pooled;
         } else {
             // ERROR - no ImageReader was found
             LOGGER.error("Imagereader for PNG couldn't be found");
@@ -132,6 +126,8 @@ public class PngInterpreter extends AbstractImageInterpreter implements ImageInt
             LOGGER.error("IOException:" + e);
             LOGGER.error(e);
         }
+        // the image is decoded completely, the reader isn't needed any more
+        ImageIOPool.returnReader(imagereader);
         Node domNode = imageMetadata.getAsTree("javax_imageio_1.0");
 
         // get new metadata - this is not very sophisticated parsing the DOM
@@ -208,22 +204,21 @@ public class PngInterpreter extends AbstractImageInterpreter implements ImageInt
      * @param outStream the {@link OutputStream} to write to
      ************************************************************************************/
     @Override
-    public void writeToStream(FileOutputStream fos, OutputStream outStream) {
+    public void encode(OutputStream outStream) throws IOException {
         if (this.renderedimage == null) { // no image available
             return;
         }
-        try {
-            ImageOutputStream imageOutStream = ImageIO.createImageOutputStream(outStream);
 
-            Iterator<ImageWriter> writerIter = ImageIO.getImageWritersByFormatName("png");
-            ImageWriter writer = writerIter.next(); // get writer from ImageIO
+        ImageOutputStream imageOutStream = ImageIO.createImageOutputStream(outStream);
 
+        ImageWriter writer = ImageIOPool.getWriter("png"); // get writer from ImageIO
+        try {
             // create metadata by creating an XML tree
             BufferedImage image = ImageManipulator.fromRenderedToBuffered(renderedimage);
             ImageWriteParam writerParam = writer.getDefaultWriteParam();
             ImageTypeSpecifier its = new ImageTypeSpecifier(image.getColorModel(), image.getSampleModel());
 
-            IIOMetadata iomd = writer.getDefaultImageMetadata(its, writerParam);
+            IIOMetadata iomd = ImageIOPool.getDefaultImageMetadata(writer, its, writerParam);
 
             // create new XML tree and merge with old
             setMetadata(iomd);
@@ -237,22 +232,12 @@ public class PngInterpreter extends AbstractImageInterpreter implements ImageInt
 
             // writer.endWriteSequence();
             imageOutStream.flush();
-            if (fos != null) {
-                ImageOutputStream imageToFile = ImageIO.createImageOutputStream(fos);
-                writer.setOutput(imageToFile);
-                writer.write(null, iioImage, writerParam);
-                imageToFile.flush();
-                imageToFile.close();
-                fos.flush();
-                fos.close();
-            }
-            writer.dispose();
+        } finally {
+            ImageIOPool.returnWriter(writer);
             imageOutStream.close();
-
-            // ImageIO.write(renderedimage, "JPEG ", outStream);
-        } catch (IOException e) {
-            LOGGER.error("IOException:" + e);
         }
+
+        // ImageIO.write(renderedimage, "JPEG ", outStream);
     }
 
     /************************************************************************************
@@ -267,14 +252,11 @@ public class PngInterpreter extends AbstractImageInterpreter implements ImageInt
 
         // create new tree and merge it with the old one
         try {
-            DocumentBuilderFactory f = DocumentBuilderFactory.newInstance();
-            DocumentBuilder db = f.newDocumentBuilder();
-            Document xmlDocument = db.newDocument();
-
-            Element topElement = xmlDocument.createElement("javax_imageio_1.0");
-            Element dimElement = xmlDocument.createElement("Dimension");
-            Element hpsElement = xmlDocument.createElement("HorizontalPixelSize");
-            Element vpsElement = xmlDocument.createElement("VerticalPixelSize");
+            // IIOMetadataNodes don't need a DOM document, so no parser factory is looked up for every image
+            IIOMetadataNode topElement = new IIOMetadataNode("javax_imageio_1.0");
+            IIOMetadataNode dimElement = new IIOMetadataNode("Dimension");
+            IIOMetadataNode hpsElement = new IIOMetadataNode("HorizontalPixelSize");
+            IIOMetadataNode vpsElement = new IIOMetadataNode("VerticalPixelSize");
 
             // the size of the pixel is in mm, we have to convert the
             // dpi in pixel sizes
@@ -467,60 +449,6 @@ public class PngInterpreter extends AbstractImageInterpreter implements ImageInt
         return nnm.getNamedItem(attributeName);
     }
 
-    @Override
-    public byte[] writeToStreamAndByteArray(OutputStream outStream) {
-        if (this.renderedimage == null) { // no image available
-            return null;
-        }
-
-        // byte[] data = null;
-        try {
-            ImageOutputStream imageOutStream = ImageIO.createImageOutputStream(outStream);
-
-            Iterator<ImageWriter> writerIter = ImageIO.getImageWritersByFormatName("png");
-            ImageWriter writer = writerIter.next(); // get writer from ImageIO
-
-            // create metadata by creating an XML tree
-            BufferedImage image = ImageManipulator.fromRenderedToBuffered(renderedimage);
-            ImageWriteParam writerParam = writer.getDefaultWriteParam();
-            ImageTypeSpecifier its = new ImageTypeSpecifier(image.getColorModel(), image.getSampleModel());
-
-            IIOMetadata iomd = writer.getDefaultImageMetadata(its, writerParam);
-
-            // create new XML tree and merge with old
-            setMetadata(iomd);
-
-            // set output
-            writer.setOutput(imageOutStream);
-
-            IIOImage iioImage = new IIOImage(image, null, iomd);
-
-            writer.write(iioImage);
-
-            // writer.endWriteSequence();
-            imageOutStream.flush();
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            if (baos != null) {
-                ImageOutputStream imageToBytes = ImageIO.createImageOutputStream(baos);
-                writer.setOutput(imageToBytes);
-                writer.write(null, iioImage, writerParam);
-                imageToBytes.flush();
-                imageToBytes.close();
-                baos.flush();
-                baos.close();
-            }
-            writer.dispose();
-            imageOutStream.close();
-
-            return baos.toByteArray();
-
-            // ImageIO.write(renderedimage, "JPEG ", outStream);
-        } catch (IOException e) {
-            LOGGER.error("IOException:" + e);
-        }
-        return null;
-    }
-
     @Override
     public void createByteStreamFromRenderedImage() {
         // TODO Auto-generated method stub
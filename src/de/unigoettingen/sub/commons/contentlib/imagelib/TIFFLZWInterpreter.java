@@ -27,13 +27,16 @@ package de.unigoettingen.sub.commons.contentlib.imagelib;
 
 //TODO: Rename this to TiffLzwImageInterpreter
 import java.awt.image.BufferedImage;
+import java.awt.image.RenderedImage;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 
 import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
 import javax.imageio.ImageWriteParam;
 import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
 
 import org.apache.log4j.Logger;
 
@@ -64,26 +67,37 @@ public class TIFFLZWInterpreter extends TiffInterpreter implements ImageInterpre
      * bespoke writeToStream method which sets the compression parameter to LZW.
      */
     public void writeToStream(OutputStream outStream) {
-        if (this.renderedimage == null) { // no image available
+        RenderedImage image = getRenderedImage();
+        if (image == null) { // no image available
             return;
         }
 
+        ImageWriter iwriter = getWriter();
+        ImageOutputStream ios = null;
         try {
-            ImageWriter iwriter = getWriter();
-
             // gets a copy of the default writer
             ImageWriteParam wparam = iwriter.getDefaultWriteParam();
             wparam.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
             wparam.setCompressionType("LZW");
             // wparam.setCompressionQuality(0.5f); // only used for JPEG
 
-            BufferedImage bi = ImageManipulator.fromRenderedToBuffered(this.renderedimage);
+            BufferedImage bi = ImageManipulator.fromRenderedToBuffered(image);
 
-            iwriter.setOutput(outStream);
+            ios = ImageIO.createImageOutputStream(outStream);
+            iwriter.setOutput(ios);
             iwriter.write(null, new IIOImage(bi, null, null), wparam);
-
+            ios.flush();
         } catch (IOException e) {
             LOGGER.error("IOException occured", e);
+        } finally {
+            ImageIOPool.returnWriter(iwriter);
+            if (ios != null) {
+                try {
+                    ios.close();
+                } catch (IOException e) {
+                    LOGGER.error("Error closing image output stream: " + e.toString());
+                }
+            }
         }
     }
 }
@@ -25,29 +25,38 @@
  */
 package de.unigoettingen.sub.commons.contentlib.imagelib;
 
+import java.awt.Dimension;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.awt.image.RenderedImage;
 import java.awt.image.renderable.ParameterBlock;
 import java.io.ByteArrayOutputStream;
-import java.io.FileOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
 import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
 import javax.imageio.ImageWriteParam;
 import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
 import javax.imageio.stream.ImageInputStream;
 import javax.imageio.stream.ImageOutputStream;
 import javax.media.jai.JAI;
 
 import org.apache.log4j.Logger;
 
+import com.sun.media.imageio.plugins.tiff.BaselineTIFFTagSet;
 import com.sun.media.imageio.plugins.tiff.TIFFDirectory;
 import com.sun.media.imageio.plugins.tiff.TIFFField;
+import com.sun.media.imageio.plugins.tiff.TIFFTag;
+import com.sun.media.imageioimpl.plugins.tiff.TIFFImageReaderSpi;
+import com.sun.media.imageioimpl.plugins.tiff.TIFFImageWriterSpi;
 import com.sun.media.jai.codec.ByteArraySeekableStream;
 import com.sun.media.jai.codec.TIFFEncodeParam;
 
@@ -78,9 +87,22 @@ public class TiffInterpreter extends AbstractImageInterpreter implements ImageIn
     // private static final int COMPRESSION_DEFLATE = 32946;
     // private static final int COMPRESSION_CCITTRLEW = 32771;
 
+    /** file name suffix of the pyramidal TIFFs written next to the masters */
+    public static final String PYRAMID_SUFFIX = ".pyramid.tif";
+
+    /* the headers and pyramids are read and written with the JAI Image I/O plugins, whose metadata is understood by TIFFDirectory; newer JDKs
+     * bring their own TIFF plugins, which may come first */
+    private static final TIFFImageReaderSpi TIFF_READER_PROVIDER = new TIFFImageReaderSpi();
+    private static final TIFFImageWriterSpi PYRAMID_WRITER_PROVIDER = new TIFFImageWriterSpi();
+
     int writerCompressionType = 0;
     int compressionType = 0;
     ByteArraySeekableStream inputStream = null;
+    // index of the page of a multi-page TIFF and the offset of its IFD, 0 for the first page
+    private int page = 0;
+    private long pageOffset = 0;
+    // sizes of the reduced resolution images following the first image, largest first
+    private List<Dimension> reducedLevels = new ArrayList<Dimension>();
 
     /**
      * an empty constructor, just used for the extending this class
@@ -99,6 +121,18 @@ public class TiffInterpreter extends AbstractImageInterpreter implements ImageIn
         this.read(inStream);
     }
 
+    /************************************************************************************
+     * Constructor for {@link TiffInterpreter} to read a page of a multi-page tiff image from given {@link InputStream}
+     * 
+     * @param inStream {@link InputStream}
+     * @param page index of the page, 0 for the first page
+     * @throws ImageInterpreterException
+     ************************************************************************************/
+    public TiffInterpreter(InputStream inStream, int page) throws ImageInterpreterException {
+        this.page = page;
+        this.read(inStream);
+    }
+
     /************************************************************************************
      * read an tiff image from given {@link InputStream}
      * 
@@ -106,11 +140,6 @@ public class TiffInterpreter extends AbstractImageInterpreter implements ImageIn
      * @throws ImageInterpreterException
      ************************************************************************************/
     protected final void read(InputStream inStream) throws ImageInterpreterException {
-        ImageReader imagereader = null; // ImageReader to read the class
-        // TIFFImageMetadata tim = null; // contains all metadata tags for the TIFF
-        ImageInputStream iis = null; // specialized input stream for image
-        TIFFDirectory tiffDirectory = null;
-
         // read the stream and store it in a byte array
         this.readImageStream(inStream);
         byte imagebytes[] = this.getImageByteStream();
@@ -124,97 +153,249 @@ public class TiffInterpreter extends AbstractImageInterpreter implements ImageIn
 
         // inputStream = SeekableStream.wrapInputStream(inStream, true);
 
+        try {
+            findPage();
+            readHeader();
+        } finally {
+            try {
+                inStream.close();
+            } catch (IOException e) {
+                LOGGER.error("Error closing input stream: " + e.toString());
+            }
+        }
+    }
+
+    /************************************************************************************
+     * Constructor for {@link TiffInterpreter} to read an tiff image from given {@link File}, the file is accessed when the image is decoded instead
+     * of holding its content in memory
+     * 
+     * @param file the image file
+     * @throws ImageInterpreterException
+     ************************************************************************************/
+    public TiffInterpreter(File file) throws ImageInterpreterException {
+        this.read(file);
+    }
+
+    /************************************************************************************
+     * Constructor for {@link TiffInterpreter} to read a page of a multi-page tiff image from given {@link File}; the page is found in the
+     * cached index of the pages of the file
+     * 
+     * @param file the image file
+     * @param page index of the page, 0 for the first page
+     * @throws ImageInterpreterException
+     ************************************************************************************/
+    public TiffInterpreter(File file, int page) throws ImageInterpreterException {
+        this.page = page;
+        this.read(file);
+    }
+
+    /************************************************************************************
+     * read an tiff image from given {@link File}, only the header is read now
+     * 
+     * @param file the image file
+     * @throws ImageInterpreterException
+     ************************************************************************************/
+    protected final void read(File file) throws ImageInterpreterException {
+        this.readImageFile(file);
+        findPage();
+        readHeader();
+    }
+
+    /************************************************************************************
+     * find the offset of the IFD of the requested page; the pages of local files are taken from the {@link TiffPageIndex}
+     * 
+     * @throws ImageInterpreterException if the TIFF has not enough pages
+     ************************************************************************************/
+    private void findPage() throws ImageInterpreterException {
+        if (this.page == 0) {
+            return;
+        }
+        long[] offsets;
+        try {
+            if (this.rawbytes == null && this.sourceFile != null) {
+                offsets = TiffPageIndex.getPageOffsets(this.sourceFile);
+            } else {
+                ImageInputStream iis = super.openSourceImageInputStream();
+                try {
+                    offsets = TiffPageIndex.readPageOffsets(iis);
+                } finally {
+                    iis.close();
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.error("Can't read pages of TIFF", e);
+            throw new ImageInterpreterException("Can't read pages of TIFF", e);
+        }
+        this.pageOffset = TiffPageIndex.getPageOffset(offsets, this.page);
+    }
+
+    /**
+     * Opens the source of the image; for a page of a multi-page TIFF the stream presents the page as first image.
+     */
+    @Override
+    protected ImageInputStream openSourceImageInputStream() throws IOException {
+        ImageInputStream iis = super.openSourceImageInputStream();
+        if (iis != null && this.pageOffset > 0) {
+            return new TiffPageInputStream(iis, this.pageOffset);
+        }
+        return iis;
+    }
+
+    /************************************************************************************
+     * read size, resolution, color and compression information from the first directory of the tiff
+     * 
+     * @throws ImageInterpreterException
+     ************************************************************************************/
+    private void readHeader() throws ImageInterpreterException {
+        ImageReader imagereader = null; // ImageReader to read the class
+        // TIFFImageMetadata tim = null; // contains all metadata tags for the TIFF
+        ImageInputStream iis = null; // specialized input stream for image
+        TIFFDirectory tiffDirectory = null;
+
         // get the ImageReader first, before we can read the image
-        Iterator<ImageReader> it = ImageIO.getImageReadersByFormatName("tiff");
-        if (it.hasNext()) {
-            imagereader = it.next();
-        } else {
+        imagereader = ImageIOPool.getReader(TIFF_READER_PROVIDER);
+        if (imagereader == null) {
             // ERROR - no ImageReader was found
             LOGGER.error("Imagereader for TIFF couldn't be found");
             throw new ImageInterpreterException("Imagereader for TIFF format couldn't be found!");
         }
 
         try {
-            // read the stream
-            iis = ImageIO.createImageInputStream(inputStream);
-            imagereader.setInput(iis, true); // set the ImageInputStream as
-            tiffDirectory = TIFFDirectory.createFromMetadata(imagereader.getImageMetadata(0));
-            // Input for the ImageReader
-            // tim = (TIFFImageMetadata) imagereader.getImageMetadata(0);
-        } catch (IOException ioe) {
-            LOGGER.error("Can't read tiff image", ioe);
-            throw new ImageInterpreterException("Can't read the input stream", ioe);
-        } catch (Exception e) {
-            LOGGER.error("something went wrong during reading of image", e);
-            throw new ImageInterpreterException("Something went wrong while reading the TIFF from input stream", e);
-        }
+            try {
+                // read the stream
+                iis = openSourceImageInputStream();
+                imagereader.setInput(iis, true); // set the ImageInputStream as
+                tiffDirectory = TIFFDirectory.createFromMetadata(imagereader.getImageMetadata(0));
+                // Input for the ImageReader
+                // tim = (TIFFImageMetadata) imagereader.getImageMetadata(0);
+                readReducedLevels(imagereader);
+            } catch (IOException ioe) {
+                LOGGER.error("Can't read tiff image", ioe);
+                throw new ImageInterpreterException("Can't read the input stream", ioe);
+            } catch (Exception e) {
+                LOGGER.error("something went wrong during reading of image", e);
+                throw new ImageInterpreterException("Something went wrong while reading the TIFF from input stream", e);
+            }
 
-        // resolution
-        TIFFField tiffield = tiffDirectory.getTIFFField(282); // resolution
-        // TIFFField tiffield = tim.getTIFFField(282); // resolution
-        xResolution = tiffield.getAsFloat(0);
-        yResolution = tiffield.getAsFloat(0);
+            // resolution, the tag is optional
+            TIFFField tiffield = tiffDirectory.getTIFFField(282); // resolution
+            // TIFFField tiffield = tim.getTIFFField(282); // resolution
+            if (tiffield != null) {
+                xResolution = tiffield.getAsFloat(0);
+                yResolution = tiffield.getAsFloat(0);
+
+                // check the resolution unit, if it is in centimeter
+                // convert the value to dpi
+                // tiffield = tim.getTIFFField(282);
+                int res_unit = tiffield.getAsInt(0);
+                if (res_unit == 3) { // centimeter; calculate resolution in inch
+                    // then
+                    xResolution = (float) (xResolution / 2.54);
+                    yResolution = (float) (yResolution / 2.54);
+                }
+            }
 
-        // check the resolution unit, if it is in centimeter
-        // convert the value to dpi
-        tiffield = tiffDirectory.getTIFFField(282);
-        // tiffield = tim.getTIFFField(282);
-        int res_unit = tiffield.getAsInt(0);
-        if (res_unit == 3) { // centimeter; calculate resolution in inch
-            // then
-            xResolution = (float) (xResolution / 2.54);
-            yResolution = (float) (yResolution / 2.54);
-        }
+            try {
+                // width
+                tiffield = tiffDirectory.getTIFFField(256);
+                // tiffield = tim.getTIFFField(256);
+                width = tiffield.getAsInt(0);
+
+                // height
+                tiffield = tiffDirectory.getTIFFField(257);
+                // tiffield = tim.getTIFFField(257);
+                height = tiffield.getAsInt(0);
+            } catch (Exception e) {
+                LOGGER.error("Can't read size of TIFF", e);
+                throw new ImageInterpreterException("Can't read size of TIFF", e);
+            }
 
-        // width
-        tiffield = tiffDirectory.getTIFFField(256);
-        // tiffield = tim.getTIFFField(256);
-        width = tiffield.getAsInt(0);
+            try {
+                // colordepth = bits per sample
+                tiffield = tiffDirectory.getTIFFField(258);
+                // tiffield = tim.getTIFFField(258);
+                colorDepth = tiffield.getAsInt(0);
+            } catch (Exception e) {
+                // no colordepth information!
+                // this means we colordepth and sampler per pixel
+                // is 1 = bitonal image
+                colorDepth = 1;
+            }
+            try {
+                // samples per pixel
+                tiffield = tiffDirectory.getTIFFField(277);
+                // tiffield = tim.getTIFFField(277);
+                samplesPerPixel = tiffield.getAsInt(0);
+            } catch (Exception e) {
+                // no samples per pixel information available
+                // the default value is 1
+                samplesPerPixel = 1;
+            }
 
-        // height
-        tiffield = tiffDirectory.getTIFFField(257);
-        // tiffield = tim.getTIFFField(257);
-        height = tiffield.getAsInt(0);
+            // get compression mode
+            //
+            try {
+                tiffield = tiffDirectory.getTIFFField(259);
+                // tiffield = tim.getTIFFField(259);
+                compressionType = tiffield.getAsInt(0);
+            } catch (Exception e) {
+                LOGGER.error("Can't read compression type of TIFF", e);
+                throw new ImageInterpreterException("Can't read compression type of TIFF", e);
+            }
+        } finally {
+            /* the file backed input stream holds a file handle, release it on every path */
+            ImageIOPool.returnReader(imagereader);
+            if (iis != null) {
+                try {
+                    iis.close();
+                } catch (IOException e) {
+                    LOGGER.error("Error closing input streams: " + e.toString());
+                }
+            }
+        }
+    }
 
+    /************************************************************************************
+     * collects the sizes of the reduced resolution images of a pyramidal TIFF; these are the directories following the first one which are marked
+     * as reduced resolution versions of it in their NewSubfileType tag
+     * 
+     * @param imagereader the reader positioned on the first directory
+     ************************************************************************************/
+    private void readReducedLevels(ImageReader imagereader) {
+        this.reducedLevels = new ArrayList<Dimension>();
         try {
-            // colordepth = bits per sample
-            tiffield = tiffDirectory.getTIFFField(258);
-            // tiffield = tim.getTIFFField(258);
-            colorDepth = tiffield.getAsInt(0);
-        } catch (Exception e) {
-            // no colordepth information!
-            // this means we colordepth and sampler per pixel
-            // is 1 = bitonal image
-            colorDepth = 1;
+            for (int index = 1;; index++) {
+                TIFFField subfileType = TIFFDirectory.createFromMetadata(imagereader.getImageMetadata(index)).getTIFFField(
+                        BaselineTIFFTagSet.TAG_NEW_SUBFILE_TYPE);
+                if (subfileType == null || (subfileType.getAsLong(0) & BaselineTIFFTagSet.NEW_SUBFILE_TYPE_REDUCED_RESOLUTION) == 0) {
+                    break;
+                }
+                this.reducedLevels.add(new Dimension(imagereader.getWidth(index), imagereader.getHeight(index)));
+            }
+        } catch (IndexOutOfBoundsException e) {
+            // no more directories
+        } catch (IOException e) {
+            LOGGER.warn("Can't read reduced resolution images of TIFF: " + e.toString());
         }
-        try {
-            // samples per pixel
-            tiffield = tiffDirectory.getTIFFField(277);
-            // tiffield = tim.getTIFFField(277);
-            samplesPerPixel = tiffield.getAsInt(0);
-        } catch (Exception e) {
-            // no samples per pixel information available
-            // the default value is 1
-            samplesPerPixel = 1;
+        if (!this.reducedLevels.isEmpty()) {
+            LOGGER.debug("TIFF has " + this.reducedLevels.size() + " reduced resolution images");
         }
+    }
 
-        // get compression mode
-        //
-        try {
-            tiffield = tiffDirectory.getTIFFField(259);
-            // tiffield = tim.getTIFFField(259);
-            compressionType = tiffield.getAsInt(0);
-        } catch (Exception e) {
-            LOGGER.error("Can't read compression type of TIFF", e);
-            throw new ImageInterpreterException("Can't read compression type of TIFF", e);
-        } finally {
-            try {
-                iis.close();
-                inStream.close();
-            } catch (IOException e) {
-                LOGGER.error("Error closing input streams: " + e.toString());
-            }
+    /************************************************************************************
+     * get the pyramidal TIFF belonging to a master image; it is stored next to the master with the same base name and the suffix
+     * {@link #PYRAMID_SUFFIX}
+     * 
+     * @param master the master image
+     * @return the pyramid file, which may not exist
+     ************************************************************************************/
+    public static File getPyramidFile(File master) {
+        String name = master.getName();
+        int dotPos = name.lastIndexOf('.');
+        if (dotPos > 0) {
+            name = name.substring(0, dotPos);
         }
+        return new File(master.getParentFile(), name + PYRAMID_SUFFIX);
     }
 
     /************************************************************************************
@@ -236,7 +417,7 @@ public class TiffInterpreter extends AbstractImageInterpreter implements ImageIn
     @Override
     public RenderedImage getRenderedImage() {
 
-        if ((this.renderedimage == null) && (this.inputStream != null)) {
+        if ((this.renderedimage == null) && (this.inputStream != null) && (this.pageOffset == 0)) {
             // create the renderedimage from stream, if not already done
             this.renderedimage = JAI.create("Stream", this.inputStream);
             try {
@@ -244,10 +425,107 @@ public class TiffInterpreter extends AbstractImageInterpreter implements ImageIn
             } catch (Exception e) {
                 LOGGER.error("safaf");
             }
+        } else if ((this.renderedimage == null) && hasImageSource()) {
+            // JAI would keep the file open until the image is disposed and always reads the first page, so the whole image is decoded now
+            this.renderedimage = readImage(0, null, 1);
         }
         return this.renderedimage;
     }
 
+    /**
+     * Reads only the given region of the TIFF with the given subsampling using the ImageIO TIFF reader. Only the strips or tiles intersecting the
+     * region are decoded, so a small region or a small subsampled version of a large image never needs the full raster in memory. If the TIFF is
+     * a pyramid, the smallest reduced resolution image which still has at least the requested resolution is read instead of the full image.
+     * 
+     * @param sourceRegion region of the image, null for the whole image
+     * @param subsampling decode only every subsampling-th pixel
+     * @return
+     */
+    @Override
+    public RenderedImage getRenderedImage(Rectangle sourceRegion, int subsampling) {
+        if ((sourceRegion == null && subsampling <= 1) || this.renderedimage != null || !hasImageSource()) {
+            return super.getRenderedImage(sourceRegion, subsampling);
+        }
+        int imageIndex = 0;
+        Dimension levelSize = null;
+        for (int i = 0; i < this.reducedLevels.size(); i++) {
+            Dimension size = this.reducedLevels.get(i);
+            // the level is reduced by width / size.width, which must not exceed the subsampling
+            if ((long) size.width * subsampling >= width && (long) size.height * subsampling >= height) {
+                imageIndex = i + 1;
+                levelSize = size;
+            }
+        }
+        Rectangle region = sourceRegion;
+        int levelSubsampling = subsampling;
+        if (levelSize != null) {
+            region = scaleRegion(sourceRegion, levelSize);
+            levelSubsampling = Math.max(1, (int) ((long) subsampling * levelSize.width / width));
+        }
+        LOGGER.debug("reading region " + region + " of TIFF image " + imageIndex + " with subsampling " + levelSubsampling);
+        RenderedImage image = readImage(imageIndex, region, levelSubsampling);
+        if (image == null) {
+            LOGGER.warn("Can't read region of TIFF, reading whole image instead");
+            return super.getRenderedImage(sourceRegion, subsampling);
+        }
+        return image;
+    }
+
+    /**
+     * Maps a region of the full resolution image to a reduced resolution image of the pyramid, covering at least the same area.
+     * 
+     * @param sourceRegion region of the full image, null for the whole image
+     * @param levelSize size of the reduced resolution image
+     * @return the region in the reduced resolution image, null for the whole image
+     */
+    private Rectangle scaleRegion(Rectangle sourceRegion, Dimension levelSize) {
+        if (sourceRegion == null) {
+            return null;
+        }
+        double scaleX = (double) levelSize.width / width;
+        double scaleY = (double) levelSize.height / height;
+        int x1 = (int) Math.floor(sourceRegion.x * scaleX);
+        int y1 = (int) Math.floor(sourceRegion.y * scaleY);
+        int x2 = (int) Math.ceil((sourceRegion.x + sourceRegion.width) * scaleX);
+        int y2 = (int) Math.ceil((sourceRegion.y + sourceRegion.height) * scaleY);
+        Rectangle region = new Rectangle(x1, y1, Math.max(1, x2 - x1), Math.max(1, y2 - y1));
+        return region.intersection(new Rectangle(levelSize));
+    }
+
+    /**
+     * Decodes an image of the TIFF or a part of it with the ImageIO TIFF reader.
+     * 
+     * @param imageIndex index of the image in the TIFF, 0 for the first one
+     * @param sourceRegion region of the image, null for the whole image
+     * @param subsampling decode only every subsampling-th pixel
+     * @return the image or null if it couldn't be read
+     */
+    private RenderedImage readImage(int imageIndex, Rectangle sourceRegion, int subsampling) {
+        ImageReader imagereader = ImageIOPool.getReader(TIFF_READER_PROVIDER);
+        if (imagereader == null) {
+            LOGGER.error("Imagereader for TIFF couldn't be found");
+            return null;
+        }
+        ImageInputStream iis = null;
+        try {
+            iis = openSourceImageInputStream();
+            imagereader.setInput(iis, true);
+            return imagereader.read(imageIndex, createReadParam(imagereader, sourceRegion, subsampling));
+        } catch (Exception e) {
+            LOGGER.error("Can't read TIFF image", e);
+            return null;
+        } finally {
+            ImageIOPool.returnReader(imagereader);
+            if (iis != null) {
+                try {
+                    iis.close();
+                } catch (IOException e) {
+                    LOGGER.error("Error closing input stream: " + e.toString());
+                }
+            }
+        }
+    }
+
     @Override
     public void createByteStreamFromRenderedImage() {
 
@@ -268,10 +546,10 @@ public class TiffInterpreter extends AbstractImageInterpreter implements ImageIn
      * Write the renderedimage to an OutputStream
      * 
      * @param outStream
-     * @throws ParameterNotSupportedException
+     * @throws IOException
      */
     @Override
-    public void writeToStream(FileOutputStream fos, OutputStream outStream) {
+    public void encode(OutputStream outStream) throws IOException {
         if (this.renderedimage == null) { // no image available
             return;
         }
@@ -283,57 +561,136 @@ public class TiffInterpreter extends AbstractImageInterpreter implements ImageIn
             this.writerCompressionType = COMPRESSION_NONE;
         }
 
-        try {
-            ImageWriter iwriter = getWriter();
-
-            // gets a copy of the default writer
-            ImageWriteParam wparam = iwriter.getDefaultWriteParam();
-            wparam.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
-
-            // String[] compressions=wparam.getCompressionTypes();
-            // for (int i=0;i<compressions.length;i++){
-            // LOGGER.debug("compressions:"+compressions[i]);
-            // }
-
-            if (writerCompressionType == COMPRESSION_NONE) {
-                wparam.setCompressionType(null);
-            } else if (writerCompressionType == COMPRESSION_LZW) {
-                wparam.setCompressionType("LZW");
-            } else if (writerCompressionType == COMPRESSION_CCITTFAX4) {
-                wparam.setCompressionType("CCITT T.4");
-            } else if (writerCompressionType == COMPRESSION_PACKBITS) {
-                wparam.setCompressionType("PackBits");
-            } else if (writerCompressionType == COMPRESSION_JPEG) {
-                wparam.setCompressionType("JPEG");
-            } else if (writerCompressionType == COMPRESSION_CCITTRLE) {
-                wparam.setCompressionType("CCITT RLE");
-            } else {
-                LOGGER.warn("Unsupported compression for writing TIFFs");
-                wparam.setCompressionType(null);
-            }
+        ImageWriter iwriter = getWriter();
+        ImageWriteParam wparam = createWriteParam(iwriter);
 
-            // wparam.setCompressionQuality(0.5f); // only used for JPEG
+        // wparam.setCompressionQuality(0.5f); // only used for JPEG
 
-            BufferedImage bi = ImageManipulator.fromRenderedToBuffered(this.renderedimage);
+        BufferedImage bi = ImageManipulator.fromRenderedToBuffered(this.renderedimage);
 
-            ImageOutputStream ios = ImageIO.createImageOutputStream(outStream);
+        ImageOutputStream ios = ImageIO.createImageOutputStream(outStream);
+        try {
             iwriter.setOutput(ios);
             iwriter.write(null, new IIOImage(bi, null, null), wparam);
             ios.flush();
-            iwriter.dispose();
+        } finally {
+            ImageIOPool.returnWriter(iwriter);
             ios.close();
-            if (fos != null) {
-                ImageOutputStream imageToFile = ImageIO.createImageOutputStream(fos);
-                iwriter.setOutput(imageToFile);
-                iwriter.write(null, new IIOImage(bi, null, null), wparam);
-                imageToFile.flush();
-                imageToFile.close();
-                fos.flush();
-                fos.close();
+        }
+    }
+
+    /**
+     * Writes the image as tiled pyramidal TIFF: the first image has the full resolution, each following one half the size of the previous one,
+     * down to an image fitting into minSize. The reduced images are marked as reduced resolution versions of the first one, so readers which
+     * don't know about pyramids still see a single image.
+     * 
+     * @param outStream the stream to write the TIFF to
+     * @param tileSize width and height of the tiles
+     * @param minSize maximum width and height of the smallest image
+     * @throws IOException
+     */
+    public void writePyramid(OutputStream outStream, int tileSize, int minSize) throws IOException {
+        RenderedImage level = getRenderedImage();
+        if (level == null) { // no image available
+            return;
+        }
+
+        try {
+            isCompressionApplicable(writerCompressionType);
+        } catch (ParameterNotSupportedException e1) {
+            LOGGER.warn("Can't write Image with compression", e1);
+            this.writerCompressionType = COMPRESSION_NONE;
+        }
+
+        ImageWriter iwriter = ImageIOPool.getWriter(PYRAMID_WRITER_PROVIDER);
+        ImageWriteParam wparam = createWriteParam(iwriter);
+        wparam.setTilingMode(ImageWriteParam.MODE_EXPLICIT);
+        wparam.setTiling(tileSize, tileSize, 0, 0);
+
+        ImageOutputStream ios = ImageIO.createImageOutputStream(outStream);
+        try {
+            iwriter.setOutput(ios);
+            iwriter.prepareWriteSequence(null);
+            int reduction = 1;
+            while (true) {
+                IIOMetadata metadata = createLevelMetadata(iwriter, level, wparam, reduction);
+                iwriter.writeToSequence(new IIOImage(level, null, metadata), wparam);
+                if (Math.max(level.getWidth(), level.getHeight()) <= minSize) {
+                    break;
+                }
+                // every level is scaled from the previous one, which is kept in memory to avoid recomputing the whole chain
+                level = ImageManipulator.fromRenderedToBuffered(ImageManipulator.scaleInterpolationBilinear(level, 0.5f, 0.5f));
+                reduction *= 2;
             }
-        } catch (IOException e) {
-            LOGGER.error("IOException occured", e);
+            iwriter.endWriteSequence();
+            ios.flush();
+        } finally {
+            ImageIOPool.returnWriter(iwriter);
+            ios.close();
+        }
+    }
+
+    /**
+     * Creates the TIFF metadata of one image of a pyramid, with the resolution reduced accordingly.
+     * 
+     * @param iwriter the writer
+     * @param level the image of the pyramid
+     * @param wparam the parameters used for writing
+     * @param reduction the factor this image is reduced by, 1 for the full resolution image
+     * @return the metadata
+     * @throws IOException if the default metadata of the writer can't be used
+     */
+    private IIOMetadata createLevelMetadata(ImageWriter iwriter, RenderedImage level, ImageWriteParam wparam, int reduction) throws IOException {
+        TIFFDirectory directory = TIFFDirectory.createFromMetadata(iwriter.getDefaultImageMetadata(new ImageTypeSpecifier(level), wparam));
+        BaselineTIFFTagSet baseline = BaselineTIFFTagSet.getInstance();
+        if (reduction > 1) {
+            directory.addTIFFField(new TIFFField(baseline.getTag(BaselineTIFFTagSet.TAG_NEW_SUBFILE_TYPE), TIFFTag.TIFF_LONG, 1,
+                    new long[] { BaselineTIFFTagSet.NEW_SUBFILE_TYPE_REDUCED_RESOLUTION }));
+        }
+        if (xResolution > 0 && yResolution > 0) {
+            directory.addTIFFField(new TIFFField(baseline.getTag(BaselineTIFFTagSet.TAG_X_RESOLUTION), TIFFTag.TIFF_RATIONAL, 1,
+                    new long[][] { { Math.round(xResolution * 100 / reduction), 100 } }));
+            directory.addTIFFField(new TIFFField(baseline.getTag(BaselineTIFFTagSet.TAG_Y_RESOLUTION), TIFFTag.TIFF_RATIONAL, 1,
+                    new long[][] { { Math.round(yResolution * 100 / reduction), 100 } }));
+            directory.addTIFFField(new TIFFField(baseline.getTag(BaselineTIFFTagSet.TAG_RESOLUTION_UNIT), TIFFTag.TIFF_SHORT, 1,
+                    new char[] { BaselineTIFFTagSet.RESOLUTION_UNIT_INCH }));
         }
+        return directory.getAsMetadata();
+    }
+
+    /**
+     * Creates the parameters for writing the TIFF with the compression set by {@link #setWriterCompressionType(int)}.
+     * 
+     * @param iwriter the writer
+     * @return the parameters
+     */
+    private ImageWriteParam createWriteParam(ImageWriter iwriter) {
+        // gets a copy of the default writer
+        ImageWriteParam wparam = iwriter.getDefaultWriteParam();
+        wparam.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+
+        // String[] compressions=wparam.getCompressionTypes();
+        // for (int i=0;i<compressions.length;i++){
+        // LOGGER.debug("compressions:"+compressions[i]);
+        // }
+
+        if (writerCompressionType == COMPRESSION_NONE) {
+            wparam.setCompressionType(null);
+        } else if (writerCompressionType == COMPRESSION_LZW) {
+            wparam.setCompressionType("LZW");
+        } else if (writerCompressionType == COMPRESSION_CCITTFAX4) {
+            wparam.setCompressionType("CCITT T.4");
+        } else if (writerCompressionType == COMPRESSION_PACKBITS) {
+            wparam.setCompressionType("PackBits");
+        } else if (writerCompressionType == COMPRESSION_JPEG) {
+            wparam.setCompressionType("JPEG");
+        } else if (writerCompressionType == COMPRESSION_CCITTRLE) {
+            wparam.setCompressionType("CCITT RLE");
+        } else {
+            LOGGER.warn("Unsupported compression for writing TIFFs");
+            wparam.setCompressionType(null);
+        }
+        return wparam;
     }
 
     /**
@@ -343,6 +700,10 @@ public class TiffInterpreter extends AbstractImageInterpreter implements ImageIn
      */
     @Override
     public boolean pdfBytestreamEmbeddable() {
+        if (this.page > 0) {
+            // the bytestream contains all pages
+            return false;
+        }
         if ((this.compressionType == COMPRESSION_NONE) || (this.compressionType == COMPRESSION_LZW)
                 || (this.compressionType == COMPRESSION_CCITTFAX4)) {
             return true;
@@ -377,14 +738,7 @@ public class TiffInterpreter extends AbstractImageInterpreter implements ImageIn
     }
 
     protected ImageWriter getWriter() {
-        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("tif");
-        ImageWriter writer = writers.next();
-        return writer;
-    }
-
-    @Override
-    public byte[] writeToStreamAndByteArray(OutputStream outStream) {
-        return new byte[0];
+        return ImageIOPool.getWriter("tif");
     }
 
 }
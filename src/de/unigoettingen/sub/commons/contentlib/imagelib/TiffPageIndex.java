@@ -0,0 +1,194 @@
+/*
+ * This file is part of the ContentServer project.
+ * Visit the websites for more information. 
+ * 		- http://gdz.sub.uni-goettingen.de 
+ * 		- http://www.intranda.com 
+ * 		- http://www.digiverso.com
+ * 
+ * Copyright 2009, Center for Retrospective Digitization, Göttingen (GDZ),
+ * intranda software
+ *
+ * This is the extended version updated by intranda
+ * Copyright 2012, intranda GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.unigoettingen.sub.commons.contentlib.imagelib;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.imageio.stream.ImageInputStream;
+
+import org.apache.log4j.Logger;
+
+import de.unigoettingen.sub.commons.contentlib.exceptions.ImageInterpreterException;
+import de.unigoettingen.sub.commons.util.stream.StreamUtils;
+
+/************************************************************************************
+ * index of the pages of multi-page TIFF files: the offsets of the IFDs of all pages, so any page is reached with a single seek instead of walking
+ * the IFD chain from the first page. Reduced resolution images, like the levels of a pyramid or thumbnails, are not counted as pages. The offsets
+ * of local files are kept in a small index and read again when the modification date of the file changes.
+ * 
+ * @version 17.10.2026
+ ************************************************************************************/
+final class TiffPageIndex {
+    private static final Logger LOGGER = Logger.getLogger(TiffPageIndex.class);
+
+    /** The maximum number of files in the index. */
+    private static final int MAX_FILES = 1000;
+
+    /** The maximum number of IFDs read, protects against broken files */
+    private static final int MAX_IFDS = 65536;
+
+    private static final Map<String, CachedOffsets> INDEX = new LinkedHashMap<String, CachedOffsets>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedOffsets> eldest) {
+            return size() > MAX_FILES;
+        }
+    };
+
+    private TiffPageIndex() {
+    }
+
+    /************************************************************************************
+     * get the IFD offsets of the pages of a local TIFF file from the index or from the file
+     * 
+     * @param file the TIFF file
+     * @return the offsets of the IFDs of the pages
+     * @throws IOException if the file isn't a TIFF or can't be read
+     ************************************************************************************/
+    static long[] getPageOffsets(File file) throws IOException {
+        String key = file.getAbsolutePath();
+        long lastModified = file.lastModified();
+        CachedOffsets cached;
+        synchronized (INDEX) {
+            cached = INDEX.get(key);
+        }
+        if (cached != null && cached.lastModified == lastModified) {
+            return cached.offsets;
+        }
+
+        ImageInputStream iis = StreamUtils.openImageInputStream(file);
+        long[] offsets;
+        try {
+            offsets = readPageOffsets(iis);
+        } finally {
+            iis.close();
+        }
+        LOGGER.debug("TIFF " + file + " has " + offsets.length + " pages");
+        synchronized (INDEX) {
+            INDEX.put(key, new CachedOffsets(lastModified, offsets));
+        }
+        return offsets;
+    }
+
+    /************************************************************************************
+     * get the offset of the IFD of a page
+     * 
+     * @param offsets the offsets of the IFDs of all pages
+     * @param page index of the page, 0 for the first page
+     * @return the offset of the IFD
+     * @throws ImageInterpreterException if the TIFF has not enough pages
+     ************************************************************************************/
+    static long getPageOffset(long[] offsets, int page) throws ImageInterpreterException {
+        if (page < 0 || page >= offsets.length) {
+            throw new ImageInterpreterException("Page " + (page + 1) + " requested, but the TIFF has only " + offsets.length + " pages");
+        }
+        return offsets[page];
+    }
+
+    /************************************************************************************
+     * walk the IFD chain of a TIFF and collect the offsets of the IFDs of all pages; classic TIFF and BigTIFF files are supported
+     * 
+     * @param iis the TIFF
+     * @return the offsets of the IFDs of the pages
+     * @throws IOException if the stream isn't a TIFF or can't be read
+     ************************************************************************************/
+    static long[] readPageOffsets(ImageInputStream iis) throws IOException {
+        iis.seek(0);
+        int byteOrder = iis.readUnsignedShort();
+        if (byteOrder != 0x4949 && byteOrder != 0x4D4D) {
+            throw new IOException("Not a TIFF file");
+        }
+        iis.setByteOrder(byteOrder == 0x4949 ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+        int version = iis.readUnsignedShort();
+        boolean bigTiff = version == 43;
+        if (!bigTiff && version != 42) {
+            throw new IOException("Not a TIFF file");
+        }
+        if (bigTiff) {
+            iis.skipBytes(4); // offset size and reserved bytes
+        }
+        long offset = bigTiff ? iis.readLong() : iis.readUnsignedInt();
+        // sizes of the entry count, of an entry and of the offset of the next IFD
+        int countSize = bigTiff ? 8 : 2;
+        int entrySize = bigTiff ? 20 : 12;
+
+        List<Long> offsets = new ArrayList<Long>();
+        Set<Long> visited = new HashSet<Long>();
+        while (offset != 0 && visited.size() < MAX_IFDS && visited.add(offset)) {
+            iis.seek(offset);
+            long entries = bigTiff ? iis.readLong() : iis.readUnsignedShort();
+            boolean reduced = false;
+            // the entries are sorted by tag, NewSubfileType is the first baseline tag
+            for (long i = 0; i < entries; i++) {
+                iis.seek(offset + countSize + i * entrySize);
+                int tag = iis.readUnsignedShort();
+                if (tag > 254) {
+                    break;
+                }
+                if (tag == 254) {
+                    int type = iis.readUnsignedShort();
+                    iis.skipBytes(bigTiff ? 8 : 4); // count
+                    long subfileType = type == 3 ? iis.readUnsignedShort() : iis.readUnsignedInt();
+                    reduced = (subfileType & 1) != 0;
+                    break;
+                }
+            }
+            if (!reduced) {
+                offsets.add(offset);
+            }
+            iis.seek(offset + countSize + entries * entrySize);
+            offset = bigTiff ? iis.readLong() : iis.readUnsignedInt();
+        }
+
+        long[] result = new long[offsets.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = offsets.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * The page offsets of a file together with the modification date of the file.
+     */
+    private static class CachedOffsets {
+        private final long lastModified;
+        private final long[] offsets;
+
+        public CachedOffsets(long lastModified, long[] offsets) {
+            this.lastModified = lastModified;
+            this.offsets = offsets;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * This file is part of the ContentServer project.
+ * Visit the websites for more information. 
+ * 		- http://gdz.sub.uni-goettingen.de 
+ * 		- http://www.intranda.com 
+ * 		- http://www.digiverso.com
+ * 
+ * Copyright 2009, Center for Retrospective Digitization, Göttingen (GDZ),
+ * intranda software
+ *
+ * This is the extended version updated by intranda
+ * Copyright 2012, intranda GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.unigoettingen.sub.commons.contentlib.imagelib;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageInputStreamImpl;
+
+/************************************************************************************
+ * {@link ImageInputStream} presenting one page of a multi-page TIFF as first image: the offset of the first IFD in the header is replaced by the
+ * offset of the IFD of the page, everything else is read unchanged from the underlying stream. The TIFF readers then read the page as image 0
+ * without walking the IFD chain.
+ * 
+ * @version 17.10.2026
+ ************************************************************************************/
+class TiffPageInputStream extends ImageInputStreamImpl {
+
+    private final ImageInputStream in;
+    private final byte[] header;
+
+    /************************************************************************************
+     * wrap a TIFF stream
+     * 
+     * @param in the TIFF, closed with this stream
+     * @param ifdOffset the offset of the IFD of the page
+     * @throws IOException if the header can't be read
+     ************************************************************************************/
+    TiffPageInputStream(ImageInputStream in, long ifdOffset) throws IOException {
+        this.in = in;
+        in.seek(0);
+        in.setByteOrder(in.read() == 'I' ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+        in.skipBytes(1);
+        boolean bigTiff = in.readUnsignedShort() == 43;
+        this.header = new byte[bigTiff ? 16 : 8];
+        in.seek(0);
+        in.readFully(this.header, 0, this.header.length - (bigTiff ? 8 : 4));
+        // the offset is written in the byte order of the file
+        boolean littleEndian = this.header[0] == 'I';
+        int offsetPosition = bigTiff ? 8 : 4;
+        int offsetSize = this.header.length - offsetPosition;
+        for (int i = 0; i < offsetSize; i++) {
+            int shift = 8 * (littleEndian ? i : offsetSize - 1 - i);
+            this.header[offsetPosition + i] = (byte) (ifdOffset >>> shift);
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        checkClosed();
+        bitOffset = 0;
+        if (streamPos < header.length) {
+            return header[(int) streamPos++] & 0xff;
+        }
+        in.seek(streamPos);
+        int b = in.read();
+        if (b != -1) {
+            streamPos++;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        checkClosed();
+        if (off < 0 || len < 0 || off + len > b.length) {
+            throw new IndexOutOfBoundsException("off < 0 || len < 0 || off + len > b.length");
+        }
+        bitOffset = 0;
+        if (len == 0) {
+            return 0;
+        }
+        if (streamPos < header.length) {
+            int count = (int) Math.min(len, header.length - streamPos);
+            System.arraycopy(header, (int) streamPos, b, off, count);
+            streamPos += count;
+            return count;
+        }
+        in.seek(streamPos);
+        int count = in.read(b, off, len);
+        if (count > 0) {
+            streamPos += count;
+        }
+        return count;
+    }
+
+    @Override
+    public long length() {
+        try {
+            return in.length();
+        } catch (IOException e) {
+            return -1L;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        super.close();
+        in.close();
+    }
+
+}
@@ -0,0 +1,103 @@
+/*
+ * This file is part of the ContentServer project.
+ * Visit the websites for more information. 
+ * 		- http://gdz.sub.uni-goettingen.de 
+ * 		- http://www.intranda.com 
+ * 		- http://www.digiverso.com
+ * 
+ * Copyright 2009, Center for Retrospective Digitization, Göttingen (GDZ),
+ * intranda software
+ *
+ * This is the extended version updated by intranda
+ * Copyright 2012, intranda GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.unigoettingen.sub.commons.contentlib.pdflib;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+
+import de.unigoettingen.sub.commons.contentlib.exceptions.PDFManagerException;
+
+/************************************************************************************
+ * PDFLinearizer rewrites a complete pdf file as linearized pdf ("fast web view") with an external tool, because iText can't write linearized
+ * files. Viewers can show the first page of a linearized file before the whole file is loaded, using range requests.
+ * 
+ * the command gets the source and the target file as last arguments, e.g. "qpdf --linearize"
+ * 
+ * @version 17.10.2026
+ ************************************************************************************/
+public final class PDFLinearizer {
+    private static final Logger LOGGER = Logger.getLogger(PDFLinearizer.class);
+
+    /** exit code of qpdf, if the file was written with warnings */
+    private static final int EXIT_WARNINGS = 3;
+
+    private PDFLinearizer() {
+    }
+
+    /************************************************************************************
+     * write a linearized copy of a pdf file
+     * 
+     * @param source the complete pdf file
+     * @param target file for the linearized pdf, it is deleted if linearization fails
+     * @param command the command line of the tool without file names
+     * @throws PDFManagerException if the tool can't be started or fails
+     ************************************************************************************/
+    public static void linearize(File source, File target, String command) throws PDFManagerException {
+        List<String> commandLine = new ArrayList<String>(Arrays.asList(command.trim().split("\\s+")));
+        commandLine.add(source.getAbsolutePath());
+        commandLine.add(target.getAbsolutePath());
+        long start = System.currentTimeMillis();
+        int exitCode;
+        StringBuilder output = new StringBuilder();
+        try {
+            Process process = new ProcessBuilder(commandLine).redirectErrorStream(true).start();
+            process.getOutputStream().close();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    output.append(line).append('\n');
+                }
+            } finally {
+                reader.close();
+            }
+            exitCode = process.waitFor();
+        } catch (IOException e) {
+            FileUtils.deleteQuietly(target);
+            throw new PDFManagerException("Can't run " + commandLine.get(0) + " to linearize pdf file", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            FileUtils.deleteQuietly(target);
+            throw new PDFManagerException("Interrupted while linearizing pdf file", e);
+        }
+        if ((exitCode != 0 && exitCode != EXIT_WARNINGS) || target.length() == 0) {
+            FileUtils.deleteQuietly(target);
+            throw new PDFManagerException("Linearization of " + source.getAbsolutePath() + " failed with exit code " + exitCode + ": " + output);
+        }
+        if (output.length() > 0) {
+            LOGGER.debug(output);
+        }
+        LOGGER.debug("Linearized " + source.getName() + " in " + (System.currentTimeMillis() - start) + " ms");
+    }
+}
@@ -37,10 +37,18 @@ import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
 
@@ -80,6 +88,7 @@ import de.unigoettingen.sub.commons.contentlib.exceptions.ImageManipulatorExcept
 import de.unigoettingen.sub.commons.contentlib.exceptions.PDFManagerException;
 import de.unigoettingen.sub.commons.contentlib.exceptions.ParameterNotSupportedException;
 import de.unigoettingen.sub.commons.contentlib.imagelib.ImageFileFormat;
+import de.unigoettingen.sub.commons.contentlib.imagelib.ImageInfo;
 import de.unigoettingen.sub.commons.contentlib.imagelib.ImageInterpreter;
 import de.unigoettingen.sub.commons.contentlib.imagelib.ImageManager;
 import de.unigoettingen.sub.commons.contentlib.imagelib.ImageManipulator;
@@ -114,6 +123,12 @@ public class PDFManager {
     /** Image, that used for pages with error. */
     // private static final String ERROR_PAGE = Loader.getResource("errorfile.jpg").toExternalForm();
 
+    /** Worker threads preparing page images for all PDFs, created on first use. */
+    private static ExecutorService pagePreparationPool = null;
+
+    /** Fonts of the system are registered once for all PDFs. */
+    private static boolean fontsRegistered = false;
+
     // ----------------------------------------------------------------------------------------
 
     public enum PdfPageSize {
@@ -155,6 +170,21 @@ public class PDFManager {
         ORIGBYTESTREAM, /* RENDEREDIMAGE, */JPEG, LOSSYJPEG2000, LOSSLESSJPEG2000, TIFFG4
     }
 
+    /**
+     * Image of a page, ready to be placed in the PDF, together with the interpreter providing its size and resolution.
+     */
+    private static class PreparedPage {
+        private final Image pdfImage;
+        private final ImageInterpreter interpreter;
+        private final HeaderFooter footer;
+
+        private PreparedPage(Image pdfImage, ImageInterpreter interpreter, HeaderFooter footer) {
+            this.pdfImage = pdfImage;
+            this.interpreter = interpreter;
+            this.footer = footer;
+        }
+    }
+
     /** The always use rendered image. */
     Boolean alwaysUseRenderedImage = false; // uses rendered Image and embedd
                                             // this into PDF
@@ -290,6 +320,8 @@ public class PDFManager {
 
             // writer for creating the PDF
             writer = createPDFWriter(out, pdfdoc);
+            // send the pdf header right away, the client shouldn't wait for the first page
+            writer.flush();
 
             // set metadata for PDF as author and title
             // ------------------------------------------------------------------------------------
@@ -309,6 +341,7 @@ public class PDFManager {
             if (pdftitlepage != null) {
                 // create a title page
                 pdftitlepage.render(pdfdoc);
+                writer.flush();
             }
 
             // iterate over all files, they must be ordered by the key
@@ -394,12 +427,48 @@ public class PDFManager {
      *******************************************************************************************************/
     private PdfPageLabels addAllPages(PdfPageSize pagesizemode, PdfWriter writer, Document pdfdoc, Watermark myWatermark)
             throws ImageInterpreterException, IOException, MalformedURLException, PDFManagerException, ImageManagerException {
+        Map<Integer, Future<PreparedPage>> preparedPages = new HashMap<Integer, Future<PreparedPage>>();
+        try {
+            return addAllPages(pagesizemode, writer, pdfdoc, myWatermark, preparedPages);
+        } finally {
+            // pages not written anymore because of an error
+            for (Future<PreparedPage> preparation : preparedPages.values()) {
+                preparation.cancel(false);
+            }
+        }
+    }
+
+    /******************************************************************************************************
+     * Adds the all pages. While a page is written, the images of the next pages (up to the configured look-ahead) are prepared by the page
+     * preparation pool; the pages are still written in their order.
+     * 
+     * @param pagesizemode {@link PdfPageSize}
+     * @param writer {@link PdfWriter}
+     * @param pdfdoc {@link Document}
+     * @param preparedPages {@link Map} with the pages in preparation by page number
+     * @return {@link PdfPageLabels}
+     * 
+     * @throws ImageInterpreterException the image interpreter exception
+     * @throws IOException Signals that an I/O exception has occurred.
+     * @throws MalformedURLException the malformed url exception
+     * @throws PDFManagerException the PDF manager exception
+     * @throws ImageManagerException
+     *******************************************************************************************************/
+    private PdfPageLabels addAllPages(PdfPageSize pagesizemode, PdfWriter writer, Document pdfdoc, Watermark myWatermark,
+            Map<Integer, Future<PreparedPage>> preparedPages) throws ImageInterpreterException, IOException, MalformedURLException,
+            PDFManagerException, ImageManagerException {
 
         PdfPageLabels pagelabels = new PdfPageLabels();
         int pageadded = 0;
 
         // sort the HashMap by the KeySet (pagenumber)
         Map<Integer, UrlImage> sortedMap = new TreeMap<Integer, UrlImage>(imageURLs);
+        List<Integer> pageKeys = new ArrayList<Integer>(sortedMap.keySet());
+
+        ExecutorService preparationPool = getPagePreparationPool();
+        int lookAhead = ContentServerConfiguration.getInstance().getPdfPageLookAhead();
+        int nextPreparation = 0; // index of the next page to prepare in the background
+        int pageIndex = 0;
 
         float scalefactor = 1; // scaling factor of the image
         int page_w = PaperSize.A4.width;
@@ -407,13 +476,19 @@ public class PDFManager {
         LOGGER.debug("iterate over " + imageURLs.size() + " pages.");
         for (Integer imageKey : sortedMap.keySet()) {
 
+            // prepare the following pages in the background, this page is prepared here if it isn't already
+            if (preparationPool != null) {
+                nextPreparation = Math.max(nextPreparation, pageIndex + 1);
+                for (; (nextPreparation < pageKeys.size()) && (nextPreparation <= pageIndex + lookAhead); nextPreparation++) {
+                    submitPagePreparation(preparationPool, pageKeys.get(nextPreparation), myWatermark, preparedPages);
+                }
+            }
+            pageIndex++;
+
             Watermark watermark = myWatermark;
             Image pdfImage = null; // PDF-Image
             LOGGER.debug("Writing page " + imageKey);
 
-            boolean errorPage = false; // true if the image does not exists
-            URL errorUrl = null; // url of the image that does not exists
-
             // ------------------------------------------------------------------------------------------------
             // Title page available. Render it in pdftitlepage
             // ------------------------------------------------------------------------------------------------
@@ -447,27 +522,15 @@ public class PDFManager {
                 // pdf hack
                 if (ContentServerConfiguration.getInstance().getUsePdf()) {
                     LOGGER.debug("trying to find original pdf");
-                    PdfContentByte pdfcb = null;
-                    PdfReader pdfreader = null;
-                    PdfImportedPage importpage = null;
-                    try {
-                        String pdfpath = ContentServerConfiguration.getInstance().getRepositoryPathPdf().replace("file:///", "");
-                        LOGGER.debug("looking in " + pdfpath + " for pdf file");
-                        String tiffPath = ContentServerConfiguration.getInstance().getRepositoryPathImages().replace("file:///", "");
-                        // String urlString = url.toString();
-                        int pageNumber = pdfpage.getPageNumber();
-                        // UrlImage copy = new PDFPage(pdfpage);
-                        URL pdfurl =
-                                new URL(url.toString().replace(tiffPath, pdfpath).replace(url.toString().substring(url.toString().lastIndexOf(".")),
-                                        ".pdf"));
-                        LOGGER.debug("pdfurl = " + pdfurl);
-
-                        if (new File(pdfurl.toURI()).exists()) {
-                            LOGGER.debug("found pdf " + pdfurl.toURI());
-                            // copy.setURL(pdfurl);
-                            pdfcb = writer.getDirectContent();
+                    URL pdfurl = getOriginalPdfUrl(url);
+                    if (pdfurl != null) {
+                        PdfReader pdfreader = null;
+                        try {
+                            LOGGER.debug("found pdf " + pdfurl);
+                            int pageNumber = pdfpage.getPageNumber();
+                            PdfContentByte pdfcb = writer.getDirectContent();
                             pdfreader = new PdfReader(pdfurl);
-                            importpage = writer.getImportedPage(pdfreader, pageNumber);
+                            PdfImportedPage importpage = writer.getImportedPage(pdfreader, pageNumber);
 
                             LOGGER.debug("creating orig pdf page");
                             Rectangle rect = pdfreader.getPageSize(pageNumber);
@@ -481,192 +544,27 @@ public class PDFManager {
                             pdfcb.addTemplate(importpage, 0, 0);
                             added = true;
                             LOGGER.debug("page:" + imageKey + "  url: " + pdfurl.toString());
-
-                        }
-                    } catch (URISyntaxException e) {
-                        LOGGER.debug(e);
-                        added = false;
-                    } finally {
-                        if (writer != null) {
-                            writer.freeReader(pdfreader);
-                            writer.flush();
-                        }
-                        if (pdfreader != null) {
-                            pdfreader.close();
+                        } finally {
+                            if (writer != null) {
+                                writer.freeReader(pdfreader);
+                                writer.flush();
+                            }
+                            if (pdfreader != null) {
+                                pdfreader.close();
+                            }
                         }
                     }
                 }
                 if (!added) {
                     // image file
                     LOGGER.debug("using image to create pdf page");
-                    // try to get ImageInterpreter from url
-                    ImageInterpreter myInterpreter =
-                            ImageFileFormat.getInterpreter(url, httpproxyhost, httpproxyport, httpproxyuser, httpproxypassword);
-
-                    try {
-                        // check preferred compression type depending on color depth
-                        Embedd preferredEmbeddingType = Embedd.ORIGBYTESTREAM;
-                        if (myInterpreter.getColordepth() == 1) {
-                            // bitonal image
-                            preferredEmbeddingType = embeddBitonalImage;
-                        } else if ((myInterpreter.getColordepth() > 1) && (myInterpreter.getSamplesperpixel() == 1)) {
-                            // greyscale image
-                            preferredEmbeddingType = embeddGreyscaleImage;
-                        } else {
-                            // color image
-                            preferredEmbeddingType = embeddColorImage;
-                        }
-
-                        // -------------------------------------------------------------------------------------
-                        // Try to generate image
-                        // -------------------------------------------------------------------------------------
-                        pdfImage = generatePdfImageFromInterpreter(myInterpreter, preferredEmbeddingType, errorPage, watermark, errorUrl);
-
-                        // -------------------------------------------------------------------------------------
-                        // image couldn't be embedded yet (emergencyCase)
-                        // -------------------------------------------------------------------------------------
-                        if (pdfImage == null) {
-                            LOGGER.warn("Couldn't use preferred method for embedding the image. Instead had to use JPEG or RenderedImage");
-
-                            // Get Interpreter and rendered Image
-                            // ---------------------------------------------------------------------------------------------------------------------------------
-                            RenderedImage ri = null;
-                            if (preferredEmbeddingType == embeddBitonalImage) {
-                                ImageManager sourcemanager = new ImageManager(url);
-                                boolean watermarkscale = ContentServerConfiguration.getInstance().getScaleWatermark(); // should we scale
-                                // the watermark ?
-                                ri =
-                                        sourcemanager.scaleImageByPixel(3000, 0, ImageManager.SCALE_BY_WIDTH, 0, null, null, watermark,
-                                                watermarkscale, ImageManager.BOTTOM);
-                                myInterpreter = sourcemanager.getMyInterpreter();
-                            } else {
-                                ri = myInterpreter.getRenderedImage();
-                                if (watermark != null) {
-                                    ri = addwatermark(ri, watermark, 2);
-                                    myInterpreter.setHeight(myInterpreter.getHeight() + watermark.getRenderedImage().getHeight());
-                                }
-                            }
-
-                            // scale rendered image
-                            // ---------------------------------------------------------------------------------------------------------------------------------
-                            // float scalefactorX = 1;
-                            // float scalefactorY = 1;
-                            // switch (pagesizemode) {
-                            // case ORIGINAL:
-                            // scalefactorX = 72f / myInterpreter.getXResolution();
-                            // scalefactorY = 72f / myInterpreter.getYResolution();
-                            // break;
-                            // default:
-                            // /*
-                            // * check, if the image needs to be scaled, because
-                            // * it's bigger than A4 calculate the new scalefactor
-                            // */
-                            // float page_w_pixel = (float) (page_w *
-                            // myInterpreter.getXResolution() / 25.4);
-                            // float page_h_pixel = (float) (page_h *
-                            // myInterpreter.getYResolution() / 25.4);
-                            //
-                            // float res_x = myInterpreter.getXResolution();
-                            // float res_y = myInterpreter.getYResolution();
-                            //
-                            // long w = myInterpreter.getWidth(); // get height and
-                            // // width
-                            // long h = myInterpreter.getHeight();
-                            //
-                            // if ((w > page_w_pixel) || (h > page_h_pixel)) {
-                            // LOGGER.debug("scale image to fit the page");
-                            // float scalefactor_w = page_w_pixel / w;
-                            // float scalefactor_h = page_h_pixel / h;
-                            // if (scalefactor_h < scalefactor_w) {
-                            // scalefactor = scalefactor_h;
-                            // } else {
-                            // scalefactor = scalefactor_w;
-                            // }
-                            // w = (long) (w * scalefactor);
-                            // h = (long) (h * scalefactor);
-                            // }
-                            // scalefactorX = (72f / res_x) * scalefactor;
-                            // scalefactorY = (72f / res_y) * scalefactor;
-                            // break;
-                            // }
-                            // //scalefactorX = 0.2f;
-                            // //scalefactorY = 0.2f;
-                            // if (preferredEmbeddingType == embeddBitonalImage) {
-                            // ImageManager sourcemanager = new ImageManager(url);
-                            // ri = sourcemanager.scaleImageByPixel((int)
-                            // (scalefactorX*100), (int) (scalefactorY*100),
-                            // ImageManager.SCALE_BY_PERCENT, 0, null, null,
-                            // watermark, true, ImageManager.BOTTOM);
-                            // }else{
-                            // ri = ImageManipulator.scaleInterpolationBilinear(ri,
-                            // scalefactorX, scalefactorY);
-                            // }
-                            // myInterpreter.setHeight(ri.getHeight());
-                            // myInterpreter.setWidth(ri.getWidth());
-                            // scaled = true;
-
-                            // add Watermark
-                            // ---------------------------------------------------------------------------------------------------------------------------------
-                            // ri = addwatermark(ri, watermark,
-                            // ImageManager.BOTTOM);
-                            // myInterpreter.setHeight(myInterpreter.getHeight() +
-                            // watermark.getRenderedImage().getHeight());
-
-                            // Try to write into pdfImage
-                            // ---------------------------------------------------------------------------------------------------------------------------------
-                            if (myInterpreter.getColordepth() > 1) {
-                                // compress image if greyscale or color
-                                ByteArrayOutputStream bytesoutputstream = new ByteArrayOutputStream();
-                                // JpegInterpreter jpint = new JpegInterpreter(ri);
-                                // jpint.setXResolution(myInterpreter.getXResolution());
-                                // jpint.setYResolution(myInterpreter.getYResolution());
-                                // jpint.writeToStream(null, bytesoutputstream);
-                                LOGGER.error("WritingJPEGImage");
-                                writeJpegFromRenderedImageToStream(bytesoutputstream, ri, null, myInterpreter);
-                                byte[] returnbyteArray = bytesoutputstream.toByteArray();
-                                if (bytesoutputstream != null) {
-                                    bytesoutputstream.flush();
-                                    bytesoutputstream.close();
-                                }
-                                pdfImage = Image.getInstance(returnbyteArray);
-                                returnbyteArray = null;
-                            } else {
-                                // its bitonal, but can't be embedded directly,
-                                // need to go via RenderedImage
-                                BufferedImage buffImage = ImageManipulator.fromRenderedToBuffered(ri);
-                                pdfImage = Image.getInstance(buffImage, null, false);
-                                if (myWatermark != null) {
-                                    // create Image for Watermark
-                                    JpegInterpreter jpint = new JpegInterpreter(myWatermark.getRenderedImage());
-                                    ByteArrayOutputStream bytesoutputstream = new ByteArrayOutputStream();
-                                    jpint.setXResolution(myInterpreter.getXResolution());
-                                    jpint.setYResolution(myInterpreter.getYResolution());
-                                    jpint.writeToStream(null, bytesoutputstream);
-                                    byte[] returnbyteArray = bytesoutputstream.toByteArray();
-                                    jpint.clear();
-                                    if (bytesoutputstream != null) {
-                                        bytesoutputstream.flush();
-                                        bytesoutputstream.close();
-                                    }
-                                    Image blaImage = Image.getInstance(returnbyteArray);
-                                    returnbyteArray = null;
-                                    // set Watermark as Footer at fixed position
-                                    // (200,200)
-                                    Chunk c = new Chunk(blaImage, 200, 200);
-                                    Phrase p = new Phrase(c);
-                                    HeaderFooter hf = new HeaderFooter(p, false);
-                                    pdfdoc.setFooter(hf);
-                                }
-                                // pdfdoc.setPageSize(arg0)
-                                // TODO das scheint nicht zu funktionieren... sollte
-                                // dieser Code entfernt werden?
-
-                            }
-                        } // end of : if (pdfImage == null) {
-                    } catch (BadElementException e) {
-                        throw new PDFManagerException("Can't create a PDFImage from a Buffered Image.", e);
-                    } catch (ImageManipulatorException e) {
-                        LOGGER.warn(e);
+                    // take the page prepared in the background or prepare it now
+                    Future<PreparedPage> preparation = preparedPages.remove(imageKey);
+                    PreparedPage preparedPage = preparation != null ? getPreparedPage(preparation) : preparePage(url, watermark);
+                    pdfImage = preparedPage.pdfImage;
+                    ImageInterpreter myInterpreter = preparedPage.interpreter;
+                    if (preparedPage.footer != null) {
+                        pdfdoc.setFooter(preparedPage.footer);
                     }
 
                     // ---------------------------------------------------------------------------------------------------------
@@ -900,6 +798,314 @@ public class PDFManager {
 
     }
 
+
+    /***************************************************************************************************************
+     * Returns the pool preparing page images in the background, or null if pages should be prepared one after the other while writing.
+     * 
+     * @return {@link ExecutorService} or null
+     ***************************************************************************************************************/
+    private static synchronized ExecutorService getPagePreparationPool() {
+        final int threads = ContentServerConfiguration.getInstance().getPdfPageThreads();
+        if ((threads < 1) || (ContentServerConfiguration.getInstance().getPdfPageLookAhead() < 1)) {
+            return null;
+        }
+        if (pagePreparationPool == null) {
+            pagePreparationPool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "pdf-page-preparation-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            LOGGER.debug("created pool with " + threads + " threads for pdf page preparation");
+        }
+        return pagePreparationPool;
+    }
+
+    /***************************************************************************************************************
+     * Starts preparing the image of a page in the background, unless the page isn't made from an image.
+     * 
+     * @param pool {@link ExecutorService} to prepare the page
+     * @param imageKey page number
+     * @param watermark {@link Watermark} or null
+     * @param preparedPages {@link Map} to store the preparation
+     * @throws MalformedURLException
+     ***************************************************************************************************************/
+    private void submitPagePreparation(ExecutorService pool, Integer imageKey, final Watermark watermark,
+            Map<Integer, Future<PreparedPage>> preparedPages) throws MalformedURLException {
+        final URL url = imageURLs.get(imageKey).getURL();
+        if ((url == null) || (ContentServerConfiguration.getInstance().getUsePdf() && (getOriginalPdfUrl(url) != null))) {
+            return;
+        }
+        preparedPages.put(imageKey, pool.submit(new Callable<PreparedPage>() {
+            @Override
+            public PreparedPage call() throws Exception {
+                return preparePage(url, watermark);
+            }
+        }));
+    }
+
+    /***************************************************************************************************************
+     * Waits for a page prepared in the background.
+     * 
+     * @param preparation {@link Future} of the page
+     * @return {@link PreparedPage}
+     * 
+     * @throws ImageInterpreterException
+     * @throws IOException
+     * @throws PDFManagerException
+     * @throws ImageManagerException
+     ***************************************************************************************************************/
+    private PreparedPage getPreparedPage(Future<PreparedPage> preparation) throws ImageInterpreterException, IOException, PDFManagerException,
+            ImageManagerException {
+        try {
+            return preparation.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PDFManagerException("Interrupted while waiting for page image", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ImageInterpreterException) {
+                throw (ImageInterpreterException) cause;
+            } else if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof PDFManagerException) {
+                throw (PDFManagerException) cause;
+            } else if (cause instanceof ImageManagerException) {
+                throw (ImageManagerException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new PDFManagerException("Error while preparing page image", cause);
+        }
+    }
+
+    /***************************************************************************************************************
+     * Finds the original pdf file of an image in the pdf repository.
+     * 
+     * @param url {@link URL} of the image
+     * @return {@link URL} of the pdf file or null, if there is none
+     * @throws MalformedURLException
+     ***************************************************************************************************************/
+    private URL getOriginalPdfUrl(URL url) throws MalformedURLException {
+        String pdfpath = ContentServerConfiguration.getInstance().getRepositoryPathPdf().replace("file:///", "");
+        LOGGER.debug("looking in " + pdfpath + " for pdf file");
+        String tiffPath = ContentServerConfiguration.getInstance().getRepositoryPathImages().replace("file:///", "");
+        URL pdfurl =
+                new URL(url.toString().replace(tiffPath, pdfpath).replace(url.toString().substring(url.toString().lastIndexOf(".")), ".pdf"));
+        LOGGER.debug("pdfurl = " + pdfurl);
+        try {
+            if (new File(pdfurl.toURI()).exists()) {
+                return pdfurl;
+            }
+        } catch (URISyntaxException e) {
+            LOGGER.debug(e);
+        }
+        return null;
+    }
+
+    /***************************************************************************************************************
+     * Reads the image of a page and generates the {@link Image} that is embedded in the PDF. Doesn't touch the PDF document, so it can run in
+     * a worker thread while earlier pages are written.
+     * 
+     * @param url {@link URL} of the image
+     * @param watermark {@link Watermark} or null
+     * @return {@link PreparedPage}
+     * 
+     * @throws ImageInterpreterException
+     * @throws IOException
+     * @throws PDFManagerException
+     * @throws ImageManagerException
+     ***************************************************************************************************************/
+    private PreparedPage preparePage(URL url, Watermark watermark) throws ImageInterpreterException, IOException, PDFManagerException,
+            ImageManagerException {
+        Image pdfImage = null; // PDF-Image
+        HeaderFooter footer = null;
+        boolean errorPage = false; // true if the image does not exists
+        URL errorUrl = null; // url of the image that does not exists
+
+        // try to get ImageInterpreter from url
+        ImageInterpreter myInterpreter = ImageFileFormat.getInterpreter(url, httpproxyhost, httpproxyport, httpproxyuser, httpproxypassword);
+
+        try {
+            // check preferred compression type depending on color depth
+            Embedd preferredEmbeddingType = Embedd.ORIGBYTESTREAM;
+            if (myInterpreter.getColordepth() == 1) {
+                // bitonal image
+                preferredEmbeddingType = embeddBitonalImage;
+            } else if ((myInterpreter.getColordepth() > 1) && (myInterpreter.getSamplesperpixel() == 1)) {
+                // greyscale image
+                preferredEmbeddingType = embeddGreyscaleImage;
+            } else {
+                // color image
+                preferredEmbeddingType = embeddColorImage;
+            }
+
+            // -------------------------------------------------------------------------------------
+            // Try to generate image
+            // -------------------------------------------------------------------------------------
+            pdfImage = generatePdfImageFromInterpreter(myInterpreter, preferredEmbeddingType, errorPage, watermark, errorUrl);
+
+            // -------------------------------------------------------------------------------------
+            // image couldn't be embedded yet (emergencyCase)
+            // -------------------------------------------------------------------------------------
+            if (pdfImage == null) {
+                LOGGER.warn("Couldn't use preferred method for embedding the image. Instead had to use JPEG or RenderedImage");
+
+                // Get Interpreter and rendered Image
+                // ---------------------------------------------------------------------------------------------------------------------------------
+                RenderedImage ri = null;
+                if (preferredEmbeddingType == embeddBitonalImage) {
+                    ImageManager sourcemanager = new ImageManager(url);
+                    boolean watermarkscale = ContentServerConfiguration.getInstance().getScaleWatermark(); // should we scale
+                    // the watermark ?
+                    // the watermark is shared by all pages and resized for each of them
+                    synchronized (watermark != null ? watermark : sourcemanager) {
+                        ri =
+                                sourcemanager.scaleImageByPixel(3000, 0, ImageManager.SCALE_BY_WIDTH, 0, null, null, watermark,
+                                        watermarkscale, ImageManager.BOTTOM);
+                    }
+                    myInterpreter = sourcemanager.getMyInterpreter();
+                } else {
+                    ri = myInterpreter.getRenderedImage();
+                    if (watermark != null) {
+                        int height = ri.getHeight();
+                        ri = addwatermark(ri, watermark, 2);
+                        myInterpreter.setHeight(myInterpreter.getHeight() + ri.getHeight() - height);
+                    }
+                }
+
+                // scale rendered image
+                // ---------------------------------------------------------------------------------------------------------------------------------
+                // float scalefactorX = 1;
+                // float scalefactorY = 1;
+                // switch (pagesizemode) {
+                // case ORIGINAL:
+                // scalefactorX = 72f / myInterpreter.getXResolution();
+                // scalefactorY = 72f / myInterpreter.getYResolution();
+                // break;
+                // default:
+                // /*
+                // * check, if the image needs to be scaled, because
+                // * it's bigger than A4 calculate the new scalefactor
+                // */
+                // float page_w_pixel = (float) (page_w *
+                // myInterpreter.getXResolution() / 25.4);
+                // float page_h_pixel = (float) (page_h *
+                // myInterpreter.getYResolution() / 25.4);
+                //
+                // float res_x = myInterpreter.getXResolution();
+                // float res_y = myInterpreter.getYResolution();
+                //
+                // long w = myInterpreter.getWidth(); // get height and
+                // // width
+                // long h = myInterpreter.getHeight();
+                //
+                // if ((w > page_w_pixel) || (h > page_h_pixel)) {
+                // LOGGER.debug("scale image to fit the page");
+                // float scalefactor_w = page_w_pixel / w;
+                // float scalefactor_h = page_h_pixel / h;
+                // if (scalefactor_h < scalefactor_w) {
+                // scalefactor = scalefactor_h;
+                // } else {
+                // scalefactor = scalefactor_w;
+                // }
+                // w = (long) (w * scalefactor);
+                // h = (long) (h * scalefactor);
+                // }
+                // scalefactorX = (72f / res_x) * scalefactor;
+                // scalefactorY = (72f / res_y) * scalefactor;
+                // break;
+                // }
+                // //scalefactorX = 0.2f;
+                // //scalefactorY = 0.2f;
+                // if (preferredEmbeddingType == embeddBitonalImage) {
+                // ImageManager sourcemanager = new ImageManager(url);
+                // ri = sourcemanager.scaleImageByPixel((int)
+                // (scalefactorX*100), (int) (scalefactorY*100),
+                // ImageManager.SCALE_BY_PERCENT, 0, null, null,
+                // watermark, true, ImageManager.BOTTOM);
+                // }else{
+                // ri = ImageManipulator.scaleInterpolationBilinear(ri,
+                // scalefactorX, scalefactorY);
+                // }
+                // myInterpreter.setHeight(ri.getHeight());
+                // myInterpreter.setWidth(ri.getWidth());
+                // scaled = true;
+
+                // add Watermark
+                // ---------------------------------------------------------------------------------------------------------------------------------
+                // ri = addwatermark(ri, watermark,
+                // ImageManager.BOTTOM);
+                // myInterpreter.setHeight(myInterpreter.getHeight() +
+                // watermark.getRenderedImage().getHeight());
+
+                // Try to write into pdfImage
+                // ---------------------------------------------------------------------------------------------------------------------------------
+                if (myInterpreter.getColordepth() > 1) {
+                    // compress image if greyscale or color
+                    ByteArrayOutputStream bytesoutputstream = new ByteArrayOutputStream();
+                    // JpegInterpreter jpint = new JpegInterpreter(ri);
+                    // jpint.setXResolution(myInterpreter.getXResolution());
+                    // jpint.setYResolution(myInterpreter.getYResolution());
+                    // jpint.writeToStream(null, bytesoutputstream);
+                    LOGGER.error("WritingJPEGImage");
+                    writeJpegFromRenderedImageToStream(bytesoutputstream, ri, null, myInterpreter);
+                    byte[] returnbyteArray = bytesoutputstream.toByteArray();
+                    if (bytesoutputstream != null) {
+                        bytesoutputstream.flush();
+                        bytesoutputstream.close();
+                    }
+                    pdfImage = Image.getInstance(returnbyteArray);
+                    returnbyteArray = null;
+                } else {
+                    // its bitonal, but can't be embedded directly,
+                    // need to go via RenderedImage
+                    BufferedImage buffImage = ImageManipulator.fromRenderedToBuffered(ri);
+                    pdfImage = Image.getInstance(buffImage, null, false);
+                    if (watermark != null) {
+                        // create Image for Watermark
+                        JpegInterpreter jpint = null;
+                        synchronized (watermark) {
+                            jpint = new JpegInterpreter(watermark.getRenderedImage());
+                        }
+                        ByteArrayOutputStream bytesoutputstream = new ByteArrayOutputStream();
+                        jpint.setXResolution(myInterpreter.getXResolution());
+                        jpint.setYResolution(myInterpreter.getYResolution());
+                        jpint.writeToStream(null, bytesoutputstream);
+                        byte[] returnbyteArray = bytesoutputstream.toByteArray();
+                        jpint.clear();
+                        if (bytesoutputstream != null) {
+                            bytesoutputstream.flush();
+                            bytesoutputstream.close();
+                        }
+                        Image blaImage = Image.getInstance(returnbyteArray);
+                        returnbyteArray = null;
+                        // set Watermark as Footer at fixed position
+                        // (200,200)
+                        Chunk c = new Chunk(blaImage, 200, 200);
+                        Phrase p = new Phrase(c);
+                        footer = new HeaderFooter(p, false);
+                    }
+                    // pdfdoc.setPageSize(arg0)
+                    // TODO das scheint nicht zu funktionieren... sollte
+                    // dieser Code entfernt werden?
+
+                }
+            } // end of : if (pdfImage == null) {
+        } catch (BadElementException e) {
+            throw new PDFManagerException("Can't create a PDFImage from a Buffered Image.", e);
+        } catch (ImageManipulatorException e) {
+            LOGGER.warn(e);
+        }
+        return new PreparedPage(pdfImage, myInterpreter, footer);
+    }
+
     /***************************************************************************************************************
      * Writes JPEG to outputstream from {@link RenderedImage}. This method is used by
      * {@link PDFManager#generatePdfImageFromInterpreter(ImageInterpreter, Embedd, boolean, Watermark, URL)}
@@ -985,8 +1191,9 @@ public class PDFManager {
                     myInterpreter.setHeight(myInterpreter.getHeight() + watermark.getRenderedImage().getHeight());
                 } else if (watermark != null) {
                     try {
+                        int height = ri.getHeight();
                         ri = addwatermark(ri, watermark, 2);
-                        myInterpreter.setHeight(myInterpreter.getHeight() + watermark.getRenderedImage().getHeight());
+                        myInterpreter.setHeight(myInterpreter.getHeight() + ri.getHeight() - height);
                     } catch (NullPointerException e) {
                         throw new PDFManagerException("Error while loading watermark");
                     }
@@ -1073,14 +1280,16 @@ public class PDFManager {
         RenderedImage watermarkRi = null;
         // int orginalSize = outImage.getHeight();
         if (inWatermark != null) {
-            // watermark is get as big as image
-            if ((watermarkposition == ImageManager.TOP) || (watermarkposition == ImageManager.BOTTOM)) {
-                inWatermark.overrideWidth(outImage.getWidth());
-            } else {
-                inWatermark.overrideHeight(outImage.getHeight());
-            }
+            // watermark is get as big as image; pages may be prepared in parallel, so resizing and rendering must not interleave
+            synchronized (inWatermark) {
+                if ((watermarkposition == ImageManager.TOP) || (watermarkposition == ImageManager.BOTTOM)) {
+                    inWatermark.overrideWidth(outImage.getWidth());
+                } else {
+                    inWatermark.overrideHeight(outImage.getHeight());
+                }
 
-            watermarkRi = inWatermark.getRenderedImage();
+                watermarkRi = inWatermark.getRenderedImage();
+            }
 
             LOGGER.debug("Watermark size is: " + watermarkRi.getWidth() + " / " + watermarkRi.getHeight());
 
@@ -1123,9 +1332,7 @@ public class PDFManager {
             LOGGER.debug("PDFWriter intstantiated");
 
             // register Fonts
-            int numoffonts = FontFactory.registerDirectories();
-
-            LOGGER.debug(numoffonts + " fonts found and registered!");
+            registerFonts();
 
             if ((pdfa) && (iccprofile != null)) {
                 // we want to write PDFA, we have to set the PDFX conformance
@@ -1230,22 +1437,9 @@ public class PDFManager {
 
                 if (pdfpage.getURL() != null) {
                     // it's an image file
-                    URL url = pdfpage.getURL();
                     LOGGER.debug("Using image" + pdfpage.getURL().toString());
-                    ImageInterpreter myInterpreter =
-                            ImageFileFormat.getInterpreter(url, httpproxyhost, httpproxyport, httpproxyuser, httpproxypassword);
-
-                    float xres = myInterpreter.getXResolution();
-                    float yres = myInterpreter.getYResolution();
-
-                    int height = myInterpreter.getHeight();
-                    int width = myInterpreter.getWidth();
-
-                    int image_w_points = (width * 72) / ((int) xres);
-                    int image_h_points = (height * 72) / ((int) yres);
-
-                    pagesize = new Rectangle(image_w_points, image_h_points); // set
-                    // a retangle in the size of the image
+                    // set a retangle in the size of the image; the image itself is read later for its page
+                    pagesize = getImageSizeInPoints(pdfpage.getURL());
                     break; // get out of loop
                 } else if (pdfpage.getClass() == PDFPage.class && ((PDFPage) pdfpage).getPdfreader() != null) {
                     // a pdf page, not an image file
@@ -1282,6 +1476,43 @@ public class PDFManager {
         return pdfdoc;
     }
 
+    /***************************************************************************************************************
+     * Calculates the size of an image in points reading only the header of the image, not the image data. If the header can't be read, the
+     * {@link ImageInterpreter} is used.
+     * 
+     * @param url {@link URL} of the image
+     * @return {@link Rectangle} in the size of the image
+     * @throws ImageInterpreterException
+     * @throws IOException
+     ***************************************************************************************************************/
+    private Rectangle getImageSizeInPoints(URL url) throws ImageInterpreterException, IOException {
+        try {
+            ImageInfo info = ImageFileFormat.getImageInfo(url, httpproxyhost, httpproxyport, httpproxyuser, httpproxypassword);
+            return new Rectangle(info.getWidth() * 72f / info.getXResolution(), info.getHeight() * 72f / info.getYResolution());
+        } catch (ImageInterpreterException e) {
+            LOGGER.debug("Can't read image header of " + url + ", reading image instead", e);
+        }
+
+        ImageInterpreter myInterpreter = ImageFileFormat.getInterpreter(url, httpproxyhost, httpproxyport, httpproxyuser, httpproxypassword);
+        Rectangle rect =
+                new Rectangle(myInterpreter.getWidth() * 72f / myInterpreter.getXResolution(), myInterpreter.getHeight() * 72f
+                        / myInterpreter.getYResolution());
+        myInterpreter.clear();
+        return rect;
+    }
+
+    /***************************************************************************************************************
+     * Registers the fonts of the system directories for iText; searching the directories takes a while, so this is only done for the first
+     * PDF.
+     ***************************************************************************************************************/
+    private static synchronized void registerFonts() {
+        if (!fontsRegistered) {
+            int numoffonts = FontFactory.registerDirectories();
+            LOGGER.debug(numoffonts + " fonts found and registered!");
+            fontsRegistered = true;
+        }
+    }
+
     /**
      * ************************************************************************* Sets all the bookmarks which have the same page name for this page.
      * Te hierachical relationships between bookmarks are recognized
@@ -37,11 +37,16 @@ import javax.servlet.http.HttpServletResponse;
 
 import net.sf.ehcache.Cache;
 import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.config.CacheConfiguration;
+import net.sf.ehcache.config.Configuration;
+import net.sf.ehcache.config.ConfigurationFactory;
+import net.sf.ehcache.config.MemoryUnit;
 
 import org.apache.log4j.Logger;
 import org.goobi.presentation.contentservlet.controller.ContentCache;
 
 import de.unigoettingen.sub.commons.contentlib.exceptions.CacheException;
+import de.unigoettingen.sub.commons.contentlib.exceptions.RenderQueueFullException;
 import de.unigoettingen.sub.commons.contentlib.servlet.Util;
 import de.unigoettingen.sub.commons.contentlib.servlet.model.ContentServerConfiguration;
 
@@ -66,7 +71,6 @@ public class ContentServer extends HttpServlet {
     @Override
     public void init() throws ServletException {
         super.init();
-        ContentServerConfiguration config = ContentServerConfiguration.getInstance();
 
         try {
             /* initialize ContentCache only, if set in configuration */
@@ -79,16 +83,24 @@ public class ContentServer extends HttpServlet {
             // if (config.getThumbnailCacheUse()) {
             // thumbnailcache = new ContentCache(config.getThumbnailCachePath(), config.getThumbnailCacheSize());
             // }
-            if (config.getPdfCacheUse()) {
-                pdfCache = new ContentCache(config.getPdfCachePath(), config.getPdfCacheSize());
-            }
+            /* all servlets share one pdf cache, temporary files of an interrupted server are only deleted when it is created */
+            getPdfCache();
         } catch (CacheException e) {
             throw new ServletException("ContentCache for GoobiContentServer can not be initialized", e);
         }
+        try {
+            /* open the content and thumbnail cache now, persistent caches load their disk index here */
+            getManager();
+        } catch (net.sf.ehcache.CacheException e) {
+            LOGGER.error("content and thumbnail cache can not be initialized", e);
+        }
         actions = new HashMap<String, Class<? extends Action>>();
         actions.put("image", GetImageAction.class);
         actions.put("pdf", GetPdfAction.class);
         actions.put("cachecheck", CacheCheckAction.class);
+        actions.put("tile", GetTileAction.class);
+        actions.put("renderstatus", RenderStatusAction.class);
+        actions.put("thumbnails", GetThumbnailBatchAction.class);
     }
 
     @Override
@@ -105,7 +117,7 @@ public class ContentServer extends HttpServlet {
         } catch (CacheException e) {
             LOGGER.error(e);
         }
-        getManager().shutdown();
+        shutdownManager();
     }
 
     /************************************************************************************
@@ -118,12 +130,7 @@ public class ContentServer extends HttpServlet {
         /*
          * -------------------------------- check action-Parameter if empty execute echo-action --------------------------------
          */
-        String actionString = request.getParameter("action");
-        if (actionString == null || actionString.equals("")) {
-            actionString = "echo";
-        } else {
-            actionString = actionString.toLowerCase().trim();
-        }
+        String actionString = getActionString(request);
         LOGGER.debug("actionString is:" + actionString);
 
         /*-------------------------------- 
@@ -152,8 +159,19 @@ public class ContentServer extends HttpServlet {
          * execute action method
          * --------------------------------*/
         try {
-            /* run the action */
+            /* run the action, it waits for a free render slot itself if it has to render something */
             action.run(getServletContext(), request, response);
+        } catch (RenderQueueFullException e) {
+            /* the render queue of the action is full, the client should try again later */
+            LOGGER.debug(e.getMessage());
+            if (!response.isCommitted()) {
+                try {
+                    response.setHeader("Retry-After", String.valueOf(ContentServerConfiguration.getInstance().getRenderQueueRetryAfter()));
+                    response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, e.getMessage());
+                } catch (IOException e2) {
+                    LOGGER.error("An error occured", e2);
+                }
+            }
         } catch (Exception e) {
             /* if an error occurs log stacktrace and forward error message */
             LOGGER.error("An error occured", e);
@@ -175,6 +193,20 @@ public class ContentServer extends HttpServlet {
         LOGGER.debug("Contentserver end");
     }
 
+    /************************************************************************************
+     * get the name of the action to execute from the action parameter, if the parameter is empty the echo action is used
+     * 
+     * @param request {@link HttpServletRequest} of ServletRequest
+     * @return name of the action
+     ************************************************************************************/
+    protected String getActionString(HttpServletRequest request) {
+        String actionString = request.getParameter("action");
+        if (actionString == null || actionString.equals("")) {
+            return "echo";
+        }
+        return actionString.toLowerCase().trim();
+    }
+
     /************************************************************************************
      * post-method for contentserver requests, simply forwards request to get method
      ************************************************************************************/
@@ -210,11 +242,12 @@ public class ContentServer extends HttpServlet {
     // }
     //
     /**
+     * get the pdf cache, it is created once for all servlets on first use
      * 
-     * @return
+     * @return the pdf cache or null if it isn't used
      * @throws CacheException
      */
-    public static ContentCache getPdfCache() throws CacheException {
+    public static synchronized ContentCache getPdfCache() throws CacheException {
         if (pdfCache == null && ContentServerConfiguration.getInstance().getPdfCacheUse()) {
             pdfCache =
                     new ContentCache(ContentServerConfiguration.getInstance().getPdfCachePath(), ContentServerConfiguration.getInstance()
@@ -241,15 +274,73 @@ public class ContentServer extends HttpServlet {
         return getManager().getCache("thumbnails");
     }
 
-    private static CacheManager getManager() {
+    private static synchronized CacheManager getManager() {
         if (cacheManager == null) {
             File file = new File(Util.getBaseFolderAsFile(), "ehcache.xml");
             // cacheManager = new CacheManager(file.getAbsolutePath());
-            cacheManager = CacheManager.create(file.getAbsolutePath());
+            Configuration cacheConfig = ConfigurationFactory.parseConfiguration(file);
+            ContentServerConfiguration config = ContentServerConfiguration.getInstance();
+            configureCache(cacheConfig.getCacheConfigurations().get("content"), config.getContentCacheHeapSize(), config
+                    .getContentCacheOffHeapSize(), config.getContentCacheSize(), config.getContentCachePersistent());
+            configureCache(cacheConfig.getCacheConfigurations().get("thumbnails"), config.getThumbnailCacheHeapSize(), config
+                    .getThumbnailCacheOffHeapSize(), config.getThumbnailCacheSize(), config.getThumbnailCachePersistent());
+            cacheManager = CacheManager.create(cacheConfig);
         }
         return cacheManager;
     }
 
+    /************************************************************************************
+     * shut down the cache manager; persistent caches write their disk index, so that the cached images are available after a restart
+     ************************************************************************************/
+    private static synchronized void shutdownManager() {
+        if (cacheManager != null) {
+            cacheManager.shutdown();
+            cacheManager = null;
+        }
+    }
+
+    /************************************************************************************
+     * override the sizes of a cache from ehcache.xml with the sizes from the content server configuration; sizes are in MB, sizes of 0 keep
+     * the values of ehcache.xml
+     * 
+     * @param cacheConfig configuration of the cache, nothing is done if it is null
+     * @param heapSize maximum memory on the heap
+     * @param offHeapSize maximum memory off the heap
+     * @param diskSize maximum space on disk
+     * @param persistent true if the cache should overflow to disk and keep its entries on disk when the server is stopped; if false, the cache
+     *            doesn't keep its entries and only overflows to disk if a disk size is given
+     ************************************************************************************/
+    private static void configureCache(CacheConfiguration cacheConfig, long heapSize, long offHeapSize, long diskSize, boolean persistent) {
+        if (cacheConfig == null) {
+            return;
+        }
+        // sizes can be given in entries or in bytes, not in both
+        if (heapSize > 0) {
+            cacheConfig.setMaxEntriesLocalHeap(0);
+            cacheConfig.maxBytesLocalHeap(heapSize, MemoryUnit.MEGABYTES);
+        }
+        if (offHeapSize > 0) {
+            cacheConfig.overflowToOffHeap(true);
+            cacheConfig.maxBytesLocalOffHeap(offHeapSize, MemoryUnit.MEGABYTES);
+        }
+        if (persistent) {
+            cacheConfig.overflowToDisk(true);
+            cacheConfig.diskPersistent(true);
+        } else {
+            cacheConfig.diskPersistent(false);
+            if (diskSize <= 0) {
+                cacheConfig.overflowToDisk(false);
+            }
+        }
+        if (diskSize > 0 && cacheConfig.isOverflowToDisk()) {
+            cacheConfig.setMaxEntriesLocalDisk(0);
+            cacheConfig.maxBytesLocalDisk(diskSize, MemoryUnit.MEGABYTES);
+        }
+        LOGGER.debug("cache " + cacheConfig.getName() + ": heap " + cacheConfig.getMaxBytesLocalHeapAsString() + ", off-heap "
+                + cacheConfig.getMaxBytesLocalOffHeapAsString() + ", disk " + cacheConfig.getMaxBytesLocalDiskAsString() + ", persistent "
+                + cacheConfig.isDiskPersistent());
+    }
+
     // /**
     // *
     // * @return
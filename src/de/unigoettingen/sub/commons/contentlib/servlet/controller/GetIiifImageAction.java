@@ -0,0 +1,539 @@
+/*
+ * This file is part of the ContentServer project.
+ * Visit the websites for more information. 
+ * 		- http://gdz.sub.uni-goettingen.de 
+ * 		- http://www.intranda.com 
+ * 		- http://www.digiverso.com
+ * 
+ * Copyright 2009, Center for Retrospective Digitization, Göttingen (GDZ),
+ * intranda software
+ *
+ * This is the extended version updated by intranda
+ * Copyright 2012, intranda GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.unigoettingen.sub.commons.contentlib.servlet.controller;
+
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.image.RenderedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import javax.servlet.ServletContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.Element;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+
+import de.unigoettingen.sub.commons.contentlib.exceptions.CacheException;
+import de.unigoettingen.sub.commons.contentlib.exceptions.ContentLibException;
+import de.unigoettingen.sub.commons.contentlib.imagelib.ImageFileFormat;
+import de.unigoettingen.sub.commons.contentlib.imagelib.ImageHolder;
+import de.unigoettingen.sub.commons.contentlib.imagelib.ImageInfo;
+import de.unigoettingen.sub.commons.contentlib.imagelib.ImageInterpreter;
+import de.unigoettingen.sub.commons.contentlib.imagelib.ImageManager;
+import de.unigoettingen.sub.commons.contentlib.servlet.model.ContentServerConfiguration;
+import de.unigoettingen.sub.commons.util.CacheObject;
+
+/************************************************************************************
+ * Image action for requests following the IIIF Image API 2.1, the image parameters are taken from the request path:
+ * 
+ * {identifier}/{region}/{size}/{rotation}/{quality}.{format} or {identifier}/info.json
+ * 
+ * The identifier is the path of the image relative to the image repository. Regions are decoded without decoding the whole image, the rendered
+ * images are cached in the content cache and sent with a strong ETag. Mirroring and the qualities gray and bitonal are not supported.
+ * 
+ * @version 17.10.2026
+ ************************************************************************************/
+public class GetIiifImageAction extends GetImageAction {
+    private static final Logger LOGGER = Logger.getLogger(GetIiifImageAction.class);
+
+    private static final String IIIF_CONTEXT = "http://iiif.io/api/image/2/context.json";
+    private static final String IIIF_PROTOCOL = "http://iiif.io/api/image";
+    private static final String IIIF_PROFILE = "http://iiif.io/api/image/2/level1.json";
+
+    private static final String DECIMAL = "\\d+(\\.\\d+)?";
+    private static final Pattern REGION_PATTERN = Pattern.compile("full|square|\\d+,\\d+,\\d+,\\d+|pct:" + DECIMAL + "," + DECIMAL + "," + DECIMAL
+            + "," + DECIMAL);
+    private static final Pattern SIZE_PATTERN = Pattern.compile("full|max|\\d+,|,\\d+|pct:" + DECIMAL + "|!?\\d+,\\d+");
+    private static final Pattern ROTATION_PATTERN = Pattern.compile("!?" + DECIMAL);
+    private static final Pattern QUALITY_PATTERN = Pattern.compile("default|color|gray|bitonal");
+
+    /************************************************************************************
+     * parse the IIIF request path and send the image or the image information
+     * 
+     * @param request {@link HttpServletRequest} of ServletRequest
+     * @param response {@link HttpServletResponse} for writing to response output stream
+     * @throws IOException
+     * @throws URISyntaxException
+     * @throws ContentLibException
+     ************************************************************************************/
+    @Override
+    public void run(ServletContext servletContext, HttpServletRequest request, HttpServletResponse response) throws IOException, URISyntaxException,
+            ContentLibException {
+        ContentServerConfiguration config = ContentServerConfiguration.getInstance();
+        if (config.getRepositoryPathImages() == null) {
+            throw new IllegalArgumentException("no repository url for images defined");
+        }
+        response.setHeader("Access-Control-Allow-Origin", "*");
+
+        List<String> segments = getPathSegments(request);
+        if (segments.size() >= 2 && segments.get(segments.size() - 1).equals("info.json")) {
+            String identifier = StringUtils.join(segments.subList(0, segments.size() - 1), "/");
+            if (!isValidIdentifier(identifier)) {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST, "invalid identifier: " + identifier);
+                return;
+            }
+            writeInfo(request, response, identifier, config);
+            return;
+        }
+
+        /*
+         * -------------------------------- parse and check the parameters --------------------------------
+         */
+        Map<String, String[]> params;
+        try {
+            params = parseImageRequest(segments);
+        } catch (IllegalArgumentException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        }
+        if (params.get("rotation")[0].startsWith("!") || !params.get("quality")[0].equals("default")
+                && !params.get("quality")[0].equals("color")) {
+            response.sendError(HttpServletResponse.SC_NOT_IMPLEMENTED, "mirroring and the qualities gray and bitonal are not supported");
+            return;
+        }
+        String targetExtension = params.get("format")[0];
+        ImageFileFormat targetFormat = getSupportedFormat(targetExtension);
+        if (targetFormat == null) {
+            response.sendError(HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE, "format not supported: " + targetExtension);
+            return;
+        }
+        URI sourceImageUrl = getSourceImageUrl(params.get("sourcepath")[0], config);
+        /* the modification date of the source is part of the key, images cached before the source was replaced are not used anymore */
+        String cacheKey = getContentCacheIdForParamMap(params, config) + "_" + getLastModified(sourceImageUrl) + "." + targetExtension;
+
+        /*
+         * -------------------------------- strong ETag from the cache key, it contains the modification date of the source -------------------
+         */
+        String etag = "\"" + DigestUtils.md5Hex(cacheKey) + "\"";
+        response.setHeader("ETag", etag);
+        if (matchesETag(request.getHeader("If-None-Match"), etag)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        /*
+         * -------------------------------- send image from cache or render it --------------------------------
+         */
+        Cache cc = null;
+        if (config.getContentCacheUse()) {
+            try {
+                cc = ContentServer.getContentCache();
+            } catch (CacheException e) {
+                LOGGER.error("CacheException", e);
+            }
+        }
+        CacheObject co = null;
+        if (cc != null) {
+            Element cached = cc.get(cacheKey);
+            if (cached != null) {
+                LOGGER.debug("get file from cache: " + cacheKey);
+                co = (CacheObject) cached.getObjectValue();
+            }
+        }
+        try {
+            if (co == null && cc != null) {
+                ImageHolder image = renderToCache(params, sourceImageUrl, targetFormat, cacheKey, cc, true, config);
+                co = new CacheObject(image.getImage(), targetFormat.getMimeType());
+            } else if (co == null) {
+                ImageInterpreter wi = renderImage(params, sourceImageUrl, targetFormat, config);
+                ByteArrayOutputStream data = new ByteArrayOutputStream();
+                wi.writeToStream(null, data);
+                wi.clear();
+                co = new CacheObject(data.toByteArray(), targetFormat.getMimeType());
+            }
+        } catch (IllegalArgumentException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        }
+        writeCachedImage(request, response, co, targetExtension, config);
+    }
+
+    /************************************************************************************
+     * the cache id contains the id of the image for deleting all cached images of a work and the IIIF parameters
+     ************************************************************************************/
+    @Override
+    protected String getContentCacheIdForParamMap(Map<String, String[]> params, ContentServerConfiguration inConfig) {
+        Map<String, String[]> imageParams = new HashMap<String, String[]>();
+        imageParams.put("sourcepath", params.get("sourcepath"));
+        StringBuilder cacheId = new StringBuilder(super.getContentCacheIdForParamMap(imageParams, inConfig));
+        cacheId.append("_iiif_");
+        cacheId.append(params.get("region")[0]);
+        cacheId.append("_");
+        cacheId.append(params.get("size")[0]);
+        cacheId.append("_");
+        cacheId.append(params.get("rotation")[0]);
+        cacheId.append("_");
+        cacheId.append(params.get("quality")[0]);
+        return cacheId.toString();
+    }
+
+    /************************************************************************************
+     * read the requested region of the source image, scale and rotate it
+     * 
+     * @param params the IIIF parameters
+     * @param sourceImageUrl {@link URI} of the source image
+     * @param targetFormat the {@link ImageFileFormat} to render
+     * @param config current internal {@link ContentServerConfiguration} objekt
+     * @return {@link ImageInterpreter} of the target format holding the rendered image
+     * @throws IOException
+     * @throws URISyntaxException
+     * @throws ContentLibException
+     ************************************************************************************/
+    @Override
+    protected ImageInterpreter renderImage(Map<String, String[]> params, URI sourceImageUrl, ImageFileFormat targetFormat,
+            ContentServerConfiguration config) throws IOException, URISyntaxException, ContentLibException {
+        ImageManager sourcemanager = new ImageManager(sourceImageUrl.toURL());
+        int imageWidth = sourcemanager.getMyInterpreter().getWidth();
+        int imageHeight = sourcemanager.getMyInterpreter().getHeight();
+
+        Rectangle region = getRegion(params.get("region")[0], imageWidth, imageHeight);
+        Dimension size = getSize(params.get("size")[0], region.width, region.height);
+        size = limitSize(size, config.getIiifMaxWidth(), config.getIiifMaxHeight(), config.getIiifMaxArea());
+        int angle = Math.round(Float.parseFloat(params.get("rotation")[0])) % 360;
+        LOGGER.debug("IIIF request for " + sourceImageUrl + ": region " + region + ", size " + size.width + " x " + size.height + ", rotation "
+                + angle);
+
+        if (region.x == 0 && region.y == 0 && region.width == imageWidth && region.height == imageHeight) {
+            region = null;
+        }
+        RenderedImage targetImage =
+                sourcemanager.scaleImageByPixel(region, size.width, size.height, ImageManager.SCALE_BY_WIDTH, angle, null, null,
+                        createWatermark(params, config), config.getScaleWatermark(), ImageManager.BOTTOM);
+        return createTargetInterpreter(targetImage, params, targetFormat, config);
+    }
+
+    /************************************************************************************
+     * send the IIIF image information of an image as json
+     * 
+     * @param request {@link HttpServletRequest} of ServletRequest
+     * @param response {@link HttpServletResponse} for writing to response output stream
+     * @param identifier the identifier of the image
+     * @param config current internal {@link ContentServerConfiguration} objekt
+     * @throws IOException
+     * @throws URISyntaxException
+     * @throws ContentLibException
+     ************************************************************************************/
+    private void writeInfo(HttpServletRequest request, HttpServletResponse response, String identifier, ContentServerConfiguration config)
+            throws IOException, URISyntaxException, ContentLibException {
+        URI sourceImageUrl = getSourceImageUrl(identifier, config);
+        ImageInfo info = ImageFileFormat.getImageInfo(sourceImageUrl.toURL());
+        int width = info.getWidth();
+        int height = info.getHeight();
+
+        String id = request.getRequestURL().toString();
+        id = id.substring(0, id.length() - "/info.json".length());
+        int tileSize = config.getTileSize();
+
+        StringBuilder json = new StringBuilder();
+        json.append("{\"@context\":\"").append(IIIF_CONTEXT).append("\",");
+        json.append("\"@id\":\"").append(escapeJson(id)).append("\",");
+        json.append("\"protocol\":\"").append(IIIF_PROTOCOL).append("\",");
+        json.append("\"width\":").append(width).append(",");
+        json.append("\"height\":").append(height).append(",");
+        json.append("\"tiles\":[{\"width\":").append(tileSize).append(",\"scaleFactors\":[1");
+        for (int factor = 2; Math.max(width, height) > tileSize * factor / 2; factor *= 2) {
+            json.append(",").append(factor);
+        }
+        json.append("]}],");
+        json.append("\"profile\":[\"").append(IIIF_PROFILE).append("\",{\"formats\":[\"jpg\",\"png\",\"tif\",\"jp2\"],");
+        json.append("\"qualities\":[\"default\",\"color\"]");
+        if (config.getIiifMaxWidth() > 0) {
+            json.append(",\"maxWidth\":").append(config.getIiifMaxWidth());
+        }
+        if (config.getIiifMaxHeight() > 0) {
+            json.append(",\"maxHeight\":").append(config.getIiifMaxHeight());
+        }
+        if (config.getIiifMaxArea() > 0) {
+            json.append(",\"maxArea\":").append(config.getIiifMaxArea());
+        }
+        json.append("}]}");
+
+        byte[] data = json.toString().getBytes("UTF-8");
+        response.setContentType("application/json;charset=UTF-8");
+        response.setContentLength(data.length);
+        ServletOutputStream output = response.getOutputStream();
+        output.write(data);
+        output.flush();
+        output.close();
+    }
+
+    /************************************************************************************
+     * get the url of the source image for an identifier; the identifier is decoded, so it is encoded again as path relative to the image
+     * repository
+     ************************************************************************************/
+    private static URI getSourceImageUrl(String identifier, ContentServerConfiguration config) throws URISyntaxException {
+        return new URI(config.getRepositoryPathImages() + new URI(null, null, identifier, null).getRawPath());
+    }
+
+    /************************************************************************************
+     * split the path of the request behind the servlet path into percent decoded segments; the path info of the servlet can't be used, because
+     * encoded slashes inside the identifier are already decoded there. Segments are decoded as path, a plus sign is no space there.
+     ************************************************************************************/
+    private List<String> getPathSegments(HttpServletRequest request) throws IOException {
+        String path = request.getRequestURI().substring(request.getContextPath().length() + request.getServletPath().length());
+        List<String> segments = new ArrayList<String>();
+        for (String segment : path.split("/")) {
+            if (segment.length() > 0) {
+                for (String part : URLDecoder.decode(segment.replace("+", "%2B"), "UTF-8").split("/")) {
+                    segments.add(part);
+                }
+            }
+        }
+        return segments;
+    }
+
+    /************************************************************************************
+     * convert the segments of an image request into a parameter map, throws IllegalArgumentException if a parameter is not valid
+     * 
+     * @param segments the url decoded segments of the request path
+     * @return the parameters sourcepath, region, size, rotation, quality and format
+     * @throws IllegalArgumentException
+     ************************************************************************************/
+    private Map<String, String[]> parseImageRequest(List<String> segments) throws IllegalArgumentException {
+        if (segments.size() < 5) {
+            throw new IllegalArgumentException("request must have the form {identifier}/{region}/{size}/{rotation}/{quality}.{format}");
+        }
+        int count = segments.size();
+        String identifier = StringUtils.join(segments.subList(0, count - 4), "/");
+        String region = segments.get(count - 4);
+        String size = segments.get(count - 3);
+        String rotation = segments.get(count - 2);
+        String qualityAndFormat = segments.get(count - 1);
+        int dot = qualityAndFormat.lastIndexOf('.');
+        if (dot < 0) {
+            throw new IllegalArgumentException("no format defined: " + qualityAndFormat);
+        }
+        String quality = qualityAndFormat.substring(0, dot);
+        String format = qualityAndFormat.substring(dot + 1);
+
+        if (!isValidIdentifier(identifier)) {
+            throw new IllegalArgumentException("invalid identifier: " + identifier);
+        }
+        if (!REGION_PATTERN.matcher(region).matches()) {
+            throw new IllegalArgumentException("invalid region: " + region);
+        }
+        if (!SIZE_PATTERN.matcher(size).matches()) {
+            throw new IllegalArgumentException("invalid size: " + size);
+        }
+        if (!ROTATION_PATTERN.matcher(rotation).matches() || Float.parseFloat(rotation.replace("!", "")) > 360) {
+            throw new IllegalArgumentException("invalid rotation: " + rotation);
+        }
+        if (!QUALITY_PATTERN.matcher(quality).matches()) {
+            throw new IllegalArgumentException("invalid quality: " + quality);
+        }
+
+        Map<String, String[]> params = new HashMap<String, String[]>();
+        params.put("sourcepath", new String[] { identifier });
+        params.put("region", new String[] { region });
+        params.put("size", new String[] { size });
+        params.put("rotation", new String[] { rotation });
+        params.put("quality", new String[] { quality });
+        params.put("format", new String[] { format });
+        return params;
+    }
+
+    /************************************************************************************
+     * the identifier must be a path inside the image repository
+     ************************************************************************************/
+    private boolean isValidIdentifier(String identifier) {
+        if (StringUtils.isBlank(identifier) || identifier.contains(":")) {
+            return false;
+        }
+        for (String part : identifier.split("/")) {
+            if (part.equals("..")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /************************************************************************************
+     * calculate the region of the source image in pixel, throws IllegalArgumentException if the region is outside of the image
+     * 
+     * @param region the IIIF region parameter
+     * @param imageWidth width of the source image
+     * @param imageHeight height of the source image
+     * @return the region
+     ************************************************************************************/
+    static Rectangle getRegion(String region, int imageWidth, int imageHeight) throws IllegalArgumentException {
+        Rectangle image = new Rectangle(0, 0, imageWidth, imageHeight);
+        if (region.equals("full")) {
+            return image;
+        }
+        if (region.equals("square")) {
+            int side = Math.min(imageWidth, imageHeight);
+            return new Rectangle((imageWidth - side) / 2, (imageHeight - side) / 2, side, side);
+        }
+        Rectangle result;
+        if (region.startsWith("pct:")) {
+            String[] values = region.substring(4).split(",");
+            int x = (int) Math.round(Double.parseDouble(values[0]) * imageWidth / 100);
+            int y = (int) Math.round(Double.parseDouble(values[1]) * imageHeight / 100);
+            int w = (int) Math.round(Double.parseDouble(values[2]) * imageWidth / 100);
+            int h = (int) Math.round(Double.parseDouble(values[3]) * imageHeight / 100);
+            result = new Rectangle(x, y, w, h);
+        } else {
+            String[] values = region.split(",");
+            result =
+                    new Rectangle(Integer.parseInt(values[0]), Integer.parseInt(values[1]), Integer.parseInt(values[2]), Integer
+                            .parseInt(values[3]));
+        }
+        result = result.intersection(image);
+        if (result.isEmpty()) {
+            throw new IllegalArgumentException("region " + region + " is outside of the image");
+        }
+        return result;
+    }
+
+    /************************************************************************************
+     * calculate the size of the target image in pixel, throws IllegalArgumentException if the size is zero
+     * 
+     * @param size the IIIF size parameter
+     * @param regionWidth width of the requested region
+     * @param regionHeight height of the requested region
+     * @return the size of the target image
+     ************************************************************************************/
+    static Dimension getSize(String size, int regionWidth, int regionHeight) throws IllegalArgumentException {
+        int width;
+        int height;
+        if (size.equals("full") || size.equals("max")) {
+            width = regionWidth;
+            height = regionHeight;
+        } else if (size.startsWith("pct:")) {
+            double percent = Double.parseDouble(size.substring(4));
+            width = (int) Math.round(regionWidth * percent / 100);
+            height = (int) Math.round(regionHeight * percent / 100);
+        } else if (size.startsWith(",")) {
+            height = Integer.parseInt(size.substring(1));
+            width = (int) Math.round((double) regionWidth * height / regionHeight);
+        } else if (size.endsWith(",")) {
+            width = Integer.parseInt(size.substring(0, size.length() - 1));
+            height = (int) Math.round((double) regionHeight * width / regionWidth);
+        } else if (size.startsWith("!")) {
+            String[] values = size.substring(1).split(",");
+            double scale =
+                    Math.min(Double.parseDouble(values[0]) / regionWidth, Double.parseDouble(values[1]) / regionHeight);
+            width = (int) Math.round(regionWidth * scale);
+            height = (int) Math.round(regionHeight * scale);
+        } else {
+            String[] values = size.split(",");
+            width = Integer.parseInt(values[0]);
+            height = Integer.parseInt(values[1]);
+        }
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("size " + size + " results in an empty image");
+        }
+        return new Dimension(width, height);
+    }
+
+    /************************************************************************************
+     * scale the size of the target image down to the configured limits keeping the aspect ratio, a limit of 0 is ignored
+     * 
+     * @param size the requested size of the target image
+     * @param maxWidth maximum width in pixel
+     * @param maxHeight maximum height in pixel
+     * @param maxArea maximum number of pixels
+     * @return the size of the target image inside the limits
+     ************************************************************************************/
+    static Dimension limitSize(Dimension size, int maxWidth, int maxHeight, long maxArea) {
+        double scale = 1;
+        if (maxWidth > 0) {
+            scale = Math.min(scale, (double) maxWidth / size.width);
+        }
+        if (maxHeight > 0) {
+            scale = Math.min(scale, (double) maxHeight / size.height);
+        }
+        if (maxArea > 0) {
+            scale = Math.min(scale, Math.sqrt((double) maxArea / ((long) size.width * size.height)));
+        }
+        if (scale >= 1) {
+            return size;
+        }
+        return new Dimension(Math.max(1, (int) Math.floor(size.width * scale)), Math.max(1, (int) Math.floor(size.height * scale)));
+    }
+
+    /************************************************************************************
+     * get the supported {@link ImageFileFormat} for a IIIF format, null if the format is not supported
+     ************************************************************************************/
+    private static ImageFileFormat getSupportedFormat(String format) {
+        for (ImageFileFormat iff : ImageFileFormat.values()) {
+            if (iff.getFileExtension().equals(format)) {
+                return iff;
+            }
+        }
+        return null;
+    }
+
+    /************************************************************************************
+     * get modification date of a source image in the file system, 0 for other sources
+     ************************************************************************************/
+    private static long getLastModified(URI sourceImageUrl) {
+        if ("file".equals(sourceImageUrl.getScheme())) {
+            return new File(sourceImageUrl).lastModified();
+        }
+        return 0;
+    }
+
+    /************************************************************************************
+     * check if the If-None-Match header of the request contains the ETag
+     ************************************************************************************/
+    private static boolean matchesETag(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            String value = candidate.trim();
+            if (value.equals("*") || value.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /************************************************************************************
+     * escape quotes and backslashes for a json string
+     ************************************************************************************/
+    private static String escapeJson(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+}
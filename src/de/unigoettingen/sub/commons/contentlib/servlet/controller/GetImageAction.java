@@ -27,10 +27,12 @@ package de.unigoettingen.sub.commons.contentlib.servlet.controller;
 
 import java.awt.Color;
 import java.awt.image.RenderedImage;
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.net.URI;
@@ -38,6 +40,8 @@ import java.net.URISyntaxException;
 import java.net.URLEncoder;
 import java.util.LinkedList;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
@@ -48,6 +52,9 @@ import javax.servlet.http.HttpServletResponse;
 import net.sf.ehcache.Cache;
 import net.sf.ehcache.Element;
 
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.DeferredFileOutputStream;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.text.StrTokenizer;
 import org.apache.log4j.Logger;
@@ -58,6 +65,7 @@ import de.unigoettingen.sub.commons.contentlib.exceptions.ContentLibPdfException
 import de.unigoettingen.sub.commons.contentlib.exceptions.ImageInterpreterException;
 import de.unigoettingen.sub.commons.contentlib.exceptions.ImageManagerException;
 import de.unigoettingen.sub.commons.contentlib.exceptions.ImageManipulatorException;
+import de.unigoettingen.sub.commons.contentlib.exceptions.RenderQueueFullException;
 import de.unigoettingen.sub.commons.contentlib.exceptions.WatermarkException;
 import de.unigoettingen.sub.commons.contentlib.imagelib.ContentLibUtil;
 import de.unigoettingen.sub.commons.contentlib.imagelib.ImageFileFormat;
@@ -67,6 +75,7 @@ import de.unigoettingen.sub.commons.contentlib.imagelib.ImageManager;
 import de.unigoettingen.sub.commons.contentlib.imagelib.Watermark;
 import de.unigoettingen.sub.commons.contentlib.servlet.model.ContentServerConfiguration;
 import de.unigoettingen.sub.commons.util.CacheObject;
+import de.unigoettingen.sub.commons.util.InFlightRegistry;
 
 /************************************************************************************
  * Image action for all kinds of image handlings first of all validate all request parameters, and than interprete all request parameters for correct
@@ -81,6 +90,9 @@ import de.unigoettingen.sub.commons.util.CacheObject;
 public class GetImageAction extends AbstractGetAction {
     private static final Logger LOGGER = Logger.getLogger(GetImageAction.class);
 
+    /* renders currently running, shared by all requests for the same cache key */
+    private static final InFlightRegistry<ImageHolder> RUNNING_RENDERS = new InFlightRegistry<ImageHolder>();
+
     /************************************************************************************
      * exectute all image actions (rotation, scaling etc.) and send image back to output stream of the servlet, after setting correct mime type
      * 
@@ -103,6 +115,8 @@ public class GetImageAction extends AbstractGetAction {
         /*
          * -------------------------------- get central configuration --------------------------------
          */
+        @SuppressWarnings("unchecked")
+        Map<String, String[]> params = request.getParameterMap();
         URI sourceImageUrl = null;
         ContentServerConfiguration config = ContentServerConfiguration.getInstance();
         if (!request.getParameter("sourcepath").startsWith("file:") && !request.getParameter("sourcepath").startsWith("http:")) {
@@ -110,17 +124,18 @@ public class GetImageAction extends AbstractGetAction {
         } else {
             sourceImageUrl = new URI(request.getParameter("sourcepath"));
         }
+        sourceImageUrl = getPageUrl(sourceImageUrl, params);
 
         try {
             Cache cc = null;
             ServletOutputStream output = response.getOutputStream();
-            if (request.getParameter("thumbnail") != null) {
+            if (isThumbnailRequest(params)) {
                 cc = ContentServer.getThumbnailCache();
             } else {
                 cc = ContentServer.getContentCache();
             }
             // String myUniqueID = getContentCacheIdForRequest(request, config);
-            String myUniqueID = getContentCacheIdForParamMap(request.getParameterMap(), config);
+            String myUniqueID = getContentCacheIdForParamMap(params, config);
             String targetExtension = request.getParameter("format");
 
             boolean ignoreCache = false;
@@ -130,12 +145,12 @@ public class GetImageAction extends AbstractGetAction {
                 ignoreCache = Boolean.parseBoolean(ignore);
             }
             boolean useCache = false;
-            if (request.getParameter("thumbnail") != null) {
+            if (isThumbnailRequest(params)) {
                 useCache = config.getThumbnailCacheUse();
             } else {
                 useCache = config.getContentCacheUse();
             }
-            if (request.getParameterMap().containsKey("highlight")) {
+            if (params.containsKey("highlight")) {
                 useCache = false;
             }
             if (cc == null || !useCache) {
@@ -144,26 +159,17 @@ public class GetImageAction extends AbstractGetAction {
                 LOGGER.debug("cache deactivated via configuration");
             }
 
-            if (!ignoreCache && cc.isKeyInCache(myUniqueID + "." + targetExtension)) {
-                LOGGER.debug("get file from cache: " + myUniqueID + "." + targetExtension);
-                CacheObject co;
-                try {
-                    co = (CacheObject) cc.get(myUniqueID + "." + targetExtension).getObjectValue();
-                    ByteArrayInputStream in = new ByteArrayInputStream(co.getData());
-
-                    byte[] buf = new byte[1024];
-                    int len;
-                    while ((len = in.read(buf)) > 0) {
-                        output.write(buf, 0, len);
-                    }
-                    in.close();
-                    output.flush();
-                    output.close();
-                    return;
-                } catch (NullPointerException e) {
-                    LOGGER.debug("element not in cache anymore: " + myUniqueID + "." + targetExtension);
+            CacheObject co = null;
+            if (!ignoreCache) {
+                Element cached = cc.get(myUniqueID + "." + targetExtension);
+                if (cached != null) {
+                    co = (CacheObject) cached.getObjectValue();
                 }
-
+            }
+            if (co != null) {
+                LOGGER.debug("get file from cache: " + myUniqueID + "." + targetExtension);
+                writeCachedImage(request, response, co, targetExtension, config);
+                return;
             } else if (!ignoreCache) {
                 LOGGER.debug("file not found in cache: " + myUniqueID + "." + targetExtension);
             }
@@ -188,167 +194,43 @@ public class GetImageAction extends AbstractGetAction {
             // }
             LOGGER.debug("source image:" + sourceImageUrl);
 
-            /*
-             * -------------------------------- retrieve source image from url --------------------------------
-             */
-            ImageManager sourcemanager = new ImageManager(sourceImageUrl.toURL());
-            LOGGER.trace("imageManager initialized");
-
-            /*
-             * -------------------------------- set the defaults --------------------------------
-             */
-            int angle = 0;
-            int scaleX = 100;
-            int scaleY = 100;
-            int scaleType = ImageManager.SCALE_BY_PERCENT;
-            LinkedList<String> highlightCoordinateList = null;
-            Color highlightColor = null;
-            Watermark myWatermark = null;
-            LOGGER.trace("Variables set");
-
-            /*
-             * -------------------------------- rotate --------------------------------
-             */
-            if (request.getParameterMap().containsKey("rotate")) {
-                angle = Integer.parseInt(request.getParameter("rotate"));
-                LOGGER.trace("rotate image:" + angle);
-            }
-
-            /*
-             * -------------------------------- scale: scale the image to some percent value --------------------------------
-             */
-            if (request.getParameterMap().containsKey("scale")) {
-                scaleX = Integer.parseInt(request.getParameter("scale"));
-                scaleY = scaleX;
-                scaleType = ImageManager.SCALE_BY_PERCENT;
-                LOGGER.trace("scale image to percent:" + scaleX);
-            }
-
-            if (request.getParameterMap().containsKey("width") && request.getParameterMap().containsKey("height")) {
-                scaleX = Integer.parseInt(request.getParameter("width"));
-                scaleY = Integer.parseInt(request.getParameter("height"));
-                scaleType = ImageManager.SCALE_TO_BOX;
-            }
-
-            /*
-             * -------------------------------- width: scale image to fixed width --------------------------------
-             */
-            else if (request.getParameterMap().containsKey("width")) {
-                scaleX = Integer.parseInt(request.getParameter("width"));
-                scaleY = 0;
-                scaleType = ImageManager.SCALE_BY_WIDTH;
-                LOGGER.trace("scale image to width:" + scaleX);
-            }
-
-            /*
-             * -------------------------------- height: scale image to fixed height --------------------------------
-             */
-            else if (request.getParameterMap().containsKey("height")) {
-                scaleY = Integer.parseInt(request.getParameter("height"));
-                scaleX = 0;
-                scaleType = ImageManager.SCALE_BY_HEIGHT;
-                LOGGER.trace("scale image to height:" + scaleY);
-            }
-
-            /*
-             * -------------------------------- highlight --------------------------------
-             */
-            if (request.getParameterMap().containsKey("highlight")) {
-                highlightCoordinateList = new LinkedList<String>();
-                String highlight = request.getParameter("highlight");
-                StrTokenizer areas = new StrTokenizer(highlight, "$");
-                for (String area : areas.getTokenArray()) {
-                    StrTokenizer coordinates = new StrTokenizer(area, ",");
-                    highlightCoordinateList.add(coordinates.getContent());
-                }
-                highlightColor = config.getDefaultHighlightColor();
-            }
-
-            /*
-             * -------------------------------- insert watermark, if it should be used --------------------------------
-             */
-            if (!request.getParameterMap().containsKey("ignoreWatermark") && config.getWatermarkUse()) {
-                File watermarkfile = new File(new URI(config.getWatermarkConfigFilePath()));
-                myWatermark = Watermark.generateWatermark(request, watermarkfile);
-            }
-
-            /*
-             * -------------------------------- prepare target --------------------------------
-             */
-            // change to true if watermark should scale
-            RenderedImage targetImage = null;
-            if (config.getScaleWatermark()) {
-                targetImage =
-                        sourcemanager.scaleImageByPixel(scaleX, scaleY, scaleType, angle, highlightCoordinateList, highlightColor, myWatermark, true,
-                                ImageManager.BOTTOM);
-            } else {
-                targetImage =
-                        sourcemanager.scaleImageByPixel(scaleX, scaleY, scaleType, angle, highlightCoordinateList, highlightColor, myWatermark,
-                                false, ImageManager.BOTTOM);
-            }
-            LOGGER.trace("Creating ImageInterpreter");
             ImageFileFormat targetFormat = ImageFileFormat.getImageFileFormatFromFileExtension(targetExtension);
-            ImageInterpreter wi = targetFormat.getInterpreter(targetImage); // read file
-            LOGGER.trace("Image stored in " + wi.getClass().toString());
-            /*
-             * -------------------------------- set file name and attachment header from parameter or from configuration
-             * --------------------------------
-             */
-            LOGGER.trace("Creating target file");
-            StringBuilder targetFileName = new StringBuilder();
-            if (config.getSendImageAsAttachment()) {
-                targetFileName.append("attachment; ");
-            }
-            targetFileName.append("filename=");
-
-            if (request.getParameter("targetFileName") != null) {
-                targetFileName.append(request.getParameter("targetFileName"));
-            } else {
-                String filename = ContentLibUtil.getCustomizedFileName(config.getDefaultFileNameImages(), "." + targetFormat.getFileExtension());
-                targetFileName.append(filename);
-            }
-            LOGGER.trace("Adding targetFile " + targetFileName.toString() + " to response");
-            response.setHeader("Content-Disposition", targetFileName.toString());
-            response.setContentType(targetFormat.getMimeType());
-
-            /*
-             * -------------------------------- resolution --------------------------------
-             */
-            LOGGER.trace("Setting image resolution values");
-            if (request.getParameter("resolution") != null) {
-                wi.setXResolution(Float.parseFloat(request.getParameter("resolution")));
-                wi.setYResolution(Float.parseFloat(request.getParameter("resolution")));
+            if (cc != null) {
+                /*
+                 * -------------------------------- render the image only once for concurrent requests and send the result --------------------------------
+                 */
+                setImageResponseHeaders(request, response, targetFormat, config);
+                ImageHolder image =
+                        renderToCache(params, sourceImageUrl, targetFormat, myUniqueID + "." + targetExtension, cc, !ignoreCache, config, output);
+                if (image != null) {
+                    writeCachedImage(request, response, new CacheObject(image.getImage(), targetFormat.getMimeType()), targetExtension, config);
+                } else {
+                    /* too large for the cache, already copied from its spool file into the response */
+                    output.flush();
+                    output.close();
+                }
             } else {
-                wi.setXResolution(config.getDefaultResolution());
-                wi.setYResolution(config.getDefaultResolution());
-            }
-
-            LOGGER.trace("Setting image compression");
-            if (request.getParameter("compression") != null) {
-                String value = request.getParameter("compression");
+                RenderScheduler scheduler = RenderScheduler.acquireSlot(getRenderQueueName(params));
                 try {
-                    int intvalue = Integer.parseInt(value);
-                    wi.setWriterCompressionValue(intvalue);
-                } catch (Exception e) {
-                    LOGGER.trace("value is not a number, use default value");
+                    ImageInterpreter wi = renderImage(params, sourceImageUrl, targetFormat, config);
+                    setImageResponseHeaders(request, response, targetFormat, config);
+
+                    /*
+                     * -------------------------------- write target image to stream --------------------------------
+                     */
+                    LOGGER.trace("writing file to servlet response");
+                    wi.writeToStream(null, output);
+                    LOGGER.trace("Done writing ImageInterpreter to stream");
+                    wi.clear();
+                    LOGGER.trace("Done clearing ImageInterpreter");
+                } finally {
+                    if (scheduler != null) {
+                        scheduler.release();
+                    }
                 }
             }
-
-            /*
-             * -------------------------------- write target image to stream --------------------------------
-             */
-            // cc.put(new Element(myUniqueID + "." + targetExtension, wi.getRenderedImage()));
-
-            if (cc != null) {
-                byte[] data = wi.writeToStreamAndByteArray(output);
-                cc.putIfAbsent(new Element(myUniqueID + "." + targetExtension, new CacheObject(data)));
-            } else {
-                LOGGER.trace("writing file to servlet response");
-                wi.writeToStream(null, output);
-            }
-            LOGGER.trace("Done writing ImageInterpreter to stream");
-            wi.clear();
-            LOGGER.trace("Done clearing ImageInterpreter");
+        } catch (RenderQueueFullException e) {
+            throw e;
         } catch (Exception e) {
             LOGGER.error("CacheException", e);
         }
@@ -364,6 +246,63 @@ public class GetImageAction extends AbstractGetAction {
         // }
     }
 
+    /************************************************************************************
+     * send an image from the content or thumbnail cache to the response, the cached bytes are written in one call and no image processing is done
+     * 
+     * @param request {@link HttpServletRequest} of ServletRequest
+     * @param response {@link HttpServletResponse} for writing to response output stream
+     * @param co the {@link CacheObject} found in the cache
+     * @param targetExtension the requested file extension, used if the cache object does not know its mime type
+     * @param config current internal {@link ContentServerConfiguration} objekt
+     * @throws IOException
+     ************************************************************************************/
+    protected void writeCachedImage(HttpServletRequest request, HttpServletResponse response, CacheObject co, String targetExtension,
+            ContentServerConfiguration config) throws IOException {
+        ImageFileFormat targetFormat = ImageFileFormat.getImageFileFormatFromFileExtension(targetExtension);
+        if (targetFormat == null) {
+            targetFormat = ImageFileFormat.getImageFileFormatFromMimeType(co.getMimeType());
+        }
+        if (targetFormat != null) {
+            setImageResponseHeaders(request, response, targetFormat, config);
+        }
+        if (co.getMimeType() != null) {
+            response.setContentType(co.getMimeType());
+        }
+        byte[] data = co.getData();
+        response.setContentLength(data.length);
+        ServletOutputStream output = response.getOutputStream();
+        output.write(data);
+        output.flush();
+        output.close();
+    }
+
+    /************************************************************************************
+     * set file name, attachment header and mime type of the response from parameter or from configuration
+     * 
+     * @param request {@link HttpServletRequest} of ServletRequest
+     * @param response {@link HttpServletResponse} to set the headers for
+     * @param targetFormat the {@link ImageFileFormat} of the image to send
+     * @param config current internal {@link ContentServerConfiguration} objekt
+     ************************************************************************************/
+    protected void setImageResponseHeaders(HttpServletRequest request, HttpServletResponse response, ImageFileFormat targetFormat,
+            ContentServerConfiguration config) {
+        StringBuilder targetFileName = new StringBuilder();
+        if (config.getSendImageAsAttachment()) {
+            targetFileName.append("attachment; ");
+        }
+        targetFileName.append("filename=");
+
+        if (request.getParameter("targetFileName") != null) {
+            targetFileName.append(request.getParameter("targetFileName"));
+        } else {
+            String filename = ContentLibUtil.getCustomizedFileName(config.getDefaultFileNameImages(), "." + targetFormat.getFileExtension());
+            targetFileName.append(filename);
+        }
+        LOGGER.trace("Adding targetFile " + targetFileName.toString() + " to response");
+        response.setHeader("Content-Disposition", targetFileName.toString());
+        response.setContentType(targetFormat.getMimeType());
+    }
+
     /************************************************************************************
      * validate all parameters of request for image handling, throws IllegalArgumentException if one request parameter is not valid
      * 
@@ -401,6 +340,12 @@ public class GetImageAction extends AbstractGetAction {
             throw new IllegalArgumentException("height is not numeric");
         }
 
+        /* validate page of a multi-page image is a positive number */
+        String page = request.getParameter("page");
+        if (page != null && (!StringUtils.isNumeric(page) || StringUtils.isEmpty(StringUtils.stripStart(page, "0")))) {
+            throw new IllegalArgumentException("page is not a positive number");
+        }
+
         /* validate resolution */
         if (request.getParameter("resolution") != null && !StringUtils.isNumeric(request.getParameter("resolution"))) {
             throw new IllegalArgumentException("resolution is not numeric");
@@ -476,6 +421,65 @@ public class GetImageAction extends AbstractGetAction {
     // return myId;
     // }
 
+    /************************************************************************************
+     * select the page of a multi-page TIFF given by the parameter page, counting from 1, in the url of the source image
+     * 
+     * @param sourceImageUrl the url of the image
+     * @param params the request parameters
+     * @return the url selecting the page, see {@link ImageFileFormat#PAGE_FRAGMENT}
+     * @throws URISyntaxException
+     ************************************************************************************/
+    protected URI getPageUrl(URI sourceImageUrl, Map<String, String[]> params) throws URISyntaxException {
+        int pageIndex = getPageIndex(params);
+        if (pageIndex == 0) {
+            return sourceImageUrl;
+        }
+        return new URI(sourceImageUrl.toString() + "#" + ImageFileFormat.PAGE_FRAGMENT + (pageIndex + 1));
+    }
+
+    /************************************************************************************
+     * get the index of the page of a multi-page TIFF given by the parameter page, which counts from 1
+     * 
+     * @param params the request parameters
+     * @return the index of the page, 0 for the first page or if there is no parameter page
+     * @throws IllegalArgumentException if the page is not a positive number
+     ************************************************************************************/
+    protected static int getPageIndex(Map<String, String[]> params) throws IllegalArgumentException {
+        String[] page = params.get("page");
+        if (page == null || page.length == 0) {
+            return 0;
+        }
+        try {
+            int number = Integer.parseInt(page[0].trim());
+            if (number >= 1) {
+                return number - 1;
+            }
+        } catch (NumberFormatException e) {
+            // handled below
+        }
+        throw new IllegalArgumentException("page is not a positive number: " + page[0]);
+    }
+
+    /************************************************************************************
+     * check if the rendered image belongs into the thumbnail cache instead of the content cache
+     * 
+     * @param params the request parameters
+     * @return true if the request asks for a thumbnail
+     ************************************************************************************/
+    protected boolean isThumbnailRequest(Map<String, String[]> params) {
+        return params.get("thumbnail") != null;
+    }
+
+    /************************************************************************************
+     * get the render queue for the image, thumbnails are rendered in the thumbnail queue
+     * 
+     * @param params the request parameters
+     * @return name of the render queue
+     ************************************************************************************/
+    protected String getRenderQueueName(Map<String, String[]> params) {
+        return isThumbnailRequest(params) ? RenderScheduler.THUMBNAIL : RenderScheduler.IMAGE;
+    }
+
     /**
      * 
      * @param params
@@ -504,7 +508,7 @@ public class GetImageAction extends AbstractGetAction {
                     // if we are not in a subfolder
                     imageNo = sourcePathSplit[sourcePathSplit.length - 1];
                 }
-                if (StringUtils.isNotEmpty(imageNo)) {
+                if (StringUtils.isNotEmpty(imageNo) && imageNo.indexOf('.') >= 0) {
                     imageNo = imageNo.substring(0, imageNo.indexOf('.'));
                 }
             } else if (s.equals("width")) {
@@ -531,6 +535,11 @@ public class GetImageAction extends AbstractGetAction {
         cacheId.append(rotate);
         cacheId.append("_");
         cacheId.append(scale);
+        /* the first page has the same id as single-page images, the page is only added for the following pages */
+        int pageIndex = getPageIndex(params);
+        if (pageIndex > 0) {
+            cacheId.append("_p" + (pageIndex + 1));
+        }
         if (watermarkText != null) {
             try {
                 cacheId.append("_" + URLEncoder.encode(watermarkText, "UTF-8"));
@@ -542,11 +551,13 @@ public class GetImageAction extends AbstractGetAction {
         return cacheId.toString();
     }
 
-    public byte[] getImage(Map<String, String[]> params) throws URISyntaxException, IOException, ImageManagerException {
+    public byte[] getImage(Map<String, String[]> params) throws URISyntaxException, IOException, ImageManagerException,
+            RenderQueueFullException {
         return getImageHolder(params).getImage();
     }
 
-    public ImageHolder getImageHolder(Map<String, String[]> params) throws URISyntaxException, IOException, ImageManagerException {
+    public ImageHolder getImageHolder(Map<String, String[]> params) throws URISyntaxException, IOException, ImageManagerException,
+            RenderQueueFullException {
 
         /*
          * -------------------------------- get central configuration --------------------------------
@@ -560,11 +571,12 @@ public class GetImageAction extends AbstractGetAction {
             String path = params.get("sourcepath")[0].replace(" ", "+");
             sourceImageUrl = new URI(path);
         }
+        sourceImageUrl = getPageUrl(sourceImageUrl, params);
 
         try {
             Cache cc = null;
             // ServletOutputStream output = response.getOutputStream();
-            if (params.get("thumbnail") != null) {
+            if (isThumbnailRequest(params)) {
                 cc = ContentServer.getThumbnailCache();
             } else {
                 cc = ContentServer.getContentCache();
@@ -580,7 +592,7 @@ public class GetImageAction extends AbstractGetAction {
                 ignoreCache = Boolean.parseBoolean(ignore);
             }
             boolean useCache = false;
-            if (params.get("thumbnail") != null) {
+            if (isThumbnailRequest(params)) {
                 useCache = config.getThumbnailCacheUse();
             } else {
                 useCache = config.getContentCacheUse();
@@ -596,179 +608,357 @@ public class GetImageAction extends AbstractGetAction {
             }
 
             // Image found in cache
-            if (!ignoreCache && cc.isKeyInCache(myUniqueID + "." + targetExtension)) {
-                LOGGER.debug("get file from cache: " + myUniqueID + "." + targetExtension);
-                try {
-                    CacheObject co = (CacheObject) cc.get(myUniqueID + "." + targetExtension).getValue();
+            if (!ignoreCache) {
+                Element cached = cc.get(myUniqueID + "." + targetExtension);
+                if (cached != null) {
+                    LOGGER.debug("get file from cache: " + myUniqueID + "." + targetExtension);
+                    CacheObject co = (CacheObject) cached.getObjectValue();
                     return new ImageHolder(co.getData());
-
-                } catch (NullPointerException e) {
-                    LOGGER.debug("element not in cache anymore: " + myUniqueID + "." + targetExtension);
                 }
-                // if (!ignoreCache && cc.isKeyInCache(myUniqueID + "." + targetExtension)) {
-                // LOGGER.debug("get file from cache: " + myUniqueID);
-                //
-                // RenderedImage ri = (RenderedImage) cc.get(myUniqueID + "." + targetExtension).getObjectValue();
-                // JpegInterpreter ii = new JpegInterpreter(ri);
-                // ii.writeToStream(null, baos);
-                // return baos.toByteArray();
-            } else if (!ignoreCache) {
                 LOGGER.debug("file not found in cache: " + myUniqueID + "." + targetExtension);
             }
 
-            /*
-             * -------------------------------- retrieve source image from url --------------------------------
-             */
-            ImageManager sourcemanager = new ImageManager(sourceImageUrl.toURL());
-            LOGGER.trace("imageManager initialized");
-
-            /*
-             * -------------------------------- set the defaults --------------------------------
-             */
-            int angle = 0;
-            int scaleX = 100;
-            int scaleY = 100;
-            int scaleType = ImageManager.SCALE_BY_PERCENT;
-            LinkedList<String> highlightCoordinateList = null;
-            Color highlightColor = null;
-            Watermark myWatermark = null;
-            LOGGER.trace("Variables set");
-
-            /*
-             * -------------------------------- rotate --------------------------------
-             */
-            if (params.get("rotate") != null) {
-                angle = Integer.parseInt(params.get("rotate")[0]);
-                LOGGER.trace("rotate image:" + angle);
-            }
-
-            /*
-             * -------------------------------- scale: scale the image to some percent value --------------------------------
-             */
-            if (params.get("scale") != null) {
-                scaleX = Integer.parseInt(params.get("scale")[0]);
-                scaleY = scaleX;
-                scaleType = ImageManager.SCALE_BY_PERCENT;
-                LOGGER.trace("scale image to percent:" + scaleX);
-            }
-
-            if (params.get("width") != null && params.get("height") != null) {
-                scaleX = Integer.parseInt(params.get("width")[0]);
-                scaleY = Integer.parseInt(params.get("height")[0]);
-                scaleType = ImageManager.SCALE_TO_BOX;
-            }
-
-            /*
-             * -------------------------------- width: scale image to fixed width --------------------------------
-             */
-            else if (params.get("width") != null) {
-                scaleX = Integer.parseInt(params.get("width")[0]);
-                scaleY = 0;
-                scaleType = ImageManager.SCALE_BY_WIDTH;
-                LOGGER.trace("scale image to width:" + scaleX);
-            }
-
-            /*
-             * -------------------------------- height: scale image to fixed height --------------------------------
-             */
-            else if (params.get("height") != null) {
-                scaleY = Integer.parseInt(params.get("height")[0]);
-                scaleX = 0;
-                scaleType = ImageManager.SCALE_BY_HEIGHT;
-                LOGGER.trace("scale image to height:" + scaleY);
-            }
-
-            /*
-             * -------------------------------- highlight --------------------------------
-             */
-            if (params.get("highlight") != null) {
-                highlightCoordinateList = new LinkedList<String>();
-                String highlight = params.get("highlight")[0];
-                StrTokenizer areas = new StrTokenizer(highlight, "$");
-                for (String area : areas.getTokenArray()) {
-                    StrTokenizer coordinates = new StrTokenizer(area, ",");
-                    highlightCoordinateList.add(coordinates.getContent());
-                }
-                highlightColor = config.getDefaultHighlightColor();
-            }
-
-            /*
-             * -------------------------------- insert watermark, if it should be used --------------------------------
-             */
-            if (params.get("ignoreWatermark") == null) {
-                if (config.getWatermarkUse()) {
-                    File watermarkfile = new File(new URI(config.getWatermarkConfigFilePath()));
-                    myWatermark = Watermark.generateWatermark(params, watermarkfile);
-                }
-            }
-
-            /*
-             * -------------------------------- prepare target --------------------------------
-             */
-            // change to true if watermark should scale
-            boolean scaleWatermark = false;
-            if (config.getScaleWatermark()) {
-                scaleWatermark = true;
-            }
-            RenderedImage targetImage =
-                    sourcemanager.scaleImageByPixel(scaleX, scaleY, scaleType, angle, highlightCoordinateList, highlightColor, myWatermark,
-                            scaleWatermark, ImageManager.BOTTOM);
-            LOGGER.trace("Creating ImageInterpreter");
             ImageFileFormat targetFormat = ImageFileFormat.getImageFileFormatFromFileExtension(targetExtension);
-            ImageInterpreter wi = targetFormat.getInterpreter(targetImage); // read file
-            LOGGER.trace("Image stored in " + wi.getClass().getCanonicalName());
-
-            /*
-             * -------------------------------- set file name and attachment header from parameter or from configuration
-             * --------------------------------
-             */
-            // StringBuilder targetFileName = new StringBuilder();
-            // if (config.getSendImageAsAttachment()) {
-            // targetFileName.append("attachment; ");
-            // }
-            // targetFileName.append("filename=");
-            //
-            // if (params.get("targetFileName") != null) {
-            // targetFileName.append(params.get("targetFileName"));
-            // } else {
-            // String filename = ContentLibUtil.getCustomizedFileName(config.getDefaultFileNameImages(), "." +
-            // targetFormat.getFileExtension());
-            // targetFileName.append(filename);
-            // }
-
-            /*
-             * -------------------------------- resolution --------------------------------
-             */
-            LOGGER.trace("Setting image resolution");
-            if (params.get("resolution") != null) {
-                wi.setXResolution(Float.parseFloat(params.get("resolution")[0]));
-                wi.setYResolution(Float.parseFloat(params.get("resolution")[0])); // TODO Is this correct?
-            } else {
-                wi.setXResolution(config.getDefaultResolution());
-                wi.setYResolution(config.getDefaultResolution());
+            if (cc != null) {
+                return renderToCache(params, sourceImageUrl, targetFormat, myUniqueID + "." + targetExtension, cc, !ignoreCache, config);
             }
-            LOGGER.trace("Finished setting image resolution");
-            /*
-             * -------------------------------- write target image to stream --------------------------------
-             */
-
-            byte[] data = wi.writeToStreamAndByteArray(new ByteArrayOutputStream());
-            ImageHolder returnImage = new ImageHolder(data, wi.getWidth(), wi.getHeight());
-            if (cc != null && highlightColor == null) {
-                cc.putIfAbsent(new Element(myUniqueID + "." + targetExtension, new CacheObject(data)));
+            RenderScheduler scheduler = RenderScheduler.acquireSlot(getRenderQueueName(params));
+            try {
+                ImageInterpreter wi = renderImage(params, sourceImageUrl, targetFormat, config);
+
+                /*
+                 * -------------------------------- write target image to stream --------------------------------
+                 */
+                ByteArrayOutputStream data = new ByteArrayOutputStream();
+                wi.writeToStream(null, data);
+                ImageHolder returnImage = new ImageHolder(data.toByteArray(), wi.getWidth(), wi.getHeight());
+                wi.clear();
+                LOGGER.trace("Done writing image to stream");
+                return returnImage;
+            } finally {
+                if (scheduler != null) {
+                    scheduler.release();
+                }
             }
-            LOGGER.trace("Done writing image to stream");
-            return returnImage;
+        } catch (RenderQueueFullException e) {
+            throw e;
         } catch (CacheException e) {
             LOGGER.error("CacheException", e);
         } catch (MalformedURLException e) {
             LOGGER.error(e.getMessage(), e);
+        } catch (ImageManagerException e) {
+            throw e;
         } catch (ImageManipulatorException e) {
             LOGGER.error(e.getMessage(), e);
         } catch (WatermarkException e) {
             LOGGER.error(e.getMessage(), e);
+        } catch (ContentLibException e) {
+            LOGGER.error(e.getMessage(), e);
         }
 
         return null;
     }
+
+    /************************************************************************************
+     * render the image for a cache key and put it into the cache; concurrent calls for the same key wait for the first one and share its result
+     * instead of rendering the same image again
+     * 
+     * @param params the request parameters
+     * @param sourceImageUrl {@link URI} of the source image
+     * @param targetFormat the {@link ImageFileFormat} to render
+     * @param cacheKey the key of the rendered image in the cache
+     * @param cc the {@link Cache} to put the rendered image into
+     * @param checkCache if true, look into the cache again before rendering, it may have been filled in the meantime
+     * @param config current internal {@link ContentServerConfiguration} objekt
+     * @return the rendered image
+     * @throws IOException
+     * @throws URISyntaxException
+     * @throws ContentLibException
+     ************************************************************************************/
+    protected ImageHolder renderToCache(Map<String, String[]> params, URI sourceImageUrl, ImageFileFormat targetFormat, String cacheKey, Cache cc,
+            boolean checkCache, ContentServerConfiguration config) throws IOException, URISyntaxException, ContentLibException {
+        return renderToCache(params, sourceImageUrl, targetFormat, cacheKey, cc, checkCache, config, null);
+    }
+
+    /************************************************************************************
+     * render the image for a cache key and put it into the cache; concurrent calls for the same key wait for the first one and share its result
+     * instead of rendering the same image again
+     * 
+     * the image is encoded only once into a spool which keeps the bytes for the cache in memory up to the configured maximum image size and
+     * continues in a temporary file above it. The client is never written to while the render slot is held or the waiting requests are
+     * blocked: cached images are returned to the caller, and images spooled to a file are too large for the cache and are copied from the file
+     * to the output stream after the shared render is finished.
+     * 
+     * @param params the request parameters
+     * @param sourceImageUrl {@link URI} of the source image
+     * @param targetFormat the {@link ImageFileFormat} to render
+     * @param cacheKey the key of the rendered image in the cache
+     * @param cc the {@link Cache} to put the rendered image into
+     * @param checkCache if true, look into the cache again before rendering, it may have been filled in the meantime
+     * @param config current internal {@link ContentServerConfiguration} objekt
+     * @param output stream to send images too large for the cache to, may be null
+     * @return the rendered image, or null if it has already been written to the output stream
+     * @throws IOException
+     * @throws URISyntaxException
+     * @throws ContentLibException
+     ************************************************************************************/
+    protected ImageHolder renderToCache(final Map<String, String[]> params, final URI sourceImageUrl, final ImageFileFormat targetFormat,
+            final String cacheKey, final Cache cc, final boolean checkCache, final ContentServerConfiguration config, final OutputStream output)
+            throws IOException, URISyntaxException, ContentLibException {
+        /* set to the spool file if this request rendered an image too large for the cache, it is sent after the shared render */
+        final AtomicReference<File> spooledFile = output != null ? new AtomicReference<File>() : null;
+        ImageHolder image;
+        try {
+            image = RUNNING_RENDERS.execute(cacheKey, new Callable<ImageHolder>() {
+                @Override
+                public ImageHolder call() throws Exception {
+                    if (checkCache) {
+                        Element cached = cc.get(cacheKey);
+                        if (cached != null) {
+                            LOGGER.debug("file rendered in the meantime: " + cacheKey);
+                            return new ImageHolder(((CacheObject) cached.getObjectValue()).getData());
+                        }
+                    }
+                    return renderAndCache(params, sourceImageUrl, targetFormat, cacheKey, cc, config, spooledFile);
+                }
+            });
+        } catch (IOException e) {
+            throw e;
+        } catch (URISyntaxException e) {
+            throw e;
+        } catch (ContentLibException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new ImageManagerException("rendering of " + cacheKey + " failed", e);
+        }
+        if (image == null && (spooledFile == null || spooledFile.get() == null)) {
+            /* rendered by a concurrent request, but too large to be shared, render it again */
+            image = renderAndCache(params, sourceImageUrl, targetFormat, cacheKey, cc, config, spooledFile);
+        }
+        if (spooledFile != null && spooledFile.get() != null) {
+            InputStream spooled = null;
+            try {
+                spooled = new FileInputStream(spooledFile.get());
+                IOUtils.copy(spooled, output);
+            } finally {
+                IOUtils.closeQuietly(spooled);
+                FileUtils.deleteQuietly(spooledFile.get());
+            }
+            return null;
+        }
+        return image;
+    }
+
+    /************************************************************************************
+     * render the image and encode it into a spool while holding a render slot; the spooled image is put into the cache if it isn't larger than
+     * the configured maximum image size
+     * 
+     * @param spooledFile if not null, an image too large for the cache is left in its spool file and the file is set here; the caller has to
+     *            delete it
+     * @return the rendered image, or null if it is too large for the cache and its spool file has been set
+     * @throws IOException
+     * @throws URISyntaxException
+     * @throws ContentLibException
+     ************************************************************************************/
+    private ImageHolder renderAndCache(Map<String, String[]> params, URI sourceImageUrl, ImageFileFormat targetFormat, String cacheKey, Cache cc,
+            ContentServerConfiguration config, AtomicReference<File> spooledFile) throws IOException, URISyntaxException, ContentLibException {
+        RenderScheduler scheduler = RenderScheduler.acquireSlot(getRenderQueueName(params));
+        ImageInterpreter wi = null;
+        DeferredFileOutputStream spool =
+                new DeferredFileOutputStream(config.getContentCacheMaxImageSize(), "contentserver", "." + targetFormat.getFileExtension(), null);
+        boolean keepFile = false;
+        try {
+            wi = renderImage(params, sourceImageUrl, targetFormat, config);
+            wi.encode(spool);
+            spool.close();
+            if (spool.isInMemory()) {
+                ImageHolder image = new ImageHolder(spool.getData(), wi.getWidth(), wi.getHeight());
+                cc.putIfAbsent(new Element(cacheKey, new CacheObject(image.getImage(), targetFormat.getMimeType())));
+                return image;
+            }
+            LOGGER.debug("image " + cacheKey + " exceeds the maximum image size of the cache, it is not cached");
+            if (spooledFile != null) {
+                spooledFile.set(spool.getFile());
+                keepFile = true;
+                return null;
+            }
+            return new ImageHolder(FileUtils.readFileToByteArray(spool.getFile()), wi.getWidth(), wi.getHeight());
+        } finally {
+            if (wi != null) {
+                wi.clear();
+            }
+            IOUtils.closeQuietly(spool);
+            if (!keepFile && spool.getFile() != null) {
+                FileUtils.deleteQuietly(spool.getFile());
+            }
+            if (scheduler != null) {
+                scheduler.release();
+            }
+        }
+    }
+
+    /************************************************************************************
+     * read the source image and apply all image parameters (rotation, scaling, highlighting, watermark, resolution and compression)
+     * 
+     * @param params the request parameters
+     * @param sourceImageUrl {@link URI} of the source image
+     * @param targetFormat the {@link ImageFileFormat} to render
+     * @param config current internal {@link ContentServerConfiguration} objekt
+     * @return {@link ImageInterpreter} of the target format holding the rendered image
+     * @throws IOException
+     * @throws URISyntaxException
+     * @throws ContentLibException
+     ************************************************************************************/
+    protected ImageInterpreter renderImage(Map<String, String[]> params, URI sourceImageUrl, ImageFileFormat targetFormat,
+            ContentServerConfiguration config) throws IOException, URISyntaxException, ContentLibException {
+        /*
+         * -------------------------------- retrieve source image from url --------------------------------
+         */
+        ImageManager sourcemanager = new ImageManager(sourceImageUrl.toURL());
+        LOGGER.trace("imageManager initialized");
+
+        /*
+         * -------------------------------- set the defaults --------------------------------
+         */
+        int angle = 0;
+        int scaleX = 100;
+        int scaleY = 100;
+        int scaleType = ImageManager.SCALE_BY_PERCENT;
+        LinkedList<String> highlightCoordinateList = null;
+        Color highlightColor = null;
+        Watermark myWatermark = null;
+        LOGGER.trace("Variables set");
+
+        /*
+         * -------------------------------- rotate --------------------------------
+         */
+        if (params.get("rotate") != null) {
+            angle = Integer.parseInt(params.get("rotate")[0]);
+            LOGGER.trace("rotate image:" + angle);
+        }
+
+        /*
+         * -------------------------------- scale: scale the image to some percent value --------------------------------
+         */
+        if (params.get("scale") != null) {
+            scaleX = Integer.parseInt(params.get("scale")[0]);
+            scaleY = scaleX;
+            scaleType = ImageManager.SCALE_BY_PERCENT;
+            LOGGER.trace("scale image to percent:" + scaleX);
+        }
+
+        if (params.get("width") != null && params.get("height") != null) {
+            scaleX = Integer.parseInt(params.get("width")[0]);
+            scaleY = Integer.parseInt(params.get("height")[0]);
+            scaleType = ImageManager.SCALE_TO_BOX;
+        }
+
+        /*
+         * -------------------------------- width: scale image to fixed width --------------------------------
+         */
+        else if (params.get("width") != null) {
+            scaleX = Integer.parseInt(params.get("width")[0]);
+            scaleY = 0;
+            scaleType = ImageManager.SCALE_BY_WIDTH;
+            LOGGER.trace("scale image to width:" + scaleX);
+        }
+
+        /*
+         * -------------------------------- height: scale image to fixed height --------------------------------
+         */
+        else if (params.get("height") != null) {
+            scaleY = Integer.parseInt(params.get("height")[0]);
+            scaleX = 0;
+            scaleType = ImageManager.SCALE_BY_HEIGHT;
+            LOGGER.trace("scale image to height:" + scaleY);
+        }
+
+        /*
+         * -------------------------------- highlight --------------------------------
+         */
+        if (params.get("highlight") != null) {
+            highlightCoordinateList = new LinkedList<String>();
+            String highlight = params.get("highlight")[0];
+            StrTokenizer areas = new StrTokenizer(highlight, "$");
+            for (String area : areas.getTokenArray()) {
+                StrTokenizer coordinates = new StrTokenizer(area, ",");
+                highlightCoordinateList.add(coordinates.getContent());
+            }
+            highlightColor = config.getDefaultHighlightColor();
+        }
+
+        /*
+         * -------------------------------- insert watermark, if it should be used --------------------------------
+         */
+        myWatermark = createWatermark(params, config);
+
+        /*
+         * -------------------------------- prepare target --------------------------------
+         */
+        RenderedImage targetImage =
+                sourcemanager.scaleImageByPixel(scaleX, scaleY, scaleType, angle, highlightCoordinateList, highlightColor, myWatermark,
+                        config.getScaleWatermark(), ImageManager.BOTTOM);
+        return createTargetInterpreter(targetImage, params, targetFormat, config);
+    }
+
+    /************************************************************************************
+     * generate the configured {@link Watermark} for the request, unless watermarks are switched off or the request asks to ignore it
+     * 
+     * @param params the request parameters
+     * @param config current internal {@link ContentServerConfiguration} objekt
+     * @return the {@link Watermark} to add to the rendered image or null if no watermark should be added
+     * @throws URISyntaxException
+     * @throws WatermarkException
+     ************************************************************************************/
+    protected Watermark createWatermark(Map<String, String[]> params, ContentServerConfiguration config) throws URISyntaxException,
+            WatermarkException {
+        if (params.get("ignoreWatermark") != null || !config.getWatermarkUse()) {
+            return null;
+        }
+        File watermarkfile = new File(new URI(config.getWatermarkConfigFilePath()));
+        return Watermark.generateWatermark(params, watermarkfile);
+    }
+
+    /************************************************************************************
+     * create the {@link ImageInterpreter} for the rendered image and set resolution and compression from parameter or from configuration
+     * 
+     * @param targetImage the rendered image
+     * @param params the request parameters
+     * @param targetFormat the {@link ImageFileFormat} to render
+     * @param config current internal {@link ContentServerConfiguration} objekt
+     * @return {@link ImageInterpreter} of the target format holding the rendered image
+     ************************************************************************************/
+    protected ImageInterpreter createTargetInterpreter(RenderedImage targetImage, Map<String, String[]> params, ImageFileFormat targetFormat,
+            ContentServerConfiguration config) {
+        LOGGER.trace("Creating ImageInterpreter");
+        ImageInterpreter wi = targetFormat.getInterpreter(targetImage); // read file
+        LOGGER.trace("Image stored in " + wi.getClass().getCanonicalName());
+
+        /*
+         * -------------------------------- resolution --------------------------------
+         */
+        LOGGER.trace("Setting image resolution");
+        if (params.get("resolution") != null) {
+            wi.setXResolution(Float.parseFloat(params.get("resolution")[0]));
+            wi.setYResolution(Float.parseFloat(params.get("resolution")[0])); // TODO Is this correct?
+        } else {
+            wi.setXResolution(config.getDefaultResolution());
+            wi.setYResolution(config.getDefaultResolution());
+        }
+        LOGGER.trace("Finished setting image resolution");
+
+        LOGGER.trace("Setting image compression");
+        if (params.get("compression") != null) {
+            String value = params.get("compression")[0];
+            try {
+                int intvalue = Integer.parseInt(value);
+                wi.setWriterCompressionValue(intvalue);
+            } catch (Exception e) {
+                LOGGER.trace("value is not a number, use default value");
+            }
+        }
+        return wi;
+    }
 }
@@ -207,16 +207,23 @@ public class GetPdfAction extends AbstractGetAction {
         response.setContentType("application/pdf");
 
         /*
-         * write pdf to response stream
+         * write pdf to response stream, as soon as there is a free render slot
          */
+        RenderScheduler scheduler = RenderScheduler.acquireSlot(RenderScheduler.PDF);
         try {
             pdfmanager.createPDF(response.getOutputStream(), PdfPageSize.ORIGINAL, myWatermark);
         } catch (URISyntaxException e) {
             throw new ContentLibPdfException("error while creating pdf file", e);
         } finally {
-            if (response.getOutputStream() != null) {
-                response.getOutputStream().flush();
-                response.getOutputStream().close();
+            try {
+                if (response.getOutputStream() != null) {
+                    response.getOutputStream().flush();
+                    response.getOutputStream().close();
+                }
+            } finally {
+                if (scheduler != null) {
+                    scheduler.release();
+                }
             }
         }
     }
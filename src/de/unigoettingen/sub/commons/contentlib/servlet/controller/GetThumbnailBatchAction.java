@@ -0,0 +1,300 @@
+/*
+ * This file is part of the ContentServer project.
+ * Visit the websites for more information. 
+ * 		- http://gdz.sub.uni-goettingen.de 
+ * 		- http://www.intranda.com 
+ * 		- http://www.digiverso.com
+ * 
+ * Copyright 2009, Center for Retrospective Digitization, Göttingen (GDZ),
+ * intranda software
+ *
+ * This is the extended version updated by intranda
+ * Copyright 2012, intranda GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.unigoettingen.sub.commons.contentlib.servlet.controller;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+
+import de.unigoettingen.sub.commons.contentlib.exceptions.ContentLibException;
+import de.unigoettingen.sub.commons.contentlib.imagelib.ImageFileFormat;
+import de.unigoettingen.sub.commons.contentlib.imagelib.ImageHolder;
+import de.unigoettingen.sub.commons.contentlib.servlet.model.ContentServerConfiguration;
+
+/************************************************************************************
+ * Thumbnail batch action for page overviews, sends the thumbnails of many images in one multipart/mixed response instead of one request per image.
+ * The thumbnails are rendered in parallel and are taken from and written to the thumbnail cache like single thumbnail requests.
+ * 
+ * every part has the headers Content-Type, Content-Length, Content-Location (the sourcepath) and X-Image-Number (position of the image in the
+ * list, starting with 1); images which can't be rendered are sent as text/plain part with the error message
+ * 
+ * @version 17.10.2026
+ ************************************************************************************/
+public class GetThumbnailBatchAction extends AbstractGetAction {
+    private static final Logger LOGGER = Logger.getLogger(GetThumbnailBatchAction.class);
+
+    /** parameters of the request which are used for every thumbnail; scale is not supported, it would bypass the maximum size */
+    private static final List<String> IMAGE_PARAMETERS = Arrays.asList("width", "height", "rotate", "format");
+    private static final String DEFAULT_FORMAT = "jpg";
+    private static final String DEFAULT_WIDTH = "200";
+    private static final String CRLF = "\r\n";
+
+    /** Worker threads rendering the thumbnails for all batch requests, created on first use. */
+    private static ExecutorService renderPool = null;
+
+    /************************************************************************************
+     * render the thumbnails of all requested images and send them in the order of the images
+     * 
+     * @param request {@link HttpServletRequest} of ServletRequest
+     * @param response {@link HttpServletResponse} for writing to response output stream
+     * @throws IOException
+     * @throws URISyntaxException
+     * @throws ContentLibException
+     ************************************************************************************/
+    @Override
+    public void run(ServletContext servletContext, HttpServletRequest request, HttpServletResponse response) throws IOException, URISyntaxException,
+            ContentLibException {
+        super.run(servletContext, request, response);
+        List<String> sourcePaths = getRange(request, getSourcePaths(request));
+        int firstNumber = getFirst(request);
+
+        Map<String, String[]> imageParams = getImageParameters(request);
+        List<Future<ImageHolder>> thumbnails = renderThumbnails(sourcePaths, imageParams);
+
+        /* write every thumbnail as soon as it and all thumbnails before it are rendered */
+        String boundary = "thumbnails-" + UUID.randomUUID().toString();
+        String mimeType = ImageFileFormat.getImageFileFormatFromFileExtension(imageParams.get("format")[0]).getMimeType();
+        response.setContentType("multipart/mixed; boundary=" + boundary);
+        ServletOutputStream output = response.getOutputStream();
+        try {
+            for (int i = 0; i < thumbnails.size(); i++) {
+                byte[] data;
+                String contentType = mimeType;
+                try {
+                    ImageHolder thumbnail = thumbnails.get(i).get();
+                    if (thumbnail == null) {
+                        throw new ExecutionException("thumbnail can not be rendered", null);
+                    }
+                    data = thumbnail.getImage();
+                } catch (ExecutionException e) {
+                    LOGGER.debug("Error rendering thumbnail of " + sourcePaths.get(i), e);
+                    Throwable cause = e.getCause() == null ? e : e.getCause();
+                    data = (cause.getClass().getSimpleName() + ": " + cause.getMessage()).getBytes("UTF-8");
+                    contentType = "text/plain;charset=UTF-8";
+                }
+                StringBuilder headers = new StringBuilder();
+                headers.append("--").append(boundary).append(CRLF);
+                headers.append("Content-Type: ").append(contentType).append(CRLF);
+                headers.append("Content-Length: ").append(data.length).append(CRLF);
+                headers.append("Content-Location: ").append(sourcePaths.get(i)).append(CRLF);
+                headers.append("X-Image-Number: ").append(firstNumber + i).append(CRLF);
+                headers.append(CRLF);
+                output.write(headers.toString().getBytes("UTF-8"));
+                output.write(data);
+                output.write(CRLF.getBytes("UTF-8"));
+                output.flush();
+            }
+            output.write(("--" + boundary + "--" + CRLF).getBytes("UTF-8"));
+            output.flush();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while waiting for thumbnails", e);
+        } finally {
+            /* the client is gone or the request failed, don't render the remaining thumbnails */
+            for (Future<ImageHolder> thumbnail : thumbnails) {
+                thumbnail.cancel(false);
+            }
+            output.close();
+        }
+    }
+
+    /************************************************************************************
+     * get the images for the thumbnails; every sourcepath parameter is one image, it is given like for the image action
+     * 
+     * @param request {@link HttpServletRequest} of ServletRequest
+     * @return the sourcepaths of all images
+     * @throws IOException
+     * @throws URISyntaxException
+     * @throws ContentLibException
+     ************************************************************************************/
+    protected List<String> getSourcePaths(HttpServletRequest request) throws IOException, URISyntaxException, ContentLibException {
+        @SuppressWarnings("unchecked")
+        Map<String, String[]> params = request.getParameterMap();
+        return Arrays.asList(params.get("sourcepath"));
+    }
+
+    /************************************************************************************
+     * submit the thumbnails of all images to the render pool, they are rendered in parallel and are taken from or written to the thumbnail cache
+     * 
+     * @param sourcePaths the images
+     * @param imageParams parameters of the image action used for every thumbnail
+     * @return the rendered thumbnails in the order of the images, the result is null if a thumbnail could not be rendered
+     ************************************************************************************/
+    protected List<Future<ImageHolder>> renderThumbnails(List<String> sourcePaths, Map<String, String[]> imageParams) {
+        ExecutorService pool = getRenderPool();
+        List<Future<ImageHolder>> thumbnails = new ArrayList<Future<ImageHolder>>();
+        for (String sourcePath : sourcePaths) {
+            final Map<String, String[]> params = new HashMap<String, String[]>(imageParams);
+            params.put("sourcepath", new String[] { sourcePath });
+            thumbnails.add(pool.submit(new Callable<ImageHolder>() {
+                @Override
+                public ImageHolder call() throws Exception {
+                    return new GetImageAction().getImageHolder(params);
+                }
+            }));
+        }
+        return thumbnails;
+    }
+
+    /************************************************************************************
+     * get the images between the parameters first and last (counted from 1), limited to the configured maximum number
+     ************************************************************************************/
+    private List<String> getRange(HttpServletRequest request, List<String> sourcePaths) {
+        int first = getFirst(request);
+        int last = sourcePaths.size();
+        if (request.getParameter("last") != null) {
+            last = Math.min(last, Integer.parseInt(request.getParameter("last")));
+        }
+        last = Math.min(last, first - 1 + ContentServerConfiguration.getInstance().getThumbnailBatchMaxImages());
+        if (first > last) {
+            return new ArrayList<String>();
+        }
+        return sourcePaths.subList(first - 1, last);
+    }
+
+    private int getFirst(HttpServletRequest request) {
+        if (request.getParameter("first") == null) {
+            return 1;
+        }
+        return Math.max(1, Integer.parseInt(request.getParameter("first")));
+    }
+
+    /************************************************************************************
+     * get the parameters of the image action used for every thumbnail
+     * 
+     * @param request {@link HttpServletRequest} of ServletRequest
+     * @return the parameters for {@link GetImageAction#getImageHolder(Map)}, without the sourcepath
+     ************************************************************************************/
+    protected Map<String, String[]> getImageParameters(HttpServletRequest request) {
+        Map<String, String[]> params = new HashMap<String, String[]>();
+        for (String name : IMAGE_PARAMETERS) {
+            if (StringUtils.isNotBlank(request.getParameter(name))) {
+                params.put(name, new String[] { request.getParameter(name).trim() });
+            }
+        }
+        if (!params.containsKey("width") && !params.containsKey("height")) {
+            params.put("width", new String[] { DEFAULT_WIDTH });
+        }
+        /* clamp the size of the thumbnails to the configured maximum */
+        int maxSize = ContentServerConfiguration.getInstance().getThumbnailBatchMaxSize();
+        for (String name : new String[] { "width", "height" }) {
+            if (params.containsKey(name) && exceeds(params.get(name)[0], maxSize)) {
+                params.put(name, new String[] { String.valueOf(maxSize) });
+            }
+        }
+        if (!params.containsKey("format")) {
+            params.put("format", new String[] { DEFAULT_FORMAT });
+        }
+        params.put("thumbnail", new String[] { "true" });
+        return params;
+    }
+
+    /************************************************************************************
+     * check if a numeric parameter is larger than the maximum, numbers too large for an int are larger in any case
+     ************************************************************************************/
+    private static boolean exceeds(String value, int max) {
+        try {
+            return Integer.parseInt(value) > max;
+        } catch (NumberFormatException e) {
+            return true;
+        }
+    }
+
+    private static synchronized ExecutorService getRenderPool() {
+        if (renderPool == null) {
+            int threads = Math.max(1, ContentServerConfiguration.getInstance().getThumbnailBatchThreads());
+            renderPool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "thumbnail-batch-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            LOGGER.debug("created pool with " + threads + " threads for thumbnail batches");
+        }
+        return renderPool;
+    }
+
+    /************************************************************************************
+     * validate all parameters of request for thumbnail batches, throws IllegalArgumentException if one request parameter is not valid
+     * 
+     * @param request {@link HttpServletRequest} of ServletRequest
+     * @throws IllegalArgumentException
+     ************************************************************************************/
+    @Override
+    public void validateParameters(HttpServletRequest request) throws IllegalArgumentException {
+        super.validateParameters(request);
+        validateSourceParameters(request);
+
+        if (request.getParameter("scale") != null) {
+            throw new IllegalArgumentException("scale is not supported for thumbnail batches, use width or height");
+        }
+        for (String name : new String[] { "width", "height", "rotate", "first", "last" }) {
+            if (request.getParameter(name) != null && !StringUtils.isNumeric(request.getParameter(name))) {
+                throw new IllegalArgumentException(name + " is not numeric");
+            }
+        }
+        String format = request.getParameter("format");
+        if (format != null && ImageFileFormat.getImageFileFormatFromFileExtension(format) == null) {
+            throw new IllegalArgumentException("format is not supported: " + format);
+        }
+    }
+
+    /************************************************************************************
+     * validate the parameters defining the images
+     * 
+     * @param request {@link HttpServletRequest} of ServletRequest
+     * @throws IllegalArgumentException
+     ************************************************************************************/
+    protected void validateSourceParameters(HttpServletRequest request) throws IllegalArgumentException {
+        if (request.getParameter("sourcepath") == null) {
+            throw new IllegalArgumentException("no source path defined (sourcepath)");
+        }
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * This file is part of the ContentServer project.
+ * Visit the websites for more information. 
+ * 		- http://gdz.sub.uni-goettingen.de 
+ * 		- http://www.intranda.com 
+ * 		- http://www.digiverso.com
+ * 
+ * Copyright 2009, Center for Retrospective Digitization, Göttingen (GDZ),
+ * intranda software
+ *
+ * This is the extended version updated by intranda
+ * Copyright 2012, intranda GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.unigoettingen.sub.commons.contentlib.servlet.controller;
+
+import java.awt.Rectangle;
+import java.awt.image.RenderedImage;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+
+import de.unigoettingen.sub.commons.contentlib.exceptions.ContentLibException;
+import de.unigoettingen.sub.commons.contentlib.exceptions.ImageManagerException;
+import de.unigoettingen.sub.commons.contentlib.imagelib.ImageFileFormat;
+import de.unigoettingen.sub.commons.contentlib.imagelib.ImageInterpreter;
+import de.unigoettingen.sub.commons.contentlib.imagelib.ImageManager;
+import de.unigoettingen.sub.commons.contentlib.servlet.model.ContentServerConfiguration;
+
+/************************************************************************************
+ * Tile action for deep zoom viewers, sends one tile of fixed size of an image pyramid instead of the whole scaled image. The levels are numbered
+ * like in the Deep Zoom format: the highest level shows the image in full resolution, every level below halves width and height, level 0 is one
+ * pixel in size. Tiles are addressed by level, column and row, the tiles at the right and bottom border may be smaller than the tile size.
+ * 
+ * Only the region of the source image covered by the tile is decoded, the tiles are cached in the thumbnail cache.
+ * 
+ * @version 17.10.2026
+ ************************************************************************************/
+public class GetTileAction extends GetImageAction {
+    private static final Logger LOGGER = Logger.getLogger(GetTileAction.class);
+
+    /** smallest tile size which can be requested by the parameter tilesize */
+    private static final int MIN_TILE_SIZE = 64;
+
+    /************************************************************************************
+     * validate all parameters of request for tile handling, throws IllegalArgumentException if one request parameter is not valid
+     * 
+     * @param request {@link HttpServletRequest} of ServletRequest
+     * @throws IllegalArgumentException
+     ************************************************************************************/
+    @Override
+    public void validateParameters(HttpServletRequest request) throws IllegalArgumentException {
+        super.validateParameters(request);
+
+        if (request.getParameter("format") == null) {
+            throw new IllegalArgumentException("no target format defined (format)");
+        }
+        for (String name : new String[] { "level", "column", "row" }) {
+            if (request.getParameter(name) == null) {
+                throw new IllegalArgumentException("no tile " + name + " defined (" + name + ")");
+            }
+            if (!StringUtils.isNumeric(request.getParameter(name))) {
+                throw new IllegalArgumentException("tile " + name + " is not numeric");
+            }
+        }
+        /* the tile size is limited, larger tiles would render the whole image and many different sizes would fragment the cache */
+        String tileSize = request.getParameter("tilesize");
+        if (tileSize != null && !isAllowedTileSize(tileSize, ContentServerConfiguration.getInstance())) {
+            throw new IllegalArgumentException("tile size has to be the default tile size or a power of two from " + MIN_TILE_SIZE + " to "
+                    + ContentServerConfiguration.getInstance().getTileMaxSize());
+        }
+    }
+
+    /************************************************************************************
+     * check if a requested tile size is the default tile size or a power of two between the minimum and the configured maximum tile size
+     ************************************************************************************/
+    private static boolean isAllowedTileSize(String value, ContentServerConfiguration config) {
+        if (!StringUtils.isNumeric(value) || value.length() == 0 || value.length() > 9) {
+            return false;
+        }
+        int size = Integer.parseInt(value);
+        if (size == config.getTileSize()) {
+            return true;
+        }
+        return size >= MIN_TILE_SIZE && size <= config.getTileMaxSize() && (size & (size - 1)) == 0;
+    }
+
+    /************************************************************************************
+     * tiles are always cached in the thumbnail cache
+     ************************************************************************************/
+    @Override
+    protected boolean isThumbnailRequest(Map<String, String[]> params) {
+        return true;
+    }
+
+    /************************************************************************************
+     * the cache id of a tile consists of the id of the image and the tile coordinates
+     ************************************************************************************/
+    @Override
+    protected String getContentCacheIdForParamMap(Map<String, String[]> params, ContentServerConfiguration inConfig) {
+        StringBuilder cacheId = new StringBuilder(super.getContentCacheIdForParamMap(params, inConfig));
+        cacheId.append("_tile_");
+        cacheId.append(getTileSize(params, inConfig));
+        cacheId.append("_");
+        cacheId.append(params.get("level")[0]);
+        cacheId.append("_");
+        cacheId.append(params.get("column")[0]);
+        cacheId.append("_");
+        cacheId.append(params.get("row")[0]);
+        return cacheId.toString();
+    }
+
+    /************************************************************************************
+     * read the region of the source image covered by the requested tile and scale it down to the resolution of the requested level
+     * 
+     * @param params the request parameters
+     * @param sourceImageUrl {@link URI} of the source image
+     * @param targetFormat the {@link ImageFileFormat} to render
+     * @param config current internal {@link ContentServerConfiguration} objekt
+     * @return {@link ImageInterpreter} of the target format holding the tile
+     * @throws IOException
+     * @throws URISyntaxException
+     * @throws ContentLibException
+     ************************************************************************************/
+    @Override
+    protected ImageInterpreter renderImage(Map<String, String[]> params, URI sourceImageUrl, ImageFileFormat targetFormat,
+            ContentServerConfiguration config) throws IOException, URISyntaxException, ContentLibException {
+        ImageManager sourcemanager = new ImageManager(sourceImageUrl.toURL());
+        int imageWidth = sourcemanager.getMyInterpreter().getWidth();
+        int imageHeight = sourcemanager.getMyInterpreter().getHeight();
+
+        int tileSize = getTileSize(params, config);
+        int level = Integer.parseInt(params.get("level")[0]);
+        int column = Integer.parseInt(params.get("column")[0]);
+        int row = Integer.parseInt(params.get("row")[0]);
+        int maxLevel = getMaxLevel(imageWidth, imageHeight);
+        if (level > maxLevel) {
+            throw new ImageManagerException("level " + level + " is not available, the highest level of the image is " + maxLevel);
+        }
+
+        /*
+         * -------------------------------- calculate the region of the source image covered by the tile --------------------------------
+         */
+        long factor = 1L << (maxLevel - level);
+        long regionSize = tileSize * factor;
+        long x = column * regionSize;
+        long y = row * regionSize;
+        if (x >= imageWidth || y >= imageHeight) {
+            throw new ImageManagerException("tile " + column + "/" + row + " of level " + level + " is outside of the image");
+        }
+        Rectangle region = new Rectangle((int) x, (int) y, (int) Math.min(regionSize, imageWidth - x), (int) Math.min(regionSize, imageHeight - y));
+        int tileWidth = (int) Math.ceil((double) region.width / factor);
+        int tileHeight = (int) Math.ceil((double) region.height / factor);
+        LOGGER.debug("tile " + column + "/" + row + " of level " + level + ": region " + region + " scaled to " + tileWidth + " x " + tileHeight);
+
+        RenderedImage targetImage =
+                sourcemanager.scaleImageByPixel(region, tileWidth, tileHeight, ImageManager.SCALE_BY_WIDTH, 0, null, null,
+                        createWatermark(params, config), config.getScaleWatermark(), ImageManager.BOTTOM);
+        return createTargetInterpreter(targetImage, params, targetFormat, config);
+    }
+
+    /************************************************************************************
+     * get the level showing the image in full resolution, this is the number of halvings until the image is one pixel in size
+     * 
+     * @param width width of the image
+     * @param height height of the image
+     * @return the highest level
+     ************************************************************************************/
+    static int getMaxLevel(int width, int height) {
+        int size = Math.max(width, height) - 1;
+        int level = 0;
+        while (size > 0) {
+            size >>= 1;
+            level++;
+        }
+        return level;
+    }
+
+    /************************************************************************************
+     * get tile size from parameter or from configuration
+     ************************************************************************************/
+    private int getTileSize(Map<String, String[]> params, ContentServerConfiguration config) {
+        if (params.get("tilesize") != null) {
+            return Integer.parseInt(params.get("tilesize")[0]);
+        }
+        return config.getTileSize();
+    }
+
+}
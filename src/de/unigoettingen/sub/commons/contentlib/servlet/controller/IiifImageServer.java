@@ -0,0 +1,59 @@
+/*
+ * This file is part of the ContentServer project.
+ * Visit the websites for more information. 
+ * 		- http://gdz.sub.uni-goettingen.de 
+ * 		- http://www.intranda.com 
+ * 		- http://www.digiverso.com
+ * 
+ * Copyright 2009, Center for Retrospective Digitization, Göttingen (GDZ),
+ * intranda software
+ *
+ * This is the extended version updated by intranda
+ * Copyright 2012, intranda GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.unigoettingen.sub.commons.contentlib.servlet.controller;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+
+/************************************************************************************
+ * contentserver for requests following the IIIF Image API, all requests are handled by {@link GetIiifImageAction}; the image parameters are
+ * part of the path instead of the query string:
+ * 
+ * {identifier}/{region}/{size}/{rotation}/{quality}.{format} or {identifier}/info.json
+ * 
+ * @version 17.10.2026
+ ************************************************************************************/
+public class IiifImageServer extends ContentServer {
+    private static final long serialVersionUID = 1L;
+
+    /************************************************************************************
+     * default constructor for initialization
+     ************************************************************************************/
+    @Override
+    public void init() throws ServletException {
+        super.init();
+        actions.put("iiif", GetIiifImageAction.class);
+    }
+
+    /************************************************************************************
+     * every request of this servlet is an IIIF request
+     ************************************************************************************/
+    @Override
+    protected String getActionString(HttpServletRequest request) {
+        return "iiif";
+    }
+
+}
@@ -0,0 +1,259 @@
+/*
+ * This file is part of the ContentServer project.
+ * Visit the websites for more information. 
+ * 		- http://gdz.sub.uni-goettingen.de 
+ * 		- http://www.intranda.com 
+ * 		- http://www.digiverso.com
+ * 
+ * Copyright 2009, Center for Retrospective Digitization, Göttingen (GDZ),
+ * intranda software
+ *
+ * This is the extended version updated by intranda
+ * Copyright 2012, intranda GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.unigoettingen.sub.commons.contentlib.servlet.controller;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import de.unigoettingen.sub.commons.contentlib.exceptions.RenderQueueFullException;
+import de.unigoettingen.sub.commons.contentlib.servlet.model.ContentServerConfiguration;
+
+/************************************************************************************
+ * admission control for rendering requests; each render queue (image, thumbnail, pdf, mets pdf) allows a limited number of renders at the same
+ * time, further requests wait in a bounded queue for a limited time. Requests which find the queue full or which wait too long are rejected, so
+ * that a burst of expensive requests can't starve the other queues or exhaust the heap.
+ * 
+ * The renders are executed on the thread of the servlet container, the scheduler only decides when they may start. The actions take a slot
+ * with {@link #acquireSlot(String)} only for the actual render after a cache miss, so that requests served from a cache are never queued.
+ * 
+ * @version 17.10.2026
+ ************************************************************************************/
+public class RenderScheduler {
+    private static final Logger LOGGER = Logger.getLogger(RenderScheduler.class);
+
+    public static final String IMAGE = "image";
+    public static final String THUMBNAIL = "thumbnail";
+    public static final String PDF = "pdf";
+    public static final String METS_PDF = "metspdf";
+
+    private static final Map<String, RenderScheduler> SCHEDULERS = new TreeMap<String, RenderScheduler>();
+
+    private final String name;
+    private final int maxRunning;
+    private final int maxWaiting;
+    private final long maxWaitMillis;
+    private final Semaphore permits;
+
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong totalWaitMillis = new AtomicLong();
+    private final AtomicLong longestWaitMillis = new AtomicLong();
+
+    /************************************************************************************
+     * create a scheduler for a render queue
+     * 
+     * @param name name of the render queue
+     * @param maxRunning number of renders allowed at the same time
+     * @param maxWaiting number of requests allowed to wait for a render slot
+     * @param maxWaitMillis maximum time in milliseconds a request waits for a render slot
+     ************************************************************************************/
+    public RenderScheduler(String name, int maxRunning, int maxWaiting, long maxWaitMillis) {
+        this.name = name;
+        this.maxRunning = maxRunning;
+        this.maxWaiting = maxWaiting;
+        this.maxWaitMillis = maxWaitMillis;
+        this.permits = new Semaphore(maxRunning, true);
+    }
+
+    /************************************************************************************
+     * get the scheduler for a render queue, it is created from the configuration on first use
+     * 
+     * @param name name of the render queue
+     * @return the {@link RenderScheduler}
+     ************************************************************************************/
+    public static RenderScheduler getScheduler(String name) {
+        synchronized (SCHEDULERS) {
+            RenderScheduler scheduler = SCHEDULERS.get(name);
+            if (scheduler == null) {
+                ContentServerConfiguration config = ContentServerConfiguration.getInstance();
+                scheduler =
+                        new RenderScheduler(name, config.getRenderQueueThreads(name), config.getRenderQueueSize(name), config
+                                .getRenderQueueMaxWait(name) * 1000L);
+                LOGGER.debug("created render queue " + name + " with " + scheduler.maxRunning + " renders and " + scheduler.maxWaiting
+                        + " waiting requests");
+                SCHEDULERS.put(name, scheduler);
+            }
+            return scheduler;
+        }
+    }
+
+    /************************************************************************************
+     * get all schedulers created so far
+     * 
+     * @return list of {@link RenderScheduler}, sorted by name
+     ************************************************************************************/
+    public static List<RenderScheduler> getSchedulers() {
+        synchronized (SCHEDULERS) {
+            return new ArrayList<RenderScheduler>(SCHEDULERS.values());
+        }
+    }
+
+    /************************************************************************************
+     * wait for a render slot; if true is returned, {@link #release()} must be called after rendering
+     * 
+     * @return true if the request may render, false if it is rejected
+     * @throws InterruptedException
+     ************************************************************************************/
+    public boolean acquire() throws InterruptedException {
+        if (permits.tryAcquire()) {
+            accepted.incrementAndGet();
+            return true;
+        }
+        if (waiting.incrementAndGet() > maxWaiting) {
+            waiting.decrementAndGet();
+            rejected.incrementAndGet();
+            LOGGER.warn("render queue " + name + " is full, request rejected");
+            return false;
+        }
+        long start = System.currentTimeMillis();
+        boolean acquired;
+        try {
+            acquired = permits.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS);
+        } finally {
+            waiting.decrementAndGet();
+        }
+        long waited = System.currentTimeMillis() - start;
+        totalWaitMillis.addAndGet(waited);
+        long longest = longestWaitMillis.get();
+        while (waited > longest && !longestWaitMillis.compareAndSet(longest, waited)) {
+            longest = longestWaitMillis.get();
+        }
+        if (!acquired) {
+            rejected.incrementAndGet();
+            LOGGER.warn("request waited " + waited + " ms for render queue " + name + " and was rejected");
+            return false;
+        }
+        accepted.incrementAndGet();
+        return true;
+    }
+
+    /************************************************************************************
+     * wait for a render slot of a render queue; the slot is taken only around the actual render, not for requests served from a cache
+     * 
+     * @param queue name of the render queue
+     * @return the {@link RenderScheduler} holding the slot, {@link #release()} must be called after rendering; null if render queues are
+     *         switched off in the configuration
+     * @throws RenderQueueFullException if the request is rejected
+     ************************************************************************************/
+    public static RenderScheduler acquireSlot(String queue) throws RenderQueueFullException {
+        if (!ContentServerConfiguration.getInstance().getRenderQueueUse()) {
+            return null;
+        }
+        RenderScheduler scheduler = getScheduler(queue);
+        try {
+            if (scheduler.acquire()) {
+                return scheduler;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        throw new RenderQueueFullException("Too many requests for " + queue + ", try again later");
+    }
+
+    /************************************************************************************
+     * free the render slot acquired by {@link #acquire()}
+     ************************************************************************************/
+    public void release() {
+        permits.release();
+    }
+
+    /**
+     * @return the name of the render queue
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the number of renders allowed at the same time
+     */
+    public int getMaxRunning() {
+        return maxRunning;
+    }
+
+    /**
+     * @return the number of requests allowed to wait
+     */
+    public int getMaxWaiting() {
+        return maxWaiting;
+    }
+
+    /**
+     * @return the number of renders running now
+     */
+    public int getRunning() {
+        return maxRunning - permits.availablePermits();
+    }
+
+    /**
+     * @return the number of requests waiting now
+     */
+    public int getQueueDepth() {
+        return waiting.get();
+    }
+
+    /**
+     * @return the number of accepted requests
+     */
+    public long getAccepted() {
+        return accepted.get();
+    }
+
+    /**
+     * @return the number of rejected requests
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * @return the average time in milliseconds a request waited, 0 if there was no request yet
+     */
+    public long getAverageWaitMillis() {
+        long count = accepted.get() + rejected.get();
+        if (count == 0) {
+            return 0;
+        }
+        return totalWaitMillis.get() / count;
+    }
+
+    /**
+     * @return the longest time in milliseconds a request waited
+     */
+    public long getLongestWaitMillis() {
+        return longestWaitMillis.get();
+    }
+
+}
@@ -0,0 +1,81 @@
+/*
+ * This file is part of the ContentServer project.
+ * Visit the websites for more information. 
+ * 		- http://gdz.sub.uni-goettingen.de 
+ * 		- http://www.intranda.com 
+ * 		- http://www.digiverso.com
+ * 
+ * Copyright 2009, Center for Retrospective Digitization, Göttingen (GDZ),
+ * intranda software
+ *
+ * This is the extended version updated by intranda
+ * Copyright 2012, intranda GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.unigoettingen.sub.commons.contentlib.servlet.controller;
+
+import java.io.IOException;
+
+import javax.servlet.ServletContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/************************************************************************************
+ * status action showing the state of all render queues as plain text, one line per queue with running and waiting requests and waiting times
+ * 
+ * @version 17.10.2026
+ ************************************************************************************/
+public class RenderStatusAction implements Action {
+
+    /************************************************************************************
+     * write the state of the render queues to the response
+     * 
+     * @param request {@link HttpServletRequest} of ServletRequest
+     * @param response {@link HttpServletResponse} for writing to response output stream
+     * @throws IOException
+     ************************************************************************************/
+    @Override
+    public void run(ServletContext servletContext, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        StringBuilder status = new StringBuilder();
+        status.append("queue\trunning\tmaxRunning\twaiting\tmaxWaiting\taccepted\trejected\taverageWaitMillis\tlongestWaitMillis\n");
+        for (RenderScheduler scheduler : RenderScheduler.getSchedulers()) {
+            status.append(scheduler.getName()).append("\t");
+            status.append(scheduler.getRunning()).append("\t");
+            status.append(scheduler.getMaxRunning()).append("\t");
+            status.append(scheduler.getQueueDepth()).append("\t");
+            status.append(scheduler.getMaxWaiting()).append("\t");
+            status.append(scheduler.getAccepted()).append("\t");
+            status.append(scheduler.getRejected()).append("\t");
+            status.append(scheduler.getAverageWaitMillis()).append("\t");
+            status.append(scheduler.getLongestWaitMillis()).append("\n");
+        }
+        byte[] data = status.toString().getBytes("UTF-8");
+        response.setContentType("text/plain;charset=UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        response.setContentLength(data.length);
+        ServletOutputStream output = response.getOutputStream();
+        output.write(data);
+        output.flush();
+        output.close();
+    }
+
+    /************************************************************************************
+     * the status action has no parameters
+     ************************************************************************************/
+    @Override
+    public void validateParameters(HttpServletRequest request) throws IllegalArgumentException {
+    }
+
+}
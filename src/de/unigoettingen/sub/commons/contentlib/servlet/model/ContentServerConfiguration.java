@@ -29,8 +29,15 @@ import java.awt.Color;
 import java.io.File;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.configuration.ConfigurationException;
+import org.apache.commons.configuration.HierarchicalConfiguration;
 import org.apache.commons.configuration.XMLConfiguration;
 import org.apache.commons.configuration.reloading.FileChangedReloadingStrategy;
 import org.apache.log4j.Logger;
@@ -87,6 +94,24 @@ public final class ContentServerConfiguration {
         return config.getString("maxFileLength[@file]");
     }
 
+    /***************************************************************************************************************
+     * get boolean if large source images in the file system should be memory mapped for reading
+     * 
+     * @return value if memory mapping should be used as Boolean
+     ***************************************************************************************************************/
+    public Boolean getMemoryMappingUse() {
+        return config.getBoolean("memoryMapping[@use]", true);
+    }
+
+    /***************************************************************************************************************
+     * get minimal file length of source images to be memory mapped, smaller files are read with normal file access
+     * 
+     * @return minimal file length in bytes as {@link Long}
+     ***************************************************************************************************************/
+    public Long getMemoryMappingMinFileLength() {
+        return config.getLong("memoryMapping[@minFileLength]", 16) * 1024 * 1024;
+    }
+
     /************************************************************************************
      * get path of repository from configuration as URL-String
      * 
@@ -113,6 +138,15 @@ public final class ContentServerConfiguration {
         return config.getString("defaultRepositoryPathMets[@value]");
     }
 
+    /************************************************************************************
+     * get number of parsed METS files kept in memory, 0 disables the cache
+     * 
+     * @return number of METS files as {@link Integer}
+     ************************************************************************************/
+    public Integer getMetsCacheSize() {
+        return config.getInt("metsCache[@size]", 20);
+    }
+
     /************************************************************************************
      * get path of content cache from configuration
      * 
@@ -180,6 +214,201 @@ public final class ContentServerConfiguration {
         return config.getBoolean("thumbnailCache[@useShortFileNames]");
     }
 
+    /************************************************************************************
+     * get boolean if the content cache should be kept on disk when the server is stopped
+     * 
+     * @return value if content cache should be persistent as Boolean
+     ************************************************************************************/
+    public Boolean getContentCachePersistent() {
+        return config.getBoolean("contentCache[@persistent]", true);
+    }
+
+    /************************************************************************************
+     * get maximum heap memory of content cache from configuration
+     * 
+     * @return heap memory in MB as {@link Long}, 0 to use the value of ehcache.xml
+     ************************************************************************************/
+    public Long getContentCacheHeapSize() {
+        return config.getLong("contentCache[@heapSize]", 0);
+    }
+
+    /************************************************************************************
+     * get maximum size of a single rendered image which is kept in memory and put into the content or thumbnail cache; larger images are spooled
+     * to a temporary file and not cached
+     * 
+     * @return maximum image size in bytes as {@link Integer}
+     ************************************************************************************/
+    public Integer getContentCacheMaxImageSize() {
+        return config.getInt("contentCache[@maxImageSize]", 10) * 1024 * 1024;
+    }
+
+    /************************************************************************************
+     * get maximum off-heap memory of content cache from configuration; off-heap memory needs the BigMemory extension of ehcache
+     * 
+     * @return off-heap memory in MB as {@link Long}, 0 if no off-heap memory should be used
+     ************************************************************************************/
+    public Long getContentCacheOffHeapSize() {
+        return config.getLong("contentCache[@offHeapSize]", 0);
+    }
+
+    /************************************************************************************
+     * get boolean if the thumbnail cache should be kept on disk when the server is stopped
+     * 
+     * @return value if thumbnail cache should be persistent as Boolean
+     ************************************************************************************/
+    public Boolean getThumbnailCachePersistent() {
+        return config.getBoolean("thumbnailCache[@persistent]", true);
+    }
+
+    /************************************************************************************
+     * get maximum heap memory of thumbnail cache from configuration
+     * 
+     * @return heap memory in MB as {@link Long}, 0 to use the value of ehcache.xml
+     ************************************************************************************/
+    public Long getThumbnailCacheHeapSize() {
+        return config.getLong("thumbnailCache[@heapSize]", 0);
+    }
+
+    /************************************************************************************
+     * get maximum off-heap memory of thumbnail cache from configuration; off-heap memory needs the BigMemory extension of ehcache
+     * 
+     * @return off-heap memory in MB as {@link Long}, 0 if no off-heap memory should be used
+     ************************************************************************************/
+    public Long getThumbnailCacheOffHeapSize() {
+        return config.getLong("thumbnailCache[@offHeapSize]", 0);
+    }
+
+    /************************************************************************************
+     * get boolean if the number of concurrent renders should be limited per render queue
+     * 
+     * @return value if render queues should be used as Boolean
+     ************************************************************************************/
+    public Boolean getRenderQueueUse() {
+        return config.getBoolean("renderQueues[@use]", true);
+    }
+
+    /************************************************************************************
+     * get number of renders allowed at the same time in a render queue (image, thumbnail, pdf or metspdf)
+     * 
+     * @param queue name of the render queue
+     * @return number of renders as {@link Integer}
+     ************************************************************************************/
+    public Integer getRenderQueueThreads(String queue) {
+        int cpus = Runtime.getRuntime().availableProcessors();
+        int defaultThreads = queue.equals("thumbnail") ? 2 * cpus : queue.endsWith("pdf") ? Math.max(1, cpus / 2) : cpus;
+        return config.getInt("renderQueues." + queue + "[@threads]", defaultThreads);
+    }
+
+    /************************************************************************************
+     * get number of requests allowed to wait for a render in a render queue
+     * 
+     * @param queue name of the render queue
+     * @return number of waiting requests as {@link Integer}
+     ************************************************************************************/
+    public Integer getRenderQueueSize(String queue) {
+        return config.getInt("renderQueues." + queue + "[@queueSize]", queue.endsWith("pdf") ? 10 : 100);
+    }
+
+    /************************************************************************************
+     * get maximum time a request waits for a render in a render queue
+     * 
+     * @param queue name of the render queue
+     * @return maximum waiting time in seconds as {@link Integer}
+     ************************************************************************************/
+    public Integer getRenderQueueMaxWait(String queue) {
+        return config.getInt("renderQueues." + queue + "[@maxWait]", 30);
+    }
+
+    /************************************************************************************
+     * get time a client should wait before it retries a request rejected because the render queue was full
+     * 
+     * @return time in seconds for the Retry-After header as {@link Integer}
+     ************************************************************************************/
+    public Integer getRenderQueueRetryAfter() {
+        return config.getInt("renderQueues[@retryAfter]", 10);
+    }
+
+    /************************************************************************************
+     * get default edge length of tiles for tile requests from configuration
+     * 
+     * @return tile size in pixel as {@link Integer}
+     ************************************************************************************/
+    public Integer getTileSize() {
+        return config.getInt("tiles[@size]", 256);
+    }
+
+    /************************************************************************************
+     * get maximum edge length of tiles which can be requested with the parameter tilesize
+     * 
+     * @return tile size in pixel as {@link Integer}
+     ************************************************************************************/
+    public Integer getTileMaxSize() {
+        return config.getInt("tiles[@maxSize]", 1024);
+    }
+
+    /************************************************************************************
+     * get maximum width of images rendered for IIIF requests, larger images are scaled down
+     * 
+     * @return width in pixel as {@link Integer}, 0 for no limit
+     ************************************************************************************/
+    public Integer getIiifMaxWidth() {
+        return config.getInt("iiif[@maxWidth]", 10000);
+    }
+
+    /************************************************************************************
+     * get maximum height of images rendered for IIIF requests, larger images are scaled down
+     * 
+     * @return height in pixel as {@link Integer}, 0 for no limit
+     ************************************************************************************/
+    public Integer getIiifMaxHeight() {
+        return config.getInt("iiif[@maxHeight]", 10000);
+    }
+
+    /************************************************************************************
+     * get maximum number of pixels of images rendered for IIIF requests, larger images are scaled down
+     * 
+     * @return number of pixels as {@link Long}, 0 for no limit
+     ************************************************************************************/
+    public Long getIiifMaxArea() {
+        return config.getLong("iiif[@maxArea]", 0);
+    }
+
+    /************************************************************************************
+     * get number of threads rendering the thumbnails of batch requests, shared by all requests
+     * 
+     * @return number of threads as {@link Integer}
+     ************************************************************************************/
+    public Integer getThumbnailBatchThreads() {
+        return config.getInt("thumbnailBatch[@threads]", Runtime.getRuntime().availableProcessors());
+    }
+
+    /************************************************************************************
+     * get maximum number of thumbnails sent for one batch request
+     * 
+     * @return number of thumbnails as {@link Integer}
+     ************************************************************************************/
+    public Integer getThumbnailBatchMaxImages() {
+        return config.getInt("thumbnailBatch[@maxImages]", 500);
+    }
+
+    /************************************************************************************
+     * get maximum width and height of the thumbnails of batch requests, larger sizes are reduced to it
+     * 
+     * @return size in pixel as {@link Integer}
+     ************************************************************************************/
+    public Integer getThumbnailBatchMaxSize() {
+        return config.getInt("thumbnailBatch[@maxSize]", 800);
+    }
+
+    /************************************************************************************
+     * get maximum number of pixels of one sprite image (columns x rows cells)
+     * 
+     * @return number of pixels as {@link Long}
+     ************************************************************************************/
+    public Long getThumbnailBatchMaxSpritePixels() {
+        return config.getLong("thumbnailBatch[@maxSpritePixels]", 16777216);
+    }
+
     /************************************************************************************
      * get boolean if pdf cache should be used or not
      * 
@@ -216,6 +445,93 @@ public final class ContentServerConfiguration {
         return config.getString("pdfCache[@path]");
     }
 
+    /************************************************************************************
+     * get seconds a request waits for a pdf, which is written to the pdf cache by another request, before it creates the pdf itself
+     * 
+     * @return seconds to wait as {@link Integer}
+     ************************************************************************************/
+    public Integer getPdfCacheMaxWait() {
+        return config.getInt("pdfCache[@maxWait]", 120);
+    }
+
+    /************************************************************************************
+     * get boolean if the cache warm-up can be controlled by requests at all
+     * 
+     * @return value if the warm-up action is enabled as Boolean
+     ************************************************************************************/
+    public Boolean getCacheWarmUpEnabled() {
+        return config.getBoolean("cacheWarmUp[@enabled]", false);
+    }
+
+    /************************************************************************************
+     * get the remote addresses which are allowed to control the cache warm-up, by default only requests from the local host
+     * 
+     * @return allowed addresses as {@link List}
+     ************************************************************************************/
+    public List<String> getCacheWarmUpAllowedAddresses() {
+        String[] addresses = config.getStringArray("cacheWarmUp[@allowedAddresses]");
+        if (addresses.length == 0) {
+            return Arrays.asList("127.0.0.1", "0:0:0:0:0:0:0:1", "::1");
+        }
+        List<String> result = new ArrayList<String>();
+        for (String address : addresses) {
+            if (address.trim().length() > 0) {
+                result.add(address.trim());
+            }
+        }
+        return result;
+    }
+
+    /************************************************************************************
+     * get the url of the content server the cache warm-up requests the pdf files from, e.g. http://localhost:8080/contentServer/gcs/gcs
+     * 
+     * @return url as {@link String}, null if not defined
+     ************************************************************************************/
+    public String getCacheWarmUpPdfUrl() {
+        return config.getString("cacheWarmUp[@pdfUrl]");
+    }
+
+    /************************************************************************************
+     * get number of threads rendering images for the cache warm-up in the background
+     * 
+     * @return number of threads as {@link Integer}
+     ************************************************************************************/
+    public Integer getCacheWarmUpThreads() {
+        return config.getInt("cacheWarmUp[@threads]", 1);
+    }
+
+    /************************************************************************************
+     * get boolean if the cache warm-up should create the pdf files of the METS files too
+     * 
+     * @return value if pdf files should be created as Boolean
+     ************************************************************************************/
+    public Boolean getCacheWarmUpPdf() {
+        return config.getBoolean("cacheWarmUp[@pdf]", false);
+    }
+
+    /************************************************************************************
+     * get the images rendered for every page by the cache warm-up; every image is configured by the attributes of an &lt;image&gt; element,
+     * which are the same as the request parameters of the image action, e.g. &lt;image thumbnail="true" width="200" format="jpg"/&gt;
+     * 
+     * @return one map of request parameters per image
+     ************************************************************************************/
+    @SuppressWarnings("unchecked")
+    public List<Map<String, String[]>> getCacheWarmUpImages() {
+        List<Map<String, String[]>> images = new ArrayList<Map<String, String[]>>();
+        for (HierarchicalConfiguration image : (List<HierarchicalConfiguration>) config.configurationsAt("cacheWarmUp.image")) {
+            Map<String, String[]> params = new HashMap<String, String[]>();
+            Iterator<String> keys = image.getKeys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                if (key.startsWith("[@") && key.endsWith("]")) {
+                    params.put(key.substring(2, key.length() - 1), new String[] { image.getString(key) });
+                }
+            }
+            images.add(params);
+        }
+        return images;
+    }
+
     /************************************************************************************
      * get default resolution from configuration
      * 
@@ -328,6 +644,42 @@ public final class ContentServerConfiguration {
         return config.getBoolean("defaultPdfConfig[@alwaysCompressToJPEG]", false);
     }
 
+    /************************************************************************************
+     * get number of threads preparing page images for pdf generation in the background, shared by all pdf files
+     * 
+     * @return number of threads as {@link Integer}, 0 to prepare the pages while writing them
+     ************************************************************************************/
+    public Integer getPdfPageThreads() {
+        return config.getInt("defaultPdfConfig[@pageThreads]", Runtime.getRuntime().availableProcessors());
+    }
+
+    /************************************************************************************
+     * get number of pages, whose images are prepared in advance while a pdf page is written; limits the memory used per pdf file
+     * 
+     * @return number of pages as {@link Integer}, 0 to prepare the pages while writing them
+     ************************************************************************************/
+    public Integer getPdfPageLookAhead() {
+        return config.getInt("defaultPdfConfig[@pageLookAhead]", 2 * Runtime.getRuntime().availableProcessors());
+    }
+
+    /************************************************************************************
+     * get boolean if cached pdf files should be linearized by default
+     * 
+     * @return value if pdf files should be linearized as Boolean
+     ************************************************************************************/
+    public Boolean getPdfDefaultLinearize() {
+        return config.getBoolean("defaultPdfConfig[@linearize]", false);
+    }
+
+    /************************************************************************************
+     * get command line of the tool, which linearizes pdf files; source and target file are added as last arguments
+     * 
+     * @return command line as {@link String}
+     ************************************************************************************/
+    public String getPdfLinearizeCommand() {
+        return config.getString("defaultPdfConfig[@linearizeCommand]", "qpdf --linearize");
+    }
+
     /************************************************************************************
      * write pdf files as PDF/A files
      * 
@@ -0,0 +1,221 @@
+/*
+ * This file is part of the ContentServer project.
+ * Visit the websites for more information. 
+ * 		- http://gdz.sub.uni-goettingen.de 
+ * 		- http://www.intranda.com 
+ * 		- http://www.digiverso.com
+ * 
+ * Copyright 2009, Center for Retrospective Digitization, Göttingen (GDZ),
+ * intranda software
+ *
+ * This is the extended version updated by intranda
+ * Copyright 2012, intranda GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.unigoettingen.sub.commons.simplemets;
+
+import gov.loc.mets.DivType;
+import gov.loc.mets.FileType;
+import gov.loc.mets.MetsDocument;
+import gov.loc.mets.MetsType.FileSec.FileGrp;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import org.apache.log4j.Logger;
+
+import de.unigoettingen.sub.commons.contentlib.servlet.model.ContentServerConfiguration;
+import de.unigoettingen.sub.commons.simplemets.exceptions.MetsException;
+import de.unigoettingen.sub.commons.util.InFlightRegistry;
+import de.unigoettingen.sub.commons.util.stream.StreamUtils;
+
+/************************************************************************************
+ * Cache of parsed METS files shared by all {@link METSParser} instances which cache IDs. A METS file is parsed once and its document, the div,
+ * file and file group lookups and the structLink section are kept as long as the file isn't modified, so all requests for the pages of a book use
+ * the same parsed file. The cache holds the configured number of files (metsCache@size), the least recently used file is removed first.
+ * 
+ * The cached structures are only read after parsing; XMLBeans synchronizes the access to a document, so they can be used by many threads.
+ * 
+ * @version 17.10.2026
+ ************************************************************************************/
+public final class METSCache {
+    private static final Logger LOGGER = Logger.getLogger(METSCache.class);
+
+    /** parsed METS files by url, in the order of their last use */
+    private static final Map<String, ParsedMETS> DOCUMENTS = new LinkedHashMap<String, ParsedMETS>(16, 0.75f, true);
+    private static final InFlightRegistry<ParsedMETS> RUNNING_PARSES = new InFlightRegistry<ParsedMETS>();
+
+    private METSCache() {
+    }
+
+    /************************************************************************************
+     * get the parsed METS file from the cache, the file is parsed if it isn't cached or if it was modified since it was parsed; files without a
+     * modification time are parsed every time
+     * 
+     * @param url the {@link URL} of the METS file
+     * @return the parsed METS file
+     * @throws MetsException
+     * @throws URISyntaxException
+     * @throws IOException
+     ************************************************************************************/
+    static ParsedMETS get(final URL url) throws MetsException, URISyntaxException, IOException {
+        final int size = ContentServerConfiguration.getInstance().getMetsCacheSize();
+        final long lastModified = getLastModified(url);
+        if (size <= 0 || lastModified <= 0) {
+            return METSParser.parse(url, lastModified);
+        }
+
+        final String key = url.toString();
+        ParsedMETS cached = lookup(key, lastModified);
+        if (cached != null) {
+            return cached;
+        }
+        try {
+            return RUNNING_PARSES.execute(key + "@" + lastModified, new Callable<ParsedMETS>() {
+                @Override
+                public ParsedMETS call() throws Exception {
+                    ParsedMETS parsed = lookup(key, lastModified);
+                    if (parsed == null) {
+                        parsed = METSParser.parse(url, lastModified);
+                        store(key, parsed, size);
+                    }
+                    return parsed;
+                }
+            });
+        } catch (MetsException e) {
+            throw e;
+        } catch (URISyntaxException e) {
+            throw e;
+        } catch (IOException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new MetsException("METS file can not be parsed: " + url, e);
+        }
+    }
+
+    /************************************************************************************
+     * remove all parsed METS files from the cache
+     ************************************************************************************/
+    public static synchronized void clear() {
+        DOCUMENTS.clear();
+    }
+
+    private static synchronized ParsedMETS lookup(String key, long lastModified) {
+        ParsedMETS parsed = DOCUMENTS.get(key);
+        if (parsed == null) {
+            return null;
+        }
+        if (parsed.getLastModified() != lastModified) {
+            LOGGER.debug("METS file was modified: " + key);
+            DOCUMENTS.remove(key);
+            return null;
+        }
+        return parsed;
+    }
+
+    private static synchronized void store(String key, ParsedMETS parsed, int size) {
+        DOCUMENTS.put(key, parsed);
+        Iterator<String> keys = DOCUMENTS.keySet().iterator();
+        while (DOCUMENTS.size() > size && keys.hasNext()) {
+            keys.next();
+            keys.remove();
+        }
+    }
+
+    /************************************************************************************
+     * get the modification time of a METS file, for http the Last-Modified header of a HEAD request is used
+     * 
+     * @param url the {@link URL} of the METS file
+     * @return the modification time or 0 if it is unknown
+     * @throws IOException
+     ************************************************************************************/
+    public static long getLastModified(URL url) throws IOException {
+        if (url.getProtocol().equalsIgnoreCase("file")) {
+            return StreamUtils.getFileFromUrl(url).lastModified();
+        }
+        if (url.getProtocol().equalsIgnoreCase("http") || url.getProtocol().equalsIgnoreCase("https")) {
+            URLConnection con = url.openConnection();
+            try {
+                ((HttpURLConnection) con).setRequestMethod("HEAD");
+                return con.getLastModified();
+            } finally {
+                ((HttpURLConnection) con).disconnect();
+            }
+        }
+        return 0;
+    }
+
+    /************************************************************************************
+     * a parsed METS file with the lookups of the {@link METSParser}, all maps are read-only
+     ************************************************************************************/
+    static final class ParsedMETS {
+        private final long lastModified;
+        private final MetsDocument mets;
+        private final Map<String, DivType> divIDs;
+        private final Map<String, FileType> fileIDs;
+        private final Map<String, FileGrp> allFileGroups;
+        private final Map<FileType, FileGrp> allFiles;
+        private final Map<String, List<String>> structLinks;
+
+        ParsedMETS(long lastModified, MetsDocument mets, Map<String, DivType> divIDs, Map<String, FileType> fileIDs,
+                Map<String, FileGrp> allFileGroups, Map<FileType, FileGrp> allFiles, Map<String, List<String>> structLinks) {
+            this.lastModified = lastModified;
+            this.mets = mets;
+            this.divIDs = Collections.unmodifiableMap(divIDs);
+            this.fileIDs = Collections.unmodifiableMap(fileIDs);
+            this.allFileGroups = Collections.unmodifiableMap(allFileGroups);
+            this.allFiles = Collections.unmodifiableMap(allFiles);
+            this.structLinks = Collections.unmodifiableMap(structLinks);
+        }
+
+        long getLastModified() {
+            return lastModified;
+        }
+
+        MetsDocument getMets() {
+            return mets;
+        }
+
+        Map<String, DivType> getDivIDs() {
+            return divIDs;
+        }
+
+        Map<String, FileType> getFileIDs() {
+            return fileIDs;
+        }
+
+        Map<String, FileGrp> getAllFileGroups() {
+            return allFileGroups;
+        }
+
+        Map<FileType, FileGrp> getAllFiles() {
+            return allFiles;
+        }
+
+        Map<String, List<String>> getStructLinks() {
+            return structLinks;
+        }
+    }
+}
@@ -90,6 +90,7 @@ public class METSParser implements StructureSource, ImageSource {
     private Map<String, FileType> fileIDs = new HashMap<String, FileType>(); // contains <file> elements which have ID attributes
     private Map<String, FileGrp> allFileGroups = new HashMap<String, FileGrp>();
     private Map<FileType, FileGrp> allFiles = new HashMap<FileType, FileGrp>();
+    private Map<String, List<String>> structLinks = null; // xlink:to values of the <smLink> elements by their xlink:from value, if IDs are cached
     private DivType uppermostlogicalDiv = null;
     private DivType uppermostphysicalDiv = null;
     protected boolean useCachedIDs = true;
@@ -149,13 +150,43 @@ public class METSParser implements StructureSource, ImageSource {
         this.useCachedIDs = cacheIDs;
 
         LOGGER.debug("METS parser instantiated");
-        this.loadMETS(); // load the METS file
-
         if (cacheIDs) {
-            readAllFILEwithID();
-            readAllDIVwithID();
-            readAllFileGroups();
+            // use the parsed METS file and its lookups from the shared cache
+            METSCache.ParsedMETS parsed = METSCache.get(inUrl);
+            metsBasepath = inUrl.getPath();
+            mets = parsed.getMets();
+            divIDs = parsed.getDivIDs();
+            fileIDs = parsed.getFileIDs();
+            allFileGroups = parsed.getAllFileGroups();
+            allFiles = parsed.getAllFiles();
+            structLinks = parsed.getStructLinks();
+        } else {
+            this.loadMETS(); // load the METS file
+        }
+    }
+
+    /*************************************************************************************
+     * parses a METS file and reads all lookups for the {@link METSCache}.
+     * 
+     * @param inUrl as {@link URL} for Mets file
+     * @param lastModified modification time of the METS file
+     * @return the parsed METS file
+     * 
+     * @throws MetsException the mets exception
+     * @throws URISyntaxException the URI syntax exception
+     * @throws IOException
+     * **********************************************************************************/
+    static METSCache.ParsedMETS parse(URL inUrl, long lastModified) throws MetsException, URISyntaxException, IOException {
+        METSParser parser = new METSParser(inUrl, false);
+        if (parser.mets == null) {
+            throw new MetsException("METS file can not be read: " + inUrl);
         }
+        parser.readAllFILEwithID();
+        parser.readAllDIVwithID();
+        parser.readAllFileGroups();
+        parser.readAllStructLinks();
+        return new METSCache.ParsedMETS(lastModified, parser.mets, parser.divIDs, parser.fileIDs, parser.allFileGroups, parser.allFiles,
+                parser.structLinks);
     }
 
     /*************************************************************************************
@@ -752,7 +783,7 @@ public class METSParser implements StructureSource, ImageSource {
         boolean notcached = false;
 
         // file not in a cached group; delete
-        if (allFiles.size() == 0) {
+        if (allFiles.size() == 0 && !useCachedIDs) {
             // files aren't cached yet, so cache them
             try {
                 readAllFileGroups();
@@ -908,6 +939,23 @@ public class METSParser implements StructureSource, ImageSource {
         }
     }
 
+    /**************************************************************************************
+     * reads all smLink elements and caches their xlink:to values by the xlink:from value in the structLinks hashMap, in the order of the METS file.
+     *************************************************************************************/
+    private void readAllStructLinks() {
+        structLinks = new HashMap<String, List<String>>();
+        String path = METS_NAMESPACEDECLARATION + " " + XLINK_NAMESPACEDECLARATION + " //mets:smLink";
+        for (XmlObject xObj : mets.selectPath(path)) {
+            SmLink smLink = (SmLink) xObj;
+            List<String> targets = structLinks.get(smLink.getFrom());
+            if (targets == null) {
+                targets = new ArrayList<String>();
+                structLinks.put(smLink.getFrom(), targets);
+            }
+            targets.add(smLink.getTo());
+        }
+    }
+
     /**************************************************************************************
      * Read list of XML Objects returned by a query.
      * 
@@ -1016,6 +1064,39 @@ public class METSParser implements StructureSource, ImageSource {
 
         // get all related ID from the appropriate smLink elements
         // the other div elements must be pages
+        List<String> relatedIDs;
+        if (structLinks != null) {
+            // the structLink section is cached
+            relatedIDs = structLinks.containsKey(dividvalue) ? structLinks.get(dividvalue) : Collections.<String> emptyList();
+        } else {
+            relatedIDs = readStructLinkTargets(dividvalue);
+        }
+
+        for (String to_id : relatedIDs) {
+            DivType result_div = this.getDIVbyID(to_id); // get the div
+            if (result_div == null) {
+                LOGGER.error("No <div> element with ID=\"to_id\" found");
+                throw new MetsException("No <div> element with ID=\"to_id\" found");
+            }
+            LOGGER.debug("Added div with ID=\"" + result_div.getID() + "\" and TYPE=\"" + result_div.getTYPE() + "\" to list");
+            resultlist.add(result_div);
+        } // end of for
+
+        LOGGER.debug("");
+        return resultlist;
+    }
+
+    /*************************************************************************************
+     * Retrieves the xlink:to values of all smLink elements with the given xlink:from value.
+     * 
+     * @param dividvalue value of ID attribute of &lt;div&gt;
+     * 
+     * @return the ID values of the related divs
+     * 
+     * @throws MetsException
+     ************************************************************************************/
+    private List<String> readStructLinkTargets(String dividvalue) throws MetsException {
+        List<String> resultlist = new ArrayList<String>();
 
         // do queries by iterating of all MatchingMetadata elements
         // String queryExpression =
@@ -1038,16 +1119,7 @@ public class METSParser implements StructureSource, ImageSource {
             try {
                 SmLink result_smLink = (SmLink) xObj;
                 // get the xlink to attribute
-                String to_id = result_smLink.getTo();
-
-                DivType result_div = this.getDIVbyID(to_id); // get the div
-                if (result_div == null) {
-                    LOGGER.error("No <div> element with ID=\"to_id\" found");
-                    throw new MetsException("No <div> element with ID=\"to_id\" found");
-                }
-                LOGGER.debug("Added div with ID=\"" + result_div.getID() + "\" and TYPE=\"" + result_div.getTYPE() + "\" to list");
-                resultlist.add(result_div);
-
+                resultlist.add(result_smLink.getTo());
             } catch (ClassCastException e) {
                 // the found element is NOT a div
                 // the METS is not according to standard
@@ -1056,7 +1128,6 @@ public class METSParser implements StructureSource, ImageSource {
             }
         } // end of for
 
-        LOGGER.debug("");
         return resultlist;
     }
 
@@ -6,12 +6,25 @@ public class CacheObject implements Serializable {
 
     private static final long serialVersionUID = 5644747498518951177L;
     private byte[] data;
+    private String mimeType;
 
     public CacheObject(byte[] in) {
         data = in;
     }
 
+    public CacheObject(byte[] in, String mimeType) {
+        data = in;
+        this.mimeType = mimeType;
+    }
+
     public byte[] getData() {
         return data;
     }
+
+    /**
+     * @return the mime type of the cached data, or null for entries cached without it
+     */
+    public String getMimeType() {
+        return mimeType;
+    }
 }
@@ -0,0 +1,89 @@
+/*
+ * This file is part of the ContentServer project.
+ * Visit the websites for more information. 
+ * 		- http://gdz.sub.uni-goettingen.de 
+ * 		- http://www.intranda.com 
+ * 		- http://www.digiverso.com
+ * 
+ * Copyright 2009, Center for Retrospective Digitization, Göttingen (GDZ),
+ * intranda software
+ *
+ * This is the extended version updated by intranda
+ * Copyright 2012, intranda GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.unigoettingen.sub.commons.util;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.apache.log4j.Logger;
+
+/************************************************************************************
+ * Registry of computations currently running for a given key. The first thread asking for a key runs the computation, all other threads asking for
+ * the same key while it is running wait for it and get the same result (or exception). Once the computation is finished the key is removed again,
+ * so results are not kept here; use a cache for that.
+ * 
+ * @param <V> type of the computed result
+ ************************************************************************************/
+public class InFlightRegistry<V> {
+    private static final Logger LOGGER = Logger.getLogger(InFlightRegistry.class);
+
+    private final ConcurrentMap<String, FutureTask<V>> inFlight = new ConcurrentHashMap<String, FutureTask<V>>();
+
+    /************************************************************************************
+     * run the given computation for the key, or wait for the one which is already running for it
+     * 
+     * @param key the key identifying the result
+     * @param producer the computation, only called if no other thread is currently computing the key
+     * @return the result of the computation
+     * @throws Exception the exception thrown by the computation
+     ************************************************************************************/
+    public V execute(String key, Callable<V> producer) throws Exception {
+        FutureTask<V> task = new FutureTask<V>(producer);
+        FutureTask<V> running = inFlight.putIfAbsent(key, task);
+        if (running == null) {
+            try {
+                task.run();
+            } finally {
+                inFlight.remove(key, task);
+            }
+            running = task;
+        } else {
+            LOGGER.debug("waiting for running computation of " + key);
+        }
+
+        try {
+            return running.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+
+    /************************************************************************************
+     * @return number of keys currently computed
+     ************************************************************************************/
+    public int size() {
+        return inFlight.size();
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * This file is part of the ContentServer project.
+ * Visit the websites for more information. 
+ * 		- http://gdz.sub.uni-goettingen.de 
+ * 		- http://www.intranda.com 
+ * 		- http://www.digiverso.com
+ * 
+ * Copyright 2009, Center for Retrospective Digitization, Göttingen (GDZ),
+ * intranda software
+ *
+ * This is the extended version updated by intranda
+ * Copyright 2012, intranda GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.unigoettingen.sub.commons.util.file;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The Class CaseInsensitiveFileIndex finds files by their name ignoring the case. The file names of a directory are listed only once and kept in
+ * an index, which is rebuilt when the modification date of the directory changes. The index holds a limited number of directories, the least
+ * recently used ones are dropped first.
+ */
+public class CaseInsensitiveFileIndex {
+
+    /** The maximum number of directories in the index. */
+    private static final int MAX_DIRECTORIES = 1000;
+
+    private static final Map<File, DirectoryEntry> INDEX = new LinkedHashMap<File, DirectoryEntry>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<File, DirectoryEntry> eldest) {
+            return size() > MAX_DIRECTORIES;
+        }
+    };
+
+    /**
+     * Finds a file ignoring the case of its name. The directory is not searched ignoring the case.
+     * 
+     * @param file the file to find
+     * 
+     * @return the file itself if it exists, the existing file with the same name in another case or null if there is no such file
+     */
+    public static File findFile(File file) {
+        if (file.isFile()) {
+            return file;
+        }
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (dir == null) {
+            return null;
+        }
+        DirectoryEntry entry = getEntry(dir);
+        if (entry == null) {
+            return null;
+        }
+        String name = entry.names.get(file.getName().toLowerCase(Locale.ENGLISH));
+        if (name == null) {
+            return null;
+        }
+        return new File(dir, name);
+    }
+
+    /**
+     * Removes a directory from the index, the next search in this directory lists the files again.
+     * 
+     * @param dir the directory
+     */
+    public static void invalidate(File dir) {
+        synchronized (INDEX) {
+            INDEX.remove(dir.getAbsoluteFile());
+        }
+    }
+
+    /**
+     * Removes all directories from the index.
+     */
+    public static void invalidateAll() {
+        synchronized (INDEX) {
+            INDEX.clear();
+        }
+    }
+
+    /**
+     * Gets the index entry of a directory, the entry is created if it doesn't exist or if the directory changed since it was created.
+     * 
+     * @param dir the directory
+     * 
+     * @return the entry or null if the directory can't be listed
+     */
+    private static DirectoryEntry getEntry(File dir) {
+        long lastModified = dir.lastModified();
+        DirectoryEntry entry;
+        synchronized (INDEX) {
+            entry = INDEX.get(dir);
+        }
+        if (entry != null && entry.lastModified == lastModified) {
+            return entry;
+        }
+
+        String[] files = dir.list();
+        if (files == null) {
+            invalidate(dir);
+            return null;
+        }
+        entry = new DirectoryEntry(lastModified);
+        for (String name : files) {
+            entry.names.put(name.toLowerCase(Locale.ENGLISH), name);
+        }
+        synchronized (INDEX) {
+            INDEX.put(dir, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * The file names of a directory, the key is the name in lower case.
+     */
+    private static class DirectoryEntry {
+        private final long lastModified;
+        private final Map<String, String> names = new HashMap<String, String>();
+
+        public DirectoryEntry(long lastModified) {
+            this.lastModified = lastModified;
+        }
+    }
+
+}
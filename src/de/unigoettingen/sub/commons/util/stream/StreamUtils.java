@@ -34,9 +34,13 @@ import java.net.URLConnection;
 import java.net.URLDecoder;
 import java.util.Properties;
 
+import javax.imageio.stream.FileImageInputStream;
+import javax.imageio.stream.ImageInputStream;
+
 import org.apache.commons.codec.binary.Base64;
 
 import de.unigoettingen.sub.commons.contentlib.servlet.model.ContentServerConfiguration;
+import de.unigoettingen.sub.commons.util.file.CaseInsensitiveFileIndex;
 
 public class StreamUtils {
 
@@ -130,39 +134,7 @@ public class StreamUtils {
             }
             inStream = con.getInputStream();
         } else if (url.getProtocol().equalsIgnoreCase("file")) {
-            int size = url.openConnection().getContentLength();
-            Integer maxFileLength = ContentServerConfiguration.getInstance().getMaxFileLength();
-
-            if (maxFileLength != 0 && size > maxFileLength) {
-                // System.out.println("File " + url.getFile() + " is too large (" + size + "/" + maxFileLength + ")");
-                return getInputStreamFromUrl(new URL(ContentServerConfiguration.getInstance().getErrorFile()));
-            }
-            String filepath = url.getFile();
-
-            filepath = URLDecoder.decode(filepath, System.getProperty("file.encoding"));
-
-            File f = new File(filepath);
-            if (!f.isFile()) {
-                // try for a file with different suffix case
-                int suffixIndex = filepath.lastIndexOf('.');
-                f = new File(filepath.substring(0, suffixIndex) + filepath.substring(suffixIndex).toLowerCase());
-                if (!f.isFile()) {
-                    f = new File(filepath.substring(0, suffixIndex) + filepath.substring(suffixIndex).toUpperCase());
-                }
-                // search all files in this directory for this case-insensitive name
-                if (!f.isFile()) {
-                    File[] files = f.getParentFile().listFiles();
-                    if (files != null) {
-                        for (File file : files) {
-                            if (file.getName().compareToIgnoreCase(f.getName()) == 0) {
-                                f = file;
-                                break;
-                            }
-                        }
-                    }
-                }
-            }
-            inStream = new FileInputStream(f);
+            inStream = new FileInputStream(getFileFromUrl(url));
 
         } else if (url.getProtocol().length() == 0) {
             String filepath = url.getFile();
@@ -177,6 +149,53 @@ public class StreamUtils {
         return inStream;
     }
 
+    /************************************************************************************
+     * get the {@link File} for a file: URL; if there is no file with exactly this name, a file with the same name in different case is used; if
+     * the file is larger than the configured maximum file length, the configured error file is used instead
+     * 
+     * @param url the file url
+     * @return the {@link File} for the url, it doesn't exist if no matching file was found
+     * @throws IOException
+     ************************************************************************************/
+    public static File getFileFromUrl(URL url) throws IOException {
+        String filepath = url.getFile();
+        /* decode the path of the url, a plus sign is no space there */
+        filepath = URLDecoder.decode(filepath.replace("+", "%2B"), System.getProperty("file.encoding"));
+
+        File f = new File(filepath);
+        if (!f.isFile()) {
+            // search this directory for this case-insensitive name
+            File found = CaseInsensitiveFileIndex.findFile(f);
+            if (found != null) {
+                f = found;
+            }
+        }
+
+        Integer maxFileLength = ContentServerConfiguration.getInstance().getMaxFileLength();
+        if (maxFileLength != 0 && f.length() > maxFileLength) {
+            // System.out.println("File " + url.getFile() + " is too large (" + size + "/" + maxFileLength + ")");
+            return getFileFromUrl(new URL(ContentServerConfiguration.getInstance().getErrorFile()));
+        }
+        return f;
+    }
+
+    /************************************************************************************
+     * open an {@link ImageInputStream} for an image file; large files are mapped into memory if configured, smaller files are read with random
+     * access
+     * 
+     * @param file the image file
+     * @return {@link ImageInputStream} for the file
+     * @throws IOException
+     ************************************************************************************/
+    public static ImageInputStream openImageInputStream(File file) throws IOException {
+        ContentServerConfiguration config = ContentServerConfiguration.getInstance();
+        long length = file.length();
+        if (config.getMemoryMappingUse() && length >= config.getMemoryMappingMinFileLength() && length <= Integer.MAX_VALUE) {
+            return new MappedFileImageInputStream(file);
+        }
+        return new FileImageInputStream(file);
+    }
+
     /************************************************************************************
      * get {@link InputStream} from given URL using a basis path
      * 
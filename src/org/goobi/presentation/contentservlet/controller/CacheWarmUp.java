@@ -0,0 +1,335 @@
+/*
+ * This file is part of the ContentServer project.
+ * Visit the websites for more information. 
+ * 		- http://gdz.sub.uni-goettingen.de 
+ * 		- http://www.intranda.com 
+ * 		- http://www.digiverso.com
+ * 
+ * Copyright 2009, Center for Retrospective Digitization, Göttingen (GDZ),
+ * intranda software
+ *
+ * This is the extended version updated by intranda
+ * Copyright 2012, intranda GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goobi.presentation.contentservlet.controller;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import de.unigoettingen.sub.commons.contentlib.exceptions.RenderQueueFullException;
+import de.unigoettingen.sub.commons.contentlib.servlet.controller.GetImageAction;
+import de.unigoettingen.sub.commons.contentlib.servlet.model.ContentServerConfiguration;
+
+/************************************************************************************
+ * background job filling the caches for a list of METS files, so that the first visitor of a new volume doesn't wait for the images to be rendered
+ * 
+ * the configured images of every page are rendered into the content and thumbnail cache by a small pool of low priority threads; the pdf files
+ * are requested from the content server itself, so that they are written to the pdf cache and limited by the render queue for pdf files. Only one
+ * job runs at a time, it can be cancelled and reports its progress.
+ * 
+ * @version 17.10.2026
+ ************************************************************************************/
+public final class CacheWarmUp implements Runnable {
+    private static final Logger LOGGER = Logger.getLogger(CacheWarmUp.class);
+
+    private static final int PDF_RETRIES = 3;
+    private static final int RENDER_RETRIES = 3;
+    private static final int PDF_READ_TIMEOUT = 30 * 60 * 1000;
+
+    /** the job started last, null if no job was started yet */
+    private static CacheWarmUp current = null;
+
+    private final List<String> metsFiles;
+    private final String metsFileGroup;
+    private final String pdfUrl;
+    private final List<Map<String, String[]>> images;
+    private final ExecutorService renderPool;
+    private final long startTime = System.currentTimeMillis();
+
+    private volatile boolean cancelled = false;
+    private volatile boolean finished = false;
+    private volatile long endTime = 0;
+    private volatile String currentMetsFile = null;
+    private final AtomicInteger metsFilesDone = new AtomicInteger();
+    private final AtomicInteger metsFilesFailed = new AtomicInteger();
+    private final AtomicInteger imagesQueued = new AtomicInteger();
+    private final AtomicInteger imagesDone = new AtomicInteger();
+    private final AtomicInteger imagesFailed = new AtomicInteger();
+    private final AtomicInteger pdfsDone = new AtomicInteger();
+    private final AtomicInteger pdfsFailed = new AtomicInteger();
+
+    /************************************************************************************
+     * Constructor for CacheWarmUp
+     * 
+     * @param metsFiles names of the METS files relative to the METS repository
+     * @param metsFileGroup file group of the images
+     * @param pdfUrl url of the content server for pdf requests, null if no pdf files should be created
+     * @param images request parameters of the images rendered for every page
+     * @param threads number of images rendered at the same time
+     ************************************************************************************/
+    private CacheWarmUp(List<String> metsFiles, String metsFileGroup, String pdfUrl, List<Map<String, String[]>> images, int threads) {
+        this.metsFiles = metsFiles;
+        this.metsFileGroup = metsFileGroup;
+        this.pdfUrl = pdfUrl;
+        this.images = images;
+        this.renderPool = Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "cache-warm-up-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+    }
+
+    /************************************************************************************
+     * start a new job in the background
+     * 
+     * @param metsFiles names of the METS files relative to the METS repository
+     * @param metsFileGroup file group of the images
+     * @param pdfUrl url of the content server for pdf requests, null if no pdf files should be created
+     * @return the started job
+     * @throws IllegalStateException if another job is still running
+     ************************************************************************************/
+    public static synchronized CacheWarmUp start(List<String> metsFiles, String metsFileGroup, String pdfUrl) throws IllegalStateException {
+        if (current != null && !current.isFinished()) {
+            throw new IllegalStateException("cache warm-up is already running");
+        }
+        ContentServerConfiguration config = ContentServerConfiguration.getInstance();
+        current = new CacheWarmUp(new ArrayList<String>(metsFiles), metsFileGroup, pdfUrl, config.getCacheWarmUpImages(), config.getCacheWarmUpThreads());
+        Thread thread = new Thread(current, "cache-warm-up");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+        LOGGER.info("Started cache warm-up for " + metsFiles.size() + " METS files");
+        return current;
+    }
+
+    /************************************************************************************
+     * get the job started last
+     * 
+     * @return the job or null if no job was started yet
+     ************************************************************************************/
+    public static synchronized CacheWarmUp getCurrent() {
+        return current;
+    }
+
+    /************************************************************************************
+     * cancel the running job, if there is one
+     ************************************************************************************/
+    public static synchronized void cancelCurrent() {
+        if (current != null) {
+            current.cancel();
+        }
+    }
+
+    /************************************************************************************
+     * cancel the job; images which are currently rendered are finished, all others are skipped
+     ************************************************************************************/
+    public void cancel() {
+        if (!finished) {
+            LOGGER.info("Cancelling cache warm-up");
+        }
+        cancelled = true;
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    @Override
+    public void run() {
+        try {
+            for (String metsFile : metsFiles) {
+                if (cancelled) {
+                    break;
+                }
+                currentMetsFile = metsFile;
+                try {
+                    warmUp(metsFile);
+                    metsFilesDone.incrementAndGet();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch (Exception e) {
+                    LOGGER.warn("Cache warm-up failed for METS file " + metsFile, e);
+                    metsFilesFailed.incrementAndGet();
+                }
+            }
+        } finally {
+            currentMetsFile = null;
+            renderPool.shutdown();
+            endTime = System.currentTimeMillis();
+            finished = true;
+            LOGGER.info("Cache warm-up " + (cancelled ? "cancelled: " : "finished: ") + getStatus());
+        }
+    }
+
+    /************************************************************************************
+     * render all images of a METS file and request its pdf file
+     ************************************************************************************/
+    private void warmUp(String metsFile) throws Exception {
+        List<URL> pages = GetMetsPdfAction.getPageUrls(metsFile, metsFileGroup, null);
+
+        /* render the images of all pages, the pool limits the images rendered at the same time */
+        List<Future<?>> renders = new ArrayList<Future<?>>();
+        for (URL page : pages) {
+            for (Map<String, String[]> image : images) {
+                final Map<String, String[]> params = new HashMap<String, String[]>(image);
+                params.put("sourcepath", new String[] { page.toString() });
+                imagesQueued.incrementAndGet();
+                renders.add(renderPool.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        render(params);
+                    }
+                }));
+            }
+        }
+        for (Future<?> render : renders) {
+            try {
+                render.get();
+            } catch (ExecutionException e) {
+                LOGGER.debug("Cache warm-up render failed", e);
+            }
+        }
+
+        if (pdfUrl != null && !cancelled) {
+            requestPdf(metsFile);
+        }
+    }
+
+    /************************************************************************************
+     * render one image into the cache, unless the job is cancelled; busy render queues are retried
+     ************************************************************************************/
+    private void render(Map<String, String[]> params) {
+        for (int attempt = 0; attempt < RENDER_RETRIES && !cancelled; attempt++) {
+            try {
+                if (new GetImageAction().getImageHolder(params) != null) {
+                    imagesDone.incrementAndGet();
+                    return;
+                }
+                break;
+            } catch (RenderQueueFullException e) {
+                /* the render queue is busy with other requests */
+                try {
+                    Thread.sleep(ContentServerConfiguration.getInstance().getRenderQueueRetryAfter() * 1000L);
+                } catch (InterruptedException e2) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            } catch (Exception e) {
+                LOGGER.debug("Cache warm-up can't render " + params.get("sourcepath")[0], e);
+                break;
+            }
+        }
+        if (!cancelled) {
+            imagesFailed.incrementAndGet();
+        }
+    }
+
+    /************************************************************************************
+     * request the pdf file from the content server and discard it, the content server writes it to the pdf cache; busy render queues are retried
+     ************************************************************************************/
+    private void requestPdf(String metsFile) throws IOException, InterruptedException {
+        URL url = new URL(pdfUrl + "?action=pdf&metsFile=" + URLEncoder.encode(metsFile, "UTF-8") + "&metsFileGroup="
+                + URLEncoder.encode(metsFileGroup, "UTF-8"));
+        for (int attempt = 0; attempt < PDF_RETRIES && !cancelled; attempt++) {
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            connection.setReadTimeout(PDF_READ_TIMEOUT);
+            try {
+                int status = connection.getResponseCode();
+                if (status == HttpURLConnection.HTTP_UNAVAILABLE) {
+                    /* render queue for pdf files is full */
+                    int retryAfter = connection.getHeaderFieldInt("Retry-After", 10);
+                    Thread.sleep(retryAfter * 1000L);
+                    continue;
+                }
+                InputStream in = connection.getInputStream();
+                try {
+                    byte[] buffer = new byte[64 * 1024];
+                    while (in.read(buffer) != -1 && !cancelled) {
+                        /* discard, the pdf is in the cache now */
+                    }
+                } finally {
+                    in.close();
+                }
+                String contentType = connection.getContentType();
+                if (status == HttpURLConnection.HTTP_OK && contentType != null && contentType.startsWith("application/pdf")) {
+                    pdfsDone.incrementAndGet();
+                } else {
+                    LOGGER.warn("Cache warm-up got status " + status + " (" + contentType + ") for pdf of " + metsFile);
+                    pdfsFailed.incrementAndGet();
+                }
+                return;
+            } finally {
+                connection.disconnect();
+            }
+        }
+        if (!cancelled) {
+            LOGGER.warn("Cache warm-up gave up requesting pdf of " + metsFile + ", render queue is busy");
+            pdfsFailed.incrementAndGet();
+        }
+    }
+
+    /************************************************************************************
+     * get the progress of the job as tab separated values, matching {@link #getStatusHeader()}
+     * 
+     * @return one line with the progress
+     ************************************************************************************/
+    public String getStatus() {
+        StringBuilder status = new StringBuilder();
+        status.append(finished ? (cancelled ? "cancelled" : "finished") : (cancelled ? "cancelling" : "running")).append("\t");
+        status.append(metsFiles.size()).append("\t");
+        status.append(metsFilesDone.get()).append("\t");
+        status.append(metsFilesFailed.get()).append("\t");
+        status.append(imagesQueued.get()).append("\t");
+        status.append(imagesDone.get()).append("\t");
+        status.append(imagesFailed.get()).append("\t");
+        status.append(pdfsDone.get()).append("\t");
+        status.append(pdfsFailed.get()).append("\t");
+        status.append(((finished ? endTime : System.currentTimeMillis()) - startTime) / 1000).append("\t");
+        String metsFile = currentMetsFile;
+        status.append(metsFile == null ? "-" : metsFile);
+        return status.toString();
+    }
+
+    /************************************************************************************
+     * get the names of the values in {@link #getStatus()}
+     * 
+     * @return one line with the names
+     ************************************************************************************/
+    public static String getStatusHeader() {
+        return "state\tmetsFiles\tmetsFilesDone\tmetsFilesFailed\timages\timagesDone\timagesFailed\tpdfsDone\tpdfsFailed\tseconds\tcurrentMetsFile";
+    }
+}
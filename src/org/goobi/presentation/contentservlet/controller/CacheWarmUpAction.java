@@ -0,0 +1,198 @@
+/*
+ * This file is part of the ContentServer project.
+ * Visit the websites for more information. 
+ * 		- http://gdz.sub.uni-goettingen.de 
+ * 		- http://www.intranda.com 
+ * 		- http://www.digiverso.com
+ * 
+ * Copyright 2009, Center for Retrospective Digitization, Göttingen (GDZ),
+ * intranda software
+ *
+ * This is the extended version updated by intranda
+ * Copyright 2012, intranda GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goobi.presentation.contentservlet.controller;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.servlet.ServletContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+
+import de.unigoettingen.sub.commons.contentlib.servlet.controller.Action;
+import de.unigoettingen.sub.commons.contentlib.servlet.model.ContentServerConfiguration;
+
+/************************************************************************************
+ * action controlling the {@link CacheWarmUp} job: starts it for some METS files or all METS files of a folder, cancels it and shows its progress
+ * as plain text
+ * 
+ * @version 17.10.2026
+ ************************************************************************************/
+public class CacheWarmUpAction implements Action {
+    private static final Logger LOGGER = Logger.getLogger(CacheWarmUpAction.class);
+
+    /************************************************************************************
+     * run the command of the request and write the state of the job to the response
+     * 
+     * @param request {@link HttpServletRequest} of ServletRequest
+     * @param response {@link HttpServletResponse} for writing to response output stream
+     * @throws IOException
+     * @throws URISyntaxException
+     ************************************************************************************/
+    @Override
+    public void run(ServletContext servletContext, HttpServletRequest request, HttpServletResponse response) throws IOException,
+            URISyntaxException {
+        ContentServerConfiguration config = ContentServerConfiguration.getInstance();
+        /* the warm-up causes a lot of load, only allowed clients may control it */
+        if (!config.getCacheWarmUpEnabled() || !config.getCacheWarmUpAllowedAddresses().contains(request.getRemoteAddr())) {
+            LOGGER.warn("cache warm-up request from " + request.getRemoteAddr() + " denied");
+            response.sendError(HttpServletResponse.SC_FORBIDDEN, "cache warm-up is not allowed");
+            return;
+        }
+        validateParameters(request);
+
+        String command = getCommand(request);
+        if (command.equals("start")) {
+            String metsFileGroup = request.getParameter("metsFileGroup");
+            if (StringUtils.isBlank(metsFileGroup)) {
+                metsFileGroup = config.getDefaultMetsFileGroup();
+            }
+            /* pdf files are requested from the configured content server url, never from a url given by the client */
+            String pdfUrl = null;
+            if (config.getCacheWarmUpPdf() && config.getPdfCacheUse()) {
+                pdfUrl = config.getCacheWarmUpPdfUrl();
+                if (StringUtils.isBlank(pdfUrl)) {
+                    LOGGER.warn("no pdfUrl defined for the cache warm-up, pdf files are not created");
+                    pdfUrl = null;
+                }
+            }
+            CacheWarmUp.start(getMetsFiles(request, config), metsFileGroup, pdfUrl);
+        } else if (command.equals("cancel")) {
+            CacheWarmUp.cancelCurrent();
+        }
+
+        StringBuilder status = new StringBuilder();
+        status.append(CacheWarmUp.getStatusHeader()).append("\n");
+        CacheWarmUp job = CacheWarmUp.getCurrent();
+        if (job != null) {
+            status.append(job.getStatus()).append("\n");
+        }
+        byte[] data = status.toString().getBytes("UTF-8");
+        response.setContentType("text/plain;charset=UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        response.setContentLength(data.length);
+        ServletOutputStream output = response.getOutputStream();
+        output.write(data);
+        output.flush();
+        output.close();
+    }
+
+    /************************************************************************************
+     * get the METS files from the parameters metsFile and metsFolder
+     * 
+     * @param request {@link HttpServletRequest} of ServletRequest
+     * @param config instance of ContentServerConfiguration
+     * @return names of the METS files relative to the METS repository
+     * @throws URISyntaxException
+     ************************************************************************************/
+    private List<String> getMetsFiles(HttpServletRequest request, ContentServerConfiguration config) throws URISyntaxException {
+        List<String> metsFiles = new ArrayList<String>();
+        if (StringUtils.isNotBlank(request.getParameter("metsFile"))) {
+            for (String metsFile : request.getParameter("metsFile").split(",")) {
+                if (StringUtils.isNotBlank(metsFile)) {
+                    metsFiles.add(metsFile.trim());
+                }
+            }
+        }
+        String metsFolder = request.getParameter("metsFolder");
+        if (StringUtils.isNotBlank(metsFolder)) {
+            metsFolder = StringUtils.removeEnd(metsFolder.trim(), "/");
+            File folder = new File(new URI(config.getRepositoryPathMets() + metsFolder));
+            String[] names = folder.list();
+            if (names == null) {
+                throw new IllegalArgumentException("METS folder can not be read: " + metsFolder);
+            }
+            Arrays.sort(names);
+            for (String name : names) {
+                if (name.endsWith(".xml")) {
+                    metsFiles.add(metsFolder + "/" + name);
+                }
+            }
+        }
+        return metsFiles;
+    }
+
+    /************************************************************************************
+     * check if one of the comma separated paths leaves the METS repository by a parent directory
+     * 
+     * @param paths value of the parameter metsFile or metsFolder, may be null
+     * @return true if a path contains ".." as path element
+     ************************************************************************************/
+    private boolean isOutsideRepository(String paths) {
+        if (paths == null) {
+            return false;
+        }
+        for (String element : paths.split("[,/\\\\]")) {
+            if (element.trim().equals("..")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private String getCommand(HttpServletRequest request) {
+        String command = request.getParameter("command");
+        return StringUtils.isBlank(command) ? "status" : command.trim().toLowerCase();
+    }
+
+    /************************************************************************************
+     * validate all parameters of request for the cache warm-up, throws IllegalArgumentException if one request parameter is not valid
+     * 
+     * @param request {@link HttpServletRequest} of ServletRequest
+     * @throws IllegalArgumentException
+     ************************************************************************************/
+    @Override
+    public void validateParameters(HttpServletRequest request) throws IllegalArgumentException {
+        String command = getCommand(request);
+        if (!command.equals("start") && !command.equals("cancel") && !command.equals("status")) {
+            throw new IllegalArgumentException("command has to be start, cancel or status");
+        }
+        if (command.equals("start")) {
+            ContentServerConfiguration config = ContentServerConfiguration.getInstance();
+            if (config.getRepositoryPathMets() == null) {
+                throw new IllegalArgumentException("no repository url defined");
+            }
+            if (StringUtils.isBlank(request.getParameter("metsFile")) && StringUtils.isBlank(request.getParameter("metsFolder"))) {
+                throw new IllegalArgumentException("parameter metsFile or metsFolder is required");
+            }
+            if (StringUtils.isNotBlank(request.getParameter("metsFolder")) && !config.getRepositoryPathMets().startsWith("file:")) {
+                throw new IllegalArgumentException("parameter metsFolder can only be used with a METS repository in the file system");
+            }
+            if (isOutsideRepository(request.getParameter("metsFile")) || isOutsideRepository(request.getParameter("metsFolder"))) {
+                throw new IllegalArgumentException("parameters metsFile and metsFolder have to be paths below the METS repository");
+            }
+        }
+    }
+}
@@ -30,10 +30,32 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.Arrays;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.comparator.LastModifiedFileComparator;
 import org.apache.log4j.Logger;
 
 import de.unigoettingen.sub.commons.contentlib.exceptions.CacheException;
@@ -42,6 +64,13 @@ import de.unigoettingen.sub.commons.contentlib.exceptions.CacheException;
  * the class ContentCache manages the cache for the generated pdf files, which are requested more than one time, until its size exeeds the configured
  * maximum size
  * 
+ * the size and the order of last access of all cached files are kept in memory; the index is built once from the cache folder and updated when
+ * files are added, read or deleted, so that no directory has to be scanned while a request is waiting. If the maximum size is exceeded, the least
+ * recently used files are deleted in the background until the cache is below 75% of its maximum size.
+ * 
+ * new files are written to a temporary file and renamed when they are complete, so that no request reads a partly written file. Requests for a
+ * file, which is currently written, can wait for it instead of creating it a second time.
+ * 
  * @version 13.01.2009
  * @author Steffen Hankiewicz
  * @author Igor Toker
@@ -50,6 +79,19 @@ public class ContentCache {
     private File cacheFolder;
     private long maxSizeInMB;
 
+    /** file names of the cached files with their size in bytes, ordered from least to most recently used; guarded by itself */
+    private final LinkedHashMap<String, Long> index = new LinkedHashMap<String, Long>(16, 0.75f, true);
+    /** sum of the sizes in the index; guarded by index */
+    private long currentSize = 0;
+    private final AtomicBoolean cleanupScheduled = new AtomicBoolean(false);
+    /** file names of the files which are currently written, requests can wait for the latch */
+    private final ConcurrentMap<String, CountDownLatch> building = new ConcurrentHashMap<String, CountDownLatch>();
+
+    private static final String TEMP_SUFFIX = ".part";
+
+    /** Thread cleaning all caches in the background, created on first use. */
+    private static ExecutorService cleanupExecutor = null;
+
     private static final Logger LOGGER = Logger.getLogger(ContentCache.class);
 
     /************************************************************************************
@@ -78,27 +120,111 @@ public class ContentCache {
             throw new CacheException("Cache folder not writeable: " + cacheFolder.getAbsolutePath());
         }
 
+        buildIndex();
+
         /* check cache folder size */
         if (isCacheSizeExceeded()) {
             // long currentSize = FileUtils.sizeOfDirectory(cacheFolder);
             // long maxSize = maxSizeInMB * 1024 * 1024;
-            cleanCache();
+            scheduleCleanup();
             // throw new CacheException("Given maximum size of cache (" + maxSize + " byte) already exeeded ("
             // + currentSize + " byte)");
         }
     }
 
-    @SuppressWarnings("unchecked")
-    public void cleanCache() {
-        long limit = (long) ((maxSizeInMB * 1024 * 1024) * 0.75);
+    /************************************************************************************
+     * read size and last modification of all files in the cache folder once, older files are deleted first
+     ************************************************************************************/
+    private void buildIndex() {
         File[] files = cacheFolder.listFiles();
-        Arrays.sort(files, LastModifiedFileComparator.LASTMODIFIED_COMPARATOR);
+        if (files == null) {
+            return;
+        }
+        final Map<File, Long> lastModified = new HashMap<File, Long>();
         for (File file : files) {
-            FileUtils.deleteQuietly(file);
-            if (FileUtils.sizeOfDirectory(cacheFolder) < limit) {
-                return;
+            /* temporary files from an interrupted server are incomplete */
+            if (file.getName().endsWith(TEMP_SUFFIX)) {
+                FileUtils.deleteQuietly(file);
+            } else if (file.isFile()) {
+                lastModified.put(file, file.lastModified());
+            }
+        }
+        List<File> sortedFiles = new ArrayList<File>(lastModified.keySet());
+        Collections.sort(sortedFiles, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                long m1 = lastModified.get(f1);
+                long m2 = lastModified.get(f2);
+                return m1 < m2 ? -1 : (m1 == m2 ? 0 : 1);
+            }
+        });
+        synchronized (index) {
+            index.clear();
+            currentSize = 0;
+            for (File file : sortedFiles) {
+                long size = file.length();
+                index.put(file.getName(), size);
+                currentSize += size;
+            }
+        }
+        LOGGER.debug("Indexed " + sortedFiles.size() + " files with " + currentSize + " bytes in cache " + cacheFolder.getAbsolutePath());
+    }
+
+    /************************************************************************************
+     * delete the least recently used files until the cache is below 75% of its maximum size
+     ************************************************************************************/
+    public void cleanCache() {
+        long limit = (long) ((maxSizeInMB * 1024 * 1024) * 0.75);
+        List<String> evicted = new ArrayList<String>();
+        synchronized (index) {
+            Iterator<Map.Entry<String, Long>> it = index.entrySet().iterator();
+            while (currentSize >= limit && it.hasNext()) {
+                Map.Entry<String, Long> entry = it.next();
+                evicted.add(entry.getKey());
+                currentSize -= entry.getValue();
+                it.remove();
+            }
+        }
+        /* delete the files outside of the lock, requests can use the index meanwhile */
+        for (String name : evicted) {
+            FileUtils.deleteQuietly(new File(cacheFolder, name));
+        }
+        LOGGER.debug("Deleted " + evicted.size() + " files from cache " + cacheFolder.getAbsolutePath());
+    }
+
+    /************************************************************************************
+     * run {@link #cleanCache()} in the background, unless it is already scheduled
+     ************************************************************************************/
+    private void scheduleCleanup() {
+        if (!cleanupScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        getCleanupExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    cleanCache();
+                } catch (RuntimeException e) {
+                    LOGGER.error("Error while cleaning cache " + cacheFolder.getAbsolutePath(), e);
+                } finally {
+                    cleanupScheduled.set(false);
+                }
             }
+        });
+    }
+
+    private static synchronized ExecutorService getCleanupExecutor() {
+        if (cleanupExecutor == null) {
+            cleanupExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "content-cache-cleanup");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
         }
+        return cleanupExecutor;
     }
 
     /*************************************************************************************
@@ -109,7 +235,123 @@ public class ContentCache {
      ************************************************************************************/
     public boolean cacheContains(String inId, String suffix) {
         File file = getFileForId(inId, suffix);
-        return file.exists() && file.length() > 0;
+        Long size;
+        synchronized (index) {
+            size = index.get(file.getName());
+        }
+        if (size == null || size == 0) {
+            return false;
+        }
+        /* file was removed from outside */
+        if (!file.exists()) {
+            remove(file.getName());
+            return false;
+        }
+        return true;
+    }
+
+    /*************************************************************************************
+     * add a completely written file with given id to the index of the cache; the least recently used files are deleted in the background if the
+     * cache is too big now
+     * 
+     * @param inId ID as String (no file name, no file extension)
+     ************************************************************************************/
+    public void register(String inId, String suffix) {
+        File file = getFileForId(inId, suffix);
+        long size = file.length();
+        if (size == 0) {
+            return;
+        }
+        long maxSize = maxSizeInMB * 1024 * 1024;
+        boolean exceeded;
+        synchronized (index) {
+            Long oldSize = index.put(file.getName(), size);
+            if (oldSize != null) {
+                currentSize -= oldSize;
+            }
+            currentSize += size;
+            exceeded = currentSize >= maxSize;
+        }
+        if (exceeded) {
+            scheduleCleanup();
+        }
+    }
+
+    /*************************************************************************************
+     * start writing the file with given id to the cache; only one request at a time gets true for an id, it has to call
+     * {@link #finishBuilding(String, String, boolean)} afterwards
+     * 
+     * @param inId ID as String (no file name, no file extension)
+     * @return true, if the file should be written to {@link #getTempFileForId(String, String)} by the caller, false if another request writes it
+     ************************************************************************************/
+    public boolean startBuilding(String inId, String suffix) {
+        return building.putIfAbsent(getFileForId(inId, suffix).getName(), new CountDownLatch(1)) == null;
+    }
+
+    /*************************************************************************************
+     * finish writing the file with given id; a complete file is renamed from its temporary file name to its name in the cache and added to the
+     * index, an incomplete file is deleted. Requests waiting for the file are released in both cases.
+     * 
+     * @param inId ID as String (no file name, no file extension)
+     * @param complete true, if the temporary file was written completely
+     ************************************************************************************/
+    public void finishBuilding(String inId, String suffix, boolean complete) {
+        File file = getFileForId(inId, suffix);
+        File tempFile = getTempFileForId(inId, suffix);
+        try {
+            if (complete && tempFile.length() > 0) {
+                Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                register(inId, suffix);
+            } else {
+                FileUtils.deleteQuietly(tempFile);
+            }
+        } catch (IOException e) {
+            LOGGER.error("File " + tempFile.getAbsolutePath() + " can not be moved to " + file.getAbsolutePath(), e);
+            FileUtils.deleteQuietly(tempFile);
+        } finally {
+            CountDownLatch latch = building.remove(file.getName());
+            if (latch != null) {
+                latch.countDown();
+            }
+        }
+    }
+
+    /*************************************************************************************
+     * wait until the file with given id is written by another request
+     * 
+     * @param inId ID as String (no file name, no file extension)
+     * @param timeoutInSeconds maximum time to wait
+     * @return true, if the file is in the cache now; false if it was not written at the moment or could not be written in time
+     ************************************************************************************/
+    public boolean waitForBuilding(String inId, String suffix, long timeoutInSeconds) {
+        CountDownLatch latch = building.get(getFileForId(inId, suffix).getName());
+        if (latch == null) {
+            return false;
+        }
+        LOGGER.debug("Waiting for file " + inId + " which is written to cache by another request");
+        try {
+            if (!latch.await(timeoutInSeconds, TimeUnit.SECONDS)) {
+                return false;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return cacheContains(inId, suffix);
+    }
+
+    /*************************************************************************************
+     * remove a file name from the index of the cache
+     * 
+     * @param name name of the file in the cache folder
+     ************************************************************************************/
+    private void remove(String name) {
+        synchronized (index) {
+            Long size = index.remove(name);
+            if (size != null) {
+                currentSize -= size;
+            }
+        }
     }
 
     /*************************************************************************************
@@ -130,20 +372,13 @@ public class ContentCache {
         if (!file.exists() || !file.canRead()) {
             throw new CacheException("File with given ID (" + inId + ") can not be read. (" + file.getAbsolutePath() + ")");
         }
-        // Update Timestamp to be able to find old cache items
-        file.setLastModified(System.currentTimeMillis());
+        touch(file);
 
         /*
          * -------------------------------- write File to OutputStream --------------------------------
          */
         try {
-            FileInputStream in = new FileInputStream(file);
-            byte[] buf = new byte[1024];
-            int len;
-            while ((len = in.read(buf)) > 0) {
-                out.write(buf, 0, len);
-            }
-            in.close();
+            transfer(file, 0, file.length(), out);
         } catch (FileNotFoundException e) {
             throw new CacheException("File " + file.getAbsolutePath() + " does not exist.", e);
         } catch (IOException e) {
@@ -151,6 +386,202 @@ public class ContentCache {
         }
     }
 
+    /*************************************************************************************
+     * write file from cache with given id to the servlet response; conditional requests (If-None-Match, If-Modified-Since) and requests for a
+     * single byte range (Range, If-Range) are answered as defined in RFC 7232 and RFC 7233. Content type and name of the file have to be set
+     * before.
+     * 
+     * if the servlet container supports sendfile (e.g. Tomcat with NIO or APR connector), the container writes the file without copying it
+     * through the JVM; else the file is transferred via a {@link FileChannel}
+     * 
+     * @param request {@link HttpServletRequest} with the headers of the request
+     * @param response {@link HttpServletResponse} where to write the cached file
+     * @param inId ID as String (no file name, no file extension)
+     * @throws CacheException
+     ************************************************************************************/
+    public void writeToResponse(HttpServletRequest request, HttpServletResponse response, String inId, String suffix) throws CacheException {
+        if (!cacheContains(inId, suffix)) {
+            throw new CacheException("File does not exist in cache.");
+        }
+        File file = getFileForId(inId, suffix);
+        if (!file.exists() || !file.canRead()) {
+            throw new CacheException("File with given ID (" + inId + ") can not be read. (" + file.getAbsolutePath() + ")");
+        }
+        touch(file);
+
+        long length = file.length();
+        long lastModified = file.lastModified();
+        String etag = "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + "\"";
+        response.setHeader("Accept-Ranges", "bytes");
+        response.setHeader("ETag", etag);
+        response.setDateHeader("Last-Modified", lastModified);
+
+        try {
+            /* -------------------------------- conditional request -------------------------------- */
+            String ifNoneMatch = request.getHeader("If-None-Match");
+            if (ifNoneMatch != null) {
+                if (matchesEtag(ifNoneMatch, etag)) {
+                    response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                    return;
+                }
+            } else {
+                long ifModifiedSince = getDateHeader(request, "If-Modified-Since");
+                if (ifModifiedSince != -1 && lastModified / 1000 <= ifModifiedSince / 1000) {
+                    response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                    return;
+                }
+            }
+
+            /* -------------------------------- range request -------------------------------- */
+            long start = 0;
+            long end = length - 1;
+            String range = request.getHeader("Range");
+            if (range != null && isIfRangeValid(request, etag, lastModified)) {
+                long[] byteRange = parseRange(range, length);
+                if (byteRange == null) {
+                    response.setHeader("Content-Range", "bytes */" + length);
+                    response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                    return;
+                }
+                if (byteRange.length == 2) {
+                    start = byteRange[0];
+                    end = byteRange[1];
+                    response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                    response.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + length);
+                }
+            }
+            response.setHeader("Content-Length", String.valueOf(end - start + 1));
+
+            /* -------------------------------- write the bytes -------------------------------- */
+            if (Boolean.TRUE.equals(request.getAttribute("org.apache.tomcat.sendfile.support"))) {
+                request.setAttribute("org.apache.tomcat.sendfile.filename", file.getAbsolutePath());
+                request.setAttribute("org.apache.tomcat.sendfile.start", Long.valueOf(start));
+                request.setAttribute("org.apache.tomcat.sendfile.end", Long.valueOf(end + 1));
+                return;
+            }
+            transfer(file, start, end - start + 1, response.getOutputStream());
+        } catch (FileNotFoundException e) {
+            throw new CacheException("File " + file.getAbsolutePath() + " does not exist.", e);
+        } catch (IOException e) {
+            throw new CacheException("IO-Error while writing file to response", e);
+        }
+    }
+
+    /*************************************************************************************
+     * parse the value of a Range header
+     * 
+     * @param range value of the header
+     * @param length length of the file
+     * @return first and last byte of the range; an empty array if the whole file should be sent (unknown unit, several ranges or syntax error),
+     *         null if the range is not satisfiable
+     ************************************************************************************/
+    static long[] parseRange(String range, long length) {
+        String value = range.trim();
+        if (!value.startsWith("bytes=") || value.indexOf(',') != -1) {
+            return new long[0];
+        }
+        value = value.substring("bytes=".length()).trim();
+        int dash = value.indexOf('-');
+        if (dash == -1) {
+            return new long[0];
+        }
+        try {
+            String first = value.substring(0, dash).trim();
+            String last = value.substring(dash + 1).trim();
+            long start;
+            long end;
+            if (first.isEmpty()) {
+                /* suffix range: the last bytes of the file */
+                long suffixLength = Long.parseLong(last);
+                if (suffixLength <= 0 || length == 0) {
+                    return null;
+                }
+                start = Math.max(0, length - suffixLength);
+                end = length - 1;
+            } else {
+                start = Long.parseLong(first);
+                end = last.isEmpty() ? length - 1 : Math.min(Long.parseLong(last), length - 1);
+                if (end < start) {
+                    return last.isEmpty() || Long.parseLong(last) >= start ? null : new long[0];
+                }
+            }
+            if (start >= length) {
+                return null;
+            }
+            return new long[] { start, end };
+        } catch (NumberFormatException e) {
+            return new long[0];
+        }
+    }
+
+    /*************************************************************************************
+     * check the If-Range header, a range is only sent if the file was not changed since the client got the first part
+     ************************************************************************************/
+    private static boolean isIfRangeValid(HttpServletRequest request, String etag, long lastModified) {
+        String ifRange = request.getHeader("If-Range");
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.trim().startsWith("\"") || ifRange.trim().startsWith("W/")) {
+            return ifRange.trim().equals(etag);
+        }
+        long date = getDateHeader(request, "If-Range");
+        return date != -1 && lastModified / 1000 == date / 1000;
+    }
+
+    private static boolean matchesEtag(String header, String etag) {
+        for (String candidate : header.split(",")) {
+            String value = candidate.trim();
+            if (value.startsWith("W/")) {
+                value = value.substring(2);
+            }
+            if (value.equals("*") || value.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long getDateHeader(HttpServletRequest request, String name) {
+        try {
+            return request.getDateHeader(name);
+        } catch (IllegalArgumentException e) {
+            return -1;
+        }
+    }
+
+    /*************************************************************************************
+     * mark a cached file as used, so that it is deleted later when the cache is cleaned; the modification date of the file is not changed, it is
+     * used to validate the cached file by the clients
+     ************************************************************************************/
+    private void touch(File file) {
+        synchronized (index) {
+            index.get(file.getName());
+        }
+    }
+
+    /*************************************************************************************
+     * copy a part of a file to an {@link OutputStream} via {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}
+     ************************************************************************************/
+    private static void transfer(File file, long start, long count, OutputStream out) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            WritableByteChannel target = Channels.newChannel(out);
+            long position = start;
+            long end = start + count;
+            while (position < end) {
+                long transferred = channel.transferTo(position, end - position, target);
+                if (transferred <= 0) {
+                    break;
+                }
+                position += transferred;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
     /*************************************************************************************
      * remove file with given id from cache
      * 
@@ -159,7 +590,8 @@ public class ContentCache {
      ************************************************************************************/
     public void delete(String inId, String suffix) throws CacheException {
         File file = getFileForId(inId, suffix);
-        if (cacheContains(inId, suffix)) {
+        remove(file.getName());
+        if (file.exists()) {
             if (!file.delete()) {
                 throw new CacheException("File " + file.getAbsolutePath() + " can not be deleted.");
             }
@@ -173,17 +605,16 @@ public class ContentCache {
      * @throws CacheException
      ************************************************************************************/
     public boolean isCacheSizeExceeded() throws CacheException {
-        LOGGER.debug("Checking cache size");
-        long currentSize = FileUtils.sizeOfDirectory(cacheFolder);
         long maxSize = maxSizeInMB * 1024 * 1024;
-        LOGGER.debug("Current cache size = " + currentSize);
-        if (currentSize >= maxSize) {
-            LOGGER.debug("Cleaning cache");
-            cleanCache();
-            currentSize = FileUtils.sizeOfDirectory(cacheFolder);
-            LOGGER.debug("Done cleaning cache");
+        long size;
+        synchronized (index) {
+            size = currentSize;
+        }
+        if (size >= maxSize) {
+            LOGGER.debug("Current cache size = " + size + ", cleaning cache in background");
+            scheduleCleanup();
         }
-        return (currentSize >= maxSize);
+        return (size >= maxSize);
     }
 
     /*************************************************************************************
@@ -195,4 +626,14 @@ public class ContentCache {
     public File getFileForId(String inId, String suffix) {
         return new File(cacheFolder, inId + "." + suffix);
     }
+
+    /*************************************************************************************
+     * get temporary File for given cacheID, which is written until the file is complete
+     * 
+     * @param inId
+     * @return temporary File for given ID in the cache folder
+     ************************************************************************************/
+    public File getTempFileForId(String inId, String suffix) {
+        return new File(cacheFolder, inId + "." + suffix + TEMP_SUFFIX);
+    }
 }
@@ -36,18 +36,24 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.TreeMap;
 
 import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
 
@@ -61,10 +67,13 @@ import com.lowagie.text.pdf.PdfWriter;
 import de.unigoettingen.sub.commons.contentlib.exceptions.CacheException;
 import de.unigoettingen.sub.commons.contentlib.exceptions.ContentLibException;
 import de.unigoettingen.sub.commons.contentlib.exceptions.ContentLibPdfException;
+import de.unigoettingen.sub.commons.contentlib.exceptions.PDFManagerException;
+import de.unigoettingen.sub.commons.contentlib.exceptions.RenderQueueFullException;
 import de.unigoettingen.sub.commons.contentlib.exceptions.WatermarkException;
 import de.unigoettingen.sub.commons.contentlib.imagelib.ContentLibUtil;
 import de.unigoettingen.sub.commons.contentlib.imagelib.ImageManipulator;
 import de.unigoettingen.sub.commons.contentlib.imagelib.Watermark;
+import de.unigoettingen.sub.commons.contentlib.pdflib.PDFLinearizer;
 import de.unigoettingen.sub.commons.contentlib.pdflib.PDFManager;
 import de.unigoettingen.sub.commons.contentlib.pdflib.PDFManager.PdfPageSize;
 import de.unigoettingen.sub.commons.contentlib.pdflib.PDFTitlePage;
@@ -73,10 +82,12 @@ import de.unigoettingen.sub.commons.contentlib.servlet.ServletWatermark;
 import de.unigoettingen.sub.commons.contentlib.servlet.Util;
 import de.unigoettingen.sub.commons.contentlib.servlet.controller.Action;
 import de.unigoettingen.sub.commons.contentlib.servlet.controller.ContentServer;
+import de.unigoettingen.sub.commons.contentlib.servlet.controller.RenderScheduler;
 import de.unigoettingen.sub.commons.contentlib.servlet.model.ContentServerConfiguration;
 import de.unigoettingen.sub.commons.simplemets.METSParser;
 import de.unigoettingen.sub.commons.simplemets.SimplePDFMetadataExtractor;
 import de.unigoettingen.sub.commons.simplemets.SimpleStructureMetadataExtractor;
+import de.unigoettingen.sub.commons.simplemets.exceptions.MetsException;
 import de.unigoettingen.sub.commons.util.datasource.Structure;
 import de.unigoettingen.sub.commons.util.datasource.UrlImage;
 
@@ -121,6 +132,9 @@ public class GetMetsPdfAction implements Action {
         ContentCache cc = ContentServer.getPdfCache();
         String myUniqueID = getContentCacheIdForRequest(request, config);
         setTargetNameAndMimeType(request, response, config);
+        boolean writingToCache = false;
+        boolean pdfComplete = false;
+        RenderScheduler scheduler = null;
         try {
             /*
              * -------------------------------- ask ContentCache, if object already exists --------------------------------
@@ -142,12 +156,28 @@ public class GetMetsPdfAction implements Action {
                 /* if cache should not be ignored and cache contains file, write it back to stream */
                 if (!ignoreCache && cc.cacheContains(myUniqueID, "pdf")) {
                     LOGGER.debug("get file from cache: " + myUniqueID);
-                    cc.writeToStream(response.getOutputStream(), myUniqueID, "pdf");
+                    cc.writeToResponse(request, response, myUniqueID, "pdf");
+                    return;
+                } else if (!ignoreCache && cc.waitForBuilding(myUniqueID, "pdf", config.getPdfCacheMaxWait())) {
+                    /* another request has just written the file to the cache */
+                    LOGGER.debug("get file from cache after waiting: " + myUniqueID);
+                    cc.writeToResponse(request, response, myUniqueID, "pdf");
                     return;
                 } else if (ignoreCache == false) {
                     LOGGER.debug("file not found in cache: " + myUniqueID);
                 }
 
+                /*
+                 * -------------------------------- wait for a free render slot, the pdf has to be created --------------------------------
+                 */
+                scheduler = RenderScheduler.acquireSlot(RenderScheduler.METS_PDF);
+
+                /*
+                 * -------------------------------- send the response headers before parsing the METS file, so that clients and proxies don't time
+                 * out on large volumes; errors from now on are sent as pdf --------------------------------
+                 */
+                response.flushBuffer();
+
                 /*
                  * -------------------------------- if Cache is not used, parse mets file name and add it to repository path
                  * --------------------------------
@@ -184,41 +214,7 @@ public class GetMetsPdfAction implements Action {
                 /*
                  * -------------------------------- check divID as parameter, else use upper most divID --------------------------------
                  */
-                String divID = request.getParameter("divID");
-                DivType pdfdiv = null;
-                if (StringUtils.isNotBlank(divID)) {
-                    pdfdiv = metsparser.getDIVbyID(divID);
-                    // check if the METS file is a monograph, volume or multivolume file
-                } else {
-                    DivType uplogdiv = metsparser.getUppermostLogicalDiv();
-                    if (uplogdiv == null) {
-                        throw new ContentLibPdfException("Can't create PDF; div seems to be an anchor.");
-                    }
-
-                    // check, if we have <mptr> as children
-                    List<Mptr> mptrs = uplogdiv.getMptrList();
-                    if ((mptrs == null) || (mptrs.size() == 0)) {
-                        // no mptr - must be a monograph
-                        // in this case the uppermost logical id is the one we are looking for
-                        pdfdiv = uplogdiv;
-                    } else {
-                        // check, if we have a physical structmap
-                        DivType physDiv = metsparser.getUppermostPhysicalDiv();
-                        if (physDiv == null) {
-                            // it is a multivolume or a periodical or anything like this
-                            // in this case the uppermost logical div is the one for which we create the PDF
-                            pdfdiv = uplogdiv;
-                        } else {
-                            // it is the first child div; this represents the volume
-
-                            List<DivType> children = uplogdiv.getDivList();
-                            if ((children == null) || (children.size() == 0)) {
-                                throw new ContentLibPdfException("Can't create PDF; can't find a div");
-                            }
-                            pdfdiv = children.get(0); // the first child
-                        }
-                    }
-                }
+                DivType pdfdiv = getDivForPdf(metsparser, request.getParameter("divID"));
                 spme.calculateMetadata(pdfdiv, metsparser);
                 metsparser.getAllFilesForRelatedDivs(pdfdiv.getID()); // get page names
 
@@ -306,18 +302,20 @@ public class GetMetsPdfAction implements Action {
                 /*
                  * -------------------------------- write pdf to response stream (and cache) --------------------------------
                  */
-                /* remove file from cache, if cache should be used and file present */
-                if (cc != null) {
-                    cc.delete(myUniqueID, "pdf");
-                }
-                /* if cache size is exceeded write it to response stream only */
-                if (cc != null && !cc.isCacheSizeExceeded()) {
+                /*
+                 * write to a temporary file, which replaces the file in the cache when it is complete; if cache size is exceeded or another request
+                 * writes the same file write it to response stream only
+                 */
+                if (cc != null && !cc.isCacheSizeExceeded() && cc.startBuilding(myUniqueID, "pdf")) {
+                    writingToCache = true;
                     LOGGER.info("write file to cache and servlet response: " + cc.getFileForId(myUniqueID, "pdf"));
-                    myOutStream = new CacheOutputStream(cc.getFileForId(myUniqueID, "pdf"), response.getOutputStream());
+                    myOutStream = new CacheOutputStream(cc.getTempFileForId(myUniqueID, "pdf"), response.getOutputStream());
                 } else if (cc == null) {
                     LOGGER.info("file will not be written to cache, cache is deactivated in configuration");
                 } else if (cc.isCacheSizeExceeded()) {
                     LOGGER.info("file will not be written to cache, maximum cache size exceeded defined configuration");
+                } else {
+                    LOGGER.info("file will not be written to cache, it is written by another request");
                 }
             } catch (NullPointerException e) {
                 throw new NullPointerException("Nullpointer occured before pdf-generation");
@@ -325,7 +323,12 @@ public class GetMetsPdfAction implements Action {
             /* write to stream */
             if (pdfmanager != null) {
                 pdfmanager.createPDF(myOutStream, getPageSize(request), myWatermark);
+                pdfComplete = true;
             }
+        } catch (RenderQueueFullException e) {
+            /* nothing has been written yet, the servlet rejects the request */
+            myOutStream = null;
+            throw e;
         } catch (Exception e) {
             LOGGER.error("error during pdf generation (" + e.getClass().getName() + ")", e);
             Document pdfdoc = new Document();
@@ -377,8 +380,7 @@ public class GetMetsPdfAction implements Action {
                 } catch (ExceptionConverter e2) {
                     LOGGER.warn("Caught ExceptionConverter object");
                 } finally {
-
-                    /* on errors remove incomplete file from cache */
+                    /* the incomplete file of this request is discarded by finishBuilding */
                     try {
                         if (myOutStream != null) {
                             myOutStream.flush();
@@ -387,19 +389,139 @@ public class GetMetsPdfAction implements Action {
                     } catch (Exception e2) {
                         LOGGER.debug("Caught unknown Exception");
                     }
-                    if (cc != null && cc.cacheContains(myUniqueID, "pdf")) {
-                        cc.delete(myUniqueID, "pdf");
-                    }
                 }
             }
         } finally {
-            if (myOutStream != null) {
-                myOutStream.flush();
-                myOutStream.close();
+            try {
+                if (myOutStream != null) {
+                    myOutStream.flush();
+                    myOutStream.close();
+                }
+            } finally {
+                /* move the complete file into the cache or remove the incomplete one, e.g. if the client aborted the download */
+                if (writingToCache) {
+                    try {
+                        if (pdfComplete && Boolean.parseBoolean(getParameterFromRequestOrConfig("linearize", request))) {
+                            linearizeCachedPdf(cc, myUniqueID, config);
+                        }
+                    } finally {
+                        cc.finishBuilding(myUniqueID, "pdf", pdfComplete);
+                    }
+                }
+                if (scheduler != null) {
+                    scheduler.release();
+                }
             }
         }
     }
 
+    /************************************************************************************
+     * get the div of the METS file for which the pdf is created: the given div, or for monographs and multivolume works the uppermost logical div,
+     * or for volumes the first child of the uppermost logical div
+     * 
+     * @param metsparser the parsed METS file
+     * @param divID ID of the requested div, may be blank
+     * @return the div for the pdf
+     * @throws MetsException
+     * @throws ContentLibPdfException if there is no div for a pdf
+     ************************************************************************************/
+    static DivType getDivForPdf(METSParser metsparser, String divID) throws MetsException, ContentLibPdfException {
+        DivType pdfdiv = null;
+        if (StringUtils.isNotBlank(divID)) {
+            pdfdiv = metsparser.getDIVbyID(divID);
+            // check if the METS file is a monograph, volume or multivolume file
+        } else {
+            DivType uplogdiv = metsparser.getUppermostLogicalDiv();
+            if (uplogdiv == null) {
+                throw new ContentLibPdfException("Can't create PDF; div seems to be an anchor.");
+            }
+
+            // check, if we have <mptr> as children
+            List<Mptr> mptrs = uplogdiv.getMptrList();
+            if ((mptrs == null) || (mptrs.size() == 0)) {
+                // no mptr - must be a monograph
+                // in this case the uppermost logical id is the one we are looking for
+                pdfdiv = uplogdiv;
+            } else {
+                // check, if we have a physical structmap
+                DivType physDiv = metsparser.getUppermostPhysicalDiv();
+                if (physDiv == null) {
+                    // it is a multivolume or a periodical or anything like this
+                    // in this case the uppermost logical div is the one for which we create the PDF
+                    pdfdiv = uplogdiv;
+                } else {
+                    // it is the first child div; this represents the volume
+
+                    List<DivType> children = uplogdiv.getDivList();
+                    if ((children == null) || (children.size() == 0)) {
+                        throw new ContentLibPdfException("Can't create PDF; can't find a div");
+                    }
+                    pdfdiv = children.get(0); // the first child
+                }
+            }
+        }
+        return pdfdiv;
+    }
+
+    /************************************************************************************
+     * get the url of a METS file in the METS repository
+     * 
+     * @param metsFile name of the METS file relative to the METS repository, the extension .xml is optional
+     * @return the url of the METS file
+     * @throws MalformedURLException
+     ************************************************************************************/
+    static URL getMetsUrl(String metsFile) throws MalformedURLException {
+        String metsFileName = metsFile.endsWith(".xml") ? metsFile : metsFile + ".xml";
+        return new URL(ContentServerConfiguration.getInstance().getRepositoryPathMets() + metsFileName);
+    }
+
+    /************************************************************************************
+     * get the urls of all page images of a METS file in the order of the pages
+     * 
+     * @param metsFile name of the METS file relative to the METS repository, the extension .xml is optional
+     * @param metsFileGroup file group of the images
+     * @param divID ID of the div with the pages, if blank the pages of the div for the pdf of the whole METS file are used
+     * @return the urls of the images
+     * @throws MetsException
+     * @throws ContentLibPdfException if there is no div with pages
+     * @throws URISyntaxException
+     * @throws IOException
+     ************************************************************************************/
+    static List<URL> getPageUrls(String metsFile, String metsFileGroup, String divID) throws MetsException, ContentLibPdfException,
+            URISyntaxException, IOException {
+        METSParser metsparser = new METSParser(getMetsUrl(metsFile), true);
+        metsparser.setFilegroupsuseattributevalue(metsFileGroup);
+        DivType div = getDivForPdf(metsparser, divID);
+        metsparser.getAllFilesForRelatedDivs(div.getID());
+        List<URL> pageUrls = new ArrayList<URL>();
+        for (UrlImage page : new TreeMap<Integer, UrlImage>(metsparser.getImageMap()).values()) {
+            pageUrls.add(page.getURL());
+        }
+        return pageUrls;
+    }
+
+    /************************************************************************************
+     * replace the temporary file of a cached pdf with a linearized version; the client of this request already got the pdf as it was created,
+     * the linearized file is sent for the following requests. If linearization fails, the original file is cached.
+     * 
+     * @param cc the pdf cache
+     * @param inId ID of the pdf in the cache
+     * @param config instance of ContentServerConfiguration
+     ************************************************************************************/
+    private void linearizeCachedPdf(ContentCache cc, String inId, ContentServerConfiguration config) {
+        File pdfFile = cc.getTempFileForId(inId, "pdf");
+        File linearizedFile = cc.getTempFileForId(inId, "linearized.pdf");
+        try {
+            PDFLinearizer.linearize(pdfFile, linearizedFile, config.getPdfLinearizeCommand());
+            Files.move(linearizedFile.toPath(), pdfFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (PDFManagerException e) {
+            LOGGER.warn("pdf file is cached without linearization", e);
+        } catch (IOException e) {
+            LOGGER.warn("pdf file is cached without linearization", e);
+            FileUtils.deleteQuietly(linearizedFile);
+        }
+    }
+
     /************************************************************************************
      * set some properties depending on config file
      * 
@@ -561,6 +683,9 @@ public class GetMetsPdfAction implements Action {
             myId += "_" + getParameterFromRequestOrConfig("pdftitlepage", request);
             myId += "_" + getParameterFromRequestOrConfig("pagesize", request);
         }
+        if (Boolean.parseBoolean(getParameterFromRequestOrConfig("linearize", request))) {
+            myId += "_linearized";
+        }
         return myId;
     }
 
@@ -588,6 +713,9 @@ public class GetMetsPdfAction implements Action {
             if (inParam.equals("pagesize")) {
                 return config.getPdfDefaultPageSize();
             }
+            if (inParam.equals("linearize")) {
+                return config.getPdfDefaultLinearize().toString();
+            }
         }
         return "";
     }
@@ -0,0 +1,366 @@
+/*
+ * This file is part of the ContentServer project.
+ * Visit the websites for more information. 
+ * 		- http://gdz.sub.uni-goettingen.de 
+ * 		- http://www.intranda.com 
+ * 		- http://www.digiverso.com
+ * 
+ * Copyright 2009, Center for Retrospective Digitization, Göttingen (GDZ),
+ * intranda software
+ *
+ * This is the extended version updated by intranda
+ * Copyright 2012, intranda GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goobi.presentation.contentservlet.controller;
+
+import java.awt.Color;
+import java.awt.image.RenderedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import javax.servlet.ServletContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.Element;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+
+import de.unigoettingen.sub.commons.contentlib.exceptions.CacheException;
+import de.unigoettingen.sub.commons.contentlib.exceptions.ContentLibException;
+import de.unigoettingen.sub.commons.contentlib.exceptions.RenderQueueFullException;
+import de.unigoettingen.sub.commons.contentlib.imagelib.ImageFileFormat;
+import de.unigoettingen.sub.commons.contentlib.imagelib.ImageHolder;
+import de.unigoettingen.sub.commons.contentlib.imagelib.ImageInterpreter;
+import de.unigoettingen.sub.commons.contentlib.imagelib.ImageManipulator;
+import de.unigoettingen.sub.commons.contentlib.servlet.controller.ContentServer;
+import de.unigoettingen.sub.commons.contentlib.servlet.controller.RenderScheduler;
+import de.unigoettingen.sub.commons.contentlib.servlet.model.ContentServerConfiguration;
+import de.unigoettingen.sub.commons.simplemets.METSCache;
+import de.unigoettingen.sub.commons.util.InFlightRegistry;
+
+/************************************************************************************
+ * Sprite action for the scroll-through preview of a volume, renders the thumbnails of all pages of a METS file into a few sprite images with a
+ * grid of cells of the same size. Without the parameter sprite a json map of the page positions is sent, with sprite=n the n-th sprite image.
+ * 
+ * the map looks like {"columns":10,"rows":10,"width":100,"height":150,"format":"jpg","sprites":2,"pages":[{"sprite":1,"x":0,"y":0,"width":98,
+ * "height":150,"url":"..."},...]}; every page is drawn at the upper left corner of its cell, pages which can't be rendered have the size 0
+ * 
+ * The sprite images and the map are built together and are cached as one object in the thumbnail cache.
+ * 
+ * @version 17.10.2026
+ ************************************************************************************/
+public class GetMetsSpriteAction extends GetMetsThumbnailBatchAction {
+    private static final Logger LOGGER = Logger.getLogger(GetMetsSpriteAction.class);
+
+    private static final int DEFAULT_CELL_WIDTH = 100;
+    private static final int DEFAULT_CELL_HEIGHT = 150;
+    private static final int DEFAULT_COLUMNS = 10;
+    private static final int DEFAULT_ROWS = 10;
+
+    /** Sprite sheets currently built, requests for the map and the sprites of the same volume arrive at the same time. */
+    private static final InFlightRegistry<SpriteSheet> RUNNING_BUILDS = new InFlightRegistry<SpriteSheet>();
+
+    /************************************************************************************
+     * send the json map or one sprite image of the sprite sheet, the sprite sheet is built if it isn't cached
+     * 
+     * @param request {@link HttpServletRequest} of ServletRequest
+     * @param response {@link HttpServletResponse} for writing to response output stream
+     * @throws IOException
+     * @throws URISyntaxException
+     * @throws ContentLibException
+     ************************************************************************************/
+    @Override
+    public void run(ServletContext servletContext, HttpServletRequest request, HttpServletResponse response) throws IOException, URISyntaxException,
+            ContentLibException {
+        validateParameters(request);
+        SpriteSheet sheet = getSpriteSheet(request);
+
+        byte[] data;
+        if (request.getParameter("sprite") == null) {
+            data = sheet.getMap();
+            response.setContentType("application/json;charset=UTF-8");
+        } else {
+            int number = Integer.parseInt(request.getParameter("sprite"));
+            if (number < 1 || number > sheet.getSpriteCount()) {
+                response.sendError(HttpServletResponse.SC_NOT_FOUND, "there are " + sheet.getSpriteCount() + " sprites");
+                return;
+            }
+            data = sheet.getSprite(number);
+            response.setContentType(sheet.getMimeType());
+        }
+        response.setContentLength(data.length);
+        ServletOutputStream output = response.getOutputStream();
+        output.write(data);
+        output.flush();
+        output.close();
+    }
+
+    /************************************************************************************
+     * get the sprite sheet from the thumbnail cache or build it
+     * 
+     * @param request {@link HttpServletRequest} of ServletRequest
+     * @return the {@link SpriteSheet}
+     * @throws IOException
+     * @throws URISyntaxException
+     * @throws ContentLibException
+     ************************************************************************************/
+    private SpriteSheet getSpriteSheet(final HttpServletRequest request) throws IOException, URISyntaxException, ContentLibException {
+        ContentServerConfiguration config = ContentServerConfiguration.getInstance();
+        final Map<String, String[]> imageParams = getImageParameters(request);
+        final int columns = getIntParameter(request, "columns", DEFAULT_COLUMNS);
+        final int rows = getIntParameter(request, "rows", DEFAULT_ROWS);
+        final String cacheKey = getCacheKey(request, imageParams, columns, rows);
+        Cache thumbnailCache = null;
+        if (config.getThumbnailCacheUse()) {
+            try {
+                thumbnailCache = ContentServer.getThumbnailCache();
+            } catch (CacheException e) {
+                LOGGER.error("CacheException", e);
+            }
+        }
+        final Cache cc = thumbnailCache;
+
+        if (cc != null) {
+            Element cached = cc.get(cacheKey);
+            if (cached != null) {
+                LOGGER.debug("get sprite sheet from cache: " + cacheKey);
+                return (SpriteSheet) cached.getObjectValue();
+            }
+        }
+        try {
+            return RUNNING_BUILDS.execute(cacheKey, new Callable<SpriteSheet>() {
+                @Override
+                public SpriteSheet call() throws Exception {
+                    if (cc != null) {
+                        Element cached = cc.get(cacheKey);
+                        if (cached != null) {
+                            return (SpriteSheet) cached.getObjectValue();
+                        }
+                    }
+                    SpriteSheet sheet = buildSpriteSheet(getSourcePaths(request), imageParams, columns, rows);
+                    if (cc != null) {
+                        cc.putIfAbsent(new Element(cacheKey, sheet));
+                    }
+                    return sheet;
+                }
+            });
+        } catch (IOException e) {
+            throw e;
+        } catch (URISyntaxException e) {
+            throw e;
+        } catch (ContentLibException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new ContentLibException("sprite sheet can not be built", e);
+        }
+    }
+
+    /************************************************************************************
+     * render the thumbnails of all pages and merge them into sprite images of columns x rows cells, one sprite image is built after the other
+     * 
+     * @param sourcePaths the page images
+     * @param imageParams parameters of the image action used for every thumbnail, width and height are the size of a cell
+     * @param columns number of cells in a row of a sprite image
+     * @param rows number of rows of a sprite image
+     * @return the {@link SpriteSheet}
+     * @throws ContentLibException
+     * @throws InterruptedException
+     ************************************************************************************/
+    private SpriteSheet buildSpriteSheet(List<String> sourcePaths, Map<String, String[]> imageParams, int columns, int rows)
+            throws ContentLibException, InterruptedException {
+        ImageFileFormat format = ImageFileFormat.getImageFileFormatFromFileExtension(imageParams.get("format")[0]);
+        int cellWidth = Integer.parseInt(imageParams.get("width")[0]);
+        int cellHeight = Integer.parseInt(imageParams.get("height")[0]);
+        int cellsPerSprite = columns * rows;
+
+        List<Future<ImageHolder>> thumbnails = renderThumbnails(sourcePaths, imageParams);
+        List<byte[]> sprites = new ArrayList<byte[]>();
+        StringBuilder pages = new StringBuilder();
+        try {
+            for (int start = 0; start < thumbnails.size(); start += cellsPerSprite) {
+                List<RenderedImage> images = new ArrayList<RenderedImage>();
+                for (int i = start; i < Math.min(start + cellsPerSprite, thumbnails.size()); i++) {
+                    RenderedImage image = readThumbnail(thumbnails.get(i), sourcePaths.get(i), format, cellWidth, cellHeight);
+                    int cell = i - start;
+                    images.add(image);
+                    pages.append(pages.length() == 0 ? "" : ",");
+                    pages.append("{\"sprite\":").append(sprites.size() + 1);
+                    pages.append(",\"x\":").append((cell % columns) * cellWidth);
+                    pages.append(",\"y\":").append((cell / columns) * cellHeight);
+                    pages.append(",\"width\":").append(image == null ? 0 : image.getWidth());
+                    pages.append(",\"height\":").append(image == null ? 0 : image.getHeight());
+                    pages.append(",\"url\":\"").append(escapeJson(sourcePaths.get(i))).append("\"}");
+                }
+                RenderScheduler scheduler = RenderScheduler.acquireSlot(RenderScheduler.THUMBNAIL);
+                try {
+                    RenderedImage sprite = ImageManipulator.mergeImages(images, columns, cellWidth, cellHeight, Color.WHITE);
+                    ImageInterpreter wi = format.getInterpreter(sprite);
+                    wi.setXResolution(ContentServerConfiguration.getInstance().getDefaultResolution());
+                    wi.setYResolution(ContentServerConfiguration.getInstance().getDefaultResolution());
+                    ByteArrayOutputStream data = new ByteArrayOutputStream();
+                    wi.writeToStream(null, data);
+                    wi.clear();
+                    sprites.add(data.toByteArray());
+                } finally {
+                    if (scheduler != null) {
+                        scheduler.release();
+                    }
+                }
+            }
+        } finally {
+            for (Future<ImageHolder> thumbnail : thumbnails) {
+                thumbnail.cancel(false);
+            }
+        }
+        LOGGER.debug("built " + sprites.size() + " sprites for " + sourcePaths.size() + " pages");
+
+        StringBuilder map = new StringBuilder();
+        map.append("{\"columns\":").append(columns);
+        map.append(",\"rows\":").append(rows);
+        map.append(",\"width\":").append(cellWidth);
+        map.append(",\"height\":").append(cellHeight);
+        map.append(",\"format\":\"").append(format.getFileExtension()).append("\"");
+        map.append(",\"sprites\":").append(sprites.size());
+        map.append(",\"pages\":[").append(pages).append("]}");
+        try {
+            return new SpriteSheet(format.getMimeType(), sprites, map.toString().getBytes("UTF-8"));
+        } catch (IOException e) {
+            throw new ContentLibException("UTF-8 not supported", e);
+        }
+    }
+
+    /************************************************************************************
+     * wait for a thumbnail and decode it, a page which can't be rendered leaves its cell empty
+     * 
+     * @return the thumbnail or null
+     * @throws InterruptedException
+     * @throws RenderQueueFullException if the thumbnail was rejected by the render queue, the sprite sheet must not be cached with an empty cell
+     ************************************************************************************/
+    private RenderedImage readThumbnail(Future<ImageHolder> thumbnail, String sourcePath, ImageFileFormat format, int cellWidth, int cellHeight)
+            throws InterruptedException, RenderQueueFullException {
+        try {
+            ImageHolder holder = thumbnail.get();
+            if (holder == null) {
+                LOGGER.warn("thumbnail can not be rendered: " + sourcePath);
+                return null;
+            }
+            RenderedImage image = format.getInterpreter(new ByteArrayInputStream(holder.getImage())).getRenderedImage();
+            if (image.getWidth() > cellWidth || image.getHeight() > cellHeight) {
+                LOGGER.warn("thumbnail is larger than a cell: " + sourcePath);
+                return null;
+            }
+            return image;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RenderQueueFullException) {
+                throw (RenderQueueFullException) e.getCause();
+            }
+            LOGGER.warn("thumbnail can not be rendered: " + sourcePath, e.getCause());
+        } catch (ContentLibException e) {
+            LOGGER.warn("thumbnail can not be read: " + sourcePath, e);
+        }
+        return null;
+    }
+
+    /************************************************************************************
+     * every page is scaled into a cell of the sprite images, other parameters for the size are ignored
+     ************************************************************************************/
+    @Override
+    protected Map<String, String[]> getImageParameters(HttpServletRequest request) {
+        Map<String, String[]> params = super.getImageParameters(request);
+        params.remove("rotate");
+        params.put("width", new String[] { String.valueOf(getCellSize(request, "width", DEFAULT_CELL_WIDTH)) });
+        params.put("height", new String[] { String.valueOf(getCellSize(request, "height", DEFAULT_CELL_HEIGHT)) });
+        return params;
+    }
+
+    /************************************************************************************
+     * get the width or height of the cells, clamped to the configured maximum size of thumbnails
+     ************************************************************************************/
+    private static int getCellSize(HttpServletRequest request, String name, int defaultValue) {
+        return Math.min(getIntParameter(request, name, defaultValue), ContentServerConfiguration.getInstance().getThumbnailBatchMaxSize());
+    }
+
+    /************************************************************************************
+     * the key contains the modification time of the METS file, sprite sheets cached before the METS file was changed are not used anymore
+     ************************************************************************************/
+    private String getCacheKey(HttpServletRequest request, Map<String, String[]> imageParams, int columns, int rows) throws IOException {
+        String metsFileGroup = request.getParameter("metsFileGroup");
+        if (metsFileGroup == null) {
+            metsFileGroup = ContentServerConfiguration.getInstance().getDefaultMetsFileGroup();
+        }
+        StringBuilder key = new StringBuilder("sprite_");
+        key.append(request.getParameter("metsFile")).append("_").append(metsFileGroup);
+        key.append("_").append(StringUtils.defaultString(request.getParameter("divID"), "-"));
+        key.append("_").append(imageParams.get("width")[0]).append("x").append(imageParams.get("height")[0]);
+        key.append("_").append(columns).append("x").append(rows);
+        key.append("_").append(METSCache.getLastModified(GetMetsPdfAction.getMetsUrl(request.getParameter("metsFile"))));
+        key.append(".").append(imageParams.get("format")[0]);
+        return key.toString();
+    }
+
+    private static int getIntParameter(HttpServletRequest request, String name, int defaultValue) {
+        if (StringUtils.isBlank(request.getParameter(name))) {
+            return defaultValue;
+        }
+        return Integer.parseInt(request.getParameter(name).trim());
+    }
+
+    private static String escapeJson(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    /************************************************************************************
+     * validate all parameters of request for sprites, throws IllegalArgumentException if one request parameter is not valid
+     * 
+     * @param request {@link HttpServletRequest} of ServletRequest
+     * @throws IllegalArgumentException
+     ************************************************************************************/
+    @Override
+    public void validateParameters(HttpServletRequest request) throws IllegalArgumentException {
+        super.validateParameters(request);
+
+        for (String name : new String[] { "width", "height", "columns", "rows", "sprite" }) {
+            String value = request.getParameter(name);
+            if (value != null && (StringUtils.isBlank(value) || !StringUtils.isNumeric(value.trim()) || Integer.parseInt(value.trim()) < 1)) {
+                throw new IllegalArgumentException(name + " has to be a positive number");
+            }
+        }
+
+        /* the grid of a sprite image is merged in memory, limit its size */
+        int columns = getIntParameter(request, "columns", DEFAULT_COLUMNS);
+        int rows = getIntParameter(request, "rows", DEFAULT_ROWS);
+        double pixels =
+                (double) getCellSize(request, "width", DEFAULT_CELL_WIDTH) * getCellSize(request, "height", DEFAULT_CELL_HEIGHT) * columns * rows;
+        long maxPixels = ContentServerConfiguration.getInstance().getThumbnailBatchMaxSpritePixels();
+        if (pixels > maxPixels) {
+            throw new IllegalArgumentException("sprite images of " + columns + " x " + rows + " cells are too large, the maximum is " + maxPixels
+                    + " pixels");
+        }
+    }
+}
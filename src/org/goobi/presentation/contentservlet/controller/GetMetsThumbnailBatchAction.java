@@ -0,0 +1,95 @@
+/*
+ * This file is part of the ContentServer project.
+ * Visit the websites for more information. 
+ * 		- http://gdz.sub.uni-goettingen.de 
+ * 		- http://www.intranda.com 
+ * 		- http://www.digiverso.com
+ * 
+ * Copyright 2009, Center for Retrospective Digitization, Göttingen (GDZ),
+ * intranda software
+ *
+ * This is the extended version updated by intranda
+ * Copyright 2012, intranda GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goobi.presentation.contentservlet.controller;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.commons.lang.StringUtils;
+
+import de.unigoettingen.sub.commons.contentlib.exceptions.ContentLibException;
+import de.unigoettingen.sub.commons.contentlib.servlet.controller.GetThumbnailBatchAction;
+import de.unigoettingen.sub.commons.contentlib.servlet.model.ContentServerConfiguration;
+import de.unigoettingen.sub.commons.simplemets.exceptions.MetsException;
+
+/************************************************************************************
+ * Thumbnail batch action for the pages of a METS file, the images are taken from the given file group (or the default file group) in the order
+ * of the pages of the div with the given id (or of the whole METS file)
+ * 
+ * @version 17.10.2026
+ ************************************************************************************/
+public class GetMetsThumbnailBatchAction extends GetThumbnailBatchAction {
+
+    /************************************************************************************
+     * get the images of all pages from the METS file
+     * 
+     * @param request {@link HttpServletRequest} of ServletRequest
+     * @return the urls of the page images
+     * @throws IOException
+     * @throws URISyntaxException
+     * @throws ContentLibException
+     ************************************************************************************/
+    @Override
+    protected List<String> getSourcePaths(HttpServletRequest request) throws IOException, URISyntaxException, ContentLibException {
+        String metsFileGroup = request.getParameter("metsFileGroup");
+        if (metsFileGroup == null) {
+            metsFileGroup = ContentServerConfiguration.getInstance().getDefaultMetsFileGroup();
+        }
+        List<String> sourcePaths = new ArrayList<String>();
+        try {
+            for (URL page : GetMetsPdfAction.getPageUrls(request.getParameter("metsFile"), metsFileGroup, request.getParameter("divID"))) {
+                sourcePaths.add(page.toString());
+            }
+        } catch (MetsException e) {
+            throw new ContentLibException("can't read pages from METS file " + request.getParameter("metsFile"), e);
+        }
+        return sourcePaths;
+    }
+
+    /************************************************************************************
+     * validate the parameters defining the METS file
+     * 
+     * @param request {@link HttpServletRequest} of ServletRequest
+     * @throws IllegalArgumentException
+     ************************************************************************************/
+    @Override
+    protected void validateSourceParameters(HttpServletRequest request) throws IllegalArgumentException {
+        /* validate repository */
+        if (ContentServerConfiguration.getInstance().getRepositoryPathMets() == null) {
+            throw new IllegalArgumentException("no repository url defined");
+        }
+
+        /* metsFile has to be not blank */
+        if (StringUtils.isBlank(request.getParameter("metsFile"))) {
+            throw new IllegalArgumentException("parameter metsFile can not be null or empty");
+        }
+    }
+}
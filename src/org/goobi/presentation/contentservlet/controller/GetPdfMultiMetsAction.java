@@ -63,6 +63,7 @@ import de.unigoettingen.sub.commons.contentlib.pdflib.PDFCreator;
 import de.unigoettingen.sub.commons.contentlib.pdflib.PDFTitlePage;
 import de.unigoettingen.sub.commons.contentlib.servlet.ServletWatermark;
 import de.unigoettingen.sub.commons.contentlib.servlet.Util;
+import de.unigoettingen.sub.commons.contentlib.servlet.controller.RenderScheduler;
 import de.unigoettingen.sub.commons.contentlib.servlet.model.ContentServerConfiguration;
 import de.unigoettingen.sub.commons.simplemets.SimplePDFMetadataExtractor;
 import de.unigoettingen.sub.commons.simplemets.SimpleStructureMetadataExtractor;
@@ -110,6 +111,8 @@ public class GetPdfMultiMetsAction extends GetMetsPdfAction {
             strMetsFileGroup = config.getDefaultMetsFileGroup();
         }
 
+        /* the pdf isn't cached, wait for a free render slot before it is created */
+        RenderScheduler scheduler = RenderScheduler.acquireSlot(RenderScheduler.METS_PDF);
         try {
             if (config.getWatermarkUse()) {
 
@@ -228,9 +231,15 @@ public class GetPdfMultiMetsAction extends GetMetsPdfAction {
                 myOutStream.close();
             }
         } finally {
-            if (myOutStream != null) {
-                myOutStream.flush();
-                myOutStream.close();
+            try {
+                if (myOutStream != null) {
+                    myOutStream.flush();
+                    myOutStream.close();
+                }
+            } finally {
+                if (scheduler != null) {
+                    scheduler.release();
+                }
             }
         }
     }
@@ -32,6 +32,9 @@ import javax.servlet.ServletException;
 import de.unigoettingen.sub.commons.contentlib.servlet.controller.Action;
 import de.unigoettingen.sub.commons.contentlib.servlet.controller.ContentServer;
 import de.unigoettingen.sub.commons.contentlib.servlet.controller.GetImageAction;
+import de.unigoettingen.sub.commons.contentlib.servlet.controller.GetThumbnailBatchAction;
+import de.unigoettingen.sub.commons.contentlib.servlet.controller.GetTileAction;
+import de.unigoettingen.sub.commons.contentlib.servlet.controller.RenderStatusAction;
 
 /************************************************************************************
  * simple contentserver class for requesting images
@@ -56,6 +59,21 @@ public class GoobiContentServer extends ContentServer {
         actions.put("pdf", GetMetsPdfAction.class);
         actions.put("multipdf", GetPdfMultiMetsAction.class);
         actions.put("image", GetImageAction.class);
+        actions.put("tile", GetTileAction.class);
+        actions.put("renderstatus", RenderStatusAction.class);
+        actions.put("thumbnails", GetThumbnailBatchAction.class);
+        actions.put("metsthumbnails", GetMetsThumbnailBatchAction.class);
+        actions.put("metssprite", GetMetsSpriteAction.class);
+        actions.put("warmup", CacheWarmUpAction.class);
+    }
+
+    /************************************************************************************
+     * stop a running cache warm-up before the caches are closed
+     ************************************************************************************/
+    @Override
+    public void destroy() {
+        CacheWarmUp.cancelCurrent();
+        super.destroy();
     }
 
 }
@@ -0,0 +1,73 @@
+/*
+ * This file is part of the ContentServer project.
+ * Visit the websites for more information. 
+ * 		- http://gdz.sub.uni-goettingen.de 
+ * 		- http://www.intranda.com 
+ * 		- http://www.digiverso.com
+ * 
+ * Copyright 2009, Center for Retrospective Digitization, Göttingen (GDZ),
+ * intranda software
+ *
+ * This is the extended version updated by intranda
+ * Copyright 2012, intranda GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goobi.presentation.contentservlet.controller;
+
+import java.io.Serializable;
+import java.util.List;
+
+/************************************************************************************
+ * sprite images of all pages of a METS file together with the json map of the page positions, cached as one object
+ * 
+ * @version 17.10.2026
+ ************************************************************************************/
+public class SpriteSheet implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String mimeType;
+    private final List<byte[]> sprites;
+    private final byte[] map;
+
+    /************************************************************************************
+     * @param mimeType mime type of the sprite images
+     * @param sprites the encoded sprite images
+     * @param map the json map of the page positions, UTF-8 encoded
+     ************************************************************************************/
+    public SpriteSheet(String mimeType, List<byte[]> sprites, byte[] map) {
+        this.mimeType = mimeType;
+        this.sprites = sprites;
+        this.map = map;
+    }
+
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    public int getSpriteCount() {
+        return sprites.size();
+    }
+
+    /************************************************************************************
+     * @param number number of the sprite, starting with 1
+     * @return the encoded sprite image
+     ************************************************************************************/
+    public byte[] getSprite(int number) {
+        return sprites.get(number - 1);
+    }
+
+    public byte[] getMap() {
+        return map;
+    }
+}